@@ -0,0 +1,14 @@
+package datastructures;
+
+/**
+ * This interface is implemented by the objects which wait for data to be published in a data structure.
+ */
+public interface DataListener {
+    
+    /**
+     * Called after a data value (or the step) of a data structure has been set.
+     * It is called by the thread which set the data, so it must return quickly.
+     * @param data  the data structure
+     */
+    void dataPublished(DataStruct data);
+}
@@ -6,19 +6,28 @@ import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * This class is an abstract class for data structures of z, dzdt, xi, dxidt and eta.
+ * 
+ * Every data structure has a single writer (the node or tile which owns the grid point)
+ * and many readers (its UDP server and the neighbors in the same tile), so no locks are used.
+ * The writer stores the value first, then publishes its step with a release store;
+ * a reader loads the published step (acquire) before the value, so it sees every value
+ * up to the published step.
  * @author Vas Ádám (vas.adam@inbox.com)
  */
 public abstract class DataStruct {
-    protected AtomicInteger step;
+    protected final AtomicInteger step;
     protected AtomicIntegerArray dataArray;
-    protected final Object lock;
+    
+    /**
+     * listeners notified when new data is published (copied on write, the writer iterates without locks)
+     */
+    private volatile DataListener[] listeners = new DataListener[0];
 
     /**
      * Class constructor.
      */
     public DataStruct() {
         step = new AtomicInteger(-1);
-        lock = new Object();        
     }    
 
     /**
@@ -26,20 +35,18 @@ public abstract class DataStruct {
      * @return the current step of the data structure
      */
     public int getStep() {
-        synchronized (lock) {
-            return step.get();
-        }
+        return step.get();
     }
     
     /**
      * Sets the current step of the data structure to a given value.
      * This method is usually called by <code>setData()</code>.
+     * It may only be called by the writer of the data structure.
      * @param step  the new step value
      */
     public void setStep(int step) {
-        synchronized (lock) {
-            this.step.set(step);
-        }
+        publishStep(step);
+        publish();
     }
 
     /**
@@ -50,20 +57,51 @@ public abstract class DataStruct {
      */
     public float getData(int step) {
         /* If the requested data is unavailable, return NaN */
-        if (step > getStep())
+        if (step > this.step.get())
             return Float.NaN;            
         return Float.intBitsToFloat(dataArray.get(step));            
     }    
 
     /**
      * Sets the data value in a given step.
+     * It may only be called by the writer of the data structure.
      * @param step  the step of the data value
      * @param data  the new value
      */
     public void setData(int step, float data) {
-        synchronized (lock) {            
-            dataArray.set(step, Float.floatToIntBits(data));
-            this.step.set(step);
-        }
+        dataArray.lazySet(step, Float.floatToIntBits(data));
+        publishStep(step);
+        publish();
     }        
+
+    /**
+     * Publishes a new step with a release store (ordered after the stores of the values).
+     * @param step  the new step value
+     */
+    protected void publishStep(int step) {
+        this.step.lazySet(step);
+    }
+
+    /**
+     * Adds a listener, which is notified whenever new data is published.
+     * (The UDP server of the owner, and the readers of the neighbors in the same process.)
+     * @param listener  the listener
+     */
+    public synchronized void addListener(DataListener listener) {
+        for (DataListener l : listeners)
+            if (l == listener)
+                return;
+        final DataListener[] newListeners = new DataListener[listeners.length+1];
+        System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+        newListeners[listeners.length] = listener;
+        listeners = newListeners;
+    }
+
+    /**
+     * Notifies the listeners that new data may be available.
+     */
+    protected void publish() {
+        for (DataListener l : listeners)
+            l.dataPublished(this);
+    }
 }
@@ -1,4 +1,3 @@
-
 package datastructures;
 
 import eniac.Node;
@@ -11,15 +10,30 @@ import java.util.concurrent.atomic.AtomicIntegerArray;
 public class DataStructDZDT extends DataStruct {
     
     public static final int NUM_STEPS = Node.NUM_ITERATIONS+1;
-    private boolean denyNextStepRequests;
+    /* The first iteration of red-black SOR already asks for dzdt[1] of the red neighbors, *
+     * so dzdt[0] and dzdt[1] are denied between two Poisson iterations.                    */
+    private static final int NUM_DENIED_STEPS = 2;
+    /* The deny flag is the lowest bit of the published value (step*2 + flag), so a reader *
+     * gets the step and the flag in a single load, and they always belong to the same state. */
+    private static final int DENIED = 1;
     
     /**
      * Class constructor.
      */    
     public DataStructDZDT() {
         dataArray = new AtomicIntegerArray(NUM_STEPS);
+        step.set(-1 << 1);
     }           
     
+    /**
+     * Returns the current step of the data structure.
+     * @return the current step of the data structure
+     */
+    @Override
+    public int getStep() {
+        return step.get() >> 1;
+    }
+    
     /**
      * Gets the data value in a given step.
      * @param step  the step of the requested data value
@@ -33,20 +47,35 @@ public class DataStructDZDT extends DataStruct {
          *      1. the requested data is unavailable.           *
          *      2. the previous Poisson iteration has finished, *
          *         but the next one hasn't started yet,         *
-         *         and someone asks for dzdt[0] (next step).    *
+         *         and someone asks for dzdt[0] or dzdt[1]      *
+         *         (next step).                                 *
          * This is for synchronization purposes.                *
+         * Both conditions are checked on the same published    *
+         * value, so the step and the deny flag belong to the   *
+         * same iteration.                                      *
          ********************************************************/
-        if ( (step > getStep()) || (step==0 && denyNextStepRequests) )
+        final int published = this.step.get();
+        if ( (step > (published >> 1)) || (step < NUM_DENIED_STEPS && (published & DENIED) != 0) )
             return Float.NaN;            
         return Float.intBitsToFloat(dataArray.get(step));            
     }        
     
     
+    /**
+     * Publishes a new step, keeping the deny flag.
+     * @param step  the new step value
+     */
+    @Override
+    protected void publishStep(int step) {
+        this.step.lazySet((step << 1) | (this.step.get() & DENIED));
+    }
+    
+    
     /**
      * Denies requests for data which belong to the next step.
      */
     public void denyNextStepRequests() {
-        denyNextStepRequests = true;
+        step.lazySet(step.get() | DENIED);
     }
     
     
@@ -54,6 +83,7 @@ public class DataStructDZDT extends DataStruct {
      * Allows requests for data which belong to the next step.
      */
     public void allowNextStepRequests() {
-        denyNextStepRequests = false;
+        step.lazySet(step.get() & ~DENIED);
+        publish();
     }
 }
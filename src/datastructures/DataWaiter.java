@@ -0,0 +1,67 @@
+package datastructures;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class implements a reader of the data structures of the neighbors in the same process.
+ *
+ * The reader is registered as a listener on the data structures it reads, and the owner thread
+ * waits for data which is not available yet on a ReentrantLock condition (a monitor would pin
+ * a virtual thread while it waits). The writers always take the lock before signalling, so a
+ * value published between the check and the wait of the reader isn't missed.
+ */
+public class DataWaiter implements DataListener {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+
+
+    /**
+     * Registers the waiter on a data structure, which can be read by <code>getData()</code> afterwards.
+     * @param data  the data structure
+     */
+    public void listenTo(DataStruct data) {
+        data.addListener(this);
+    }
+
+
+    /**
+     * Returns a data value of a data structure, waits for it if it isn't available yet.
+     *
+     * @param data  the data structure (registered by <code>listenTo()</code>)
+     * @param step  the step of the requested data value
+     * @return      the data value (or NaN if the thread has been interrupted)
+     */
+    public float getData(DataStruct data, int step) {
+        float value = data.getData(step);
+        if (!Float.isNaN(value))
+            return value;
+        lock.lock();
+        try {
+            while (Float.isNaN(value = data.getData(step)))
+                published.await();
+            return value;
+        } catch (InterruptedException ex) {
+            return Float.NaN;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Wakes up the waiting reader.
+     * It is called by the thread which published the data.
+     * @param data  the data structure
+     */
+    @Override
+    public void dataPublished(DataStruct data) {
+        lock.lock();
+        try {
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
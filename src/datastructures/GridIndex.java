@@ -0,0 +1,165 @@
+package datastructures;
+
+/**
+ * This class implements a spatial index of the grid points, which finds the grid point
+ * nearest to a geographical position (used at the registration of the nodes).
+ *
+ * The grid points are stored as unit vectors in a 3-dimensional k-d tree. The chord between
+ * two points of the sphere grows with their great-circle distance, so the nearest point in the
+ * tree is the nearest one on the sphere, also across the date line (lon = +-PI) and near the poles.
+ * The tree is built once, when the grid is read, and a lookup visits O(log N) grid points on average.
+ */
+public class GridIndex {
+
+    private static final int DIMENSIONS = 3;
+
+    private final int width;
+
+    /**
+     * unit vectors of the grid points, index [y*width+x][coordinate]
+     */
+    private final double[][] points;
+
+    /**
+     * grid point indices in k-d tree order: the median of the range [lo,hi) is at (lo+hi)/2,
+     * the grid points before it are not greater, the grid points after it are not less
+     * in the coordinate of the level
+     */
+    private final int[] tree;
+
+
+    /**
+     * Class constructor.
+     * @param lat   geographical latitude of the grid points in radians, index [y][x]
+     * @param lon   geographical longitude of the grid points in radians, index [y][x]
+     */
+    public GridIndex(float[][] lat, float[][] lon) {
+        final int height = lat.length;
+        this.width = lat[0].length;
+        this.points = new double[width*height][];
+        this.tree = new int[width*height];
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                final int i = y*width+x;
+                points[i] = toUnitVector(lat[y][x], lon[y][x]);
+                tree[i] = i;
+            }
+        }
+        build(0, tree.length, 0);
+    }
+
+
+    /**
+     * Returns the unit vector of a geographical position.
+     * @param lat   latitude in radians
+     * @param lon   longitude in radians
+     * @return      the unit vector (x, y, z)
+     */
+    private static double[] toUnitVector(double lat, double lon) {
+        final double cosLat = Math.cos(lat);
+        return new double[]{cosLat*Math.cos(lon), cosLat*Math.sin(lon), Math.sin(lat)};
+    }
+
+
+    /**
+     * Builds the k-d tree of a range of the grid points.
+     * @param lo    first index of the range
+     * @param hi    end of the range (exclusive)
+     * @param axis  the coordinate of the level
+     */
+    private void build(int lo, int hi, int axis) {
+        if (hi-lo <= 1)
+            return;
+        final int mid = (lo+hi) >>> 1;
+        select(lo, hi-1, mid, axis);
+        build(lo, mid, (axis+1) % DIMENSIONS);
+        build(mid+1, hi, (axis+1) % DIMENSIONS);
+    }
+
+
+    /**
+     * Moves the grid point of rank k (in a coordinate) of a range to index k,
+     * the grid points before it are not greater, the grid points after it are not less (quickselect).
+     * @param lo    first index of the range
+     * @param hi    last index of the range (inclusive)
+     * @param k     the rank
+     * @param axis  the coordinate
+     */
+    private void select(int lo, int hi, int k, int axis) {
+        while (lo < hi) {
+            final double pivot = points[tree[(lo+hi) >>> 1]][axis];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (points[tree[i]][axis] < pivot)
+                    i++;
+                while (points[tree[j]][axis] > pivot)
+                    j--;
+                if (i <= j) {
+                    final int tmp = tree[i];
+                    tree[i++] = tree[j];
+                    tree[j--] = tmp;
+                }
+            }
+            /* [lo,j] <= pivot, (j,i) == pivot, [i,hi] >= pivot */
+            if (k <= j)
+                hi = j;
+            else if (k >= i)
+                lo = i;
+            else
+                return;
+        }
+    }
+
+
+    /**
+     * Returns the grid point nearest to a geographical position (great-circle distance).
+     * Of grid points at the same distance, the one with the lowest y (and then x) is returned.
+     * @param latitude      geographical latitude in radians
+     * @param longitude     geographical longitude in radians
+     * @return              2-element array containing (x,y) coordinates of the grid point
+     */
+    public int[] getNearest(float latitude, float longitude) {
+        final double[] q = toUnitVector(latitude, longitude);
+        final double[] best = {Double.MAX_VALUE, -1};      // squared chord, index of the grid point
+        search(0, tree.length, 0, q, best);
+        final int i = (int)best[1];
+        return new int[]{i % width, i / width};
+    }
+
+
+    /**
+     * Searches the nearest grid point in a range of the k-d tree.
+     * @param lo    first index of the range
+     * @param hi    end of the range (exclusive)
+     * @param axis  the coordinate of the level
+     * @param q     the unit vector of the position
+     * @param best  the nearest grid point found so far: squared chord, index (updated)
+     */
+    private void search(int lo, int hi, int axis, double[] q, double[] best) {
+        if (lo >= hi)
+            return;
+        final int mid = (lo+hi) >>> 1;
+        final int i = tree[mid];
+        final double[] p = points[i];
+        final double dx = q[0]-p[0], dy = q[1]-p[1], dz = q[2]-p[2];
+        final double d = dx*dx + dy*dy + dz*dz;
+        if (d < best[0] || (d == best[0] && i < best[1])) {
+            best[0] = d;
+            best[1] = i;
+        }
+
+        /* The nearer side first, the other side only if it can contain a nearer grid point. */
+        final double diff = q[axis]-p[axis];
+        final int next = (axis+1) % DIMENSIONS;
+        if (diff < 0) {
+            search(lo, mid, next, q, best);
+            if (diff*diff <= best[0])
+                search(mid+1, hi, next, q, best);
+        }
+        else {
+            search(mid+1, hi, next, q, best);
+            if (diff*diff <= best[0])
+                search(lo, mid, next, q, best);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package datastructures;
+
+/**
+ * This class holds the width and height of the grid
+ * (in place of java.awt.Dimension, so the nodes and the servers don't depend on AWT).
+ */
+public class GridSize {
+
+    public final int width;
+    public final int height;
+
+
+    /**
+     * Class constructor.
+     * @param width     number of grid points in x direction
+     * @param height    number of grid points in y direction
+     */
+    public GridSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+}
@@ -0,0 +1,131 @@
+package datastructures;
+
+import eniac.Node;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class implements the inbox of the values pushed by the neighbors of a node.
+ *
+ * Every neighbor (producer) has a slot for every step of every data type. A slot holds
+ * the last pushed value and its tag: the values of dz/dt are reused in every step of
+ * the forecast, so they are tagged with the step of the forecast, other values with 0.
+ * Values are written by the UDP server thread and read by the node thread, which waits
+ * on a ReentrantLock condition (a monitor would pin a virtual thread while it waits).
+ */
+public class Inbox {
+
+    private static final int NUM_STEPS = DataStructDZDT.NUM_STEPS;     // the longest data structure
+    private static final int NO_TAG = -1;
+
+    /**
+     * slot of every producer (key: x*65536+y of its grid point)
+     */
+    private final Map<Integer, Integer> producers = new HashMap<>();
+
+    /*
+     * values and tags, index [(producer slot)*(number of data types)+(data type ordinal)][step]
+     */
+    private float[][] values = new float[0][];
+    private int[][] tags = new int[0][];
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition valueArrived = lock.newCondition();
+
+
+    /**
+     * Adds a producer to the inbox.
+     * @param x     x coordinate of the grid point of the producer
+     * @param y     y coordinate of the grid point of the producer
+     * @return      the slot of the producer
+     */
+    public int addProducer(int x, int y) {
+        lock.lock();
+        try {
+            final Integer key = x*65536+y;
+            Integer slot = producers.get(key);
+            if (slot != null)
+                return slot;
+            slot = producers.size();
+            producers.put(key, slot);
+
+            final int types = Node.DataTypes.values().length;
+            final float[][] newValues = new float[values.length+types][];
+            final int[][] newTags = new int[tags.length+types][];
+            System.arraycopy(values, 0, newValues, 0, values.length);
+            System.arraycopy(tags, 0, newTags, 0, tags.length);
+            for (int i=values.length; i<newValues.length; i++) {
+                newValues[i] = new float[NUM_STEPS];
+                newTags[i] = new int[NUM_STEPS];
+                Arrays.fill(newTags[i], NO_TAG);
+            }
+            values = newValues;
+            tags = newTags;
+            return slot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Stores a pushed value, and wakes up the waiting reader.
+     * Values of unknown producers are dropped.
+     *
+     * @param x         x coordinate of the grid point of the producer
+     * @param y         y coordinate of the grid point of the producer
+     * @param dataType  the type of data
+     * @param tag       the tag of the value
+     * @param step      the step of the value
+     * @param value     the value
+     */
+    public void put(int x, int y, Node.DataTypes dataType, int tag, int step, float value) {
+        lock.lock();
+        try {
+            final Integer slot = producers.get(x*65536+y);
+            if (slot == null || step < 0 || step >= NUM_STEPS) {
+                System.err.println("Error in put(): unexpected value from (" + x + "," + y + ")");
+                return;
+            }
+            final int i = slot*Node.DataTypes.values().length + dataType.ordinal();
+            values[i][step] = value;
+            tags[i][step] = tag;
+            valueArrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Returns a pushed value, waits for it if it hasn't arrived yet.
+     *
+     * @param slot      the slot of the producer
+     * @param dataType  the type of data
+     * @param tag       the tag of the value
+     * @param step      the step of the value
+     * @param timeout   maximum waiting time in milliseconds
+     * @return          the value, or NaN if it hasn't arrived within the timeout
+     */
+    public float take(int slot, Node.DataTypes dataType, int tag, int step, long timeout) {
+        final int i = slot*Node.DataTypes.values().length + dataType.ordinal();
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lock();
+        try {
+            while (tags[i][step] != tag) {
+                if (remaining <= 0)
+                    return Float.NaN;
+                remaining = valueArrived.awaitNanos(remaining);
+            }
+            return values[i][step];
+        } catch (InterruptedException ex) {
+            return Float.NaN;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
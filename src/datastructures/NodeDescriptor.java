@@ -2,6 +2,8 @@
 package datastructures;
 
 import java.net.InetAddress;
+import network.DataProvider;
+import network.ProtocolHeader;
 
 /**
  * This class implements a node descriptor.
@@ -11,6 +13,9 @@ public class NodeDescriptor {
     
     public final InetAddress address;   
     public final int port;
+    public final boolean isSimulated;   // simulated nodes and tiles also accept extended UDP messages
+    public final DataProvider localProvider;    // node or tile in the same process, read directly (null: UDP is used)
+    public final int protocolVersion;   // version of the UDP messages negotiated at registration (see ProtocolHeader)
 
     /**
      * Class constructor.
@@ -18,7 +23,43 @@ public class NodeDescriptor {
      * @param port      listening port of the neighbor node
      */
     public NodeDescriptor(InetAddress address, int port) {
+        this(address, port, false);
+    }
+    
+    /**
+     * Class constructor.
+     * @param address       address of the neighbor node
+     * @param port          listening port of the neighbor node
+     * @param isSimulated   true if the neighbor is a simulated node or tile
+     */
+    public NodeDescriptor(InetAddress address, int port, boolean isSimulated) {
+        this(address, port, isSimulated, null);
+    }
+    
+    /**
+     * Class constructor.
+     * @param address       address of the neighbor node
+     * @param port          listening port of the neighbor node
+     * @param isSimulated   true if the neighbor is a simulated node or tile
+     * @param localProvider the neighbor node or tile if it runs in the same process (or null)
+     */
+    public NodeDescriptor(InetAddress address, int port, boolean isSimulated, DataProvider localProvider) {
+        this(address, port, isSimulated, localProvider, ProtocolHeader.LEGACY_VERSION);
+    }
+    
+    /**
+     * Class constructor.
+     * @param address           address of the neighbor node
+     * @param port              listening port of the neighbor node
+     * @param isSimulated       true if the neighbor is a simulated node or tile
+     * @param localProvider     the neighbor node or tile if it runs in the same process (or null)
+     * @param protocolVersion   version of the UDP messages understood by the neighbor
+     */
+    public NodeDescriptor(InetAddress address, int port, boolean isSimulated, DataProvider localProvider, int protocolVersion) {
         this.address = address;
         this.port = port;
+        this.isSimulated = isSimulated;
+        this.localProvider = localProvider;
+        this.protocolVersion = protocolVersion;
     }
 }
@@ -0,0 +1,183 @@
+package datastructures;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class implements the registry of the node descriptors of a grid at the main server.
+ *
+ * The descriptors are stored in an AtomicReferenceArray: a grid point is registered by
+ * compare-and-set, so concurrent registrations and lookups need no lock, and a grid point
+ * can't be registered twice. The numbers of registered grid points and real nodes are
+ * atomic counters. Registrations signal a ReentrantLock condition, so the end of the
+ * registration window can wait for a quorum of real nodes without polling.
+ *
+ * A registered grid point may be reassigned once (a straggling real node is replaced by a
+ * simulated node): the next registration of the grid point replaces its descriptor.
+ */
+public class NodeRegistry {
+
+    private final int width, height;
+    private final AtomicReferenceArray<NodeDescriptor> descriptors;
+    private final AtomicIntegerArray reassignments;             // REGISTERED, REASSIGNING or REASSIGNED
+    private static final int REGISTERED = 0, REASSIGNING = 1, REASSIGNED = 2;
+    private final AtomicInteger registeredPoints = new AtomicInteger();
+    private final AtomicInteger realNodes = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition registered = lock.newCondition();
+
+
+    /**
+     * Class constructor.
+     * @param width     width of the grid
+     * @param height    height of the grid
+     */
+    public NodeRegistry(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.descriptors = new AtomicReferenceArray<>(width*height);
+        this.reassignments = new AtomicIntegerArray(width*height);
+    }
+
+
+    /**
+     * Returns the descriptor of a grid point.
+     * @param x     x coordinate of the grid point
+     * @param y     y coordinate of the grid point
+     * @return      the descriptor, or null if the grid point hasn't been registered yet
+     */
+    public NodeDescriptor get(int x, int y) {
+        return descriptors.get(y*width+x);
+    }
+
+
+    /**
+     * Registers a grid point (if it isn't registered already, or it is being reassigned).
+     * @param x         x coordinate of the grid point
+     * @param y         y coordinate of the grid point
+     * @param nd        the descriptor of the node (or tile) of the grid point
+     * @param isReal    true if the node is a real node
+     * @return          true if the grid point has been registered, false if it was registered already
+     */
+    public boolean add(int x, int y, NodeDescriptor nd, boolean isReal) {
+        final int i = y*width+x;
+        if (!descriptors.compareAndSet(i, null, nd)) {
+            /* The new node of a reassigned grid point replaces the old one (the counters don't change). */
+            if (!reassignments.compareAndSet(i, REASSIGNING, REASSIGNED))
+                return false;
+            descriptors.set(i, nd);
+            return true;
+        }
+        registeredPoints.incrementAndGet();
+        if (isReal)
+            realNodes.incrementAndGet();
+        lock.lock();
+        try {
+            registered.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+
+    /**
+     * Marks a registered grid point for reassignment: its next registration replaces the descriptor.
+     * @param x     x coordinate of the grid point
+     * @param y     y coordinate of the grid point
+     * @return      true if the grid point has been marked, false if it isn't registered or it has been reassigned before
+     */
+    public boolean reassign(int x, int y) {
+        return get(x, y) != null && reassignments.compareAndSet(y*width+x, REGISTERED, REASSIGNING);
+    }
+
+
+    /**
+     * Checks whether the descriptor of a grid point has been replaced by reassignment.
+     * @param x     x coordinate of the grid point
+     * @param y     y coordinate of the grid point
+     * @return      true if the grid point has been reassigned, and the new node has registered
+     */
+    public boolean isReassigned(int x, int y) {
+        return reassignments.get(y*width+x) == REASSIGNED;
+    }
+
+
+    /**
+     * Checks whether a quorum of real nodes has registered.
+     * @param count     number of real nodes (negative: any number)
+     * @param points    (x,y) of the grid points which have to be registered (null: any grid points)
+     * @return          true if the quorum has registered (false if neither a count nor grid points are given)
+     */
+    public boolean isQuorumRegistered(int count, int[][] points) {
+        if (count < 0 && points == null)
+            return false;
+        if (count >= 0 && realNodes.get() < count)
+            return false;
+        if (points != null) {
+            /* A position outside the grid is never registered. */
+            for (int[] p : points)
+                if (p == null || p.length < 2 || !contains(p[0], p[1]) || get(p[0], p[1]) == null)
+                    return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Waits until a quorum of real nodes has registered (see isQuorumRegistered()).
+     * @param count     number of real nodes (negative: any number)
+     * @param points    (x,y) of the grid points which have to be registered (null: any grid points)
+     * @param timeout   maximum waiting time in milliseconds
+     * @return          true if the quorum has registered, false after the timeout
+     */
+    public boolean awaitQuorum(int count, int[][] points, long timeout) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lock();
+        try {
+            while (!isQuorumRegistered(count, points)) {
+                if (remaining <= 0)
+                    return false;
+                remaining = registered.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            return isQuorumRegistered(count, points);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Checks whether a position is a grid point.
+     * @param x     x coordinate
+     * @param y     y coordinate
+     * @return      true if (x,y) is in the grid
+     */
+    public boolean contains(int x, int y) {
+        return x >= 0 && x < width && y >= 0 && y < height;
+    }
+
+
+    /**
+     * Returns the number of registered grid points.
+     * @return  the number of registered grid points
+     */
+    public int getRegisteredPoints() {
+        return registeredPoints.get();
+    }
+
+
+    /**
+     * Returns the number of registered real nodes.
+     * @return  the number of real nodes
+     */
+    public int getRealNodes() {
+        return realNodes.get();
+    }
+}
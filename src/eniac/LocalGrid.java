@@ -0,0 +1,388 @@
+package eniac;
+
+import java.util.Arrays;
+import solver.PoissonSolver;
+
+/**
+ * This class implements an in-process ENIAC grid.
+ *
+ * The fields of the whole grid are stored in flat float arrays (index y*width+x),
+ * and the steps of <code>Node.run()</code> are executed as array sweeps,
+ * without any communication between the grid points.
+ * It can be used when all the nodes are simulated.
+ */
+public class LocalGrid {
+
+    /**
+     * size of the grid
+     */
+    private final int width, height;
+
+    /*
+     * geographical parameters of the grid points
+     */
+    private final float[] h, f;
+
+    /*
+     * fields of the grid (z and xi are kept for the previous, current and next step)
+     */
+    private float[] zOld, z, zNew;
+    private float[] xiOld, xi, xiNew;
+    private final float[] eta, dxidt;
+    private final float[] dzdt, rhs;
+
+    /**
+     * solution method of the Poisson equation
+     */
+    private final PoissonSolver poissonSolver;
+
+    /**
+     * total number of iterations of the Poisson solutions
+     */
+    private int poissonIterations;
+
+    /**
+     * number of iterations of the Poisson solution in every step
+     */
+    private final int[] stepIterations = new int[Node.HOURS];
+
+    /**
+     * the Poisson iteration starts from the dz/dt of the previous step instead of zero
+     */
+    private boolean warmStart;
+
+    /*
+     * optional reference solver (e.g. a direct solver), its solution,
+     * and the maximum deviation of the solutions from it
+     */
+    private PoissonSolver referenceSolver;
+    private float[] referenceDzdt;
+    private float maxReferenceDeviation;
+
+    /*
+     * border nodes in the order of calculation (edges first, then corners),
+     * and the close and distant neighbors used for the extrapolation of xi and dxi/dt
+     */
+    private final int[] borderNodes, closeNeighbors, distantNeighbors;
+
+    /**
+     * on border nodes this array indicates whether the fluid is entering or leaving the area
+     */
+    private final boolean[] isFluidLeaving;
+
+
+    /**
+     * Class constructor.
+     * Grid is initialized here.
+     *
+     * @param lat             geographical latitude of the grid points in radians, indexed as [y][x]
+     * @param z0              initial value of z at the grid points, indexed as [y][x]
+     * @param poissonSolver   solution method of the Poisson equation
+     */
+    public LocalGrid(float[][] lat, float[][] z0, PoissonSolver poissonSolver) {
+
+        this.height = z0.length;
+        this.width = z0[0].length;
+        final int size = width*height;
+
+        this.h = new float[size];
+        this.f = new float[size];
+        this.zOld = new float[size];
+        this.z = new float[size];
+        this.zNew = new float[size];
+        this.xiOld = new float[size];
+        this.xi = new float[size];
+        this.xiNew = new float[size];
+        this.eta = new float[size];
+        this.dxidt = new float[size];
+        this.dzdt = new float[size];
+        this.rhs = new float[size];
+        this.poissonSolver = poissonSolver;
+
+        /* Initialize geographical parameters and z (same as in Node) */
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                final int i = y*width+x;
+                final float m = (float)(2/(1+Math.sin(lat[y][x])));
+                f[i] = (float)(2 * Node.OMEGA * Math.sin(lat[y][x]));
+                h[i] = Node.GRAV * m*m / f[i];
+                z[i] = z0[y][x];
+            }
+        }
+
+        /****************************************************************************
+         * Collect border nodes with their close and distant neighbors.            *
+         * The priority of the directions is the same as in Node.run(), therefore  *
+         * corners are western or eastern nodes, and they depend on the values of  *
+         * southern or northern nodes. So edges are calculated first, then corners. *
+         ****************************************************************************/
+        final int numBorderNodes = 2*(width+height)-4;
+        this.borderNodes = new int[numBorderNodes];
+        this.closeNeighbors = new int[numBorderNodes];
+        this.distantNeighbors = new int[numBorderNodes];
+        this.isFluidLeaving = new boolean[numBorderNodes];
+        int n = 0;
+        for (int corners=0; corners<2; corners++) {
+            for (int y=0; y<height; y++) {
+                for (int x=0; x<width; x++) {
+                    final boolean isCorner = (x==0 || x==width-1) && (y==0 || y==height-1);
+                    if (isInner(x, y) || isCorner != (corners==1))
+                        continue;
+                    final int i = y*width+x;
+                    borderNodes[n] = i;
+                    /* Western border node: fluid is leaving if z(i,j+1) >= z(i,j-1) */
+                    if (x==0) {
+                        closeNeighbors[n] = i+1;
+                        distantNeighbors[n] = i+2;
+                        isFluidLeaving[n] = z[neighbor(x, y, 0, 1)] >= z[neighbor(x, y, 0, -1)];
+                    }
+                    /* Eastern border node: fluid is leaving if z(i,j-1) >= z(i,j+1) */
+                    else if (x==width-1) {
+                        closeNeighbors[n] = i-1;
+                        distantNeighbors[n] = i-2;
+                        isFluidLeaving[n] = z[neighbor(x, y, 0, -1)] >= z[neighbor(x, y, 0, 1)];
+                    }
+                    /* Southern border node: fluid is leaving if z(i-1,j) >= z(i+1,j) */
+                    else if (y==0) {
+                        closeNeighbors[n] = i+width;
+                        distantNeighbors[n] = i+2*width;
+                        isFluidLeaving[n] = z[neighbor(x, y, -1, 0)] >= z[neighbor(x, y, 1, 0)];
+                    }
+                    /* Northern border node: fluid is leaving if z(i+1,j) >= z(i-1,j) */
+                    else {
+                        closeNeighbors[n] = i-width;
+                        distantNeighbors[n] = i-2*width;
+                        isFluidLeaving[n] = z[neighbor(x, y, 1, 0)] >= z[neighbor(x, y, -1, 0)];
+                    }
+                    n++;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Runs the forecast for <code>Node.HOURS</code> steps.
+     * The calculations are the same as in <code>Node.run()</code>.
+     */
+    public void run() {
+
+        /* xi=Laplace(z) at inner nodes, extrapolation at border nodes */
+        for (int y=1; y<height-1; y++) {
+            for (int x=1; x<width-1; x++) {
+                final int i = y*width+x;
+                final float sum = z[i+width] + z[i+1] + z[i-width] + z[i-1];
+                xi[i] = (sum-4*z[i]) / Node.DS / Node.DS;
+            }
+        }
+        extrapolateBorder(xi, false);
+
+        /****************************************************
+         ****************************************************
+         ************** MAIN LOOP STARTS HERE ***************
+         ****************************************************
+         ****************************************************/
+        for (int step=0; step<Node.HOURS; step++) {
+
+            /* Calculate absolute vorticity */
+            for (int i=0; i<eta.length; i++)
+                eta[i] = h[i]*xi[i] + f[i];
+
+            /* Calculate dxi/dt = Jacobi(eta,z) at inner nodes */
+            for (int y=1; y<height-1; y++) {
+                for (int x=1; x<width-1; x++) {
+                    final int i = y*width+x;
+                    final float dzdx = (z[i+1] - z[i-1]) / (2*Node.DS);
+                    final float dzdy = (z[i+width] - z[i-width]) / (2*Node.DS);
+                    final float detadx = (eta[i+1] - eta[i-1]) / (2*Node.DS);
+                    final float detady = (eta[i+width] - eta[i-width]) / (2*Node.DS);
+                    dxidt[i] = detadx*dzdy - detady*dzdx;
+                }
+            }
+
+            /* Solve the Laplace(dz/dt) = dxi/dt Poisson equation */
+            solvePoisson(step);
+
+            /* dxi/dt: extrapolation where fluid is leaving, 0 where fluid is entering */
+            extrapolateBorder(dxidt, true);
+
+            /* Step forward xi and z based on dxi/dt and dz/dt */
+            for (int i=0; i<z.length; i++) {
+                /* First step: forward differences */
+                if (step==0) {
+                    xiNew[i] = xi[i] + Node.DT_SEC*dxidt[i];
+                    zNew[i] = z[i] + Node.DT_SEC*dzdt[i];
+                }
+                /* Next steps: central differences */
+                else {
+                    xiNew[i] = xiOld[i] + 2*Node.DT_SEC*dxidt[i];
+                    zNew[i] = zOld[i] + 2*Node.DT_SEC*dzdt[i];
+                }
+            }
+            float[] tmp = zOld;
+            zOld = z;
+            z = zNew;
+            zNew = tmp;
+            tmp = xiOld;
+            xiOld = xi;
+            xi = xiNew;
+            xiNew = tmp;
+        }
+        /***************************************************
+         ***************************************************
+         *************** MAIN LOOP ENDS HERE ***************
+         ***************************************************
+         ***************************************************/
+    }
+
+
+    /**
+     * Solves the Laplace(dz/dt) = dxi/dt Poisson equation at the inner nodes
+     * with the configured solver, starting from zero (or from the solution of the
+     * previous step with warm start). dz/dt=0 at border nodes.
+     * @param step  the current step
+     */
+    private void solvePoisson(int step) {
+
+        for (int i=0; i<rhs.length; i++)
+            rhs[i] = dxidt[i]*Node.DS*Node.DS;
+        if (!warmStart)
+            Arrays.fill(dzdt, 0);
+        stepIterations[step] = poissonSolver.solve(dzdt, rhs, width, height);
+        poissonIterations += stepIterations[step];
+
+        if (referenceSolver != null) {
+            Arrays.fill(referenceDzdt, 0);
+            referenceSolver.solve(referenceDzdt, rhs, width, height);
+            for (int i=0; i<dzdt.length; i++)
+                maxReferenceDeviation = Math.max(maxReferenceDeviation, Math.abs(dzdt[i] - referenceDzdt[i]));
+        }
+    }
+
+
+    /**
+     * Sets whether the Poisson iteration starts from the dz/dt of the previous step.
+     * dz/dt changes slowly between the steps, so together with the tolerance of the
+     * solver this reduces the number of iterations.
+     * @param warmStart     true: start from the previous solution, false: start from zero
+     */
+    public void setWarmStart(boolean warmStart) {
+        this.warmStart = warmStart;
+    }
+
+
+    /**
+     * Sets a reference solver. The solutions of the Poisson equation are compared
+     * with the solutions of the reference solver in every step.
+     * @param referenceSolver   the reference solver (e.g. FastSineTransformSolver)
+     */
+    public void setReferenceSolver(PoissonSolver referenceSolver) {
+        this.referenceSolver = referenceSolver;
+        this.referenceDzdt = new float[dzdt.length];
+    }
+
+
+    /**
+     * Returns the maximum deviation of dz/dt from the solution of the reference solver.
+     * @return  max|dz/dt - reference dz/dt| in all steps
+     */
+    public float getMaxReferenceDeviation() {
+        return maxReferenceDeviation;
+    }
+
+
+    /**
+     * Calculates the values of a field at the border nodes by extrapolation.
+     * (2*close neighbor - distant neighbor where fluid is leaving, unchanged where fluid is entering)
+     * Entering border nodes of dxi/dt are never written, so they stay 0.
+     *
+     * @param field           the field to be extrapolated
+     * @param onlyIfLeaving   extrapolate only at border nodes where fluid is leaving
+     */
+    private void extrapolateBorder(float[] field, boolean onlyIfLeaving) {
+        for (int n=0; n<borderNodes.length; n++) {
+            if (!onlyIfLeaving || isFluidLeaving[n])
+                field[borderNodes[n]] = 2*field[closeNeighbors[n]] - field[distantNeighbors[n]];
+        }
+    }
+
+
+    /**
+     * Returns the index of a neighbor of a node, in the same way as <code>Node.initNode()</code>.
+     * On border nodes the neighbor outside the grid is replaced by the distant neighbor
+     * in the opposite direction.
+     *
+     * @param x     x coordinate of the node
+     * @param y     y coordinate of the node
+     * @param dx    x direction of the neighbor (-1, 0 or 1)
+     * @param dy    y direction of the neighbor (-1, 0 or 1)
+     * @return      the index of the neighbor
+     */
+    private int neighbor(int x, int y, int dx, int dy) {
+        int nx = x+dx, ny = y+dy;
+        if (nx<0 || nx>=width)
+            nx = x-2*dx;
+        if (ny<0 || ny>=height)
+            ny = y-2*dy;
+        return ny*width+nx;
+    }
+
+
+    /**
+     * Checks whether a node is an inner node.
+     * @param x     x coordinate of the node
+     * @param y     y coordinate of the node
+     * @return      true if the node is not on the border of the grid
+     */
+    private boolean isInner(int x, int y) {
+        return x>0 && x<width-1 && y>0 && y<height-1;
+    }
+
+
+    /**
+     * Returns the current value of z at a grid point.
+     * @param x     x coordinate of the grid point
+     * @param y     y coordinate of the grid point
+     * @return      the value of z in the last calculated step
+     */
+    public float getZ(int x, int y) {
+        return z[y*width+x];
+    }
+
+
+    /**
+     * Returns the total number of iterations of the Poisson solutions.
+     * @return  the number of iterations done in all steps
+     */
+    public int getPoissonIterations() {
+        return poissonIterations;
+    }
+
+
+    /**
+     * Returns the number of iterations of the Poisson solution in a step.
+     * @param step  the step
+     * @return      the number of iterations done in the given step
+     */
+    public int getPoissonIterations(int step) {
+        return stepIterations[step];
+    }
+
+
+    /**
+     * Returns the width of the grid.
+     * @return  the width of the grid
+     */
+    public int getWidth() {
+        return width;
+    }
+
+
+    /**
+     * Returns the height of the grid.
+     * @return  the height of the grid
+     */
+    public int getHeight() {
+        return height;
+    }
+}
@@ -1,18 +1,37 @@
 
 package eniac;
 
+import datastructures.GridIndex;
+import datastructures.GridSize;
 import datastructures.NodeDescriptor;
+import datastructures.NodeRegistry;
 import gui.CountdownPanel;
-import java.awt.Dimension;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import network.DataProvider;
 import network.MainServer;
+import network.NodeReassignment;
+import network.PayloadCodec;
+import network.ResidualReduction;
+import network.UDPServerLoop;
+import solver.FastSineTransformSolver;
+import solver.JacobiSolver;
+import solver.MultigridSolver;
+import solver.PoissonSolver;
+import solver.RedBlackSORSolver;
 
 /**
  * This class contains the code of initialization of the ENIAC calculations.
@@ -25,63 +44,207 @@ public class Main {
     private static final long TIME_TO_WAIT_FOR_REAL_NODES = 10000;  // milliseconds
     public static long timer;                                      // initialized at MainServer
     public static volatile boolean countdownFinished = false;
-    public static volatile int numberOfRealNodes = 0;
     
     private static final int SIZE_X=19, SIZE_Y=16;
     private static float[][] z0;
     private static float[][] lat;
     private static float[][] lon;
-    private static final NodeDescriptor[][] nodeDescriptors = new NodeDescriptor[SIZE_Y][SIZE_X];
-    private static final Node[][] simulatedNodes = new Node[SIZE_Y][SIZE_X];
+    private static GridIndex gridIndex;                         // nearest grid point of a geographical position
+    private static final NodeRegistry nodeRegistry = new NodeRegistry(SIZE_X, SIZE_Y);
+    /*
+     * simulated node and tile of every grid point (index y*SIZE_X+x); nodes which take over reassigned
+     * grid points are published by the threads of NodeReassignment, and read by the main server
+     */
+    private static final AtomicReferenceArray<Node> simulatedNodes = new AtomicReferenceArray<>(SIZE_X*SIZE_Y);
+    private static final AtomicReferenceArray<TileNode> simulatedTiles = new AtomicReferenceArray<>(SIZE_X*SIZE_Y);
+    private static LocalGrid localGrid;
+    private static int tileWidth = 4, tileHeight = 4;
+    
+    
+    /**
+     * Modes of running the ENIAC calculations.
+     */
+    public static enum RunModes {
+        DISTRIBUTED,            // one Node thread per grid point, data exchange over UDP
+        LOCAL,                  // the whole grid is calculated in-process by LocalGrid (no real nodes)
+        TILED                   // one TileNode thread per block of grid points, halo exchange over UDP
+    }
+    private static RunModes runMode = RunModes.DISTRIBUTED;
+    
+    /**
+     * Solution methods of the Poisson equation.
+     */
+    public static enum PoissonMethods {
+        JACOBI,                 // Jacobi iteration (original method)
+        SOR,                    // successive over-relaxation with red-black ordering
+        MULTIGRID,              // geometric multigrid V-cycles
+        FST;                    // direct solution with fast sine transforms
+        
+        /**
+         * Checks whether the method updates a grid point from the values of its neighbors only.
+         * Other methods solve whole blocks: tiles solve their blocks with them (block Jacobi
+         * iteration over the tiles), and nodes of a single grid point use Jacobi iteration instead.
+         * @return  true if the method can be used by a single grid point
+         */
+        public boolean isPointwise() {
+            return this == JACOBI || this == SOR;
+        }
+    }
+    private static PoissonMethods poissonMethod = PoissonMethods.JACOBI;
+    private static float omega = RedBlackSORSolver.optimalOmega(SIZE_X, SIZE_Y);    // relaxation factor of SOR
+    private static float tolerance = 1e-4f;                    // relative residual tolerance of the Poisson solution (local mode, residual reduction)
+    private static int maxIterations = Node.NUM_ITERATIONS;    // maximum number of iterations of the Poisson solution
+    private static boolean checkWithReference = false;         // compare the Poisson solutions with the direct solution (local mode)
+    private static boolean warmStart = false;                  // start the Poisson iteration from the dz/dt of the previous step
+    private static int reductionInterval = 0;                  // iterations between two global residual reductions (0: no reduction)
+    private static ResidualReduction residualReduction;        // global residual reduction of the simulated nodes or tiles
+    private static boolean headless = false;                   // no countdown panel (no display is needed)
+    private static long registrationTimeout = TIME_TO_WAIT_FOR_REAL_NODES;     // maximum length of the registration window (milliseconds)
+    private static int realNodeQuorum = -1;                    // number of real nodes which ends the registration window (-1: not given)
+    private static int[][] realNodePoints;                     // (x,y) of the real nodes which end the registration window (null: not given)
+    private static long stragglerTimeout = 30000;              // milliseconds of silence or of blocked neighbors before a real node is reassigned (0: never)
+    private static NodeReassignment nodeReassignment;          // runs the nodes which take over reassigned grid points
+    
+    /**
+     * Ways of exchanging data between simulated nodes.
+     */
+    public static enum ExchangeModes {
+        PULL,                   // nodes query their neighbors for every value (original method)
+        PUSH                    // nodes send their new values to the subscribed neighbors
+    }
+    private static ExchangeModes exchangeMode = ExchangeModes.PULL;
+    
+    /**
+     * Transports between simulated nodes (real nodes are always queried by UDP).
+     */
+    public static enum Transports {
+        UDP,                    // simulated nodes query each other by UDP, like real nodes
+        LOCAL                   // simulated nodes read each other's data structures directly
+    }
+    private static Transports transport = Transports.UDP;
+    private static int udpServerThreads = 0;                   // selector threads serving the UDP servers of the simulated nodes (0: a thread per server)
+    private static UDPServerLoop[] udpServerLoops;             // shared UDP server loops (null: a thread per server)
+    private static final AtomicInteger nextUDPServerLoop = new AtomicInteger();
+    private static Method newVirtualThreadExecutor;            // Executors.newVirtualThreadPerTaskExecutor() (null: platform threads are used)
     
+    /**
+     * Codecs of the values in the answers between nodes and tiles (see PayloadCodec).
+     */
+    public static enum PayloadCodecs {
+        RAW,                    // 4 bytes per value (as in the messages of version 1)
+        DELTA,                  // lossless: difference from the previous answer of the link, the leading zero bytes aren't sent
+        QUANTIZED               // DELTA of the values rounded to codecBits bits of mantissa (bounded relative error)
+    }
+    private static PayloadCodecs payloadCodec = PayloadCodecs.DELTA;    // codec of the links to real nodes
+    private static int codecBits = 16;                         // mantissa bits kept by the QUANTIZED codec (relative error <= 2^-(codecBits+1))
+    private static boolean codecOnAllLinks = false;            // the links between simulated nodes and tiles use the codec too (raw values by default)
     
     /**
      * TCP client request types.
      */
     public static enum TCPRequestTypes {
         GET_MY_XY_AND_GRIDSIZE,
-        GET_NODE_DESCRIPTOR
+        GET_NODE_DESCRIPTOR,
+        REGISTER_TILE,
+        GET_NODE_DESCRIPTOR_EXTENDED,
+        REDUCE_RESIDUAL,
+        REGISTER_NODE,          // GET_MY_XY_AND_GRIDSIZE with negotiation of the protocol version
+        REGISTER_NODE_BULK      // REGISTER_NODE, and the extended descriptors of all neighbors in the same answer
+    }
+    
+    /**
+     * Extended UDP message types (understood by simulated nodes and tiles only).
+     * An extended message starts with a negative code instead of a data type ordinal.
+     */
+    public static enum UDPMessageTypes {
+        GET_CELL_DATA,          // request for the data of a grid point
+        SUBSCRIBE,              // subscription to the new values of a grid point
+        PUSH,                   // new value of a grid point sent to a subscriber
+        GET_TAGGED_CELL_DATA,   // request for the data of a grid point with a request ID (answered with the ID and the value)
+        GET_CELL_DATA_BATCH,    // request for several data types and step ranges of a grid point (answered with the ID and all values)
+        VERSIONED,              // marker of the messages with a versioned header (see ProtocolHeader)
+        CELL_DATA,              // answer with the values of a versioned request
+        GET_HALO_DATA,          // versioned request for a data type of several grid points (e.g. the halo of a tile)
+        NODE_DESCRIPTOR;        // versioned message of the main server with the new descriptor of a reassigned grid point (and its acknowledgement)
+        
+        /**
+         * Returns the code of the message type, which is sent in place of the data type ordinal.
+         * @return  the negative code of the message type
+         */
+        public int getCode() {
+            return -(ordinal()+1);
+        }
     }
     
     
     /**
      * Main application for ENIAC calculations.
-     * @param args  unused
+     * @param args  command line arguments (--mode=distributed|local|tiled, --tile=WIDTHxHEIGHT,
+     *              --poisson=jacobi|sor|multigrid|fst, --omega=OMEGA, --tolerance=TOLERANCE, --iterations=N,
+     *              --reference, --warm-start, --reduction-interval=K, --exchange=pull|push, --transport=udp|local,
+     *              --udp-selectors[=N], --virtual-threads, --headless, --registration-timeout=MILLISECONDS,
+     *              --real-nodes=N|X:Y[,X:Y...], --codec=raw|delta|quantized, --codec-bits=N, --codec-links=real|all,
+     *              --straggler-timeout=MILLISECONDS)
      */
     public static void main(String[] args) {
         
+        parseArguments(args);
+        
         /* Read z0, lat, lon values from files. */
         z0 = readGridValues("Case1-1949010503.z00");
         lat = readGridValues("LAT1.txt");
         lon = readGridValues("LON1.txt");
+        gridIndex = new GridIndex(lat, lon);
+        
+        /* Local mode: calculate the whole grid in-process, no servers and real nodes are needed. */
+        if (runMode == RunModes.LOCAL) {
+            runLocalGrid();
+            System.exit(0);
+        }
         
-        /* Start Main server. */
+        /* Start Main server (it reassigns the grid points of straggling real nodes). */
+        nodeReassignment = new NodeReassignment();
         final MainServer mainServer = new MainServer(MAIN_SERVER_PORT);
         final ExecutorService mainServerExecutor = Executors.newSingleThreadExecutor();
         mainServerExecutor.execute(mainServer);
         
-        /* Show countdown panel, start countdown. */
-        final CountdownPanel cdp = new CountdownPanel(TIME_TO_WAIT_FOR_REAL_NODES);
-        cdp.setVisible(true);
-        cdp.startCountdown();
+        /* Registration window of the real nodes: it ends when the quorum of real nodes *
+         * has registered, at the latest after registrationTimeout.                    */
+        if (headless) {
+            final long start = System.currentTimeMillis();
+            awaitRealNodes(registrationTimeout);
+            System.err.println("Registration window closed after " + (System.currentTimeMillis()-start) + " ms, real nodes: " + getNumberOfRealNodes());
+            countdownFinished = true;
+        }
+        else {
+            /* Show countdown panel, start countdown. */
+            final CountdownPanel cdp = new CountdownPanel(registrationTimeout);
+            cdp.setVisible(true);
+            cdp.startCountdown();
+
+            /* Countdown finished, dispose panel. */
+            countdownFinished = true;
+            cdp.dispose();
+        }
         
-        /* Countdown finished, dispose panel. */
-        countdownFinished = true;
-        cdp.dispose();
+        /* Start the shared UDP server loops. */
+        final ExecutorService udpServerLoopExecutor = startUDPServerLoops();
         
-        /* Start simulated Node threads. */   
-        final ExecutorService simulatedNodeExecutor = Executors.newFixedThreadPool(SIZE_X*SIZE_Y);  
-        for (int y=0; y<SIZE_Y; y++) {
-            for (int x=0; x<SIZE_X; x++) {
-                if (nodeDescriptors[y][x] == null) {
-                    try {                    
-                        simulatedNodes[y][x] = new Node(lat[y][x], lon[y][x], z0[y][x]);
-                    } catch (SocketException ex) {
-                        Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                    simulatedNodeExecutor.execute(simulatedNodes[y][x]);
-                }
+        /* Start simulated Node threads (or TileNode threads in tiled mode). */   
+        final ExecutorService simulatedNodeExecutor = newExecutor(SIZE_X*SIZE_Y);  
+        if (runMode == RunModes.TILED)
+            startTiles(simulatedNodeExecutor);
+        else {
+            /* Every simulated inner node takes part in the residual reduction. */
+            if (getReductionInterval() > 0) {
+                int participants = 0;
+                for (int y=1; y<SIZE_Y-1; y++)
+                    for (int x=1; x<SIZE_X-1; x++)
+                        if (nodeRegistry.get(x, y) == null)
+                            participants++;
+                createResidualReduction(participants);
             }
+            startNodes(simulatedNodeExecutor);
         }
         
         /* Wait for threads to finish.
@@ -96,9 +259,36 @@ public class Main {
             }
             int i=1;
         }
+        
+        /* Wait for the nodes which have taken over reassigned grid points. */
+        nodeReassignment.shutdown();
+        while (!nodeReassignment.isTerminated()) {
+            getMap();
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException ex) {
+                System.err.println("EniacGrid: " + ex.getMessage());
+            }
+        }
         System.out.println("ALL NODES ENDED");
+        final String codecStatistics = PayloadCodec.getStatistics();
+        if (codecStatistics != null)
+            System.err.println("Payload codec " + PayloadCodec.get(payloadCodec, codecBits) + ": " + codecStatistics);
+        if (residualReduction != null) {
+            final StringBuilder iterations = new StringBuilder("Poisson iterations per step:");
+            for (int step=0; step<Node.HOURS; step++)
+                iterations.append(' ').append(residualReduction.getIterations(step));
+            System.out.println(iterations + " (" + residualReduction.getRounds() + " residual reductions)");
+        }
         getMap(); 
         
+        /* Stop the shared UDP server loops. */
+        if (udpServerLoopExecutor != null) {
+            for (UDPServerLoop loop : udpServerLoops)
+                loop.stop();
+            udpServerLoopExecutor.shutdown();
+        }
+        
         /* Stop main server. */
         mainServer.stop();
         mainServerExecutor.shutdown();
@@ -115,6 +305,574 @@ public class Main {
     }        
     
     
+    /**
+     * Starts the shared UDP server loops, if the UDP servers of the simulated nodes
+     * are served by selector threads.
+     * 
+     * @return  the executor of the loops, or null if every server runs on its own thread
+     */
+    private static ExecutorService startUDPServerLoops() {
+        if (udpServerThreads == 0)
+            return null;
+        udpServerLoops = new UDPServerLoop[udpServerThreads];
+        final ExecutorService executor = Executors.newFixedThreadPool(udpServerThreads);
+        for (int i=0; i<udpServerThreads; i++) {
+            try {
+                udpServerLoops[i] = new UDPServerLoop();
+            } catch (IOException ex) {
+                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+                udpServerLoops = null;
+                executor.shutdown();
+                return null;
+            }
+            executor.execute(udpServerLoops[i]);
+        }
+        return executor;
+    }
+    
+    
+    /**
+     * Starts a simulated Node thread for every grid point without a real node.
+     * 
+     * @param executor  the executor of the nodes
+     */
+    private static void startNodes(ExecutorService executor) {
+        for (int y=0; y<SIZE_Y; y++) {
+            for (int x=0; x<SIZE_X; x++) {
+                if (nodeRegistry.get(x, y) == null) {
+                    try {                    
+                        simulatedNodes.set(y*SIZE_X+x, newSimulatedNode(x, y));
+                    } catch (SocketException ex) {
+                        Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                    executor.execute(simulatedNodes.get(y*SIZE_X+x));
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Parses the command line arguments.
+     * Arguments have the form --name=value.
+     * 
+     * @param args  command line arguments
+     */
+    private static void parseArguments(String[] args) {
+        for (String arg : args) {
+            final String[] nameAndValue = arg.split("=", 2);
+            final String value = nameAndValue.length > 1 ? nameAndValue[1] : "";
+            try {
+                switch (nameAndValue[0]) {
+                    case "--mode":
+                        runMode = RunModes.valueOf(value.toUpperCase());
+                        break;
+                    case "--tile":
+                        /* WxH, the tiles are assigned only after both sizes are checked */
+                        final String[] size = value.toLowerCase().split("x", -1);
+                        if (size.length != 2)
+                            throw new IllegalArgumentException();
+                        final int width = Integer.parseInt(size[0]);
+                        final int height = Integer.parseInt(size[1]);
+                        if (width <= 0 || height <= 0)
+                            throw new IllegalArgumentException();
+                        tileWidth = width;
+                        tileHeight = height;
+                        break;
+                    case "--poisson":
+                        poissonMethod = PoissonMethods.valueOf(value.toUpperCase());
+                        break;
+                    case "--omega":
+                        omega = Float.parseFloat(value);
+                        break;
+                    case "--tolerance":
+                        tolerance = Float.parseFloat(value);
+                        break;
+                    case "--iterations":
+                        /* At least 3 iterations are needed, because the first two steps of dz/dt  *
+                         * are denied between two Poisson solutions (see DataStructDZDT).          */
+                        maxIterations = Math.max(3, Math.min(Node.NUM_ITERATIONS, Integer.parseInt(value)));
+                        break;
+                    case "--reference":
+                        checkWithReference = true;
+                        break;
+                    case "--warm-start":
+                        warmStart = true;
+                        break;
+                    case "--reduction-interval":
+                        reductionInterval = Math.max(0, Integer.parseInt(value));
+                        break;
+                    case "--exchange":
+                        exchangeMode = ExchangeModes.valueOf(value.toUpperCase());
+                        break;
+                    case "--transport":
+                        transport = Transports.valueOf(value.toUpperCase());
+                        break;
+                    case "--virtual-threads":
+                        /* Virtual threads are available from Java 21, the method is looked up at run time. */
+                        try {
+                            newVirtualThreadExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                        } catch (NoSuchMethodException ex) {
+                            System.err.println("Error in parseArguments(): virtual threads are not supported by this JVM, platform threads are used");
+                        }
+                        break;
+                    case "--udp-selectors":
+                        /* default: one selector thread per processor */
+                        udpServerThreads = value.isEmpty() ? Runtime.getRuntime().availableProcessors() : Math.max(0, Integer.parseInt(value));
+                        break;
+                    case "--headless":
+                        headless = true;
+                        break;
+                    case "--registration-timeout":
+                        registrationTimeout = Math.max(0, Long.parseLong(value));
+                        break;
+                    case "--real-nodes":
+                        /* number of real nodes, or the grid points of the real nodes (X:Y,X:Y,...) */
+                        if (value.contains(":")) {
+                            /* The grid points are assigned only after all of them are checked. */
+                            final String[] points = value.split(",", -1);
+                            final int[][] parsedPoints = new int[points.length][];
+                            for (int i=0; i<points.length; i++) {
+                                final String[] xy = points[i].split(":", -1);
+                                if (xy.length != 2)
+                                    throw new IllegalArgumentException();
+                                parsedPoints[i] = new int[]{Integer.parseInt(xy[0].trim()), Integer.parseInt(xy[1].trim())};
+                                if (!nodeRegistry.contains(parsedPoints[i][0], parsedPoints[i][1]))
+                                    throw new IllegalArgumentException();
+                            }
+                            realNodePoints = parsedPoints;
+                        }
+                        else
+                            realNodeQuorum = Math.max(0, Integer.parseInt(value));
+                        break;
+                    case "--straggler-timeout":
+                        stragglerTimeout = Math.max(0, Long.parseLong(value));
+                        break;
+                    case "--codec":
+                        payloadCodec = PayloadCodecs.valueOf(value.toUpperCase());
+                        break;
+                    case "--codec-bits":
+                        codecBits = Math.max(1, Math.min(PayloadCodec.MANTISSA_BITS, Integer.parseInt(value)));
+                        break;
+                    case "--codec-links":
+                        /* real: links to real nodes only, all: links between simulated nodes and tiles too */
+                        if (!value.equalsIgnoreCase("real") && !value.equalsIgnoreCase("all"))
+                            throw new IllegalArgumentException();
+                        codecOnAllLinks = value.equalsIgnoreCase("all");
+                        break;
+                    default:
+                        System.err.println("Error in parseArguments(): invalid argument " + arg);
+                        break;
+                }
+            } catch (IllegalArgumentException ex) {
+                System.err.println("Error in parseArguments(): invalid value in " + arg);
+            }
+        }
+    }
+    
+    
+    /**
+     * Divides the grid points without real nodes into tiles, and starts a TileNode for every tile.
+     * 
+     * Blocks containing a real node or a grid point queried by a real node
+     * are split into 1x1 tiles, because real nodes use the original UDP requests,
+     * which don't contain the coordinates of the requested grid point.
+     * 
+     * @param executor  the executor of the tiles
+     */
+    private static void startTiles(ExecutorService executor) {
+        
+        /* Mark the real nodes and their neighbors (distant neighbors at the border, as in Node.initNode()). */
+        final boolean[][] isSplit = new boolean[SIZE_Y][SIZE_X];
+        for (int y=0; y<SIZE_Y; y++) {
+            for (int x=0; x<SIZE_X; x++) {
+                if (nodeRegistry.get(x, y) == null)
+                    continue;
+                isSplit[y][x] = true;
+                isSplit[y<SIZE_Y-1 ? y+1 : y-2][x] = true;
+                isSplit[y][x<SIZE_X-1 ? x+1 : x-2] = true;
+                isSplit[y>0 ? y-1 : y+2][x] = true;
+                isSplit[y][x>0 ? x-1 : x+2] = true;
+            }
+        }
+        
+        /* Position and size of the tiles. */
+        final List<int[]> tiles = new ArrayList<>();
+        for (int y0=0; y0<SIZE_Y; y0+=tileHeight) {
+            for (int x0=0; x0<SIZE_X; x0+=tileWidth) {
+                final int width = Math.min(tileWidth, SIZE_X-x0);
+                final int height = Math.min(tileHeight, SIZE_Y-y0);
+                boolean split = false;
+                for (int y=y0; y<y0+height; y++)
+                    for (int x=x0; x<x0+width; x++)
+                        split |= isSplit[y][x];
+                
+                if (!split)
+                    tiles.add(new int[]{x0, y0, width, height});
+                else {
+                    for (int y=y0; y<y0+height; y++)
+                        for (int x=x0; x<x0+width; x++)
+                            if (nodeRegistry.get(x, y) == null)
+                                tiles.add(new int[]{x, y, 1, 1});
+                }
+            }
+        }
+        
+        /* Every tile takes part in the residual reduction (tiles without inner nodes report 0). */
+        if (getReductionInterval() > 0)
+            createResidualReduction(tiles.size());
+        for (int[] tile : tiles)
+            startTile(executor, tile[0], tile[1], tile[2], tile[3]);
+    }
+    
+    
+    /**
+     * Starts a TileNode.
+     * 
+     * @param executor  the executor of the tiles
+     * @param x0        x coordinate of the lower left grid point of the tile
+     * @param y0        y coordinate of the lower left grid point of the tile
+     * @param width     width of the tile
+     * @param height    height of the tile
+     */
+    private static void startTile(ExecutorService executor, int x0, int y0, int width, int height) {
+        final float[][] tileLat = new float[height][width];
+        final float[][] tileZ0 = new float[height][width];
+        for (int y=0; y<height; y++) {
+            System.arraycopy(lat[y0+y], x0, tileLat[y], 0, width);
+            System.arraycopy(z0[y0+y], x0, tileZ0[y], 0, width);
+        }
+        
+        final TileNode tile;
+        try {
+            tile = new TileNode(x0, y0, tileLat, tileZ0);
+        } catch (SocketException ex) {
+            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+        for (int y=y0; y<y0+height; y++)
+            for (int x=x0; x<x0+width; x++)
+                simulatedTiles.set(y*SIZE_X+x, tile);
+        executor.execute(tile);
+    }
+    
+    
+    /**
+     * Runs the forecast on an in-process LocalGrid and prints out the time it took.
+     */
+    private static void runLocalGrid() {
+        final long startTime = System.nanoTime();
+        localGrid = new LocalGrid(lat, z0, createPoissonSolver());
+        if (checkWithReference)
+            localGrid.setReferenceSolver(new FastSineTransformSolver());
+        localGrid.setWarmStart(warmStart);
+        localGrid.run();
+        final long elapsedTime = System.nanoTime() - startTime;
+        
+        System.out.println("LOCAL GRID FINISHED in " + elapsedTime/1000000 + " ms, "
+                + localGrid.getPoissonIterations() + " Poisson iterations");
+        final StringBuilder iterations = new StringBuilder("Poisson iterations per step:");
+        for (int step=0; step<Node.HOURS; step++)
+            iterations.append(' ').append(localGrid.getPoissonIterations(step));
+        System.out.println(iterations);
+        if (checkWithReference)
+            System.out.println("Max deviation of dz/dt from the direct Poisson solution: " + localGrid.getMaxReferenceDeviation());
+        getMap();
+    }
+    
+    
+    /**
+     * Creates the global residual reduction of the Poisson iteration.
+     * @param participants  number of simulated nodes or tiles reporting their residuals
+     */
+    private static void createResidualReduction(int participants) {
+        if (getReductionInterval() > reductionInterval)
+            System.err.println("Warning in createResidualReduction(): --reduction-interval=" + reductionInterval
+                    + " raised to " + getReductionInterval() + " (at most " + ResidualReduction.MAX_REDUCTIONS_PER_STEP
+                    + " reductions in " + maxIterations + " iterations).");
+        residualReduction = new ResidualReduction(participants, tolerance, Node.HOURS, maxIterations);
+    }
+    
+    
+    /**
+     * Creates the solver of the Poisson equation selected by the command line arguments.
+     * (A new solver is created for every user, because solvers keep their work arrays.)
+     * @return  the solver of the Poisson equation
+     */
+    static PoissonSolver createPoissonSolver() {
+        switch (poissonMethod) {
+            case SOR:
+                return new RedBlackSORSolver(omega, maxIterations, tolerance);
+            case MULTIGRID:
+                return new MultigridSolver(maxIterations, tolerance);
+            case FST:
+                return new FastSineTransformSolver();
+            default:
+                return new JacobiSolver(maxIterations, tolerance);
+        }
+    }
+    
+    
+    /**
+     * Returns the solution method of the Poisson equation.
+     * @return  the solution method of the Poisson equation
+     */
+    public static PoissonMethods getPoissonMethod() {
+        return poissonMethod;
+    }
+    
+    
+    /**
+     * Returns the relaxation factor of SOR.
+     * @return  the relaxation factor
+     */
+    public static float getOmega() {
+        return omega;
+    }
+    
+    
+    /**
+     * Returns the number of iterations of the Poisson solution.
+     * Simulated nodes and tiles do this many iterations, unless the global residual
+     * reduction stops them earlier (the residual of the whole field is not known locally).
+     * (Real nodes always do Node.NUM_ITERATIONS.)
+     * For multigrid this is the maximum number of V-cycles.
+     * @return  the maximum number of iterations
+     */
+    public static int getMaxIterations() {
+        return maxIterations;
+    }
+    
+    
+    /**
+     * Returns the relative residual tolerance of the Poisson solution.
+     * @return  the tolerance
+     */
+    public static float getTolerance() {
+        return tolerance;
+    }
+    
+    
+    /**
+     * Returns the number of iterations between two global residual reductions.
+     * The interval is increased if needed, so that a step has at most
+     * ResidualReduction.MAX_REDUCTIONS_PER_STEP reductions. There is no reduction
+     * with real nodes, because they don't report their residuals.
+     * @return  the reduction interval (0: no reduction, fixed number of iterations)
+     */
+    public static int getReductionInterval() {
+        if (reductionInterval == 0 || getNumberOfRealNodes() > 0)
+            return 0;
+        final int minInterval = (maxIterations + ResidualReduction.MAX_REDUCTIONS_PER_STEP - 1) / ResidualReduction.MAX_REDUCTIONS_PER_STEP;
+        return Math.max(reductionInterval, minInterval);
+    }
+    
+    
+    /**
+     * Returns the timeout of the straggler detection (used by the main server).
+     * @return  milliseconds of silence or of blocked neighbors before a real node is reassigned (0: no detection)
+     */
+    public static long getStragglerTimeout() {
+        return stragglerTimeout;
+    }
+    
+    
+    /**
+     * Returns the reassignment of the grid points of straggling real nodes (used by the main server).
+     * @return  the reassignment
+     */
+    public static NodeReassignment getNodeReassignment() {
+        return nodeReassignment;
+    }
+    
+    
+    /**
+     * Marks a registered grid point for reassignment: the next registration of the grid point replaces its descriptor.
+     * @param x     x coordinate of the grid point
+     * @param y     y coordinate of the grid point
+     * @return      true if the grid point has been marked, false if it isn't registered or it has been reassigned before
+     */
+    public static boolean markForReassignment(int x, int y) {
+        return nodeRegistry.reassign(x, y);
+    }
+    
+    
+    /**
+     * Checks whether a grid point has been reassigned, and its new node has registered.
+     * @param x     x coordinate of the grid point
+     * @param y     y coordinate of the grid point
+     * @return      true if the grid point has been reassigned
+     */
+    public static boolean isReassigned(int x, int y) {
+        return nodeRegistry.isReassigned(x, y);
+    }
+    
+    
+    /**
+     * Returns the global residual reduction (used by the main server).
+     * @return  the residual reduction, or null if the Poisson iteration isn't stopped by reduction
+     */
+    public static ResidualReduction getResidualReduction() {
+        return residualReduction;
+    }
+    
+    
+    /**
+     * Checks whether the Poisson iteration starts from the dz/dt of the previous step.
+     * @return  true if the iteration is warm-started
+     */
+    public static boolean isWarmStart() {
+        return warmStart;
+    }
+    
+    
+    /**
+     * Checks whether simulated nodes and tiles run on virtual threads.
+     * @return  true in virtual thread mode (if the JVM supports it)
+     */
+    public static boolean isVirtualThreads() {
+        return newVirtualThreadExecutor != null;
+    }
+    
+    
+    /**
+     * Creates an executor for simulated nodes and tiles, their client threads and the connection
+     * handlers of the main server. In virtual thread mode every task runs on a new virtual thread,
+     * otherwise on a pool of platform threads.
+     * 
+     * @param threads   number of threads of the pool (0: threads are created as needed)
+     * @return          the executor
+     */
+    public static ExecutorService newExecutor(int threads) {
+        if (newVirtualThreadExecutor != null) {
+            try {
+                return (ExecutorService)newVirtualThreadExecutor.invoke(null);
+            } catch (IllegalAccessException | InvocationTargetException ex) {
+                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return threads > 0 ? Executors.newFixedThreadPool(threads) : Executors.newCachedThreadPool();
+    }
+    
+    
+    /**
+     * Returns a shared UDP server loop for the server of a simulated node or tile
+     * (the loops are assigned in turn).
+     * @return  the loop, or null if every server runs on its own thread
+     */
+    public static UDPServerLoop getUDPServerLoop() {
+        final UDPServerLoop[] loops = udpServerLoops;
+        if (loops == null)
+            return null;
+        return loops[(nextUDPServerLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+    
+    
+    /**
+     * Returns the way of exchanging data between simulated nodes.
+     * @return  the exchange mode
+     */
+    public static ExchangeModes getExchangeMode() {
+        return exchangeMode;
+    }
+    
+    
+    /**
+     * Returns the codec of the values in the answers on the links which use a codec.
+     * @return  the codec
+     */
+    public static PayloadCodecs getPayloadCodec() {
+        return payloadCodec;
+    }
+    
+    
+    /**
+     * Returns the mantissa bits kept by the QUANTIZED codec.
+     * @return  the number of bits
+     */
+    public static int getCodecBits() {
+        return codecBits;
+    }
+    
+    
+    /**
+     * Checks whether the links between simulated nodes and tiles use the codec too
+     * (otherwise only the links to real nodes do).
+     * @return  true if every link which negotiated the codecs uses them
+     */
+    public static boolean isPayloadCodecOnAllLinks() {
+        return codecOnAllLinks;
+    }
+    
+    
+    /**
+     * Creates a simulated node for a grid point (the node gets its position at its registration).
+     * 
+     * @param x     x coordinate of the grid point
+     * @param y     y coordinate of the grid point
+     * @return      the node
+     * @throws SocketException
+     */
+    public static Node newSimulatedNode(int x, int y) throws SocketException {
+        return new Node(lat[y][x], lon[y][x], z0[y][x]);
+    }
+    
+    
+    /**
+     * Sets the simulated node of a grid point (a node which has taken over a reassigned grid point).
+     * 
+     * @param x     x coordinate of the grid point
+     * @param y     y coordinate of the grid point
+     * @param node  the node
+     */
+    public static void addSimulatedNode(int x, int y, Node node) {
+        simulatedNodes.set(y*SIZE_X+x, node);
+    }
+    
+    
+    /**
+     * Returns the simulated node or tile of a grid point in this process.
+     * 
+     * @param x     x coordinate of the grid point
+     * @param y     y coordinate of the grid point
+     * @return      the tile or node, or null if the grid point belongs to a real node
+     */
+    public static DataProvider getSimulatedDataProvider(int x, int y) {
+        final TileNode tile = simulatedTiles.get(y*SIZE_X+x);
+        return (tile != null) ? tile : simulatedNodes.get(y*SIZE_X+x);
+    }
+    
+    
+    /**
+     * Returns the initial value of z at a grid point.
+     * 
+     * @param x     x coordinate of the grid point
+     * @param y     y coordinate of the grid point
+     * @return      z of the first step
+     */
+    public static float getInitialZ(int x, int y) {
+        return z0[y][x];
+    }
+    
+    
+    /**
+     * Returns the simulated node or tile of a grid point, whose data structures can be read directly.
+     * 
+     * @param x     x coordinate of the grid point
+     * @param y     y coordinate of the grid point
+     * @return      the node or tile, or null if the transport is UDP, or the grid point isn't simulated
+     *              in this process (or the node hasn't got its position yet)
+     */
+    public static DataProvider getLocalDataProvider(int x, int y) {
+        if (transport != Transports.LOCAL || x < 0 || y < 0 || x >= SIZE_X || y >= SIZE_Y)
+            return null;
+        final DataProvider provider = getSimulatedDataProvider(x, y);
+        if (provider instanceof Node && (provider.getX() != x || provider.getY() != y))
+            return null;
+        return provider;
+    }
+    
+    
     /**
      * Reads in grid data from a text file.
      * 
@@ -159,10 +917,16 @@ public class Main {
         
         for (int y=SIZE_Y-1; y>=0; y--) {
             for(int x=0; x<SIZE_X; x++) {
-                if (simulatedNodes[y][x] == null)
+                if (localGrid != null)
+                    System.out.print(localGrid.getZ(x, y) + " ");
+                else if (simulatedTiles.get(y*SIZE_X+x) != null)
+                    System.out.print(simulatedTiles.get(y*SIZE_X+x).getZ(x, y) + " ");
+                else if (simulatedNodes.get(y*SIZE_X+x) == null)
                     System.out.print("RealNode ");
-                else
-                    System.out.print(simulatedNodes[y][x].getValue(Node.DataTypes.Z,simulatedNodes[y][x].z.getStep()) + " ");
+                else {
+                    final Node node = simulatedNodes.get(y*SIZE_X+x);
+                    System.out.print(node.getValue(Node.DataTypes.Z,node.z.getStep()) + " ");
+                }
             }
             System.out.println();
         }
@@ -173,39 +937,22 @@ public class Main {
     
     /**
      * Returns the width and height of the grid.
-     * @return  reference to a Dimension with size (SIZE_X, SIZE_Y)
+     * @return  reference to a GridSize with size (SIZE_X, SIZE_Y)
      */
-    public static Dimension getGridSize(){
-        return new Dimension(SIZE_X, SIZE_Y);
+    public static GridSize getGridSize(){
+        return new GridSize(SIZE_X, SIZE_Y);
     }
     
     
     /**
-     * Returns (x,y) coordinates of a node at a given geographical position.
+     * Returns (x,y) coordinates of a node at a given geographical position
+     * (the grid point nearest to it on the sphere, see GridIndex).
      * @param latitude      geographical latitude of the node
      * @param longitude     geographical longitude of the node
      * @return              2-element array containing (x,y) coordinates of the node
      */
     public static int[] getNodeXYCoordinates(float latitude, float longitude){
-        
-        float latDiff = Float.MAX_VALUE,
-              lonDiff = Float.MAX_VALUE;
-        
-        int xTmp=-1,
-            yTmp=-1;
-                
-        /* Find the nearest grid point. */
-        for (int y=0; y<SIZE_Y; y++){
-            for (int x=0; x<SIZE_X; x++){
-                if ( (Math.abs(lat[y][x]-latitude) <= latDiff) && (Math.abs(lon[y][x]-longitude) <= lonDiff) ){
-                    latDiff = Math.abs(lat[y][x]-latitude);
-                    lonDiff = Math.abs(lon[y][x]-longitude);
-                    xTmp = x;
-                    yTmp = y;
-                }
-            }
-        }
-        return new int[]{xTmp, yTmp};
+        return gridIndex.getNearest(latitude, longitude);
     }                
     
     
@@ -217,23 +964,57 @@ public class Main {
      * @return   the descriptor of the node at (x,y)
      */    
     public static NodeDescriptor getNodeDescriptor(int x, int y) {
-        return nodeDescriptors[y][x];
+        return nodeRegistry.get(x, y);
     }
     
     
     /**
-     * Adds a new node descriptor (if it doesn't exist already).
+     * Waits for the quorum of real nodes given by --real-nodes (the count, or the grid points).
+     * Without quorum it waits until the timeout.
+     * @param timeout   maximum waiting time in milliseconds
+     * @return          true if the quorum has registered
+     */
+    public static boolean awaitRealNodes(long timeout) {
+        return nodeRegistry.awaitQuorum(realNodeQuorum, realNodePoints, timeout);
+    }
+    
+    
+    /**
+     * Returns the number of real nodes (nodes registered before the countdown finished).
+     * @return  the number of real nodes
+     */
+    public static int getNumberOfRealNodes() {
+        return nodeRegistry.getRealNodes();
+    }
+    
+    
+    /**
+     * Adds a node descriptor for every grid point of a tile.
+     * @param x0        x coordinate of the lower left grid point of the tile
+     * @param y0        y coordinate of the lower left grid point of the tile
+     * @param width     width of the tile
+     * @param height    height of the tile
+     * @param nd        node descriptor of the tile
+     */
+    public static void addTileDescriptor(int x0, int y0, int width, int height, NodeDescriptor nd) {
+        for (int y=y0; y<y0+height; y++)
+            for (int x=x0; x<x0+width; x++)
+                addNodeDescriptor(x, y, nd);
+    }
+    
+    
+    /**
+     * Adds a new node descriptor (if it doesn't exist already, or the grid point is being reassigned).
      * @param x     x coordinate of the new node
      * @param y     y coordinate of the new node
      * @param nd    node descriptor
+     * @return      true if the descriptor has been added
      */
-    public static void addNodeDescriptor(int x, int y, NodeDescriptor nd) {
-        if (nodeDescriptors[y][x] == null) {
-            nodeDescriptors[y][x] = nd;            
-            if (!countdownFinished)
-                numberOfRealNodes++;
-        }
-        else
+    public static boolean addNodeDescriptor(int x, int y, NodeDescriptor nd) {
+        if (!nodeRegistry.add(x, y, nd, !countdownFinished)) {
             System.err.println("Error in addNodeDescriptor(): node already exits.");
+            return false;
+        }
+        return true;
     }
 }
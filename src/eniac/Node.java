@@ -2,20 +2,34 @@
 package eniac;
 
 import datastructures.*;
+import network.DataProvider;
+import network.NeighborObserver;
+import network.NodeUDPChannel;
 import network.NodeUDPClient;
 import network.NodeUDPServer;
-import java.awt.Dimension;
+import network.ProtocolHeader;
+import network.RetransmissionTimer;
+import network.UDPServerLoop;
+import network.SubscriptionUDPClient;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import network.NodeTCPClient;
+import network.ResidualReporter;
 
 
 /**
@@ -23,7 +37,7 @@ import network.NodeTCPClient;
  * @version 0.1
  * @author Vas Ádám (vas.adam@inbox.com)
  */
-public class Node implements Runnable  {
+public class Node implements Runnable, DataProvider, ResidualReporter, NeighborObserver  {
 
     /**
      * x coordinate of the node
@@ -37,7 +51,17 @@ public class Node implements Runnable  {
     /**
      * size of the grid
      */
-    private Dimension gridSize;
+    private GridSize gridSize;
+    
+    /**
+     * true when the answer of the registration has been read (the neighbors may query the node before)
+     */
+    private volatile boolean isRegistered;
+    
+    /**
+     * version of the UDP messages negotiated at registration
+     */
+    private int protocolVersion = ProtocolHeader.LEGACY_VERSION;
     
     /*
      * variables indicating the position of the node in the grid
@@ -64,9 +88,9 @@ public class Node implements Runnable  {
     private final float m,                                              // map projection magnification factor
                         f,                                              // Coriolis parameter
                         h;                                              // defined as g*(m^2)/f
-    private static final int DS = 736000;                               // grid interval (736 km)
-    private static final float GRAV = (float)9.80665;                   // gravitational constant
-    private static final float OMEGA = (float)(2*Math.PI/(24*60*60));   // angular velocity of Earth’s rotation    
+    static final int DS = 736000;                                       // grid interval (736 km)
+    static final float GRAV = (float)9.80665;                           // gravitational constant
+    static final float OMEGA = (float)(2*Math.PI/(24*60*60));           // angular velocity of Earth’s rotation    
     
     /*
      * variables used in calculations
@@ -101,14 +125,58 @@ public class Node implements Runnable  {
     }    
     
     /**
-     * neighbors' descriptors 
+     * neighbors' descriptors (replaced by the main server when the grid point of a neighbor is reassigned)
+     */
+    private final Map<Neighbors, NodeDescriptor> neighborDescriptors;
+    
+    /**
+     * retransmission timers (round-trip time estimation and statistics) of the real neighbors
+     */
+    private final EnumMap<Neighbors, RetransmissionTimer> retransmissionTimers;
+    
+    /**
+     * neighbors' grid points (x,y)
+     */
+    private final EnumMap<Neighbors, int[]> neighborPositions;
+    
+    /**
+     * neighbors' data (temporary buffer used during data exchange between neighbors, index: data type ordinal)
+     */
+    private final EnumMap<Neighbors, AtomicIntegerArray> neighborData;    
+    
+    /**
+     * straggler detection: the data types (bit 1 << data type ordinal) which haven't arrived from the neighbors
+     * (index: neighbor ordinal) in the exchange on the node's own channel and in the asynchronous exchange,
+     * and since when the node thread has been blocked on them (0: it isn't)
      */
-    private final EnumMap<Neighbors, NodeDescriptor> neighborDescriptors;
+    private final AtomicIntegerArray[] missingData = {new AtomicIntegerArray(Neighbors.values().length), new AtomicIntegerArray(Neighbors.values().length)};
+    private final AtomicLongArray blockedSince = new AtomicLongArray(2);
+    private static final int OWN_EXCHANGE = 0, ASYNC_EXCHANGE = 1;
     
     /**
-     * neighbors' data (temporary buffer used during data exchange between neighbors)
+     * node taking over the grid point of a reassigned real node: the step where the forecast continues,
+     * and the seed (z and xi of the previous step and of the step, dxi/dt of the previous step)
      */
-    private final EnumMap<Neighbors, AtomicInteger> neighborData;    
+    private int firstStep;
+    private float[] seed;
+    
+    /**
+     * stop decision of the last global residual reduction
+     */
+    private volatile boolean poissonConverged;
+    
+    /**
+     * push mode: inbox of the values pushed by the neighbors, the inbox slots and the subscribed
+     * data types (bit 1 << data type ordinal) of the simulated neighbors
+     */
+    private Inbox inbox;
+    private final EnumMap<Neighbors, Integer> inboxSlots;
+    private final EnumMap<Neighbors, Integer> subscribedTypes;
+    
+    /**
+     * the current step of the forecast (the tag of the pushed dz/dt values)
+     */
+    private int forecastStep;
     
     /** 
      * UDP server and its executor 
@@ -116,12 +184,39 @@ public class Node implements Runnable  {
     private final NodeUDPServer udpServer;
     private final ExecutorService udpServerExecutor;    
     
+    /**
+     * UDP client channel used for querying the simulated neighbors
+     */
+    private final NodeUDPChannel udpChannel;
+    
+    /**
+     * UDP client channel and executor of the asynchronous exchanges (at most one at a time),
+     * which overlap with the computation and the other exchanges of the node
+     * (created by the first asynchronous exchange, e.g. not in push mode if the node doesn't need one)
+     */
+    private NodeUDPChannel prefetchChannel;
+    private ExecutorService exchangeExecutor;
+    
+    /**
+     * local transport: data structures of the neighbors in the same process (index: data type ordinal),
+     * and the reader which waits for their data
+     */
+    private final EnumMap<Neighbors, DataStruct[]> localNeighborData;
+    private final DataWaiter localDataWaiter;
+    
     /**
      * some constants common to all nodes 
      */
     public static final int HOURS = 24;           // forecast duration in hours
-    private static final int DT_SEC = 3600;       // duration of one forecast step in seconds
+    static final int DT_SEC = 3600;               // duration of one forecast step in seconds
     public static final int NUM_ITERATIONS = 200; // number of iterations of the solution method of the Poisson-equation
+    private static final long PUSH_TIMEOUT = 5000; // milliseconds to wait for a pushed value before querying it
+    private static final DataTypes[] Z_AND_ETA = {DataTypes.Z, DataTypes.ETA};
+    private static final DataTypes[][] SINGLE_TYPES = new DataTypes[DataTypes.values().length][];
+    static {
+        for (DataTypes t : DataTypes.values())
+            SINGLE_TYPES[t.ordinal()] = new DataTypes[]{t};
+    }
     
     
     /**
@@ -145,11 +240,22 @@ public class Node implements Runnable  {
         this.dxidt = new DataStructDXIDT();
         this.eta = new DataStructETA();        
           
-        this.neighborDescriptors = new EnumMap<>(Neighbors.class);
+        this.neighborDescriptors = new ConcurrentHashMap<>();
+        this.neighborPositions = new EnumMap<>(Neighbors.class);
+        this.inboxSlots = new EnumMap<>(Neighbors.class);
+        this.subscribedTypes = new EnumMap<>(Neighbors.class);
         this.neighborData = new EnumMap<>(Neighbors.class);
+        this.retransmissionTimers = new EnumMap<>(Neighbors.class);
+        for (Neighbors n : Neighbors.values()) {
+            neighborData.put(n, new AtomicIntegerArray(DataTypes.values().length));
+            retransmissionTimers.put(n, new RetransmissionTimer());
+        }
         
         this.udpServer = new NodeUDPServer(this);
-        this.udpServerExecutor = Executors.newSingleThreadExecutor();
+        this.udpServerExecutor = Main.newExecutor(1);
+        this.udpChannel = new NodeUDPChannel(this);
+        this.localNeighborData = new EnumMap<>(Neighbors.class);
+        this.localDataWaiter = new DataWaiter();
                 
         /* Initialize geographical parameters */  
         this.m = (float)(2/(1+Math.sin(lat)));
@@ -165,8 +271,12 @@ public class Node implements Runnable  {
     @Override
     public void run() {           
         
-        /* Start UDP server. */
-        udpServerExecutor.execute(udpServer);
+        /* Start UDP server (on its own thread, or on a shared UDP server loop). */
+        final UDPServerLoop udpServerLoop = Main.getUDPServerLoop();
+        if (udpServerLoop != null)
+            udpServerLoop.attach(udpServer);
+        else
+            udpServerExecutor.execute(udpServer);
         
         /* Initialize node. */
         initNode();
@@ -182,7 +292,7 @@ public class Node implements Runnable  {
             /* xi(i,j)=(z(i+1,j)+z(i-1,j)+z(i,j+1)+z(i,j-1)-4*z)/(DS^2) */
             float sum=0;
             for (Neighbors nb : Neighbors.values())
-                sum += getNeighborValue(nb);
+                sum += getNeighborValue(nb, DataTypes.Z);
             setValue(DataTypes.XI, 0, (sum-4*getValue(DataTypes.Z, 0)) / DS / DS);  
         }     
 
@@ -202,98 +312,130 @@ public class Node implements Runnable  {
              * Western border node 
              */
             if (isWestern) {
-                /* Get z from northern and southern neighbors. */
+                /* Get xi from the close and distant neighbors (in the background), and z from northern and southern neighbors. */
+                final Future<?> xiExchange = getDataFromNeighborsAsync(SINGLE_TYPES[DataTypes.XI.ordinal()], 0, Neighbors.EAST, Neighbors.WEST);
                 getDataFromNeighborsUDP(DataTypes.Z, 0, Neighbors.NORTH, Neighbors.SOUTH);   
 
                 /* Two cases:
                    1. z(i,j+1) >= z(i,j-1) ---> fluid is leaving
                    2. otherwise ---> fluid is entering */
-                if (getNeighborValue(Neighbors.NORTH) >= getNeighborValue(Neighbors.SOUTH)) 
+                if (getNeighborValue(Neighbors.NORTH, DataTypes.Z) >= getNeighborValue(Neighbors.SOUTH, DataTypes.Z)) 
                     isFluidLeaving = true;                        
 
-                /* Get xi from close and distant eastern neighbors */
-                getDataFromNeighborsUDP(DataTypes.XI, 0, Neighbors.EAST, Neighbors.WEST);    
+                /* Wait for xi of the close and distant eastern neighbors. */
+                awaitExchange(xiExchange);    
 
                 /* xi(i,j)= 2*xi(i,j+1) - xi(i,j+2) */
-                setValue(DataTypes.XI, 0, 2*(getNeighborValue(Neighbors.EAST)) - getNeighborValue(Neighbors.WEST));
+                setValue(DataTypes.XI, 0, 2*(getNeighborValue(Neighbors.EAST, DataTypes.XI)) - getNeighborValue(Neighbors.WEST, DataTypes.XI));
             }
             /*
              * Eastern border node 
              */
             else if (isEastern) {
-                /* Get z from southern and northern neighbors */
+                /* Get xi from the close and distant neighbors (in the background), and z from southern and northern neighbors. */
+                final Future<?> xiExchange = getDataFromNeighborsAsync(SINGLE_TYPES[DataTypes.XI.ordinal()], 0, Neighbors.WEST, Neighbors.EAST);
                 getDataFromNeighborsUDP(DataTypes.Z, 0, Neighbors.SOUTH, Neighbors.NORTH);   
 
                 /* Two cases:
                    1. z(i,j-1) >= z(i,j+1) ---> fluid is leaving
                    2. otherwise ---> fluid is entering */
-                if (getNeighborValue(Neighbors.SOUTH) >= getNeighborValue(Neighbors.NORTH))
+                if (getNeighborValue(Neighbors.SOUTH, DataTypes.Z) >= getNeighborValue(Neighbors.NORTH, DataTypes.Z))
                     isFluidLeaving = true;
 
 
-                /* Get xi from close and distant western neighbors. */
-                getDataFromNeighborsUDP(DataTypes.XI, 0, Neighbors.WEST, Neighbors.EAST);           
+                /* Wait for xi of the close and distant western neighbors. */
+                awaitExchange(xiExchange);           
 
                 /* xi(i,j)= 2*xi(i,j-1) - xi(i,j-2) */
-                setValue(DataTypes.XI, 0, 2*(getNeighborValue(Neighbors.WEST)) - getNeighborValue(Neighbors.EAST));
+                setValue(DataTypes.XI, 0, 2*(getNeighborValue(Neighbors.WEST, DataTypes.XI)) - getNeighborValue(Neighbors.EAST, DataTypes.XI));
             }
 
             /*
              * Southern border node 
              */
             else if (isSouthern) {
-                /* Get z from western and eastern neighbors. */
+                /* Get xi from the close and distant neighbors (in the background), and z from western and eastern neighbors. */
+                final Future<?> xiExchange = getDataFromNeighborsAsync(SINGLE_TYPES[DataTypes.XI.ordinal()], 0, Neighbors.NORTH, Neighbors.SOUTH);
                 getDataFromNeighborsUDP(DataTypes.Z, 0, Neighbors.WEST, Neighbors.EAST);   
 
                 /* Two cases:
                    1. z(i-1,j) >= z(i+1,j) ---> fluid is leaving
                    2. otherwise ---> fluid is entering */
-                if (getNeighborValue(Neighbors.WEST) >= getNeighborValue(Neighbors.EAST))
+                if (getNeighborValue(Neighbors.WEST, DataTypes.Z) >= getNeighborValue(Neighbors.EAST, DataTypes.Z))
                     isFluidLeaving = true;
 
-                /* Get xi from close and distant northern neighbors. */
-                getDataFromNeighborsUDP(DataTypes.XI, 0, Neighbors.NORTH, Neighbors.SOUTH);       
+                /* Wait for xi of the close and distant northern neighbors. */
+                awaitExchange(xiExchange);       
 
                 /* xi(i,j)= 2*xi(i+1,j) - xi(i+2,j) */
-                setValue(DataTypes.XI, 0, 2*(getNeighborValue(Neighbors.NORTH)) - getNeighborValue(Neighbors.SOUTH));
+                setValue(DataTypes.XI, 0, 2*(getNeighborValue(Neighbors.NORTH, DataTypes.XI)) - getNeighborValue(Neighbors.SOUTH, DataTypes.XI));
             }
 
             /*
              * Northern border node 
              */
             else if (isNorthern) {
-                /* Get z from eastern and western neighbors. */
+                /* Get xi from the close and distant neighbors (in the background), and z from eastern and western neighbors. */
+                final Future<?> xiExchange = getDataFromNeighborsAsync(SINGLE_TYPES[DataTypes.XI.ordinal()], 0, Neighbors.SOUTH, Neighbors.NORTH);
                 getDataFromNeighborsUDP(DataTypes.Z, 0, Neighbors.EAST, Neighbors.WEST);   
 
                 /* Two cases:
                    1. z(i+1,j) >= z(i-1,j) ---> fluid is leaving
                    2. otherwise ---> fluid is entering */
-                if (getNeighborValue(Neighbors.EAST) >= getNeighborValue(Neighbors.WEST))
+                if (getNeighborValue(Neighbors.EAST, DataTypes.Z) >= getNeighborValue(Neighbors.WEST, DataTypes.Z))
                     isFluidLeaving = true;
 
-                /* Get xi from close and distant southern neighbors. */
-                getDataFromNeighborsUDP(DataTypes.XI, 0, Neighbors.SOUTH, Neighbors.NORTH);     
+                /* Wait for xi of the close and distant southern neighbors. */
+                awaitExchange(xiExchange);     
 
                 /* xi(i,j)= 2*xi(i-1,j) - xi(i-2,j) */
-                setValue(DataTypes.XI, 0, 2*(getNeighborValue(Neighbors.SOUTH)) - getNeighborValue(Neighbors.NORTH));
+                setValue(DataTypes.XI, 0, 2*(getNeighborValue(Neighbors.SOUTH, DataTypes.XI)) - getNeighborValue(Neighbors.NORTH, DataTypes.XI));
             } 
             
             /* dxi/dt=0 at border nodes (initialized automatically) where *
              * fluid is entering the area, but setting its step to max    *
              * is required so that it doesn't return NaN when a neighbour *
              * node asks for it during the calculation of eta.            */                
-            if (!isFluidLeaving)
+            if (!isFluidLeaving) {
                 dxidt.setStep(DataStructDXIDT.NUM_STEPS-1);
+                if (inbox != null)
+                    udpServer.pushAvailable(x, y, DataTypes.DXIDT);
+            }
         }         
         
+        /* A node which takes over a reassigned grid point continues the forecast from the seed *
+         * (step 0 of z and xi has been calculated above, it is the same as the real node's).  */
+        if (firstStep > 0) {
+            if (firstStep > 1) {
+                setValue(DataTypes.Z, firstStep-1, seed[0]);
+                setValue(DataTypes.XI, firstStep-1, seed[2]);
+            }
+            setValue(DataTypes.Z, firstStep, seed[1]);
+            setValue(DataTypes.XI, firstStep, seed[3]);
+            if (isInner || isFluidLeaving)
+                setValue(DataTypes.DXIDT, firstStep-1, seed[4]);
+            /* eta of the previous step, neighbors which are a step behind may still ask for it */
+            setValue(DataTypes.ETA, firstStep-1, h*getValue(DataTypes.XI, firstStep-1) + f);
+        }
+        
         /****************************************************
          **************************************************** 
          ************** MAIN LOOP STARTS HERE ***************
          ****************************************************
          ****************************************************/        
-        for (int step=0; step<HOURS; step++) {
+        /* The exchange of the next step is started when the values of the step have been used (prefetch): *
+         * the servers of the neighbors answer it as soon as they publish the data. In push mode the values *
+         * arrive in the inbox anyway, and the exchange is started when they are needed.                    */
+        final boolean isPrefetching = inbox == null;
+        Future<?> nextExchange = null;
+        final Neighbors[] extrapolationNeighbors = isWestern ? new Neighbors[]{Neighbors.EAST, Neighbors.WEST}
+                : isEastern ? new Neighbors[]{Neighbors.WEST, Neighbors.EAST}
+                : isSouthern ? new Neighbors[]{Neighbors.NORTH, Neighbors.SOUTH}
+                : new Neighbors[]{Neighbors.SOUTH, Neighbors.NORTH};
+        for (int step=firstStep; step<HOURS; step++) {
             
             System.out.println("node (" + x + "," + y + ") step " + (step+1));
+            forecastStep = step;
             
             /********************************
              * Calculate absolute vorticity *
@@ -306,37 +448,78 @@ public class Node implements Runnable  {
              * solve the Poisson equation        *
              *************************************/
             if (isInner) {
-                getDataFromNeighborsUDP(DataTypes.Z, step, Neighbors.values());
+                /* z and eta of the neighbors are queried together (simulated neighbors answer both in one datagram), *
+                 * in the exchange prefetched at the previous step.                                                  */
+                if (nextExchange == null)
+                    nextExchange = getDataFromNeighborsAsync(Z_AND_ETA, step, Neighbors.values());
+                awaitExchange(nextExchange);
                 /* dz/dx(i,j) = (z(i+1,j)-z(i-1,j))/(2*DS) */
-                dzdx = (getNeighborValue(Neighbors.EAST) - getNeighborValue(Neighbors.WEST)) / (2*DS);     
+                dzdx = (getNeighborValue(Neighbors.EAST, DataTypes.Z) - getNeighborValue(Neighbors.WEST, DataTypes.Z)) / (2*DS);     
                 /* dz/dy(i,j) = (z(i,j+1)-z(i,j-1))/(2*DS) */
-                dzdy = (getNeighborValue(Neighbors.NORTH) - getNeighborValue(Neighbors.SOUTH)) / (2*DS);
+                dzdy = (getNeighborValue(Neighbors.NORTH, DataTypes.Z) - getNeighborValue(Neighbors.SOUTH, DataTypes.Z)) / (2*DS);
                                                 
-                getDataFromNeighborsUDP(DataTypes.ETA, step, Neighbors.values());
                 /* deta/dx(i,j) = (eta(i+1,j)-eta(i-1,j))/(2*DS) */
-                detadx = (getNeighborValue(Neighbors.EAST) - getNeighborValue(Neighbors.WEST)) / (2*DS);     
+                detadx = (getNeighborValue(Neighbors.EAST, DataTypes.ETA) - getNeighborValue(Neighbors.WEST, DataTypes.ETA)) / (2*DS);     
                 /* deta/dy(i,j) = (eta(i,j+1)-eta(i,j-1))/(2*DS) */
-                detady = (getNeighborValue(Neighbors.NORTH) - getNeighborValue(Neighbors.SOUTH)) / (2*DS);    
+                detady = (getNeighborValue(Neighbors.NORTH, DataTypes.ETA) - getNeighborValue(Neighbors.SOUTH, DataTypes.ETA)) / (2*DS);    
 
                 /* dxi/dt(i,j) = Jacobi(i,j) = (deta/dx * dz/dy - deta/dy * dz/dx) */
                 setValue(DataTypes.DXIDT, step, detadx*dzdy - detady*dzdx);
                 
+                /* z and eta of the next step are queried during the Poisson iterations. */
+                nextExchange = (isPrefetching && step+1 < HOURS) ? getDataFromNeighborsAsync(Z_AND_ETA, step+1, Neighbors.values()) : null;
+                
                 /******************************************************************
                  * Solve the Laplace(dz/dt) = dxi/dt Poisson equation iteratively *
                  ******************************************************************/  
-                dzdt.setStep(0);
+                /* Red-black SOR: red nodes ((x+y) even) use the neighbors' values of the  *
+                 * same iteration, black nodes use the new values of their red neighbors.   *
+                 * Block methods (multigrid) use Jacobi iteration on a single grid point.   */
+                final boolean isSOR = Main.getPoissonMethod() == Main.PoissonMethods.SOR;
+                final boolean isBlack = (x+y)%2 == 1;
+                final float omega = Main.getOmega();
+                final int iterations = Main.getMaxIterations();
+                final int reductionInterval = Main.getReductionInterval();
+                final float rhs = getValue(DataTypes.DXIDT, step)*DS*DS;
+                int lastIteration = iterations;
+                
+                /* Warm start: iteration 0 starts from the result of the previous step. */
+                if (Main.isWarmStart() && step > firstStep)
+                    setValue(DataTypes.DZDT, 0, getValue(DataTypes.DZDT, NUM_ITERATIONS));
+                else
+                    setValue(DataTypes.DZDT, 0, 0);     // slot 0 is never set otherwise (this also sets the step to 0)
                 dzdt.allowNextStepRequests();
-                for (int it_step=0; it_step<NUM_ITERATIONS; it_step++) {
+                for (int it_step=0; it_step<iterations; it_step++) {
                     /* Get dz/dt from neighbors. */
-                    getDataFromNeighborsUDP(DataTypes.DZDT, it_step, Neighbors.values());
+                    getDataFromNeighborsUDP(DataTypes.DZDT, (isSOR && isBlack) ? it_step+1 : it_step, Neighbors.values());
 
-                    /* dz/dt(i,j) = (1/4)*(dz/dt(i+1,j) + dz/dt(i-1,j) + dz/dt(i,j+1) + dz/dt(i,j-1) - Jacobi(i,j)*(DS^2))) */
                     float sum = 0;
                     for (Neighbors nb : Neighbors.values())
-                        sum += getNeighborValue(nb);
-                    setValue(DataTypes.DZDT, it_step+1, (sum - getValue(DataTypes.DXIDT, step)*DS*DS) / 4); 
+                        sum += getNeighborValue(nb, DataTypes.DZDT);
+                    final float old = getValue(DataTypes.DZDT, it_step);
+                    final float residual = sum - 4*old - rhs;
+                    /* dz/dt(i,j) += (omega/4)*(dz/dt(i+1,j) + dz/dt(i-1,j) + dz/dt(i,j+1) + dz/dt(i,j-1) - 4*dz/dt(i,j) - Jacobi(i,j)*(DS^2)) */
+                    if (isSOR)
+                        setValue(DataTypes.DZDT, it_step+1, old + omega*residual/4);
+                    /* dz/dt(i,j) = (1/4)*(dz/dt(i+1,j) + dz/dt(i-1,j) + dz/dt(i,j+1) + dz/dt(i,j-1) - Jacobi(i,j)*(DS^2))) */
+                    else
+                        setValue(DataTypes.DZDT, it_step+1, (sum - rhs) / 4); 
                     Thread.yield(); 
+                    
+                    /* Every reductionInterval iterations the residuals of all inner nodes are *
+                     * combined by the main server, and they stop at the same iteration.      */
+                    if (reductionInterval > 0 && (it_step+1) % reductionInterval == 0 && it_step+1 < iterations
+                            && reduceResidualTCP(step, it_step+1, Math.abs(residual), Math.abs(rhs))) {
+                        lastIteration = it_step+1;
+                        break;
+                    }
                 }
+                
+                /* Fill the remaining steps with the result (the next z is calculated   *
+                 * from dzdt[NUM_ITERATIONS], and real neighbors may still ask for them) *
+                 * They aren't pushed: simulated neighbors stop at the same iteration.   */
+                for (int it_step=lastIteration+1; it_step<=NUM_ITERATIONS; it_step++)
+                    dzdt.setData(it_step, getValue(DataTypes.DZDT, lastIteration));
                 dzdt.denyNextStepRequests();
             }    
             
@@ -347,56 +530,53 @@ public class Node implements Runnable  {
              * Fluid entering: dxi/dt=0 (set before)            *
              ****************************************************/
             else if (isFluidLeaving) {                
+                /* Get dxi/dt from the close and distant neighbors (prefetched at the previous step). */
+                if (nextExchange == null)
+                    nextExchange = getDataFromNeighborsAsync(SINGLE_TYPES[DataTypes.DXIDT.ordinal()], step, extrapolationNeighbors);
+                awaitExchange(nextExchange);
+                
                 /*********************** 
                  * Western border node *
                  ***********************/
                 if (isWestern)
                 {
-                    /* Get dxi/dt from close and distant eastern neighbors. */
-                    getDataFromNeighborsUDP(DataTypes.DXIDT, step, Neighbors.EAST, Neighbors.WEST);  
-                    
                     /* dxi/dt(i,j) = 2*dxi/dt(i+1,j) - dxi/dt(i+2,j) */
-                    setValue(DataTypes.DXIDT, step, (2*getNeighborValue(Neighbors.EAST)) - getNeighborValue(Neighbors.WEST));
+                    setValue(DataTypes.DXIDT, step, (2*getNeighborValue(Neighbors.EAST, DataTypes.DXIDT)) - getNeighborValue(Neighbors.WEST, DataTypes.DXIDT));
                 }
                 /***********************
                  * Eastern border node *
                  ***********************/
                 else if (isEastern)
                 {
-                    /* Get dxi/dt from close and distant western neighbors. */
-                    getDataFromNeighborsUDP(DataTypes.DXIDT, step, Neighbors.WEST, Neighbors.EAST);  
-
                     /* dxi/dt(i,j) = 2*dxi/dt(i-1,j) - dxi/dt(i-2,j) */
-                    setValue(DataTypes.DXIDT, step, (2*getNeighborValue(Neighbors.WEST)) - getNeighborValue(Neighbors.EAST));
+                    setValue(DataTypes.DXIDT, step, (2*getNeighborValue(Neighbors.WEST, DataTypes.DXIDT)) - getNeighborValue(Neighbors.EAST, DataTypes.DXIDT));
                 }
                 /************************
                  * Southern border node *
                  ************************/
                 else if (isSouthern)
                 {
-                    /* Get dxi/dt from close and distant northern neighbors. */
-                    getDataFromNeighborsUDP(DataTypes.DXIDT, step, Neighbors.NORTH, Neighbors.SOUTH);  
-
                     /* dxi/dt(i,j) = 2*dxi/dt(i,j+1) - dxi/dt(i,j+2) */
-                    setValue(DataTypes.DXIDT, step, (2*getNeighborValue(Neighbors.NORTH)) - getNeighborValue(Neighbors.SOUTH));
+                    setValue(DataTypes.DXIDT, step, (2*getNeighborValue(Neighbors.NORTH, DataTypes.DXIDT)) - getNeighborValue(Neighbors.SOUTH, DataTypes.DXIDT));
                 }        
                 /************************
                  * Northern border node *
                  ************************/
                 else if (isNorthern)
                 {
-                    /* Get dxi/dt from close and distant southern neighbors. */
-                    getDataFromNeighborsUDP(DataTypes.DXIDT, step, Neighbors.SOUTH, Neighbors.NORTH);  
-
                     /* dxi/dt(i,j) = 2*dxi/dt(i,j-1) - dxi/dt(i,j-2) */
-                    setValue(DataTypes.DXIDT, step, (2*getNeighborValue(Neighbors.SOUTH)) - getNeighborValue(Neighbors.NORTH));
+                    setValue(DataTypes.DXIDT, step, (2*getNeighborValue(Neighbors.SOUTH, DataTypes.DXIDT)) - getNeighborValue(Neighbors.NORTH, DataTypes.DXIDT));
                 }
+                
+                /* dxi/dt of the next step is queried in the background. */
+                nextExchange = (isPrefetching && step+1 < HOURS) ? getDataFromNeighborsAsync(SINGLE_TYPES[DataTypes.DXIDT.ordinal()], step+1, extrapolationNeighbors) : null;
             }
             
             /*********************************************************************
              * Step forward xi and z based on dxi/dt and dz/dt                   *
-             * Note: dz/dt=0 at border nodes (initial value of AtomicInteger),   *
-             * dxi/dt=0 at border nodes where fluid is entering (set explicitly) *
+             * Note: dz/dt=0 at border nodes (initial value of the neighbor     *
+             * buffer), dxi/dt=0 at border nodes where fluid is entering (set    *
+             * explicitly)                                                       *
              *********************************************************************/            
             /* First step: forward differences */
             if (step==0) {         
@@ -419,7 +599,19 @@ public class Node implements Runnable  {
          ***************************************************/
         
         
+        /* Report the links to real neighbors which lost requests. */
+        for (Neighbors n : Neighbors.values()) {
+            final RetransmissionTimer timer = retransmissionTimers.get(n);
+            if (timer.getTimeouts() > 0)
+                System.err.println("UDP statistics of node (" + x + "," + y + "), " + n + " neighbor: " + timer);
+        }
+        
         /* Stop UDP server. */  
+        if (exchangeExecutor != null) {
+            exchangeExecutor.shutdown();
+            prefetchChannel.close();
+        }
+        udpChannel.close();
         udpServer.stop();        
         udpServerExecutor.shutdown();
         try {
@@ -499,25 +691,210 @@ public class Node implements Runnable  {
         
         /* Check if this is an inner node */
         isInner = !isNorthern && !isEastern && !isSouthern && !isWestern;        
+        
+        /* Push mode: subscribe to the data needed from the neighbors. */
+        if (Main.getExchangeMode() == Main.ExchangeModes.PUSH)
+            subscribeToNeighborsUDP();
+    }
+    
+    
+    /**
+     * Subscribes to the new values of the simulated neighbors (push mode).
+     * 
+     * Inner nodes need z, eta and dz/dt of their neighbors (dz/dt of border nodes is always 0,
+     * it isn't exchanged). Border nodes need z from the neighbors along the border, and xi,
+     * dxi/dt from the close and distant neighbors inwards. Real neighbors are still queried.
+     */
+    private void subscribeToNeighborsUDP() {
+        
+        final int zMask = 1 << DataTypes.Z.ordinal();
+        final int extrapolatedMask = (1 << DataTypes.XI.ordinal()) | (1 << DataTypes.DXIDT.ordinal());
+        final EnumMap<Neighbors, Integer> typeMasks = new EnumMap<>(Neighbors.class);
+        if (isInner) {
+            for (Neighbors n : Neighbors.values()) {
+                final int[] p = neighborPositions.get(n);
+                final boolean isBorder = p[0] == 0 || p[1] == 0 || p[0] == gridSize.width-1 || p[1] == gridSize.height-1;
+                typeMasks.put(n, zMask | (1 << DataTypes.ETA.ordinal()) | (isBorder ? 0 : 1 << DataTypes.DZDT.ordinal()));
+            }
+        }
+        else if (isWestern || isEastern) {
+            typeMasks.put(Neighbors.NORTH, zMask);
+            typeMasks.put(Neighbors.SOUTH, zMask);
+            typeMasks.put(Neighbors.EAST, extrapolatedMask);
+            typeMasks.put(Neighbors.WEST, extrapolatedMask);
+        }
+        else {
+            typeMasks.put(Neighbors.EAST, zMask);
+            typeMasks.put(Neighbors.WEST, zMask);
+            typeMasks.put(Neighbors.NORTH, extrapolatedMask);
+            typeMasks.put(Neighbors.SOUTH, extrapolatedMask);
+        }
+        
+        inbox = new Inbox();
+        udpServer.setInbox(inbox);
+        ExecutorService udpClientExecutor = Main.newExecutor(typeMasks.size());
+        for (Neighbors n : typeMasks.keySet()) {
+            final NodeDescriptor nd = neighborDescriptors.get(n);
+            if (!nd.isSimulated || localNeighborData.containsKey(n))
+                continue;
+            final int[] p = neighborPositions.get(n);
+            inboxSlots.put(n, inbox.addProducer(p[0], p[1]));
+            subscribedTypes.put(n, typeMasks.get(n));
+            udpClientExecutor.execute(new SubscriptionUDPClient(p[0], p[1], udpServer.getListeningPort(), typeMasks.get(n), nd.address, nd.port));
+        }
+        
+        udpClientExecutor.shutdown();        
+        try {
+            udpClientExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Logger.getLogger(Node.class.getName()).log(Level.SEVERE, null, ex);
+        }
     }
     
         
     /**
      * Queries neighbor(s) for data.
      * 
-     * Starts UDP client thread(s) to get data from neighbor(s).
+     * Neighbors in the same process are read directly (local transport), other simulated
+     * neighbors are queried at once through the UDP channel of the node, real neighbors by
+     * UDP client thread(s).
+     * In push mode the values of the subscribed neighbors are taken from the inbox,
+     * and only the values which haven't arrived within PUSH_TIMEOUT are queried.
      * 
      * @param dataType  the type of data to be queried from the neighbor(s)
      * @param step      the step of the queried data
      * @param neighbors which neighbor(s) to request the data from
      */
     private void getDataFromNeighborsUDP(DataTypes dataType, int step, Neighbors... neighbors) {
+        getDataFromNeighborsUDP(udpChannel, SINGLE_TYPES[dataType.ordinal()], step, neighbors);
+    }
+    
+    
+    /**
+     * Queries neighbor(s) for several types of data of the same step (see queryNeighbors()), and keeps
+     * the data types which haven't arrived yet for the straggler detection (see getWaitingTime()).
+     * 
+     * @param channel   the UDP channel which queries the simulated neighbors
+     * @param dataTypes the types of data to be queried from the neighbor(s)
+     * @param step      the step of the queried data
+     * @param neighbors which neighbor(s) to request the data from
+     */
+    private void getDataFromNeighborsUDP(NodeUDPChannel channel, DataTypes[] dataTypes, int step, Neighbors... neighbors) {
+        
+        /* The node thread is blocked on the exchanges on its own channel (and on the asynchronous ones in awaitExchange()). */
+        final int exchange = (channel == prefetchChannel) ? ASYNC_EXCHANGE : OWN_EXCHANGE;
+        int typeMask = 0;
+        for (DataTypes dataType : dataTypes)
+            typeMask |= 1 << dataType.ordinal();
+        for (Neighbors n : neighbors)
+            missingData[exchange].set(n.ordinal(), typeMask);
+        if (exchange == OWN_EXCHANGE)
+            blockedSince.set(OWN_EXCHANGE, System.currentTimeMillis());
+        try {
+            queryNeighbors(channel, dataTypes, step, neighbors);
+        } finally {
+            if (exchange == OWN_EXCHANGE)
+                blockedSince.set(OWN_EXCHANGE, 0);
+            for (Neighbors n : neighbors)
+                missingData[exchange].set(n.ordinal(), 0);
+        }
+    }
+    
+    
+    /**
+     * Queries neighbor(s) for several types of data of the same step.
+     * 
+     * Simulated neighbors get a single batched request for all types (one round trip),
+     * real neighbors are queried by a UDP client thread for every type (they understand
+     * the original request only).
+     * 
+     * @param channel   the UDP channel which queries the simulated neighbors
+     * @param dataTypes the types of data to be queried from the neighbor(s)
+     * @param step      the step of the queried data
+     * @param neighbors which neighbor(s) to request the data from
+     */
+    private void queryNeighbors(NodeUDPChannel channel, DataTypes[] dataTypes, int step, Neighbors... neighbors) {
+        
+        if (!localNeighborData.isEmpty()) {
+            Neighbors[] remote = null;
+            int remoteNeighbors = 0;
+            for (Neighbors n : neighbors) {
+                final DataStruct[] data = localNeighborData.get(n);
+                boolean isComplete = data != null;
+                for (int i=0; isComplete && i<dataTypes.length; i++) {
+                    final float value = localDataWaiter.getData(data[dataTypes[i].ordinal()], step);
+                    isComplete = !Float.isNaN(value);
+                    setNeighborValue(n, dataTypes[i], value);
+                }
+                if (!isComplete) {
+                    if (remote == null)
+                        remote = new Neighbors[neighbors.length];
+                    remote[remoteNeighbors++] = n;
+                }
+            }
+            if (remoteNeighbors == 0)
+                return;
+            if (remoteNeighbors < neighbors.length)
+                neighbors = Arrays.copyOf(remote, remoteNeighbors);
+        }
         
-        ExecutorService udpClientExecutor = Executors.newFixedThreadPool(neighbors.length);
+        if (inbox != null) {
+            List<Neighbors> missing = null;
+            for (Neighbors n : neighbors) {
+                final Integer slot = inboxSlots.get(n);
+                boolean isComplete = slot != null;
+                for (int i=0; isComplete && i<dataTypes.length; i++) {
+                    final DataTypes dataType = dataTypes[i];
+                    /* dz/dt of border nodes is 0 (it isn't exchanged) */
+                    if (dataType == DataTypes.DZDT && (subscribedTypes.get(n) & (1 << DataTypes.DZDT.ordinal())) == 0) {
+                        setNeighborValue(n, dataType, 0);
+                        continue;
+                    }
+                    final float value = inbox.take(slot, dataType, dataType == DataTypes.DZDT ? forecastStep : 0, step, PUSH_TIMEOUT);
+                    isComplete = !Float.isNaN(value);
+                    setNeighborValue(n, dataType, value);
+                }
+                if (!isComplete) {
+                    if (missing == null)
+                        missing = new ArrayList<>();
+                    missing.add(n);
+                }
+            }
+            if (missing == null)
+                return;
+            neighbors = missing.toArray(new Neighbors[missing.size()]);
+        }
+        
+        /* Real neighbors are queried by UDP client threads with the original requests, unless they use a payload codec. */
+        int realNeighbors = 0;
         for (Neighbors n: neighbors) {
-            udpClientExecutor.execute(new NodeUDPClient(this, n, dataType, step, neighborDescriptors.get(n).address, neighborDescriptors.get(n).port));
+            if (isQueriedByClientThreads(n))
+                realNeighbors++;
+        }
+        if (realNeighbors == 0) {
+            channel.getData(dataTypes, step, neighbors);
+            return;
+        }
+        
+        ExecutorService udpClientExecutor = Main.newExecutor(realNeighbors*dataTypes.length);
+        for (Neighbors n: neighbors) {
+            if (!isQueriedByClientThreads(n))
+                continue;
+            for (DataTypes dataType : dataTypes)
+                udpClientExecutor.execute(new NodeUDPClient(this, n, dataType, step, neighborDescriptors.get(n).address, neighborDescriptors.get(n).port, retransmissionTimers.get(n)));
         }             
         
+        /* The simulated neighbors are queried while the threads wait for the real ones. */
+        if (realNeighbors < neighbors.length) {
+            final Neighbors[] simulatedNeighbors = new Neighbors[neighbors.length-realNeighbors];
+            int i = 0;
+            for (Neighbors n: neighbors) {
+                if (!isQueriedByClientThreads(n))
+                    simulatedNeighbors[i++] = n;
+            }
+            channel.getData(dataTypes, step, simulatedNeighbors);
+        }
+        
         udpClientExecutor.shutdown();        
         try {
             udpClientExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
@@ -527,13 +904,75 @@ public class Node implements Runnable  {
     }
     
     
+    /**
+     * Starts querying neighbor(s) for data of the same step, and returns at once (asynchronous exchange).
+     * 
+     * The exchange (see getDataFromNeighborsUDP()) runs on a thread of the exchange executor, and queries
+     * the simulated neighbors through the prefetch channel, so the node can compute, or query other data
+     * on its own channel, in the meantime. At most one asynchronous exchange may run at a time, and the
+     * queried data types of the neighbors mustn't be read or queried until it is complete (the values
+     * are stored in the neighborData buffer). The prefetch channel and the exchange executor are created
+     * by the first asynchronous exchange, with the neighbors already set on the channel of the node.
+     * 
+     * @param dataTypes the types of data to be queried from the neighbor(s)
+     * @param step      the step of the queried data
+     * @param neighbors which neighbor(s) to request the data from
+     * @return          the future of the exchange (see awaitExchange())
+     */
+    private Future<?> getDataFromNeighborsAsync(final DataTypes[] dataTypes, final int step, final Neighbors... neighbors) {
+        if (exchangeExecutor == null) {
+            prefetchChannel = new NodeUDPChannel(this, true);
+            for (Neighbors n : Neighbors.values()) {
+                final int[] p = neighborPositions.get(n);
+                final NodeDescriptor nd = neighborDescriptors.get(n);
+                if (p != null && nd != null)
+                    prefetchChannel.setNeighbor(n, nd, p[0], p[1]);
+            }
+            exchangeExecutor = Main.newExecutor(1);
+        }
+        return exchangeExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                getDataFromNeighborsUDP(prefetchChannel, dataTypes, step, neighbors);
+            }
+        });
+    }
+    
+    
+    /**
+     * Waits until an asynchronous exchange is complete (its values can be read by getNeighborValue() afterwards).
+     * @param exchange  the future returned by getDataFromNeighborsAsync()
+     */
+    private void awaitExchange(Future<?> exchange) {
+        blockedSince.set(ASYNC_EXCHANGE, System.currentTimeMillis());
+        try {
+            exchange.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            Logger.getLogger(Node.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            blockedSince.set(ASYNC_EXCHANGE, 0);
+        }
+    }
+    
+    
+    /**
+     * Checks whether a neighbor is queried by NodeUDPClient threads (a real neighbor without payload codec),
+     * otherwise by the UDP channel of the node.
+     * @param n     the neighbor
+     * @return      true if the neighbor is queried by NodeUDPClient threads
+     */
+    private boolean isQueriedByClientThreads(Neighbors n) {
+        return !neighborDescriptors.get(n).isSimulated && !udpChannel.hasCodec(n);
+    }
+    
+    
     /**
      * Queries main server for grid data and coordinates of this node.     * 
      * Starts a TCP client thread to get the grid size and (x,y) coordinates from main server.     *
      */            
     private void getGridSizeAndPositionTCP() {
         
-        ExecutorService tcpClientExecutor = Executors.newSingleThreadExecutor();
+        ExecutorService tcpClientExecutor = Main.newExecutor(1);
         try {
             tcpClientExecutor.execute(new NodeTCPClient(this, lat, lon, udpServer.getListeningPort(), InetAddress.getByName(Main.MAIN_SERVER_ADDRESS), Main.MAIN_SERVER_PORT));
         } catch (UnknownHostException ex) {
@@ -552,16 +991,68 @@ public class Node implements Runnable  {
     /**
      * Queries main server for node descriptor data.
      * 
-     * Starts a TCP client thread to get the descriptor of node at (x,y) from main server.
+     * Starts a TCP client thread to get the descriptor of node at (x,y) from main server,
+     * unless the descriptor has been delivered at registration (REGISTER_NODE_BULK).
      * 
+     * @param neighbor  direction of the neighbor node
      * @param x     x coordinate of the neighbor node
      * @param y     y coordinate of the neighbor node
      */    
     private void getNeighborDescriptorTCP(Neighbors neighbor, int x, int y) {
         
-        ExecutorService tcpClientExecutor = Executors.newSingleThreadExecutor();
+        final int[] registeredPosition = neighborPositions.get(neighbor);
+        if (neighborDescriptors.get(neighbor) == null || registeredPosition == null || registeredPosition[0] != x || registeredPosition[1] != y) {
+            neighborPositions.put(neighbor, new int[]{x, y});
+
+            /* The extended request tells whether the neighbor is simulated (it understands extended UDP messages). */
+            ExecutorService tcpClientExecutor = Main.newExecutor(1);
+            try {
+                tcpClientExecutor.execute(new NodeTCPClient(this, neighbor, x, y, true, InetAddress.getByName(Main.MAIN_SERVER_ADDRESS), Main.MAIN_SERVER_PORT));
+            } catch (UnknownHostException ex) {
+                Logger.getLogger(Node.class.getName()).log(Level.SEVERE, null, ex);
+            }
+
+            tcpClientExecutor.shutdown();
+            try {
+                tcpClientExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Logger.getLogger(Node.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        final NodeDescriptor nd = neighborDescriptors.get(neighbor);
+        udpChannel.setNeighbor(neighbor, nd, x, y);
+        if (prefetchChannel != null)
+            prefetchChannel.setNeighbor(neighbor, nd, x, y);
+        
+        /* Local transport: the data structures of a neighbor in the same process are read directly. */
+        if (nd.localProvider != null) {
+            final DataStruct[] data = new DataStruct[DataTypes.values().length];
+            for (DataTypes t : DataTypes.values()) {
+                data[t.ordinal()] = nd.localProvider.getDataStruct(t, x, y);
+                localDataWaiter.listenTo(data[t.ordinal()]);
+            }
+            localNeighborData.put(neighbor, data);
+        }
+    }
+        
+    
+    /**
+     * Reports the residual of the Poisson iteration to the main server.
+     * 
+     * Starts a TCP client thread, which returns when all simulated nodes have reported.
+     * 
+     * @param step          the step of the forecast
+     * @param iteration     number of iterations done in the step
+     * @param residual      |residual| of this node
+     * @param rhs           |rhs| of this node
+     * @return              true if the whole field has converged
+     */    
+    private boolean reduceResidualTCP(int step, int iteration, float residual, float rhs) {
+        
+        poissonConverged = false;
+        ExecutorService tcpClientExecutor = Main.newExecutor(1);
         try {
-            tcpClientExecutor.execute(new NodeTCPClient(this, neighbor, x, y, InetAddress.getByName(Main.MAIN_SERVER_ADDRESS), Main.MAIN_SERVER_PORT));
+            tcpClientExecutor.execute(new NodeTCPClient(this, step, iteration, residual, rhs, InetAddress.getByName(Main.MAIN_SERVER_ADDRESS), Main.MAIN_SERVER_PORT));
         } catch (UnknownHostException ex) {
             Logger.getLogger(Node.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -572,6 +1063,7 @@ public class Node implements Runnable  {
         } catch (InterruptedException ex) {
             Logger.getLogger(Node.class.getName()).log(Level.SEVERE, null, ex);
         }
+        return poissonConverged;
     }
         
     
@@ -582,6 +1074,7 @@ public class Node implements Runnable  {
      * @param step      the step of the requested data
      * @return          the value of the requested data field
      */
+    @Override
     public float getValue(DataTypes dataType, int step) {        
         switch (dataType) {
             case Z:
@@ -601,8 +1094,63 @@ public class Node implements Runnable  {
     }
     
     
+    /**
+     * Returns the value of a data field of the grid point (x,y).
+     * A node has data only for its own grid point.
+     *  
+     * @param dataType  the type of data
+     * @param x         x coordinate of the grid point
+     * @param y         y coordinate of the grid point
+     * @param step      the step of the requested data
+     * @return          the value of the requested data field
+     */
+    @Override
+    public float getValue(DataTypes dataType, int x, int y, int step) {
+        if (x != this.x || y != this.y) {
+            System.err.println("Error in getValue(): invalid grid point (" + x + "," + y + ")");
+            return Float.NaN;
+        }
+        return getValue(dataType, step);
+    }
+    
+    
+    /**
+     * Returns the data structure of a data field of this node.
+     * 
+     * @param dataType  the type of data
+     * @param x         x coordinate of the node
+     * @param y         y coordinate of the node
+     * @return          the data structure (or null if (x,y) is not this node)
+     */
+    @Override
+    public DataStruct getDataStruct(DataTypes dataType, int x, int y) {
+        if (x != this.x || y != this.y) {
+            /* Before registration the request is answered with NaN, and the neighbor asks again. */
+            if (isRegistered)
+                System.err.println("Error in getDataStruct(): invalid grid point (" + x + "," + y + ")");
+            return null;
+        }
+        switch (dataType) {
+            case Z:
+                return z;
+            case DZDT:
+                return dzdt;
+            case XI:
+                return xi;
+            case DXIDT:
+                return dxidt;
+            case ETA:
+                return eta;
+            default:
+                System.err.println("Error in getDataStruct(): invalid dataType");
+                return null;
+        }
+    }
+    
+    
     /**
      * Sets the value of a data field.
+     * In push mode the value is also sent to the subscribed neighbors.
      * 
      * @param dataType
      * @param step
@@ -627,7 +1175,10 @@ public class Node implements Runnable  {
                 break;
             default:
                 System.err.println("Error in setData(): invalid dataType");
+                return;
         }
+        if (inbox != null)
+            udpServer.push(x, y, dataType, dataType == DataTypes.DZDT ? forecastStep : 0, step, data);
     }   
     
     
@@ -637,7 +1188,27 @@ public class Node implements Runnable  {
      * @param height    height of the grid
      */
     public void setGridSize(int width, int height){
-        this.gridSize = new Dimension(width, height);
+        this.gridSize = new GridSize(width, height);
+    }
+    
+    
+    /**
+     * Returns the x coordinate of this node.
+     * @return  x coordinate
+     */
+    @Override
+    public int getX() {
+        return x;
+    }
+    
+    
+    /**
+     * Returns the y coordinate of this node.
+     * @return  y coordinate
+     */
+    @Override
+    public int getY() {
+        return y;
     }
     
     
@@ -650,6 +1221,14 @@ public class Node implements Runnable  {
     }
     
     
+    /**
+     * Marks the node registered (its coordinates, grid size and protocol version are set).
+     */
+    public void setRegistered() {
+        isRegistered = true;
+    }
+    
+    
     /**
      * Sets the y coordinate of this node.
      * @param y     new y coordinate
@@ -659,18 +1238,48 @@ public class Node implements Runnable  {
     }
     
     
+    /**
+     * Returns the retransmission timer of a neighbor, which contains the statistics
+     * of the UDP requests sent to it (real neighbors only).
+     * @param n     the neighbor
+     * @return      the retransmission timer
+     */
+    public RetransmissionTimer getRetransmissionTimer(Neighbors n) {
+        return retransmissionTimers.get(n);
+    }
+    
+    
+    /**
+     * Sets the version of the UDP messages negotiated at registration.
+     * @param protocolVersion   the negotiated version
+     */
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+    
+    
+    /**
+     * Returns the version of the UDP messages negotiated at registration.
+     * @return  the negotiated version
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+    
+    
     /**
      * Returns the current value of a data field of a neighbor.
      * 
      * Uses the neighborData buffer, therefore returns only the last queried value
-     * for a neighbor. This method is based on local storage only,
+     * of the data type for a neighbor. This method is based on local storage only,
      * and doesn't do any communication with other nodes.
      * 
-     * @param n     the neighbor whose data is requested
-     * @return      the value of the data field of the neighbor
+     * @param n         the neighbor whose data is requested
+     * @param dataType  the type of data
+     * @return          the value of the data field of the neighbor
      */
-    private float getNeighborValue(Neighbors n) {
-        return Float.intBitsToFloat(neighborData.get(n).get());
+    private float getNeighborValue(Neighbors n, DataTypes dataType) {
+        return Float.intBitsToFloat(neighborData.get(n).get(dataType.ordinal()));
     }
         
     
@@ -678,14 +1287,25 @@ public class Node implements Runnable  {
      * Sets the current value of the data field of a neighbor.
      * 
      * Uses the neighborData buffer, and stores only the last queried value
-     * for a particular neighbor. This method is used by NodeUDPClient thread
-     * for storing the received neighbor data locally.
+     * of the data type for a particular neighbor. This method is used by NodeUDPClient
+     * threads and by NodeUDPChannel for storing the received neighbor data locally.
      * 
-     * @param n     the neighbor whose data is to be set
-     * @param data  the value to be set for the neighbor
+     * @param n         the neighbor whose data is to be set
+     * @param dataType  the type of data
+     * @param data      the value to be set for the neighbor
      */
-    public void setNeighborValue(Neighbors n, float data) {
-        neighborData.put(n, new AtomicInteger(Float.floatToIntBits(data)));
+    public void setNeighborValue(Neighbors n, DataTypes dataType, float data) {
+        neighborData.get(n).set(dataType.ordinal(), Float.floatToIntBits(data));
+        /* The data type has arrived (NaN: it isn't available yet, it is queried again). */
+        if (!Float.isNaN(data)) {
+            final int bit = 1 << dataType.ordinal();
+            for (AtomicIntegerArray missing : missingData) {
+                int types;
+                do {
+                    types = missing.get(n.ordinal());
+                } while ((types & bit) != 0 && !missing.compareAndSet(n.ordinal(), types, types & ~bit));
+            }
+        }
     } 
     
     
@@ -697,4 +1317,129 @@ public class Node implements Runnable  {
     public void setNeighborDescriptor(Neighbors neighbor, NodeDescriptor nodeDescriptor) {
         neighborDescriptors.put(neighbor, nodeDescriptor);
     }    
+    
+    
+    /**
+     * Returns the descriptor of a neighbor.
+     * (NodeUDPClient and NodeUDPChannel check it before resending a request, the grid point may have been reassigned.)
+     * @param neighbor  the neighbor
+     * @return          the current descriptor of the neighbor
+     */
+    public NodeDescriptor getNeighborDescriptor(Neighbors neighbor) {
+        return neighborDescriptors.get(neighbor);
+    }
+    
+    
+    /**
+     * Creates a new descriptor for a neighbor at a given position
+     * (delivered at registration, before the position is checked by initNode()).
+     * @param neighbor          the neighbor whose descriptor is to be created
+     * @param x                 x coordinate of the neighbor
+     * @param y                 y coordinate of the neighbor
+     * @param nodeDescriptor    the new node descriptor
+     */
+    public void setNeighborDescriptor(Neighbors neighbor, int x, int y, NodeDescriptor nodeDescriptor) {
+        neighborPositions.put(neighbor, new int[]{x, y});
+        neighborDescriptors.put(neighbor, nodeDescriptor);
+    }    
+    
+    
+    /**
+     * Returns the position of the node whose data is queried as a neighbor.
+     * Border nodes query the distant inner neighbor instead of the missing one (see initNode()).
+     * 
+     * @param neighbor  direction of the neighbor
+     * @param x         x coordinate of the node
+     * @param y         y coordinate of the node
+     * @param width     width of the grid
+     * @param height    height of the grid
+     * @return          (x,y) coordinates of the neighbor
+     */
+    public static int[] getNeighborPosition(Neighbors neighbor, int x, int y, int width, int height) {
+        switch (neighbor) {
+            case NORTH:
+                return new int[]{x, y<height-1 ? y+1 : y-2};
+            case EAST:
+                return new int[]{x<width-1 ? x+1 : x-2, y};
+            case SOUTH:
+                return new int[]{x, y>0 ? y-1 : y+2};
+            default:
+                return new int[]{x>0 ? x-1 : x+2, y};
+        }
+    }
+    
+    
+    /**
+     * Returns how long the node thread has been blocked waiting for the data of a neighbor
+     * (used by the straggler detection of the main server).
+     * 
+     * @param x     x coordinate of the neighbor
+     * @param y     y coordinate of the neighbor
+     * @param now   the current time
+     * @return      the waiting time in milliseconds (0 if no data of the neighbor is missing)
+     */
+    @Override
+    public long getWaitingTime(int x, int y, long now) {
+        long waitingTime = 0;
+        for (Neighbors n : Neighbors.values()) {
+            final int[] p = neighborPositions.get(n);
+            if (p == null || p[0] != x || p[1] != y)
+                continue;
+            for (int exchange=OWN_EXCHANGE; exchange<=ASYNC_EXCHANGE; exchange++) {
+                final long since = blockedSince.get(exchange);
+                if (since != 0 && missingData[exchange].get(n.ordinal()) != 0)
+                    waitingTime = Math.max(waitingTime, now - since);
+            }
+        }
+        return waitingTime;
+    }
+    
+    
+    /**
+     * Sets the new descriptor of a reassigned neighbor (sent by the main server).
+     * The requests to the neighbor go to the new node when they are resent.
+     * 
+     * @param x     x coordinate of the neighbor
+     * @param y     y coordinate of the neighbor
+     * @param nd    the descriptor of the new node
+     */
+    @Override
+    public void setNodeDescriptor(int x, int y, NodeDescriptor nd) {
+        for (Neighbors n : Neighbors.values()) {
+            final int[] p = neighborPositions.get(n);
+            final NodeDescriptor old = neighborDescriptors.get(n);
+            if (p == null || p[0] != x || p[1] != y || (old != null && old.address.equals(nd.address) && old.port == nd.port))
+                continue;
+            neighborDescriptors.put(n, nd);
+            System.err.println("Node (" + this.x + "," + this.y + "): " + n + " neighbor (" + x + "," + y + ") reassigned to " + nd.address + ":" + nd.port);
+        }
+    }
+    
+    
+    /**
+     * Prepares the node to take over the grid point of a reassigned real node (see NodeReassignment):
+     * the forecast continues from the seed at the given step, instead of the first step.
+     * It must be called before run().
+     * 
+     * @param step          the step where the forecast continues
+     * @param zPrevious     z in the previous step
+     * @param zStep         z in the step
+     * @param xiPrevious    xi in the previous step
+     * @param xiStep        xi in the step
+     * @param dxidtPrevious dxi/dt in the previous step
+     */
+    public void takeOver(int step, float zPrevious, float zStep, float xiPrevious, float xiStep, float dxidtPrevious) {
+        this.firstStep = step;
+        this.seed = new float[]{zPrevious, zStep, xiPrevious, xiStep, dxidtPrevious};
+    }
+    
+    
+    /**
+     * Sets the decision of the last global residual reduction.
+     * @param converged     true if the whole field has converged
+     */
+    @Override
+    public void setPoissonConverged(boolean converged) {
+        poissonConverged = converged;
+    }
 }
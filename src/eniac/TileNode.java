@@ -0,0 +1,1023 @@
+package eniac;
+
+import datastructures.*;
+import eniac.Node.DataTypes;
+import eniac.Node.Neighbors;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import network.DataProvider;
+import network.NeighborObserver;
+import network.NodeTCPClient;
+import network.NodeUDPServer;
+import network.PayloadCodec;
+import network.ProtocolHeader;
+import network.ResidualReporter;
+import network.TileUDPClient;
+import network.UDPServerLoop;
+import solver.PoissonSolver;
+import solver.Residuals;
+
+
+/**
+ * This class implements a simulated ENIAC tile, which calculates a rectangular block of grid points.
+ *
+ * The grid points inside the tile use each other's data directly from memory,
+ * only the halo (the grid points outside the tile used by the grid points of the tile)
+ * is queried from the neighboring tiles or real nodes over UDP.
+ * The calculations are the same as in <code>Node.run()</code>, done for every grid point of the tile.
+ * A 1x1 tile answers the original UDP requests, so it can be the neighbor of a real node.
+ */
+public class TileNode implements Runnable, DataProvider, ResidualReporter, NeighborObserver {
+
+    /**
+     * position of the lower left grid point and size of the tile
+     */
+    public final int x0, y0, width, height;
+
+    /**
+     * size of the grid
+     */
+    private int gridWidth, gridHeight;
+
+    /*
+     * geographical parameters of the grid points
+     */
+    private final float[] f, h;
+
+    /**
+     * data objects for calculation data, one for every grid point of the tile (index (y-y0)*width+(x-x0))
+     */
+    private final DataStructZ[] z;
+    private final DataStructDZDT[] dzdt;
+    private final DataStructXI[] xi;
+    private final DataStructDXIDT[] dxidt;
+    private final DataStructETA[] eta;
+
+    /**
+     * grid index (y*gridWidth+x) of the neighbors of the grid points in Node.Neighbors order
+     * (distant neighbors at the border of the grid, as in <code>Node.initNode()</code>)
+     */
+    private int[][] neighbors;
+
+    /**
+     * grid index of the neighbors used by the border nodes (same as in <code>Node.run()</code>):
+     * close and distant neighbor for extrapolation, and the two neighbors whose z decides
+     * whether the fluid is leaving
+     */
+    private int[][] borderNeighbors;
+    private static final int CLOSE = 0, DISTANT = 1, COMPARED_FIRST = 2, COMPARED_SECOND = 3;
+
+    /*
+     * grid points of the tile: inner nodes, border nodes on the edges and border nodes in the corners of the grid
+     */
+    private int[] innerCells, edgeCells, cornerCells;
+
+    /**
+     * inner nodes of the tile in the red ((x+y) even) and black colors of red-black SOR
+     */
+    private int[][] coloredCells;
+
+    /*
+     * block of the block methods: the inner nodes of the tile and the grid points around them
+     * (position, size, dz/dt, right-hand side and residual of the Poisson equation), and its solver
+     */
+    private int blockX0, blockY0, blockWidth, blockHeight;
+    private float[] blockU, blockRhs, blockResidual;
+    private PoissonSolver poissonSolver;
+
+    /**
+     * stop decision of the last global residual reduction
+     */
+    private volatile boolean poissonConverged;
+
+    /**
+     * on border nodes this array indicates whether the fluid is entering or leaving the area
+     */
+    private boolean[] isFluidLeaving;
+
+    /*
+     * halo: grid index of the grid points outside the tile, their descriptors (replaced by the main server
+     * when a grid point is reassigned) and their last queried data
+     */
+    private int[] haloCells;
+    private final Map<Integer, Integer> haloSlots;
+    private AtomicReferenceArray<NodeDescriptor> haloDescriptors;
+    private AtomicIntegerArray haloData;
+    
+    /*
+     * straggler detection: the grid points of the halo whose queried data hasn't arrived yet (1: missing),
+     * and since when the tile has been waiting for them (0: it isn't)
+     */
+    private AtomicIntegerArray haloMissing;
+    private volatile long blockedSince;
+
+    /*
+     * local transport: data structures of the halo grid points in the same process (index: slot,
+     * data type ordinal; null: queried by UDP), and the reader which waits for their data
+     */
+    private DataStruct[][] haloLocalData;
+    private final DataWaiter localDataWaiter;
+
+    /*
+     * version of the UDP messages negotiated at registration, and the sequence number of the next versioned request
+     */
+    private int protocolVersion = ProtocolHeader.LEGACY_VERSION;
+    private final AtomicInteger nextSequence = new AtomicInteger();
+    
+    /*
+     * last decoded answer of every versioned halo request with a payload codec (key: see TileUDPClient)
+     */
+    private final Map<Long, PayloadCodec.Reference> codecReferences = new ConcurrentHashMap<>();
+
+    /**
+     * UDP server and its executor
+     */
+    private final NodeUDPServer udpServer;
+    private final ExecutorService udpServerExecutor;
+
+
+    /**
+     * Class constructor.
+     * Tile is initialized here.
+     *
+     * @param x0    x coordinate of the lower left grid point of the tile
+     * @param y0    y coordinate of the lower left grid point of the tile
+     * @param lat   geographical latitude of the grid points of the tile in radians, indexed as [y-y0][x-x0]
+     * @param z0    initial value of z at the grid points of the tile, indexed as [y-y0][x-x0]
+     * @throws      java.net.SocketException
+     */
+    public TileNode(int x0, int y0, float[][] lat, float[][] z0) throws SocketException {
+
+        this.x0 = x0;
+        this.y0 = y0;
+        this.height = z0.length;
+        this.width = z0[0].length;
+        final int size = width*height;
+
+        this.f = new float[size];
+        this.h = new float[size];
+        this.z = new DataStructZ[size];
+        this.dzdt = new DataStructDZDT[size];
+        this.xi = new DataStructXI[size];
+        this.dxidt = new DataStructDXIDT[size];
+        this.eta = new DataStructETA[size];
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                final int i = y*width+x;
+                z[i] = new DataStructZ();
+                z[i].setData(0, z0[y][x]);
+                dzdt[i] = new DataStructDZDT();
+                xi[i] = new DataStructXI();
+                dxidt[i] = new DataStructDXIDT();
+                eta[i] = new DataStructETA();
+
+                /* Initialize geographical parameters (same as in Node) */
+                final float m = (float)(2/(1+Math.sin(lat[y][x])));
+                f[i] = (float)(2 * Node.OMEGA * Math.sin(lat[y][x]));
+                h[i] = Node.GRAV * m*m / f[i];
+            }
+        }
+
+        this.haloSlots = new ConcurrentHashMap<>();
+        this.localDataWaiter = new DataWaiter();
+
+        this.udpServer = new NodeUDPServer(this);
+        this.udpServerExecutor = Main.newExecutor(1);
+    }
+
+
+    /**
+     * Contains the code to be executed for each tile.
+     * ENIAC calculations are implemented here.
+     */
+    @Override
+    public void run() {
+
+        /* Start UDP server (on its own thread, or on a shared UDP server loop). */
+        final UDPServerLoop udpServerLoop = Main.getUDPServerLoop();
+        if (udpServerLoop != null)
+            udpServerLoop.attach(udpServer);
+        else
+            udpServerExecutor.execute(udpServer);
+
+        /* Initialize tile. */
+        initTile();
+
+        /***************************
+         *      INNER NODES:       *
+         * Calculate xi=Laplace(z) *
+         ***************************/
+        getDataFromHaloUDP(DataTypes.Z, 0, innerCells, neighbors, 0, 4);
+        for (int i : innerCells) {
+            float sum=0;
+            for (Neighbors nb : Neighbors.values())
+                sum += getCellValue(DataTypes.Z, neighbors[i][nb.ordinal()], 0);
+            xi[i].setData(0, (sum-4*z[i].getData(0)) / Node.DS / Node.DS);
+        }
+
+        /*****************************************************************
+         *                         BORDER NODES:                         *
+         * Calculate xi by extrapolation (edges first, then corners),    *
+         * check if fluid is entering or leaving                         *
+         * dz/dt=0 and dxi/dt=0 (if fluid is entering) as in Node.run(). *
+         *****************************************************************/
+        for (int[] cells : new int[][]{edgeCells, cornerCells}) {
+            for (int i : cells)
+                dzdt[i].setStep(DataStructDZDT.NUM_STEPS-1);
+
+            getDataFromHaloUDP(DataTypes.Z, 0, cells, borderNeighbors, COMPARED_FIRST, COMPARED_SECOND+1);
+            for (int i : cells)
+                isFluidLeaving[i] = getCellValue(DataTypes.Z, borderNeighbors[i][COMPARED_FIRST], 0) >= getCellValue(DataTypes.Z, borderNeighbors[i][COMPARED_SECOND], 0);
+
+            getDataFromHaloUDP(DataTypes.XI, 0, cells, borderNeighbors, CLOSE, DISTANT+1);
+            for (int i : cells) {
+                xi[i].setData(0, 2*getCellValue(DataTypes.XI, borderNeighbors[i][CLOSE], 0) - getCellValue(DataTypes.XI, borderNeighbors[i][DISTANT], 0));
+                if (!isFluidLeaving[i])
+                    dxidt[i].setStep(DataStructDXIDT.NUM_STEPS-1);
+            }
+        }
+
+        /****************************************************
+         ****************************************************
+         ************** MAIN LOOP STARTS HERE ***************
+         ****************************************************
+         ****************************************************/
+        final float[] dzdx = new float[innerCells.length],
+                      dzdy = new float[innerCells.length];
+        for (int step=0; step<Node.HOURS; step++) {
+
+            System.out.println("tile (" + x0 + "," + y0 + ") step " + (step+1));
+
+            /********************************
+             * Calculate absolute vorticity *
+             ********************************/
+            for (int i=0; i<eta.length; i++)
+                eta[i].setData(step, h[i]*xi[i].getData(step) + f[i]);
+
+            /*************************************
+             *            INNER NODES:           *
+             * Calculate dxi/dt = Jacobi(eta,z), *
+             * solve the Poisson equation        *
+             *************************************/
+            getDataFromHaloUDP(DataTypes.Z, step, innerCells, neighbors, 0, 4);
+            for (int n=0; n<innerCells.length; n++) {
+                final int[] nb = neighbors[innerCells[n]];
+                /* dz/dx(i,j) = (z(i+1,j)-z(i-1,j))/(2*DS) */
+                dzdx[n] = (getCellValue(DataTypes.Z, nb[Neighbors.EAST.ordinal()], step) - getCellValue(DataTypes.Z, nb[Neighbors.WEST.ordinal()], step)) / (2*Node.DS);
+                /* dz/dy(i,j) = (z(i,j+1)-z(i,j-1))/(2*DS) */
+                dzdy[n] = (getCellValue(DataTypes.Z, nb[Neighbors.NORTH.ordinal()], step) - getCellValue(DataTypes.Z, nb[Neighbors.SOUTH.ordinal()], step)) / (2*Node.DS);
+            }
+
+            getDataFromHaloUDP(DataTypes.ETA, step, innerCells, neighbors, 0, 4);
+            for (int n=0; n<innerCells.length; n++) {
+                final int[] nb = neighbors[innerCells[n]];
+                /* deta/dx(i,j) = (eta(i+1,j)-eta(i-1,j))/(2*DS) */
+                final float detadx = (getCellValue(DataTypes.ETA, nb[Neighbors.EAST.ordinal()], step) - getCellValue(DataTypes.ETA, nb[Neighbors.WEST.ordinal()], step)) / (2*Node.DS);
+                /* deta/dy(i,j) = (eta(i,j+1)-eta(i,j-1))/(2*DS) */
+                final float detady = (getCellValue(DataTypes.ETA, nb[Neighbors.NORTH.ordinal()], step) - getCellValue(DataTypes.ETA, nb[Neighbors.SOUTH.ordinal()], step)) / (2*Node.DS);
+                /* dxi/dt(i,j) = Jacobi(i,j) = (deta/dx * dz/dy - deta/dy * dz/dx) */
+                dxidt[innerCells[n]].setData(step, detadx*dzdy[n] - detady*dzdx[n]);
+            }
+
+            /******************************************************************
+             * Solve the Laplace(dz/dt) = dxi/dt Poisson equation iteratively *
+             ******************************************************************/
+            final int iterations = Main.getMaxIterations();
+            final int reductionInterval = Main.getReductionInterval();
+            float rhs = 0;
+            for (int i : innerCells)
+                rhs = Math.max(rhs, Math.abs(dxidt[i].getData(step)*Node.DS*Node.DS));
+            int lastIteration = iterations;
+            for (int i : innerCells) {
+                /* Warm start: iteration 0 starts from the result of the previous step. */
+                if (Main.isWarmStart() && step > 0)
+                    dzdt[i].setData(0, dzdt[i].getData(Node.NUM_ITERATIONS));
+                else
+                    dzdt[i].setStep(0);
+                dzdt[i].allowNextStepRequests();
+            }
+            for (int it_step=0; it_step<iterations; it_step++) {
+                final float residual;
+                if (!Main.getPoissonMethod().isPointwise())
+                    residual = iterateBlock(step, it_step);
+                else if (Main.getPoissonMethod() == Main.PoissonMethods.SOR)
+                    residual = iterateRedBlack(step, it_step);
+                else
+                    residual = iterateJacobi(step, it_step);
+
+                /* Global residual reduction: all tiles stop at the same iteration (as in Node.run()). */
+                if (reductionInterval > 0 && (it_step+1) % reductionInterval == 0 && it_step+1 < iterations
+                        && reduceResidualTCP(step, it_step+1, residual, rhs)) {
+                    lastIteration = it_step+1;
+                    break;
+                }
+            }
+
+            /* Fill the remaining steps with the result (as in Node.run()). */
+            for (int i : innerCells) {
+                for (int it_step=lastIteration+1; it_step<=Node.NUM_ITERATIONS; it_step++)
+                    dzdt[i].setData(it_step, dzdt[i].getData(lastIteration));
+                dzdt[i].denyNextStepRequests();
+            }
+
+            /****************************************************
+             *                  BORDER NODES:                   *
+             * Fluid leaving: Calculate dxi/dt by extrapolation *
+             * Fluid entering: dxi/dt=0 (set before)            *
+             ****************************************************/
+            for (int[] cells : new int[][]{edgeCells, cornerCells}) {
+                final int[] leavingCells = getFluidLeavingCells(cells);
+                getDataFromHaloUDP(DataTypes.DXIDT, step, leavingCells, borderNeighbors, CLOSE, DISTANT+1);
+                for (int i : leavingCells)
+                    dxidt[i].setData(step, 2*getCellValue(DataTypes.DXIDT, borderNeighbors[i][CLOSE], step) - getCellValue(DataTypes.DXIDT, borderNeighbors[i][DISTANT], step));
+            }
+
+            /*******************************************************
+             * Step forward xi and z based on dxi/dt and dz/dt     *
+             * (first step: forward differences,                   *
+             *  next steps: central differences)                   *
+             *******************************************************/
+            for (int i=0; i<z.length; i++) {
+                final float xiNew, zNew;
+                if (step==0) {
+                    xiNew = xi[i].getData(step) + Node.DT_SEC*dxidt[i].getData(step);
+                    zNew = z[i].getData(step) + Node.DT_SEC*dzdt[i].getData(Node.NUM_ITERATIONS);
+                }
+                else {
+                    xiNew = xi[i].getData(step-1) + 2*Node.DT_SEC*dxidt[i].getData(step);
+                    zNew = z[i].getData(step-1) + 2*Node.DT_SEC*dzdt[i].getData(Node.NUM_ITERATIONS);
+                }
+                xi[i].setData(step+1, xiNew);
+                z[i].setData(step+1, zNew);
+            }
+        }
+        /***************************************************
+         ***************************************************
+         *************** MAIN LOOP ENDS HERE ***************
+         ***************************************************
+         ***************************************************/
+
+        /* Stop UDP server. */
+        udpServer.stop();
+        udpServerExecutor.shutdown();
+        try {
+            udpServerExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Logger.getLogger(TileNode.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+
+    /**
+     * Initializes the tile (registration, grid size, neighbors and halo descriptors).
+     */
+    private void initTile() {
+
+        /* Register tile at main server, get grid size. */
+        ExecutorService tcpClientExecutor = Main.newExecutor(1);
+        try {
+            tcpClientExecutor.execute(new NodeTCPClient(this, udpServer.getListeningPort(), InetAddress.getByName(Main.MAIN_SERVER_ADDRESS), Main.MAIN_SERVER_PORT));
+        } catch (UnknownHostException ex) {
+            Logger.getLogger(TileNode.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        awaitTermination(tcpClientExecutor);
+
+        /* Find the neighbors of the grid points (distant neighbors at the border of the grid) and sort the grid points. */
+        final int size = width*height;
+        neighbors = new int[size][];
+        borderNeighbors = new int[size][];
+        isFluidLeaving = new boolean[size];
+        final List<Integer> inner = new ArrayList<>(), edges = new ArrayList<>(), corners = new ArrayList<>();
+        final Set<Integer> halo = new LinkedHashSet<>();
+        for (int y=y0; y<y0+height; y++) {
+            for (int x=x0; x<x0+width; x++) {
+                final int i = (y-y0)*width+(x-x0);
+                neighbors[i] = new int[]{
+                    (y<gridHeight-1 ? y+1 : y-2)*gridWidth + x,     // NORTH
+                    y*gridWidth + (x<gridWidth-1 ? x+1 : x-2),      // EAST
+                    (y>0 ? y-1 : y+2)*gridWidth + x,                // SOUTH
+                    y*gridWidth + (x>0 ? x-1 : x+2)                 // WEST
+                };
+                if (isInner(y*gridWidth+x)) {
+                    inner.add(i);
+                    for (int nb : neighbors[i])
+                        if (!isInTile(nb))
+                            halo.add(nb);
+                    continue;
+                }
+                
+                /* Border node: same priority of directions as in Node.run() */
+                final Neighbors[] nb;
+                if (x==0)
+                    nb = new Neighbors[]{Neighbors.EAST, Neighbors.WEST, Neighbors.NORTH, Neighbors.SOUTH};
+                else if (x==gridWidth-1)
+                    nb = new Neighbors[]{Neighbors.WEST, Neighbors.EAST, Neighbors.SOUTH, Neighbors.NORTH};
+                else if (y==0)
+                    nb = new Neighbors[]{Neighbors.NORTH, Neighbors.SOUTH, Neighbors.WEST, Neighbors.EAST};
+                else
+                    nb = new Neighbors[]{Neighbors.SOUTH, Neighbors.NORTH, Neighbors.EAST, Neighbors.WEST};
+                borderNeighbors[i] = new int[nb.length];
+                for (int n=0; n<nb.length; n++) {
+                    borderNeighbors[i][n] = neighbors[i][nb[n].ordinal()];
+                    if (!isInTile(borderNeighbors[i][n]))
+                        halo.add(borderNeighbors[i][n]);
+                }
+                
+                if ((x==0 || x==gridWidth-1) && (y==0 || y==gridHeight-1))
+                    corners.add(i);
+                else
+                    edges.add(i);
+            }
+        }
+        innerCells = toArray(inner);
+        final List<Integer> red = new ArrayList<>(), black = new ArrayList<>();
+        for (int i : innerCells)
+            ((x0 + i%width + y0 + i/width)%2 == 0 ? red : black).add(i);
+        coloredCells = new int[][]{toArray(red), toArray(black)};
+
+        /* The inner nodes of the tile form a rectangle, the block is one grid point larger in every direction. */
+        blockX0 = Math.max(x0, 1) - 1;
+        blockY0 = Math.max(y0, 1) - 1;
+        blockWidth = Math.min(x0+width, gridWidth-1) - blockX0 + 1;
+        blockHeight = Math.min(y0+height, gridHeight-1) - blockY0 + 1;
+        if (innerCells.length > 0) {
+            blockU = new float[blockWidth*blockHeight];
+            blockRhs = new float[blockWidth*blockHeight];
+            blockResidual = new float[blockWidth*blockHeight];
+            poissonSolver = Main.createPoissonSolver();
+        }
+        edgeCells = toArray(edges);
+        cornerCells = toArray(corners);
+
+        /* Get the descriptors of the halo from main server. */
+        haloCells = toArray(new ArrayList<>(halo));
+        haloDescriptors = new AtomicReferenceArray<>(haloCells.length);
+        haloData = new AtomicIntegerArray(haloCells.length);
+        haloMissing = new AtomicIntegerArray(haloCells.length);
+        for (int slot=0; slot<haloCells.length; slot++) {
+            haloSlots.put(haloCells[slot], slot);
+            tcpClientExecutor = Main.newExecutor(1);
+            try {
+                tcpClientExecutor.execute(new NodeTCPClient(this, slot, haloCells[slot] % gridWidth, haloCells[slot] / gridWidth, InetAddress.getByName(Main.MAIN_SERVER_ADDRESS), Main.MAIN_SERVER_PORT));
+            } catch (UnknownHostException ex) {
+                Logger.getLogger(TileNode.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            awaitTermination(tcpClientExecutor);
+        }
+
+        /* Local transport: the data structures of the halo in the same process are read directly. */
+        haloLocalData = new DataStruct[haloCells.length][];
+        for (int slot=0; slot<haloCells.length; slot++) {
+            final DataProvider provider = haloDescriptors.get(slot).localProvider;
+            if (provider == null)
+                continue;
+            haloLocalData[slot] = new DataStruct[DataTypes.values().length];
+            for (DataTypes t : DataTypes.values()) {
+                haloLocalData[slot][t.ordinal()] = provider.getDataStruct(t, haloCells[slot] % gridWidth, haloCells[slot] / gridWidth);
+                localDataWaiter.listenTo(haloLocalData[slot][t.ordinal()]);
+            }
+        }
+    }
+
+
+    /**
+     * Does a Jacobi iteration: all inner nodes use the neighbors' values of the same iteration.
+     *
+     * @param step      the step of the forecast
+     * @param it_step   the step of the iteration
+     * @return          max|residual| of the inner nodes before the iteration
+     */
+    private float iterateJacobi(int step, int it_step) {
+
+        /* Get dz/dt from the halo (dz/dt=0 at border nodes, they are not queried). */
+        getDataFromHaloUDP(DataTypes.DZDT, it_step, innerCells, neighbors, 0, 4);
+
+        float residual = 0;
+        for (int i : innerCells) {
+            float sum = 0;
+            for (int nb : neighbors[i])
+                sum += getCellValue(DataTypes.DZDT, nb, it_step);
+            final float rhs = dxidt[i].getData(step)*Node.DS*Node.DS;
+            residual = Math.max(residual, Math.abs(sum - 4*dzdt[i].getData(it_step) - rhs));
+            dzdt[i].setData(it_step+1, (sum - rhs) / 4);
+        }
+        return residual;
+    }
+
+
+    /**
+     * Does a red-black SOR iteration: red nodes first, then black nodes using the new values of the red nodes.
+     *
+     * @param step      the step of the forecast
+     * @param it_step   the step of the iteration
+     * @return          max|residual| of the inner nodes measured just before their updates
+     */
+    private float iterateRedBlack(int step, int it_step) {
+
+        float residual = 0;
+        for (int color=0; color<2; color++) {
+            final int neighborStep = it_step+color;
+            getDataFromHaloUDP(DataTypes.DZDT, neighborStep, coloredCells[color], neighbors, 0, 4);
+
+            for (int i : coloredCells[color]) {
+                float sum = 0;
+                for (int nb : neighbors[i])
+                    sum += getCellValue(DataTypes.DZDT, nb, neighborStep);
+                final float old = dzdt[i].getData(it_step);
+                final float r = sum - 4*old - dxidt[i].getData(step)*Node.DS*Node.DS;
+                residual = Math.max(residual, Math.abs(r));
+                dzdt[i].setData(it_step+1, old + Main.getOmega()*r/4);
+            }
+        }
+        return residual;
+    }
+
+
+    /**
+     * Does a block Jacobi iteration: the Poisson equation is solved on the inner nodes of the tile
+     * by the block method (e.g. multigrid), with the dz/dt values of the surrounding grid points
+     * in the previous iteration as fixed border values.
+     *
+     * @param step      the step of the forecast
+     * @param it_step   the step of the iteration
+     * @return          max|residual| of the inner nodes before the iteration
+     */
+    private float iterateBlock(int step, int it_step) {
+
+        if (innerCells.length == 0)
+            return 0;
+        getDataFromHaloUDP(DataTypes.DZDT, it_step, innerCells, neighbors, 0, 4);
+
+        /* The corners of the block border are not used by the 5-point Laplace operator (and they are not in the halo). */
+        for (int py=0; py<blockHeight; py++) {
+            for (int px=0; px<blockWidth; px++) {
+                final int p = py*blockWidth+px;
+                final int x = blockX0+px, y = blockY0+py;
+                if (px>0 && px<blockWidth-1 && py>0 && py<blockHeight-1) {
+                    final int i = (y-y0)*width + (x-x0);
+                    blockU[p] = dzdt[i].getData(it_step);
+                    blockRhs[p] = dxidt[i].getData(step)*Node.DS*Node.DS;
+                }
+                else if ((px==0 || px==blockWidth-1) && (py==0 || py==blockHeight-1))
+                    blockU[p] = 0;
+                else
+                    blockU[p] = getCellValue(DataTypes.DZDT, y*gridWidth+x, it_step);
+            }
+        }
+
+        final float residual = Residuals.residual(blockU, blockRhs, blockResidual, blockWidth, blockHeight);
+        poissonSolver.solve(blockU, blockRhs, blockWidth, blockHeight);
+
+        for (int py=1; py<blockHeight-1; py++)
+            for (int px=1; px<blockWidth-1; px++)
+                dzdt[(blockY0+py-y0)*width + (blockX0+px-x0)].setData(it_step+1, blockU[py*blockWidth+px]);
+        return residual;
+    }
+
+
+    /**
+     * Queries the halo for data.
+     *
+     * Starts UDP client threads to get the data of the neighbors of the given grid points,
+     * which are outside the tile. dz/dt is not queried from border nodes (it is always 0).
+     * Grid points in the same process are read directly (local transport). The grid points of
+     * a node or tile which negotiated a protocol version are queried by one versioned request.
+     *
+     * @param dataType  the type of data to be queried
+     * @param step      the step of the queried data
+     * @param cells     grid points of the tile whose neighbors are queried
+     * @param table     neighbors of the grid points (neighbors or borderNeighbors)
+     * @param from      first queried column of the table
+     * @param to        last queried column of the table (exclusive)
+     */
+    private void getDataFromHaloUDP(DataTypes dataType, int step, int[] cells, int[][] table, int from, int to) {
+
+        final Set<Integer> slots = new LinkedHashSet<>();
+        for (int i : cells) {
+            for (int n=from; n<to; n++) {
+                final Integer slot = haloSlots.get(table[i][n]);
+                if (slot == null || (dataType == DataTypes.DZDT && !isInner(haloCells[slot])))
+                    continue;
+                final float value = (haloLocalData[slot] != null) ? localDataWaiter.getData(haloLocalData[slot][dataType.ordinal()], step) : Float.NaN;
+                if (!Float.isNaN(value))
+                    haloData.set(slot, Float.floatToIntBits(value));
+                else
+                    slots.add(slot);
+            }
+        }
+        if (slots.isEmpty())
+            return;
+        
+        /* The data of the queried grid points is missing until it arrives (see getWaitingTime()). */
+        for (int slot : slots)
+            haloMissing.set(slot, 1);
+        blockedSince = System.currentTimeMillis();
+
+        /* Group the grid points of versioned peers by their server. */
+        final Map<InetSocketAddress, List<Integer>> groups = new LinkedHashMap<>();
+        for (Iterator<Integer> it = slots.iterator(); it.hasNext(); ) {
+            final int slot = it.next();
+            final NodeDescriptor nd = haloDescriptors.get(slot);
+            if (Math.min(protocolVersion, nd.protocolVersion) == ProtocolHeader.LEGACY_VERSION)
+                continue;
+            final InetSocketAddress server = new InetSocketAddress(nd.address, nd.port);
+            List<Integer> group = groups.get(server);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(server, group);
+            }
+            group.add(slot);
+            it.remove();
+        }
+
+        final ExecutorService udpClientExecutor = Main.newExecutor(slots.size() + groups.size());
+        for (int slot : slots) {
+            final NodeDescriptor nd = haloDescriptors.get(slot);
+            udpClientExecutor.execute(new TileUDPClient(this, slot, dataType, step, haloCells[slot] % gridWidth, haloCells[slot] / gridWidth, nd));
+        }
+        for (List<Integer> group : groups.values()) {
+            for (int first=0; first<group.size(); first+=NodeUDPServer.MAX_HALO_POINTS) {
+                final int[] groupSlots = toArray(group.subList(first, Math.min(group.size(), first+NodeUDPServer.MAX_HALO_POINTS)));
+                final int[] xs = new int[groupSlots.length], ys = new int[groupSlots.length];
+                for (int i=0; i<groupSlots.length; i++) {
+                    xs[i] = haloCells[groupSlots[i]] % gridWidth;
+                    ys[i] = haloCells[groupSlots[i]] / gridWidth;
+                }
+                udpClientExecutor.execute(new TileUDPClient(this, groupSlots, dataType, step, xs, ys, haloDescriptors.get(groupSlots[0])));
+            }
+        }
+        awaitTermination(udpClientExecutor);
+        blockedSince = 0;
+    }
+
+
+    /**
+     * Returns the value of a data field of a grid point inside the tile or in the halo.
+     * Halo values are read from the halo buffer, therefore they must be queried before.
+     * dz/dt=0 at border nodes.
+     *
+     * @param dataType  the type of data
+     * @param cell      grid index of the grid point
+     * @param step      the step of the requested data
+     * @return          the value of the data field
+     */
+    private float getCellValue(DataTypes dataType, int cell, int step) {
+        if (isInTile(cell))
+            return getValue(dataType, cell % gridWidth, cell / gridWidth, step);
+        if (dataType == DataTypes.DZDT && !isInner(cell))
+            return 0;
+        return Float.intBitsToFloat(haloData.get(haloSlots.get(cell)));
+    }
+
+
+    /**
+     * Returns the border nodes where fluid is leaving the area.
+     * @param cells     border nodes of the tile
+     * @return          the border nodes where fluid is leaving
+     */
+    private int[] getFluidLeavingCells(int[] cells) {
+        final List<Integer> leaving = new ArrayList<>();
+        for (int i : cells)
+            if (isFluidLeaving[i])
+                leaving.add(i);
+        return toArray(leaving);
+    }
+
+
+    /**
+     * Checks whether a grid point is inside the tile.
+     * @param cell  grid index of the grid point
+     * @return      true if the grid point belongs to this tile
+     */
+    private boolean isInTile(int cell) {
+        final int x = cell % gridWidth, y = cell / gridWidth;
+        return x>=x0 && x<x0+width && y>=y0 && y<y0+height;
+    }
+
+
+    /**
+     * Checks whether a grid point is an inner node.
+     * @param cell  grid index of the grid point
+     * @return      true if the grid point is not on the border of the grid
+     */
+    private boolean isInner(int cell) {
+        final int x = cell % gridWidth, y = cell / gridWidth;
+        return x>0 && x<gridWidth-1 && y>0 && y<gridHeight-1;
+    }
+
+
+    /**
+     * Converts a list of integers to an array.
+     * @param list  list of integers
+     * @return      array of integers
+     */
+    private static int[] toArray(List<Integer> list) {
+        final int[] array = new int[list.size()];
+        for (int n=0; n<array.length; n++)
+            array[n] = list.get(n);
+        return array;
+    }
+
+
+    /**
+     * Reports the residual of the Poisson iteration to the main server.
+     * Returns when all tiles have reported.
+     *
+     * @param step          the step of the forecast
+     * @param iteration     number of iterations done in the step
+     * @param residual      max|residual| of the inner nodes of the tile
+     * @param rhs           max|rhs| of the inner nodes of the tile
+     * @return              true if the whole field has converged
+     */
+    private boolean reduceResidualTCP(int step, int iteration, float residual, float rhs) {
+        poissonConverged = false;
+        final ExecutorService tcpClientExecutor = Main.newExecutor(1);
+        try {
+            tcpClientExecutor.execute(new NodeTCPClient(this, step, iteration, residual, rhs, InetAddress.getByName(Main.MAIN_SERVER_ADDRESS), Main.MAIN_SERVER_PORT));
+        } catch (UnknownHostException ex) {
+            Logger.getLogger(TileNode.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        awaitTermination(tcpClientExecutor);
+        return poissonConverged;
+    }
+
+
+    /**
+     * Waits for the tasks of an executor to finish.
+     * @param executor  the executor to be shut down
+     */
+    private static void awaitTermination(ExecutorService executor) {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Logger.getLogger(TileNode.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+
+    /**
+     * Returns the value of a data field of the lower left grid point of the tile.
+     * (Answer to the original UDP request, used by real nodes next to a 1x1 tile.)
+     *
+     * @param dataType  the type of data
+     * @param step      the step of the requested data
+     * @return          the value of the requested data field
+     */
+    @Override
+    public float getValue(DataTypes dataType, int step) {
+        return getValue(dataType, x0, y0, step);
+    }
+
+
+    /**
+     * Returns the value of a data field of the grid point (x,y) of the tile.
+     *
+     * @param dataType  the type of data
+     * @param x         x coordinate of the grid point
+     * @param y         y coordinate of the grid point
+     * @param step      the step of the requested data
+     * @return          the value of the requested data field
+     *                  (or NaN if the requested data is not available yet)
+     */
+    @Override
+    public float getValue(DataTypes dataType, int x, int y, int step) {
+        if (x<x0 || x>=x0+width || y<y0 || y>=y0+height) {
+            System.err.println("Error in getValue(): invalid grid point (" + x + "," + y + ")");
+            return Float.NaN;
+        }
+        final int i = (y-y0)*width+(x-x0);
+        switch (dataType) {
+            case Z:
+                return z[i].getData(step);
+            case DZDT:
+                return dzdt[i].getData(step);
+            case XI:
+                return xi[i].getData(step);
+            case DXIDT:
+                return dxidt[i].getData(step);
+            case ETA:
+                return eta[i].getData(step);
+            default:
+                System.err.println("Error in getValue(): invalid dataType");
+                return Float.NaN;
+        }
+    }
+
+
+    /**
+     * Returns the data structure of a data field of the grid point (x,y) of the tile.
+     *
+     * @param dataType  the type of data
+     * @param x         x coordinate of the grid point
+     * @param y         y coordinate of the grid point
+     * @return          the data structure (or null if (x,y) is not in the tile)
+     */
+    @Override
+    public DataStruct getDataStruct(DataTypes dataType, int x, int y) {
+        if (x<x0 || x>=x0+width || y<y0 || y>=y0+height) {
+            System.err.println("Error in getDataStruct(): invalid grid point (" + x + "," + y + ")");
+            return null;
+        }
+        final int i = (y-y0)*width+(x-x0);
+        switch (dataType) {
+            case Z:
+                return z[i];
+            case DZDT:
+                return dzdt[i];
+            case XI:
+                return xi[i];
+            case DXIDT:
+                return dxidt[i];
+            case ETA:
+                return eta[i];
+            default:
+                System.err.println("Error in getDataStruct(): invalid dataType");
+                return null;
+        }
+    }
+
+
+    /**
+     * Returns the current value of z at a grid point of the tile.
+     * @param x     x coordinate of the grid point
+     * @param y     y coordinate of the grid point
+     * @return      the value of z in the last calculated step
+     */
+    public float getZ(int x, int y) {
+        final DataStruct zi = z[(y-y0)*width+(x-x0)];
+        return zi.getData(zi.getStep());
+    }
+
+
+    @Override
+    public int getX() {
+        return x0;
+    }
+
+
+    @Override
+    public int getY() {
+        return y0;
+    }
+
+
+    /**
+     * Sets the grid size.
+     * @param width     width of the grid
+     * @param height    height of the grid
+     */
+    public void setGridSize(int width, int height){
+        this.gridWidth = width;
+        this.gridHeight = height;
+    }
+
+
+    /**
+     * Sets the descriptor of a grid point in the halo.
+     * @param slot              index of the grid point in the halo
+     * @param nodeDescriptor    the descriptor of the node or tile of the grid point
+     */
+    public void setHaloDescriptor(int slot, NodeDescriptor nodeDescriptor) {
+        haloDescriptors.set(slot, nodeDescriptor);
+        /* The references from an earlier server are dropped (its answer IDs are different). */
+        codecReferences.clear();
+    }
+
+
+    /**
+     * Returns the descriptor of a grid point in the halo.
+     * (TileUDPClient checks it before resending a request, the grid point may have been reassigned.)
+     * @param slot  index of the grid point in the halo
+     * @return      the current descriptor of the node or tile of the grid point
+     */
+    public NodeDescriptor getHaloDescriptor(int slot) {
+        return haloDescriptors.get(slot);
+    }
+
+
+    /**
+     * Returns how long the tile has been waiting for the data of a grid point of the halo
+     * (used by the straggler detection of the main server).
+     * @param x     x coordinate of the grid point
+     * @param y     y coordinate of the grid point
+     * @param now   the current time
+     * @return      the waiting time in milliseconds (0 if the data of the grid point isn't missing)
+     */
+    @Override
+    public long getWaitingTime(int x, int y, long now) {
+        final long since = blockedSince;
+        if (since == 0)
+            return 0;
+        final Integer slot = haloSlots.get(y*gridWidth+x);
+        return (slot != null && haloMissing.get(slot) != 0) ? now - since : 0;
+    }
+
+
+    /**
+     * Sets the new descriptor of a reassigned grid point of the halo (sent by the main server).
+     * The requests to the grid point go to the new node when they are resent.
+     * @param x     x coordinate of the grid point
+     * @param y     y coordinate of the grid point
+     * @param nd    the descriptor of the new node
+     */
+    @Override
+    public void setNodeDescriptor(int x, int y, NodeDescriptor nd) {
+        final Integer slot = haloSlots.get(y*gridWidth+x);
+        if (slot == null)
+            return;
+        final NodeDescriptor old = haloDescriptors.get(slot);
+        if (old != null && old.address.equals(nd.address) && old.port == nd.port)
+            return;
+        setHaloDescriptor(slot, nd);
+        System.err.println("Tile (" + x0 + "," + y0 + "): halo grid point (" + x + "," + y + ") reassigned to " + nd.address + ":" + nd.port);
+    }
+
+
+    /**
+     * Sets the version of the UDP messages negotiated at registration.
+     * @param protocolVersion   the negotiated version
+     */
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+
+    /**
+     * Returns the version of the UDP messages negotiated at registration.
+     * @return  the negotiated version
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+
+    /**
+     * Returns the last decoded answer of a versioned halo request with a payload codec.
+     * @param key   the key of the request
+     * @return      the answer, or null
+     */
+    public PayloadCodec.Reference getCodecReference(long key) {
+        return codecReferences.get(key);
+    }
+
+
+    /**
+     * Stores the last decoded answer of a versioned halo request with a payload codec.
+     * @param key           the key of the request
+     * @param reference     the answer
+     */
+    public void setCodecReference(long key, PayloadCodec.Reference reference) {
+        codecReferences.put(key, reference);
+    }
+
+
+    /**
+     * Returns the sequence number of a new versioned request of the tile.
+     * @return  the sequence number
+     */
+    public int nextSequence() {
+        return nextSequence.getAndIncrement();
+    }
+
+
+    /**
+     * Sets the last queried value of a grid point in the halo.
+     * This method is used by TileUDPClient threads for storing the received data locally.
+     * @param slot  index of the grid point in the halo
+     * @param data  the received value
+     */
+    public void setHaloValue(int slot, float data) {
+        haloData.set(slot, Float.floatToIntBits(data));
+        if (!Float.isNaN(data))
+            haloMissing.set(slot, 0);
+    }
+
+
+    /**
+     * Sets the decision of the last global residual reduction.
+     * @param converged     true if the whole field has converged
+     */
+    @Override
+    public void setPoissonConverged(boolean converged) {
+        poissonConverged = converged;
+    }
+}
@@ -2,8 +2,6 @@ package gui;
 
 import eniac.Main;
 import java.awt.BorderLayout;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
@@ -14,6 +12,7 @@ import javax.swing.JPanel;
  */
 public class CountdownPanel extends JFrame {
     
+    private static final long REFRESH_INTERVAL = 100;      // milliseconds
     private final long timeout;       // milliseconds
     private JPanel textPanel1, textPanel2;
     private JLabel textLabel1, textLabel2;
@@ -40,7 +39,7 @@ public class CountdownPanel extends JFrame {
         textPanel2 = new JPanel(); 
         
         textLabel1 = new JLabel("Waiting for real nodes: " + timeout/1000 + " s");
-        textLabel2 = new JLabel("Number of real nodes: " + Main.numberOfRealNodes);
+        textLabel2 = new JLabel("Number of real nodes: " + Main.getNumberOfRealNodes());
         
         textPanel1.add(textLabel1);        
         textPanel2.add(textLabel2);
@@ -51,6 +50,10 @@ public class CountdownPanel extends JFrame {
     }
 
 
+    /**
+     * Shows the countdown until the timeout expires, or the quorum of real nodes has registered
+     * (the panel is refreshed at every registration, and every 100 ms).
+     */
     public void startCountdown() {
         
         long timeElapsed;
@@ -58,13 +61,10 @@ public class CountdownPanel extends JFrame {
         /* Wait for timer to expire. timer is initialized at MainServer */
         while( (timeElapsed=(System.currentTimeMillis()-Main.timer)-999) < timeout ) {
             textLabel1.setText("Waiting for real nodes: " + (long)((timeout-timeElapsed)/1000) + " s");
-            textLabel2.setText("Number of real nodes: " + Main.numberOfRealNodes);
+            textLabel2.setText("Number of real nodes: " + Main.getNumberOfRealNodes());
                     
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException ex) {
-                Logger.getLogger(CountdownPanel.class.getName()).log(Level.SEVERE, null, ex);
-            }
+            if (Main.awaitRealNodes(Math.min(REFRESH_INTERVAL, timeout-timeElapsed)))
+                break;
         }
     }
     
@@ -0,0 +1,54 @@
+package network;
+
+import datastructures.DataStruct;
+import eniac.Node;
+
+/**
+ * This interface is implemented by the nodes and tiles whose data is served by NodeUDPServer.
+ */
+public interface DataProvider {
+    
+    /**
+     * Returns the value of a data field of the node itself.
+     * (Answer to the original UDP request, which doesn't contain coordinates.)
+     * 
+     * @param dataType  the type of data
+     * @param step      the step of the requested data
+     * @return          the value of the requested data field (or NaN if it is not available yet)
+     */
+    float getValue(Node.DataTypes dataType, int step);
+    
+    /**
+     * Returns the value of a data field of the grid point (x,y).
+     * 
+     * @param dataType  the type of data
+     * @param x         x coordinate of the grid point
+     * @param y         y coordinate of the grid point
+     * @param step      the step of the requested data
+     * @return          the value of the requested data field (or NaN if it is not available yet)
+     */
+    float getValue(Node.DataTypes dataType, int x, int y, int step);
+    
+    /**
+     * Returns the data structure of a data field of the grid point (x,y).
+     * (Used by NodeUDPServer to wait for data which is not available yet.)
+     * 
+     * @param dataType  the type of data
+     * @param x         x coordinate of the grid point
+     * @param y         y coordinate of the grid point
+     * @return          the data structure (or null if the grid point doesn't belong to the node or tile)
+     */
+    DataStruct getDataStruct(Node.DataTypes dataType, int x, int y);
+    
+    /**
+     * Returns the x coordinate of the node (or of the lower left corner of the tile).
+     * @return  x coordinate
+     */
+    int getX();
+    
+    /**
+     * Returns the y coordinate of the node (or of the lower left corner of the tile).
+     * @return  y coordinate
+     */
+    int getY();
+}
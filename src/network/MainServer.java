@@ -1,34 +1,68 @@
-
 package network;
 
+import datastructures.GridSize;
+import datastructures.NodeDescriptor;
 import eniac.Main;
-import eniac.Main.TCPRequestTypes;
-import java.io.DataInputStream;
+import eniac.Node;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This class implements a TCP server for ENIAC calculations.
- * It provides grid and node descriptor information for the requester nodes.
+ * It provides grid and node descriptor information for the requester nodes,
+ * and combines the residuals of their Poisson iterations.
+ *
+ * The server is a single thread with a selector (non-blocking NIO): it accepts the connections,
+ * reads the requests and writes the answers without blocking, so it serves any number of
+ * concurrent registrations and lookups without a thread per connection. Requests which have to
+ * wait (lookups of nodes which haven't registered yet, residual reports until the round of the
+ * reduction is finished) are kept, and answered when the awaited registration or report arrives.
+ * The node descriptors are stored in a lock-free registry (see NodeRegistry).
+ *
+ * The selector also serves the straggler detection (see StragglerMonitor): the registered real nodes
+ * are probed, the grid points of the dead or too slow ones are reassigned to simulated nodes, and the
+ * descriptors of the new nodes are pushed to their neighbors.
  * @author Vas Ádám (vas.adam@inbox.com)
  */
 public class MainServer implements Runnable {
-    
+
+    private static final long SELECT_TIMEOUT = 100;                 // milliseconds between checks of the timeouts and the stop signal
+    private static final long REQUEST_TIMEOUT = 10000;              // milliseconds to receive a whole request
+    private static final long MARKER_INTERVAL = 1000;               // milliseconds between "not registered yet" markers of the waiting lookups
+    private static final byte[] NOT_REGISTERED = {(byte)255,(byte)255,(byte)255,(byte)255};
+    private static final int GRID_ANSWER_SIZE = (4*Integer.SIZE) / 8;                  // grid width(4), grid height(4), x(4), y(4)
+    private static final int DESCRIPTOR_SIZE = (Integer.SIZE + Short.SIZE) / 8;          // address(4), port(2)
+    private static final int EXTENDED_DESCRIPTOR_SIZE = (Integer.SIZE + Short.SIZE + 2*Byte.SIZE) / 8;   // address(4), port(2), node type(1), protocol version(1)
+
     private final int port;
     private volatile boolean stop;
-    
+
+    /*
+     * connections waiting for nodes to register, and for the end of the round of the residual reduction
+     * (used by the server thread only)
+     */
+    private final List<MainServerConnection> waitingForNodes = new ArrayList<>();
+    private final List<MainServerConnection> waitingForReduction = new ArrayList<>();
+    private final StragglerMonitor monitor = new StragglerMonitor(Main.getStragglerTimeout(), Main.getNodeReassignment());
+
     /**
      * Class constructor
      *
      * @param port        the listening port
-     */   
+     */
     public MainServer(int port) {
         this.port = port;
     }
@@ -38,59 +72,58 @@ public class MainServer implements Runnable {
      */
     @Override
     public void run() {
-                 
-        final ExecutorService serverThreadExecutor = Executors.newCachedThreadPool();        
-        Socket requesterSocket;
-        
+
+        final ExecutorService serverThreadExecutor = Main.newExecutor(1);
+
         /* Start UDP broadcaster thread */
         MainServerUDPThread udpThread = new MainServerUDPThread(port);
         serverThreadExecutor.execute(udpThread);
-        
-        try (ServerSocket providerSocket = new ServerSocket(port)) { 
-            providerSocket.setSoTimeout(10000);
-            
+
+        /* Every simulated node may connect at the same time (e.g. when reporting its residual), *
+         * the default backlog (50) would overflow.                                             */
+        final GridSize gridSize = Main.getGridSize();
+        try (ServerSocketChannel providerChannel = ServerSocketChannel.open();
+             Selector selector = Selector.open()) {
+            providerChannel.bind(new InetSocketAddress(port), gridSize.width*gridSize.height);
+            providerChannel.configureBlocking(false);
+            providerChannel.register(selector, SelectionKey.OP_ACCEPT);
+
             /* Start countdown timer. */
             Main.timer = System.currentTimeMillis();
-            
-            while (true) {     
-                /********************************************************************
-                 * Wait for client connection request and start a new server thread *
-                 ********************************************************************/
-                try {
-                    requesterSocket = providerSocket.accept();                    
-                } catch (SocketTimeoutException ex) {
-                    if (stop)
-                        break;
-                    continue;
-                }
-                requesterSocket.setSoTimeout(10000);
-                final DataInputStream in = new DataInputStream(requesterSocket.getInputStream());
-                final TCPRequestTypes requestType = TCPRequestTypes.values()[in.readByte()];
-
-                switch (requestType) {
-                    /*******************************************************************
-                     * Request type 0: client asks for grid size and (x,y) coordinates *
-                     * based on latitude and longitude                                 *
-                     *******************************************************************/
-                    case GET_MY_XY_AND_GRIDSIZE:
-                        serverThreadExecutor.execute(new MainServerTCPThread0(requesterSocket, in));
-                        break;
-
-                    /******************************************************************
-                     * Request type 1: client asks for node descriptor based on (x,y) *
-                     ******************************************************************/                            
-                    case GET_NODE_DESCRIPTOR:
-                        serverThreadExecutor.execute(new MainServerTCPThread1(requesterSocket, in));
-                        break;
-
-                    default:
-                        System.err.println("Error in MainServer run(): invalid requestType.");
-                        break;
+
+            while (!stop) {
+                selector.select(SELECT_TIMEOUT);
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept(providerChannel, selector);
+                        continue;
+                    }
+                    if (!(key.attachment() instanceof MainServerConnection)) {
+                        monitor.receive(key);
+                        continue;
+                    }
+                    final MainServerConnection connection = (MainServerConnection)key.attachment();
+                    try {
+                        if (key.isReadable() && connection.read())
+                            handleRequest(connection);
+                        else if (key.isWritable())
+                            connection.flush();
+                    } catch (IOException ex) {
+                        Logger.getLogger(MainServer.class.getName()).log(Level.SEVERE, null, ex);
+                        closeConnection(connection);
+                    }
                 }
-            }  
+                checkTimeouts(selector);
+                monitor.check(selector);
+            }
         } catch(IOException e) {
-            Logger.getLogger(NodeUDPServer.class.getName()).log(Level.SEVERE, null, e);
-        } finally {           
+            Logger.getLogger(MainServer.class.getName()).log(Level.SEVERE, null, e);
+        } finally {
+            monitor.close();
             /* Stop UDP broadcaster thread */
             udpThread.stop();
             /* Shut down executor. */
@@ -102,7 +135,401 @@ public class MainServer implements Runnable {
             }
         }
     }
-    
+
+
+    /**
+     * Accepts the pending connections.
+     * @param providerChannel   the listening channel
+     * @param selector          the selector of the server
+     * @throws IOException
+     */
+    private void accept(ServerSocketChannel providerChannel, Selector selector) throws IOException {
+        SocketChannel requesterChannel;
+        while ((requesterChannel = providerChannel.accept()) != null) {
+            requesterChannel.configureBlocking(false);
+            final SelectionKey key = requesterChannel.register(selector, SelectionKey.OP_READ);
+            key.attach(new MainServerConnection(requesterChannel, key));
+        }
+    }
+
+
+    /**
+     * Handles a request which has been read completely.
+     * @param connection    the connection of the client
+     * @throws IOException
+     */
+    private void handleRequest(MainServerConnection connection) throws IOException {
+
+        switch (connection.getRequestType()) {
+            /*******************************************************************
+             * Request type 0: client asks for grid size and (x,y) coordinates *
+             * based on latitude and longitude                                 *
+             *******************************************************************/
+            case GET_MY_XY_AND_GRIDSIZE:
+                registerNode(connection, false, false);
+                break;
+
+            /******************************************************************
+             * Request type 1: client asks for node descriptor based on (x,y) *
+             ******************************************************************/
+            case GET_NODE_DESCRIPTOR:
+                lookUpNode(connection);
+                break;
+
+            /******************************************************************
+             * Request type 2: tile registers itself and asks for grid size   *
+             ******************************************************************/
+            case REGISTER_TILE:
+                registerTile(connection);
+                break;
+
+            /******************************************************************
+             * Request type 3: tile asks for node descriptor and node type    *
+             ******************************************************************/
+            case GET_NODE_DESCRIPTOR_EXTENDED:
+                lookUpNode(connection);
+                break;
+
+            /******************************************************************
+             * Request type 4: client reports the residual of the Poisson     *
+             * iteration and waits for the global stop decision               *
+             ******************************************************************/
+            case REDUCE_RESIDUAL:
+                reportResidual(connection);
+                break;
+
+            /******************************************************************
+             * Request type 5: as request type 0, and the client offers its   *
+             * protocol version, which is negotiated                          *
+             ******************************************************************/
+            case REGISTER_NODE:
+                registerNode(connection, true, false);
+                break;
+
+            /******************************************************************
+             * Request type 6: as request type 5, and the client gets the     *
+             * descriptors of its neighbors in the same answer                *
+             ******************************************************************/
+            case REGISTER_NODE_BULK:
+                registerNode(connection, true, true);
+                break;
+
+            default:
+                System.err.println("Error in MainServer handleRequest(): invalid requestType.");
+                connection.close();
+                break;
+        }
+    }
+
+
+    /**
+     * Registers a node, and sends the grid size and the (x,y) coordinates of the node.
+     * The node offers its protocol version with request types REGISTER_NODE and REGISTER_NODE_BULK
+     * (1 byte after the port), and the negotiated version is sent back after the coordinates (1 byte).
+     * With request type REGISTER_NODE_BULK the answer continues with the extended descriptor of every
+     * neighbor (in the order of Node.Neighbors, distant inner neighbors at the border): x(4), y(4), address(4),
+     * port(2), node type(1), protocol version(1). It is sent when all neighbors have registered.
+     *
+     * @param connection    the connection of the client
+     * @param isVersioned   true if the protocol version is negotiated
+     * @param isBulk        true if the neighbors' descriptors are sent, too
+     * @throws IOException
+     */
+    private void registerNode(MainServerConnection connection, boolean isVersioned, boolean isBulk) throws IOException {
+        final ByteBuffer request = connection.getRequest();
+        final float lat = request.getFloat();
+        final float lon = request.getFloat();
+        final int nodeListeningPort = request.order(ByteOrder.BIG_ENDIAN).getShort() & 0xFFFF;
+        final int protocolVersion = isVersioned ? ProtocolHeader.negotiate(request.get() & 0xFF) : ProtocolHeader.LEGACY_VERSION;
+
+        /* Send out (x,y) coordinates and grid size to the client */
+        final GridSize gridSize = Main.getGridSize();
+        final int[] xy = Main.getNodeXYCoordinates(lat, lon);
+        final ByteBuffer buf = ByteBuffer.allocate(GRID_ANSWER_SIZE + (isVersioned ? 1 : 0)).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(gridSize.width);
+        buf.putInt(gridSize.height);
+        buf.putInt(xy[0]);
+        buf.putInt(xy[1]);
+        if (isVersioned)
+            buf.put((byte)protocolVersion);
+        buf.flip();
+        connection.send(buf);
+
+        /* Create and add new node descriptor.
+           Nodes registering after the countdown are simulated nodes.
+           Real nodes are watched by the straggler detection, and the neighbors of a
+           reassigned grid point get the descriptor of its new node. */
+        final NodeDescriptor nd = new NodeDescriptor(connection.getRemoteAddress(), nodeListeningPort, Main.countdownFinished, null, protocolVersion);
+        if (Main.addNodeDescriptor(xy[0], xy[1], nd)) {
+            if (!nd.isSimulated)
+                monitor.watch(xy[0], xy[1], nd);
+            else if (Main.isReassigned(xy[0], xy[1]))
+                monitor.pushDescriptor(xy[0], xy[1], nd);
+        }
+
+        if (isBulk) {
+            connection.x = xy[0];
+            connection.y = xy[1];
+            waitingForNodes.add(connection);
+        }
+        else
+            connection.finish();
+        answerWaitingRequests();
+    }
+
+
+    /**
+     * Registers a tile (a node descriptor for every grid point of the tile), and sends the grid size.
+     * The tile offers its protocol version (1 byte after the port), and the negotiated version
+     * is sent back after the grid size (1 byte).
+     *
+     * @param connection    the connection of the client
+     * @throws IOException
+     */
+    private void registerTile(MainServerConnection connection) throws IOException {
+        final ByteBuffer request = connection.getRequest();
+        final int x0 = request.getInt();
+        final int y0 = request.getInt();
+        final int width = request.getInt();
+        final int height = request.getInt();
+        final int tileListeningPort = request.order(ByteOrder.BIG_ENDIAN).getShort() & 0xFFFF;
+        final int protocolVersion = ProtocolHeader.negotiate(request.get() & 0xFF);
+
+        /* Create and add node descriptors for the grid points of the tile. */
+        Main.addTileDescriptor(x0, y0, width, height, new NodeDescriptor(connection.getRemoteAddress(), tileListeningPort, true, null, protocolVersion));
+
+        /* Send out grid size to the client */
+        final GridSize gridSize = Main.getGridSize();
+        final ByteBuffer buf = ByteBuffer.allocate(2*Integer.SIZE/8 + 1).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(gridSize.width).putInt(gridSize.height).put((byte)protocolVersion);
+        buf.flip();
+        connection.send(buf);
+        connection.finish();
+        answerWaitingRequests();
+    }
+
+
+    /**
+     * Looks up the descriptor of a node (request types GET_NODE_DESCRIPTOR and GET_NODE_DESCRIPTOR_EXTENDED).
+     * If the requested node hasn't registered yet, "255.255.255.255" is sent as node address
+     * (and again every MARKER_INTERVAL), and the descriptor is sent when the node registers.
+     *
+     * @param connection    the connection of the client
+     * @throws IOException
+     */
+    private void lookUpNode(MainServerConnection connection) throws IOException {
+        final ByteBuffer request = connection.getRequest();
+        connection.x = request.getInt();
+        connection.y = request.getInt();
+        final GridSize gridSize = Main.getGridSize();
+        if (connection.x < 0 || connection.x >= gridSize.width || connection.y < 0 || connection.y >= gridSize.height) {
+            System.err.println("Error in lookUpNode(): no grid point at (" + connection.x + "," + connection.y + ")");
+            connection.close();
+            return;
+        }
+        if (!answerLookUp(connection)) {
+            connection.send(ByteBuffer.wrap(NOT_REGISTERED));
+            connection.nextMarkerTime = System.currentTimeMillis() + MARKER_INTERVAL;
+            waitingForNodes.add(connection);
+        }
+    }
+
+
+    /**
+     * Sends the descriptor of a node if it has registered.
+     * Request type GET_NODE_DESCRIPTOR gets the address and the port, request type GET_NODE_DESCRIPTOR_EXTENDED
+     * the node type and the protocol version, too.
+     *
+     * @param connection    the connection of the client (waiting for the node at (connection.x, connection.y))
+     * @return              true if the descriptor has been sent
+     * @throws IOException
+     */
+    private boolean answerLookUp(MainServerConnection connection) throws IOException {
+        final NodeDescriptor nd = Main.getNodeDescriptor(connection.x, connection.y);
+        if (nd == null)
+            return false;
+        final boolean isExtended = connection.getRequestType() == Main.TCPRequestTypes.GET_NODE_DESCRIPTOR_EXTENDED;
+        final ByteBuffer buf = ByteBuffer.allocate(isExtended ? EXTENDED_DESCRIPTOR_SIZE : DESCRIPTOR_SIZE);
+        putDescriptor(buf, connection, nd, isExtended);
+        buf.flip();
+        connection.send(buf);
+        connection.finish();
+        return true;
+    }
+
+
+    /**
+     * Sends the extended descriptors of the neighbors of a registered node (request type REGISTER_NODE_BULK)
+     * if all of them have registered.
+     *
+     * @param connection    the connection of the client (the node is at (connection.x, connection.y))
+     * @return              true if the descriptors have been sent
+     * @throws IOException
+     */
+    private boolean answerNeighbors(MainServerConnection connection) throws IOException {
+        final GridSize gridSize = Main.getGridSize();
+        final Node.Neighbors[] neighbors = Node.Neighbors.values();
+        final NodeDescriptor[] descriptors = new NodeDescriptor[neighbors.length];
+        final int[][] positions = new int[neighbors.length][];
+        for (Node.Neighbors neighbor : neighbors) {
+            final int[] p = Node.getNeighborPosition(neighbor, connection.x, connection.y, gridSize.width, gridSize.height);
+            final NodeDescriptor nd = Main.getNodeDescriptor(p[0], p[1]);
+            if (nd == null)
+                return false;
+            positions[neighbor.ordinal()] = p;
+            descriptors[neighbor.ordinal()] = nd;
+        }
+        final ByteBuffer buf = ByteBuffer.allocate(neighbors.length*(2*Integer.SIZE/8 + EXTENDED_DESCRIPTOR_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i=0; i<neighbors.length; i++) {
+            buf.putInt(positions[i][0]);
+            buf.putInt(positions[i][1]);
+            putDescriptor(buf, connection, descriptors[i], true);
+        }
+        buf.flip();
+        connection.send(buf);
+        connection.finish();
+        return true;
+    }
+
+
+    /**
+     * Writes a node descriptor: address(4), port(2) (big-endian, no need for endian conversion),
+     * and node type(1), protocol version(1) if it is extended.
+     * If the node has a loopback address (simulated node) and the client is remote,
+     * the address of the main server is sent instead.
+     *
+     * @param buf           the buffer
+     * @param connection    the connection of the client
+     * @param nd            the node descriptor
+     * @param isExtended    true if the node type and the protocol version are written, too
+     */
+    private static void putDescriptor(ByteBuffer buf, MainServerConnection connection, NodeDescriptor nd, boolean isExtended) {
+        if (!connection.getRemoteAddress().isLoopbackAddress() && nd.address.isLoopbackAddress())
+            buf.put(connection.getLocalAddress().getAddress());
+        else
+            buf.put(nd.address.getAddress());
+        final ByteOrder order = buf.order();
+        buf.order(ByteOrder.BIG_ENDIAN).putShort((short)nd.port).order(order);
+        if (isExtended) {
+            buf.put((byte)(nd.isSimulated ? 1 : 0));
+            buf.put((byte)nd.protocolVersion);
+        }
+    }
+
+
+    /**
+     * Answers the requests waiting for nodes which have registered since.
+     * @throws IOException
+     */
+    private void answerWaitingRequests() throws IOException {
+        for (Iterator<MainServerConnection> it = waitingForNodes.iterator(); it.hasNext(); ) {
+            final MainServerConnection connection = it.next();
+            try {
+                final boolean isAnswered = connection.getRequestType() == Main.TCPRequestTypes.REGISTER_NODE_BULK ?
+                        answerNeighbors(connection) : answerLookUp(connection);
+                if (isAnswered)
+                    it.remove();
+            } catch (IOException ex) {
+                Logger.getLogger(MainServer.class.getName()).log(Level.SEVERE, null, ex);
+                it.remove();
+                connection.close();
+            }
+        }
+    }
+
+
+    /**
+     * Adds the residual of a node or tile to the global residual reduction.
+     * The stop decision is sent to every participant when all participants have reported.
+     *
+     * @param connection    the connection of the client
+     * @throws IOException
+     */
+    private void reportResidual(MainServerConnection connection) throws IOException {
+        final ByteBuffer request = connection.getRequest();
+        final int step = request.getInt();
+        final int iteration = request.getInt();
+        final float residual = request.getFloat();
+        final float rhs = request.getFloat();
+
+        /* Without reduction the iteration never stops early. */
+        final ResidualReduction reduction = Main.getResidualReduction();
+        if (reduction == null) {
+            System.err.println("Error in MainServer reportResidual(): residual reduction is not enabled.");
+            connection.send(ByteBuffer.wrap(new byte[]{0}));
+            connection.finish();
+            return;
+        }
+
+        /* Wait for the other participants. */
+        waitingForReduction.add(connection);
+        if (!reduction.report(step, iteration, residual, rhs))
+            return;
+
+        /* Send out the decision to the participants */
+        final byte converged = (byte)(reduction.isConverged() ? 1 : 0);
+        for (MainServerConnection participant : waitingForReduction) {
+            try {
+                participant.send(ByteBuffer.wrap(new byte[]{converged}));
+                participant.finish();
+            } catch (IOException ex) {
+                Logger.getLogger(MainServer.class.getName()).log(Level.SEVERE, null, ex);
+                participant.close();
+            }
+        }
+        waitingForReduction.clear();
+    }
+
+
+    /**
+     * Closes the connections whose request hasn't arrived within REQUEST_TIMEOUT,
+     * and sends the "not registered yet" markers of the waiting lookups.
+     * @param selector  the selector of the server
+     */
+    private void checkTimeouts(Selector selector) {
+        final long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            final Object attachment = key.attachment();
+            if (attachment instanceof MainServerConnection && key.isValid() && ((MainServerConnection)attachment).isReadTimedOut(now, REQUEST_TIMEOUT)) {
+                System.err.println("Error in MainServer checkTimeouts(): request not received in " + REQUEST_TIMEOUT + " ms.");
+                closeConnection((MainServerConnection)attachment);
+            }
+        }
+        for (Iterator<MainServerConnection> it = waitingForNodes.iterator(); it.hasNext(); ) {
+            final MainServerConnection connection = it.next();
+            if (connection.getRequestType() == Main.TCPRequestTypes.REGISTER_NODE_BULK || connection.nextMarkerTime > now)
+                continue;
+            try {
+                connection.send(ByteBuffer.wrap(NOT_REGISTERED));
+                connection.nextMarkerTime = now + MARKER_INTERVAL;
+            } catch (IOException ex) {
+                Logger.getLogger(MainServer.class.getName()).log(Level.SEVERE, null, ex);
+                it.remove();
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    Logger.getLogger(MainServer.class.getName()).log(Level.SEVERE, null, e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Closes a connection (after an error).
+     * @param connection    the connection
+     */
+    private void closeConnection(MainServerConnection connection) {
+        waitingForNodes.remove(connection);
+        waitingForReduction.remove(connection);
+        try {
+            connection.close();
+        } catch (IOException ex) {
+            Logger.getLogger(MainServer.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+
     /**
      * Sends a stop signal to the server.
      */
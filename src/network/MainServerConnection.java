@@ -0,0 +1,206 @@
+package network;
+
+import eniac.Main.TCPRequestTypes;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * This class implements a client connection of the main server (non-blocking).
+ *
+ * The connection reads the request type (1 byte) and the request, whose size is given by
+ * the request type. The answer is written without blocking: what doesn't fit into the socket
+ * buffer is queued, and written when the socket becomes writable. The connection is closed
+ * when the answer has been sent. All methods are called by the thread of the main server.
+ */
+class MainServerConnection {
+
+    private static final TCPRequestTypes[] REQUEST_TYPES = TCPRequestTypes.values();
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final long acceptTime;
+    private final ByteBuffer typeBuffer = ByteBuffer.allocate(1);
+    private TCPRequestTypes requestType;                        // null until the request type is read
+    private ByteBuffer request;
+    private final Deque<ByteBuffer> pending = new ArrayDeque<>();
+    private boolean isRead;                                     // the whole request has been read
+    private boolean isFinished;                                 // the answer is complete
+
+    /*
+     * the grid point the request waits for (or the grid point of the registered node), and the time
+     * of the next "not registered yet" marker of a waiting lookup
+     */
+    int x, y;
+    long nextMarkerTime;
+
+
+    /**
+     * Class constructor.
+     * @param channel   the accepted channel (non-blocking)
+     * @param key       the selection key of the channel
+     */
+    MainServerConnection(SocketChannel channel, SelectionKey key) {
+        this.channel = channel;
+        this.key = key;
+        this.acceptTime = System.currentTimeMillis();
+    }
+
+
+    /**
+     * Returns the size of a request (without the request type).
+     * @param requestType   the request type
+     * @return              the size of the request in bytes
+     */
+    private static int getRequestSize(TCPRequestTypes requestType) {
+        switch (requestType) {
+            case GET_MY_XY_AND_GRIDSIZE:
+                return (2*Float.SIZE + Short.SIZE) / 8;                      // lat(4), lon(4), port(2)
+            case REGISTER_NODE:
+            case REGISTER_NODE_BULK:
+                return (2*Float.SIZE + Short.SIZE + Byte.SIZE) / 8;          // lat(4), lon(4), port(2), protocol version(1)
+            case REGISTER_TILE:
+                return (4*Integer.SIZE + Short.SIZE + Byte.SIZE) / 8;        // x0(4), y0(4), width(4), height(4), port(2), protocol version(1)
+            case REDUCE_RESIDUAL:
+                return (2*Integer.SIZE + 2*Float.SIZE) / 8;                  // step(4), iteration(4), residual(4), rhs(4)
+            default:
+                return (2*Integer.SIZE) / 8;                                 // x(4), y(4)
+        }
+    }
+
+
+    /**
+     * Reads the available bytes of the request.
+     * @return  true if the whole request has been read
+     * @throws IOException  if the client closed the connection, or the request type is unknown
+     */
+    boolean read() throws IOException {
+        if (requestType == null) {
+            if (channel.read(typeBuffer) < 0)
+                throw new EOFException();
+            if (typeBuffer.hasRemaining())
+                return false;
+            final int ordinal = typeBuffer.get(0);
+            if (ordinal < 0 || ordinal >= REQUEST_TYPES.length)
+                throw new IOException("invalid request type " + ordinal);
+            requestType = REQUEST_TYPES[ordinal];
+            request = ByteBuffer.allocate(getRequestSize(requestType)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (channel.read(request) < 0)
+            throw new EOFException();
+        if (request.hasRemaining())
+            return false;
+        request.flip();
+        key.interestOps(0);
+        isRead = true;
+        return true;
+    }
+
+
+    /**
+     * Sends bytes to the client (queues what can't be written now).
+     * @param buf   the bytes (position 0)
+     * @throws IOException
+     */
+    void send(ByteBuffer buf) throws IOException {
+        if (pending.isEmpty())
+            channel.write(buf);
+        if (buf.hasRemaining()) {
+            pending.add(buf);
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+
+    /**
+     * Writes the queued bytes (the channel is writable), and closes the connection
+     * if the answer is complete.
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            final ByteBuffer buf = pending.peek();
+            channel.write(buf);
+            if (buf.hasRemaining())
+                return;
+            pending.poll();
+        }
+        key.interestOps(0);
+        if (isFinished)
+            close();
+    }
+
+
+    /**
+     * Marks the answer complete: the connection is closed when the queued bytes have been sent.
+     * @throws IOException
+     */
+    void finish() throws IOException {
+        isFinished = true;
+        if (pending.isEmpty())
+            close();
+    }
+
+
+    /**
+     * Closes the connection.
+     * @throws IOException
+     */
+    void close() throws IOException {
+        key.cancel();
+        channel.close();
+    }
+
+
+    /**
+     * Checks whether the request hasn't been read within a timeout.
+     * @param now       the current time
+     * @param timeout   the timeout in milliseconds
+     * @return          true if the request is incomplete after the timeout
+     */
+    boolean isReadTimedOut(long now, long timeout) {
+        return !isRead && now - acceptTime > timeout;
+    }
+
+
+    /**
+     * Returns the request type.
+     * @return  the request type (null if it hasn't been read yet)
+     */
+    TCPRequestTypes getRequestType() {
+        return requestType;
+    }
+
+
+    /**
+     * Returns the request (after the request type, little-endian).
+     * @return  the request (flipped when it is complete)
+     */
+    ByteBuffer getRequest() {
+        return request;
+    }
+
+
+    /**
+     * Returns the address of the client.
+     * @return  the address of the client
+     */
+    InetAddress getRemoteAddress() {
+        return channel.socket().getInetAddress();
+    }
+
+
+    /**
+     * Returns the address of the main server on this connection.
+     * @return  the local address
+     */
+    InetAddress getLocalAddress() {
+        return channel.socket().getLocalAddress();
+    }
+}
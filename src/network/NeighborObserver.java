@@ -0,0 +1,29 @@
+package network;
+
+import datastructures.NodeDescriptor;
+
+/**
+ * This interface is implemented by the nodes and tiles which take part in the straggler detection
+ * of the main server (see StragglerMonitor): they tell how long they have been waiting for the data
+ * of a grid point, and they take the new descriptor of a reassigned grid point.
+ */
+public interface NeighborObserver {
+
+    /**
+     * Returns how long the node (or tile) has been blocked waiting for the data of a grid point.
+     * @param x     x coordinate of the grid point
+     * @param y     y coordinate of the grid point
+     * @param now   the current time
+     * @return      the waiting time in milliseconds (0 if the node doesn't wait for the grid point)
+     */
+    long getWaitingTime(int x, int y, long now);
+
+    /**
+     * Sets the new descriptor of a grid point which has been reassigned by the main server.
+     * The open requests to the grid point are sent to the new node when they are resent.
+     * @param x     x coordinate of the grid point
+     * @param y     y coordinate of the grid point
+     * @param nd    the descriptor of the new node
+     */
+    void setNodeDescriptor(int x, int y, NodeDescriptor nd);
+}
@@ -0,0 +1,209 @@
+package network;
+
+import datastructures.GridSize;
+import datastructures.NodeDescriptor;
+import eniac.Main;
+import eniac.Node;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class reassigns the grid points of straggling real nodes (see StragglerMonitor) to simulated nodes.
+ *
+ * A simulated node takes over the grid point, and continues the forecast from the last step of the real node.
+ * A real node which still answers is asked for its last step and for the seed of the new node, the values of
+ * a dead one are reconstructed from its neighbors. The new node registers, and the main server sends its
+ * descriptor to the neighbors.
+ *
+ * The new nodes run on the executor of the reassignment, which the main thread waits for at the end of the
+ * forecast. They are published by Main.addSimulatedNode(), whose AtomicReferenceArray makes them visible to
+ * the thread of the main server (waiting times) and to later reassignments (reconstruction).
+ */
+public class NodeReassignment {
+
+    private final ExecutorService executor;
+    private boolean isShutdown;                                 // no more reassignments (guarded by this)
+
+
+    /**
+     * Class constructor.
+     */
+    public NodeReassignment() {
+        this.executor = Main.newExecutor(0);
+    }
+
+
+    /**
+     * Reassigns the grid point of a straggling real node: a simulated node takes it over,
+     * and continues the forecast from the last step of the real node.
+     *
+     * @param x         x coordinate of the grid point
+     * @param y         y coordinate of the grid point
+     * @param step      the last step of the real node known by the main server
+     * @param realNode  the descriptor of the real node
+     * @return          true if the grid point is reassigned, false if it has been reassigned before,
+     *                  or the forecast has finished
+     */
+    synchronized boolean reassign(final int x, final int y, final int step, final NodeDescriptor realNode) {
+        if (isShutdown || !Main.markForReassignment(x, y))
+            return false;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                startReplacementNode(x, y, step, realNode);
+            }
+        });
+        return true;
+    }
+
+
+    /**
+     * Stops the reassignments (the nodes which have taken over grid points keep running).
+     */
+    public synchronized void shutdown() {
+        isShutdown = true;
+        executor.shutdown();
+    }
+
+
+    /**
+     * Checks whether the nodes which have taken over grid points have finished (after shutdown()).
+     * @return  true if all of them have finished
+     */
+    public boolean isTerminated() {
+        return executor.isTerminated();
+    }
+
+
+    /**
+     * Returns how long the simulated nodes and tiles have been blocked waiting for the data of a grid point
+     * (the longest waiting time of the nodes and tiles querying it, see NeighborObserver).
+     *
+     * @param x     x coordinate of the grid point
+     * @param y     y coordinate of the grid point
+     * @param now   the current time
+     * @return      the waiting time in milliseconds (0 if no simulated node or tile waits for the grid point)
+     */
+    long getWaitingTime(int x, int y, long now) {
+        final GridSize gridSize = Main.getGridSize();
+        long waitingTime = 0;
+        for (int py=Math.max(0, y-2); py<=Math.min(gridSize.height-1, y+2); py++) {
+            for (int px=Math.max(0, x-2); px<=Math.min(gridSize.width-1, x+2); px++) {
+                final DataProvider provider = Main.getSimulatedDataProvider(px, py);
+                if (provider instanceof NeighborObserver)
+                    waitingTime = Math.max(waitingTime, ((NeighborObserver)provider).getWaitingTime(x, y, now));
+            }
+        }
+        return waitingTime;
+    }
+
+
+    /**
+     * Runs a simulated node in place of a reassigned real node. A real node which still answers
+     * is asked for its last step and for the seed of the new node (z and xi of the last two steps,
+     * dxi/dt of the previous step), the values of a dead one are reconstructed from its neighbors.
+     *
+     * @param x         x coordinate of the grid point
+     * @param y         y coordinate of the grid point
+     * @param step      the last step of the real node known by the main server
+     * @param realNode  the descriptor of the real node
+     */
+    private void startReplacementNode(int x, int y, int step, NodeDescriptor realNode) {
+        final boolean isAlive = !Float.isNaN(NodeUDPClient.query(realNode, Node.DataTypes.Z, step, 1000, 2));
+        if (isAlive) {
+            while (step < Node.HOURS && !Float.isNaN(NodeUDPClient.query(realNode, Node.DataTypes.Z, step+1, 3000, 1)))
+                step++;
+        }
+        if (step >= Node.HOURS)
+            return;
+
+        final float[] seed = new float[5];
+        final Node.DataTypes[] seedTypes = {Node.DataTypes.Z, Node.DataTypes.Z, Node.DataTypes.XI, Node.DataTypes.XI, Node.DataTypes.DXIDT};
+        final int[] seedSteps = {step-1, step, step-1, step, step-1};
+        int reconstructed = 0;
+        for (int i=0; i<seed.length && step > 0; i++) {
+            seed[i] = isAlive ? NodeUDPClient.query(realNode, seedTypes[i], Math.max(0, seedSteps[i]), 1000, 2) : Float.NaN;
+            if (Float.isNaN(seed[i])) {
+                seed[i] = reconstructValue(x, y, seedTypes[i], Math.max(0, seedSteps[i]));
+                reconstructed++;
+            }
+        }
+
+        final Node node;
+        try {
+            node = Main.newSimulatedNode(x, y);
+        } catch (SocketException ex) {
+            Logger.getLogger(NodeReassignment.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+        node.takeOver(step, seed[0], seed[1], seed[2], seed[3], seed[4]);
+        Main.addSimulatedNode(x, y, node);
+        System.err.println("Grid point (" + x + "," + y + ") taken over by a simulated node at step " + step
+                + (reconstructed > 0 ? ", " + reconstructed + " values of the seed reconstructed" : ""));
+        node.run();
+    }
+
+
+    /**
+     * Reconstructs a value of a grid point whose node doesn't answer: z of the border nodes and z of the
+     * first step don't change, other values of the border nodes are extrapolated from the two inner nodes
+     * next to them, the values of the inner nodes are the mean of the available values of their neighbors.
+     *
+     * @param x         x coordinate of the grid point
+     * @param y         y coordinate of the grid point
+     * @param dataType  type of the value
+     * @param step      step of the value
+     * @return          the reconstructed value (z0 or 0 if the neighbors don't have it either)
+     */
+    private static float reconstructValue(int x, int y, Node.DataTypes dataType, int step) {
+        final GridSize gridSize = Main.getGridSize();
+        final boolean isBorder = x == 0 || y == 0 || x == gridSize.width-1 || y == gridSize.height-1;
+        if (dataType == Node.DataTypes.Z && (step == 0 || isBorder))
+            return Main.getInitialZ(x, y);
+        if (isBorder) {
+            final int dx = x == 0 ? 1 : x == gridSize.width-1 ? -1 : 0;
+            final int dy = dx != 0 ? 0 : y == 0 ? 1 : -1;
+            final float close = getGridValue(x+dx, y+dy, dataType, step);
+            final float distant = getGridValue(x+2*dx, y+2*dy, dataType, step);
+            if (!Float.isNaN(close) && !Float.isNaN(distant))
+                return 2*close - distant;
+        }
+        else {
+            float sum = 0;
+            int count = 0;
+            for (Node.Neighbors n : Node.Neighbors.values()) {
+                final int[] p = Node.getNeighborPosition(n, x, y, gridSize.width, gridSize.height);
+                final float value = getGridValue(p[0], p[1], dataType, step);
+                if (!Float.isNaN(value)) {
+                    sum += value;
+                    count++;
+                }
+            }
+            if (count > 0)
+                return sum / count;
+        }
+        return dataType == Node.DataTypes.Z ? Main.getInitialZ(x, y) : 0;
+    }
+
+
+    /**
+     * Returns a value of a grid point: read from the simulated node or tile, or queried from the real node.
+     *
+     * @param x         x coordinate of the grid point
+     * @param y         y coordinate of the grid point
+     * @param dataType  type of the value
+     * @param step      step of the value
+     * @return          the value, or NaN if it isn't available
+     */
+    private static float getGridValue(int x, int y, Node.DataTypes dataType, int step) {
+        final DataProvider provider = Main.getSimulatedDataProvider(x, y);
+        if (provider instanceof Node)
+            return provider.getValue(dataType, step);
+        if (provider != null)
+            return provider.getValue(dataType, x, y, step);
+        final NodeDescriptor nd = Main.getNodeDescriptor(x, y);
+        return nd == null ? Float.NaN : NodeUDPClient.query(nd, dataType, step, 1000, 2);
+    }
+}
@@ -1,14 +1,16 @@
 package network;
 
+import eniac.Main;
 import eniac.Node;
+import eniac.TileNode;
 import eniac.Node.Neighbors;
 import eniac.Main.TCPRequestTypes;
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -20,19 +22,24 @@ import java.util.logging.Logger;
  */
 public class NodeTCPClient implements Runnable {
     
-    private final Node callerNode;
+    private Node callerNode;
+    private TileNode callerTile;
+    private int slot;
     private float lat,lon;
     private int udpListeningPort;
     private final InetAddress mainServerAddress;
     private final int mainServerPort;
     private int x,y;
     private Neighbors neighbor;
+    private ResidualReporter reporter;
+    private int step, iteration;
+    private float residual, rhs;
     
     private final TCPRequestTypes requestType;
 
     
     /**
-     * Class constructor (for request type GET_MY_XY_AND_GRIDSIZE).
+     * Class constructor (for request type REGISTER_NODE_BULK).
      *
      * @param callerNode            the node that created this TCP client
      * @param lat                   geographical latitude of the caller node
@@ -49,7 +56,7 @@ public class NodeTCPClient implements Runnable {
         this.mainServerAddress = mainServerAddress;
         this.mainServerPort = mainServerPort;
         
-        this.requestType = TCPRequestTypes.GET_MY_XY_AND_GRIDSIZE;
+        this.requestType = TCPRequestTypes.REGISTER_NODE_BULK;
     }   
         
     
@@ -64,6 +71,22 @@ public class NodeTCPClient implements Runnable {
      * @param mainServerPort        port of the main server
      */    
     public NodeTCPClient(Node callerNode, Neighbors neighbor, int x, int y, InetAddress mainServerAddress, int mainServerPort) {        
+        this(callerNode, neighbor, x, y, false, mainServerAddress, mainServerPort);
+    }
+    
+    
+    /**
+     * Class constructor (for request types GET_NODE_DESCRIPTOR and GET_NODE_DESCRIPTOR_EXTENDED).
+     *
+     * @param callerNode            the node instance that created this TCP Client
+     * @param neighbor              direction of the neighbor node
+     * @param x                     x coordinate of the neighbor node
+     * @param y                     y coordinate of the neighbor node
+     * @param isExtended            true if the type of the neighbor (real or simulated) is also requested
+     * @param mainServerAddress     InetAddress of the main server
+     * @param mainServerPort        port of the main server
+     */    
+    public NodeTCPClient(Node callerNode, Neighbors neighbor, int x, int y, boolean isExtended, InetAddress mainServerAddress, int mainServerPort) {        
         this.callerNode = callerNode;
         this.neighbor = neighbor;
         this.x = x;
@@ -71,7 +94,70 @@ public class NodeTCPClient implements Runnable {
         this.mainServerAddress = mainServerAddress;
         this.mainServerPort = mainServerPort;
         
-        this.requestType = TCPRequestTypes.GET_NODE_DESCRIPTOR;
+        this.requestType = isExtended ? TCPRequestTypes.GET_NODE_DESCRIPTOR_EXTENDED : TCPRequestTypes.GET_NODE_DESCRIPTOR;
+    }
+    
+    /**
+     * Class constructor (for request type REGISTER_TILE).
+     *
+     * @param callerTile            the tile that created this TCP client
+     * @param udpListeningPort      listening port of the UDP server of the tile
+     * @param mainServerAddress     InetAddress of the main server
+     * @param mainServerPort        port of the main server
+     */    
+    public NodeTCPClient(TileNode callerTile, int udpListeningPort, InetAddress mainServerAddress, int mainServerPort) {
+        this.callerTile = callerTile;
+        this.udpListeningPort = udpListeningPort;
+        this.mainServerAddress = mainServerAddress;
+        this.mainServerPort = mainServerPort;
+        
+        this.requestType = TCPRequestTypes.REGISTER_TILE;
+    }
+    
+    
+    /**
+     * Class constructor (for request type GET_NODE_DESCRIPTOR_EXTENDED).
+     *
+     * @param callerTile            the tile that created this TCP client
+     * @param slot                  index of the grid point in the halo of the tile
+     * @param x                     x coordinate of the grid point
+     * @param y                     y coordinate of the grid point
+     * @param mainServerAddress     InetAddress of the main server
+     * @param mainServerPort        port of the main server
+     */    
+    public NodeTCPClient(TileNode callerTile, int slot, int x, int y, InetAddress mainServerAddress, int mainServerPort) {
+        this.callerTile = callerTile;
+        this.slot = slot;
+        this.x = x;
+        this.y = y;
+        this.mainServerAddress = mainServerAddress;
+        this.mainServerPort = mainServerPort;
+        
+        this.requestType = TCPRequestTypes.GET_NODE_DESCRIPTOR_EXTENDED;
+    }
+    
+    
+    /**
+     * Class constructor (for request type REDUCE_RESIDUAL).
+     *
+     * @param reporter              the node or tile that created this TCP client
+     * @param step                  the step of the forecast
+     * @param iteration             number of iterations done in the step
+     * @param residual              max|residual| at the grid points of the reporter
+     * @param rhs                   max|rhs| at the grid points of the reporter
+     * @param mainServerAddress     InetAddress of the main server
+     * @param mainServerPort        port of the main server
+     */    
+    public NodeTCPClient(ResidualReporter reporter, int step, int iteration, float residual, float rhs, InetAddress mainServerAddress, int mainServerPort) {
+        this.reporter = reporter;
+        this.step = step;
+        this.iteration = iteration;
+        this.residual = residual;
+        this.rhs = rhs;
+        this.mainServerAddress = mainServerAddress;
+        this.mainServerPort = mainServerPort;
+        
+        this.requestType = TCPRequestTypes.REDUCE_RESIDUAL;
     }
     
     /**
@@ -80,18 +166,23 @@ public class NodeTCPClient implements Runnable {
     @Override
     public void run() {
         
-        final ExecutorService clientThreadExecutor = Executors.newSingleThreadExecutor();
+        final ExecutorService clientThreadExecutor = Main.newExecutor(1);
         
         try {
             Socket requesterSocket = new Socket(mainServerAddress, mainServerPort);
-            DataOutputStream out = new DataOutputStream(requesterSocket.getOutputStream());
+            /* The request type is buffered and sent together with the request (the client threads flush).   *
+             * Sent alone, it was lost when many nodes connected at once: the listen queue of the main server *
+             * overflowed, the kernel dropped the segment of the type byte, and accepted the connection later *
+             * from the (SYN cookie) segment of the request, so the server read the request as its type.      */
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(requesterSocket.getOutputStream()));
             out.writeByte((byte)requestType.ordinal());
             
             switch (requestType) {
                 /**************************************************************************
-                 * Request type 0: client asks for x,y based on latitude and longitude    *
+                 * Request type 6: client asks for x,y based on latitude and longitude,   *
+                 * negotiates the protocol version and gets its neighbors' descriptors    *
                  **************************************************************************/            
-                case GET_MY_XY_AND_GRIDSIZE:
+                case REGISTER_NODE_BULK:
                     clientThreadExecutor.execute(new NodeTCPClientThread0(callerNode, lat, lon, udpListeningPort, requesterSocket, out));
                     break;
                     
@@ -99,7 +190,31 @@ public class NodeTCPClient implements Runnable {
                  * Request type 1: client asks for neighbor address and port based on x,y *
                  **************************************************************************/                
                 case GET_NODE_DESCRIPTOR:
-                    clientThreadExecutor.execute(new NodeTCPClientThread1(callerNode, neighbor, x, y, requesterSocket, out));
+                    clientThreadExecutor.execute(new NodeTCPClientThread1(callerNode, neighbor, x, y, false, requesterSocket, out));
+                    break;
+                    
+                /**************************************************************************
+                 * Request type 2: tile registers itself and asks for the grid size       *
+                 **************************************************************************/                
+                case REGISTER_TILE:
+                    clientThreadExecutor.execute(new NodeTCPClientThread2(callerTile, udpListeningPort, requesterSocket, out));
+                    break;
+                    
+                /**************************************************************************
+                 * Request type 3: client asks for node address, port and type based on x,y *
+                 **************************************************************************/                
+                case GET_NODE_DESCRIPTOR_EXTENDED:
+                    if (callerNode != null)
+                        clientThreadExecutor.execute(new NodeTCPClientThread1(callerNode, neighbor, x, y, true, requesterSocket, out));
+                    else
+                        clientThreadExecutor.execute(new NodeTCPClientThread3(callerTile, slot, x, y, requesterSocket, out));
+                    break;
+                    
+                /**************************************************************************
+                 * Request type 4: client reports its residual and asks for stop decision *
+                 **************************************************************************/                
+                case REDUCE_RESIDUAL:
+                    clientThreadExecutor.execute(new NodeTCPClientThread4(reporter, step, iteration, residual, rhs, requesterSocket, out));
                     break;
                     
                 default:
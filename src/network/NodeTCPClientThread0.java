@@ -1,10 +1,13 @@
 
 package network;
 
+import datastructures.NodeDescriptor;
+import eniac.Main;
 import eniac.Node;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -13,13 +16,17 @@ import java.util.logging.Logger;
 
 /**
  * This class implements a TCP client which queries the main server for
- * information about the grid and the requester node's (x,y) coordinates.
+ * information about the grid and the requester node's (x,y) coordinates (request type REGISTER_NODE_BULK).
+ * The node offers its protocol version, and the negotiated version is set on the node.
+ * The answer also contains the extended descriptors of the neighbors (in the order of Node.Neighbors),
+ * so the node doesn't have to query them one by one.
  * @author Vas Ádám (vas.adam@inbox.com)
  */
 public class NodeTCPClientThread0 implements Runnable {
     
     private final int SEND_BUFFER_SIZE = (2*Float.SIZE) / 8;       // lat(4), lon(4)
     private final int RECEIVE_BUFFER_SIZE = (4*Integer.SIZE) / 8;  // x(4), y(4), grid width(4), grid height(4)
+    private final int POSITION_BUFFER_SIZE = (2*Integer.SIZE) / 8; // x(4), y(4) of a neighbor
     
     private final Node callerNode;
     private final float lat,lon;
@@ -61,6 +68,8 @@ public class NodeTCPClientThread0 implements Runnable {
             buf.putFloat(lon);
             out.write(buf.array());
             out.writeShort(udpListeningPort);
+            out.writeByte(ProtocolHeader.VERSION);
+            out.flush();
 
             /* Read in bytes from the server */
             final byte[] receiveBuffer = new byte[RECEIVE_BUFFER_SIZE];
@@ -70,11 +79,31 @@ public class NodeTCPClientThread0 implements Runnable {
             final int height = buf.getInt();
             final int x = buf.getInt();
             final int y = buf.getInt();
+            final int protocolVersion = in.readUnsignedByte();
             
             /* Set grid size and (x,y) coordinates on the node. */
             callerNode.setGridSize(width, height);
             callerNode.setX(x);
-            callerNode.setY(y);            
+            callerNode.setY(y);
+            callerNode.setProtocolVersion(protocolVersion);
+            callerNode.setRegistered();
+            
+            /* Set the descriptors of the neighbors on the node: position, address, port, node type and protocol version. */
+            final byte[] positionBuffer = new byte[POSITION_BUFFER_SIZE];
+            final byte[] addressBytes = new byte[4];
+            for (Node.Neighbors neighbor : Node.Neighbors.values()) {
+                in.readFully(positionBuffer);
+                buf = ByteBuffer.wrap(positionBuffer).order(ByteOrder.LITTLE_ENDIAN);
+                final int neighborX = buf.getInt();
+                final int neighborY = buf.getInt();
+                in.readFully(addressBytes);
+                final InetAddress address = InetAddress.getByAddress(addressBytes);
+                final int port = in.readUnsignedShort();
+                final boolean isSimulated = in.readBoolean();
+                final int neighborVersion = in.readUnsignedByte();
+                callerNode.setNeighborDescriptor(neighbor, neighborX, neighborY, new NodeDescriptor(address, port, isSimulated,
+                        isSimulated ? Main.getLocalDataProvider(neighborX, neighborY) : null, neighborVersion));
+            }
             
         } catch(IOException e) {
             Logger.getLogger(NodeUDPServer.class.getName()).log(Level.SEVERE, null, e);
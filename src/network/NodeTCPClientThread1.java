@@ -1,6 +1,7 @@
 package network;
 
 import datastructures.NodeDescriptor;
+import eniac.Main;
 import eniac.Node;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -24,6 +25,7 @@ public class NodeTCPClientThread1 implements Runnable {
     private final Node callerNode;
     private final Node.Neighbors neighbor;
     private final int x,y;
+    private final boolean isExtended;
     private final Socket requesterSocket;
     private final DataOutputStream out;
         
@@ -35,14 +37,16 @@ public class NodeTCPClientThread1 implements Runnable {
      * @param neighbor              direction of the neighbor node
      * @param x                     x coordinate of the neighbor node
      * @param y                     y coordinate of the neighbor node
+     * @param isExtended            true for request type GET_NODE_DESCRIPTOR_EXTENDED (the answer contains the type of the node)
      * @param requesterSocket       client socket
      * @param out                   DataOutputStream of requesterSocket
      */        
-    public NodeTCPClientThread1(Node callerNode, Node.Neighbors neighbor, int x, int y, Socket requesterSocket, DataOutputStream out) {        
+    public NodeTCPClientThread1(Node callerNode, Node.Neighbors neighbor, int x, int y, boolean isExtended, Socket requesterSocket, DataOutputStream out) {        
         this.callerNode = callerNode;
         this.neighbor = neighbor;
         this.x = x;
         this.y = y;
+        this.isExtended = isExtended;
         this.requesterSocket = requesterSocket;
         this.out = out;
     }
@@ -59,6 +63,7 @@ public class NodeTCPClientThread1 implements Runnable {
             buf.putInt(x);
             buf.putInt(y);
             out.write(buf.array());
+            out.flush();
 
             /* Read in bytes from the server */
             final byte[] addressBytes = new byte[4];
@@ -75,9 +80,12 @@ public class NodeTCPClientThread1 implements Runnable {
             }
             final InetAddress requestedServerAddress = InetAddress.getByAddress(addressBytes);
             final int requestedServerPort = in.readUnsignedShort();
+            final boolean isSimulated = isExtended && in.readBoolean();
+            final int protocolVersion = isExtended ? in.readUnsignedByte() : ProtocolHeader.LEGACY_VERSION;
                         
             /* Set neighbor descriptor on the node. */
-            callerNode.setNeighborDescriptor(neighbor, new NodeDescriptor(requestedServerAddress, requestedServerPort));
+            callerNode.setNeighborDescriptor(neighbor, new NodeDescriptor(requestedServerAddress, requestedServerPort, isSimulated,
+                    isSimulated ? Main.getLocalDataProvider(x, y) : null, protocolVersion));
             
         } catch(IOException e) {
             Logger.getLogger(NodeUDPServer.class.getName()).log(Level.SEVERE, null, e);
@@ -0,0 +1,85 @@
+package network;
+
+import eniac.TileNode;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements a TCP client which registers a tile at the main server
+ * and queries the size of the grid. The tile offers its protocol version,
+ * and the negotiated version is set on the tile.
+ */
+public class NodeTCPClientThread2 implements Runnable {
+    
+    private final int SEND_BUFFER_SIZE = (4*Integer.SIZE) / 8;     // x0(4), y0(4), width(4), height(4)
+    private final int RECEIVE_BUFFER_SIZE = (2*Integer.SIZE) / 8;  // grid width(4), grid height(4)
+    
+    private final TileNode callerTile;
+    private final int udpListeningPort;
+    private final Socket requesterSocket;
+    private final DataOutputStream out;
+    
+    
+    /**
+     * Class constructor.
+     *
+     * @param callerTile        the tile that created this TCP client
+     * @param udpListeningPort  listening port of the UDP server  
+     * @param requesterSocket   client socket
+     * @param out               DataOutputStream of requesterSocket
+     */      
+    public NodeTCPClientThread2(TileNode callerTile, int udpListeningPort, Socket requesterSocket, DataOutputStream out) {
+        this.callerTile = callerTile;
+        this.udpListeningPort = udpListeningPort;
+        this.requesterSocket = requesterSocket;
+        this.out = out;
+    }   
+
+    
+    /**
+     * Contains the code of the implementation of the TCP client.
+     */
+    @Override
+    public void run() {
+                
+        try (DataInputStream in = new DataInputStream(requesterSocket.getInputStream())) { 
+            /* Send position and size of the tile to the main server */
+            ByteBuffer buf = ByteBuffer.allocate(SEND_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(callerTile.x0);
+            buf.putInt(callerTile.y0);
+            buf.putInt(callerTile.width);
+            buf.putInt(callerTile.height);
+            out.write(buf.array());
+            out.writeShort(udpListeningPort);
+            out.writeByte(ProtocolHeader.VERSION);
+            out.flush();
+
+            /* Read in bytes from the server */
+            final byte[] receiveBuffer = new byte[RECEIVE_BUFFER_SIZE];
+            in.readFully(receiveBuffer);
+            buf = ByteBuffer.wrap(receiveBuffer).order(ByteOrder.LITTLE_ENDIAN);
+            final int width = buf.getInt();
+            final int height = buf.getInt();
+            final int protocolVersion = in.readUnsignedByte();
+            
+            /* Set grid size on the tile. */
+            callerTile.setGridSize(width, height);
+            callerTile.setProtocolVersion(protocolVersion);
+        } catch(IOException e) {
+            Logger.getLogger(NodeTCPClientThread2.class.getName()).log(Level.SEVERE, null, e);
+        } finally {
+            try {
+                out.close();
+                requesterSocket.close();
+            } catch (IOException ex) {
+                Logger.getLogger(MainServer.class.getName()).log(Level.SEVERE, null, ex);
+            }              
+        }
+    }
+}
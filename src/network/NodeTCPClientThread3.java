@@ -0,0 +1,91 @@
+package network;
+
+import datastructures.NodeDescriptor;
+import eniac.Main;
+import eniac.TileNode;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements a TCP client which queries the main server for
+ * the descriptor of a grid point in the halo of a tile.
+ */
+public class NodeTCPClientThread3 implements Runnable {
+    
+    private final int SEND_BUFFER_SIZE = (2*Integer.SIZE) / 8;  // x(4), y(4)
+    private final TileNode callerTile;
+    private final int slot;
+    private final int x,y;
+    private final Socket requesterSocket;
+    private final DataOutputStream out;
+        
+    
+    /**
+     * Class constructor.
+     *
+     * @param callerTile            the tile that created this TCP Client
+     * @param slot                  index of the grid point in the halo of the tile
+     * @param x                     x coordinate of the grid point
+     * @param y                     y coordinate of the grid point
+     * @param requesterSocket       client socket
+     * @param out                   DataOutputStream of requesterSocket
+     */        
+    public NodeTCPClientThread3(TileNode callerTile, int slot, int x, int y, Socket requesterSocket, DataOutputStream out) {        
+        this.callerTile = callerTile;
+        this.slot = slot;
+        this.x = x;
+        this.y = y;
+        this.requesterSocket = requesterSocket;
+        this.out = out;
+    }
+    
+    /**
+     * Contains the code of the implementation of the TCP client.
+     */
+    @Override
+    public void run() {
+                
+        try (DataInputStream in = new DataInputStream(requesterSocket.getInputStream())) { 
+            /* Send query to the main server */
+            ByteBuffer buf = ByteBuffer.allocate(SEND_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(x);
+            buf.putInt(y);
+            out.write(buf.array());
+            out.flush();
+
+            /* Read in bytes from the server */
+            final byte[] addressBytes = new byte[4];
+            in.readFully(addressBytes);
+            
+            /* Keep receiving while address==255.255.255.255 (node not logged in yet) */
+            while (Arrays.equals(addressBytes, new byte[]{(byte)255,(byte)255,(byte)255,(byte)255})){
+                in.readFully(addressBytes);
+            }
+            final InetAddress requestedServerAddress = InetAddress.getByAddress(addressBytes);
+            final int requestedServerPort = in.readUnsignedShort();
+            final boolean isSimulated = in.readBoolean();
+            final int protocolVersion = in.readUnsignedByte();
+                        
+            /* Set halo descriptor on the tile. */
+            callerTile.setHaloDescriptor(slot, new NodeDescriptor(requestedServerAddress, requestedServerPort, isSimulated,
+                    isSimulated ? Main.getLocalDataProvider(x, y) : null, protocolVersion));
+        } catch(IOException e) {
+            Logger.getLogger(NodeTCPClientThread3.class.getName()).log(Level.SEVERE, null, e);
+        } finally {
+            try {
+                out.close();
+                requesterSocket.close();
+            } catch (IOException ex) {
+                Logger.getLogger(MainServer.class.getName()).log(Level.SEVERE, null, ex);
+            }              
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package network;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements a TCP client which reports the residual of the Poisson iteration
+ * to the main server and receives the global stop decision.
+ */
+public class NodeTCPClientThread4 implements Runnable {
+    
+    private final int SEND_BUFFER_SIZE = (2*Integer.SIZE + 2*Float.SIZE) / 8;  // step(4), iteration(4), residual(4), rhs(4)
+    private final ResidualReporter caller;
+    private final int step, iteration;
+    private final float residual, rhs;
+    private final Socket requesterSocket;
+    private final DataOutputStream out;
+        
+    
+    /**
+     * Class constructor.
+     *
+     * @param caller                the node or tile that created this TCP Client
+     * @param step                  the step of the forecast
+     * @param iteration             number of iterations done in the step
+     * @param residual              max|residual| at the grid points of the caller
+     * @param rhs                   max|rhs| at the grid points of the caller
+     * @param requesterSocket       client socket
+     * @param out                   DataOutputStream of requesterSocket
+     */        
+    public NodeTCPClientThread4(ResidualReporter caller, int step, int iteration, float residual, float rhs, Socket requesterSocket, DataOutputStream out) {        
+        this.caller = caller;
+        this.step = step;
+        this.iteration = iteration;
+        this.residual = residual;
+        this.rhs = rhs;
+        this.requesterSocket = requesterSocket;
+        this.out = out;
+    }
+    
+    /**
+     * Contains the code of the implementation of the TCP client.
+     */
+    @Override
+    public void run() {
+                
+        try (DataInputStream in = new DataInputStream(requesterSocket.getInputStream())) { 
+            /* Send the residual to the main server */
+            ByteBuffer buf = ByteBuffer.allocate(SEND_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(step);
+            buf.putInt(iteration);
+            buf.putFloat(residual);
+            buf.putFloat(rhs);
+            out.write(buf.array());
+            out.flush();
+
+            /* The answer arrives when all participants have reported. */
+            caller.setPoissonConverged(in.readBoolean());
+        } catch(IOException e) {
+            Logger.getLogger(NodeTCPClientThread4.class.getName()).log(Level.SEVERE, null, e);
+        } finally {
+            try {
+                out.close();
+                requesterSocket.close();
+            } catch (IOException ex) {
+                Logger.getLogger(MainServer.class.getName()).log(Level.SEVERE, null, ex);
+            }              
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package network;
+
+import datastructures.NodeDescriptor;
+import eniac.Main;
+import eniac.Main.UDPMessageTypes;
+import eniac.Node;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements the UDP client of an ENIAC node with a single non-blocking channel.
+ *
+ * The requests to all queried neighbors are sent at once, and the node thread collects the answers,
+ * so no threads, sockets or executors are created per exchange. Every neighbor gets one batched
+ * request (GET_CELL_DATA_BATCH) for all queried data types, which is answered in one datagram.
+ * The requests contain a request ID, and the answers are matched by it, so late answers of
+ * earlier requests are ignored. Only simulated neighbors understand this request, real neighbors
+ * are queried by NodeUDPClient threads, unless they use a payload codec. Neighbors which negotiated
+ * a protocol version get the request with a versioned header (the request ID is its sequence number).
+ *
+ * On the links with a payload codec (see PayloadCodec) the values are encoded, and the last decoded
+ * answer of every set of data types is kept as the reference of the next request.
+ *
+ * As in NodeUDPClient, lost requests are resent after RESEND_TIMEOUT (after the timeout of the
+ * retransmission timer of real neighbors), and requests answered with NaN (data not available yet)
+ * are resent after a short delay. The timers sample only the answers which the server sent at once
+ * (answers of parked requests are marked by peers of version PARKED_ANSWER_VERSION, see ProtocolHeader).
+ *
+ * A node has a second channel for the prefetched exchanges (see Node.getDataFromNeighborsAsync()),
+ * whose requests are sent before the neighbors publish the data. Its request IDs are in a separate
+ * range, and when a parked request expires (NaN), it is sent again at once: the server parks it
+ * again, and answers it as soon as the data is published.
+ *
+ * Before a request is sent or resent, the descriptor of the neighbor is checked: if the main server
+ * has reassigned its grid point (see StragglerMonitor), the request goes to the new node.
+ *
+ * In virtual thread mode the answers are received on the blocking socket of the channel with a timeout
+ * instead of a selector, because a blocking receive parks a virtual thread without blocking its carrier thread.
+ */
+public class NodeUDPChannel {
+
+    private static final int NUM_TYPES = Node.DataTypes.values().length;
+    private static final int SEND_BUFFER_SIZE = ProtocolHeader.SIZE + PayloadCodec.REQUEST_SIZE + ((3+3*NUM_TYPES)*Integer.SIZE) / 8;  // header(16), codec block(6), x(4), y(4), count(4), (data type(4), step(4), 1(4)) per type
+    private static final int RECEIVE_BUFFER_SIZE = ProtocolHeader.SIZE + PayloadCodec.ANSWER_SIZE + Integer.SIZE / 8 + PayloadCodec.getMaxSize(NUM_TYPES);   // header(16), codec block(10), count(4), values
+    private static final long RESEND_TIMEOUT = 3000;                        // milliseconds
+    private static final long PREFETCH_NOT_READY_DELAY = 10;                // milliseconds
+    private static final int PREFETCH_FIRST_REQUEST_ID = 1 << 30;
+    private static final int NUM_NEIGHBORS = Node.Neighbors.values().length;
+    private final Node en;
+    private DatagramChannel channel;
+    private Selector selector;
+    private DatagramSocket socket;                                          // blocking socket of the channel (virtual thread mode)
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(SEND_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final byte[] receiveData = new byte[RECEIVE_BUFFER_SIZE];
+    private final ByteBuffer receiveBuffer = ByteBuffer.wrap(receiveData).order(ByteOrder.LITTLE_ENDIAN);
+    private final DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
+
+    /*
+     * address and grid point of every neighbor (index: neighbor ordinal)
+     */
+    private final InetSocketAddress[] addresses = new InetSocketAddress[NUM_NEIGHBORS];
+    private final NodeDescriptor[] descriptors = new NodeDescriptor[NUM_NEIGHBORS];
+    private final int[] xs = new int[NUM_NEIGHBORS], ys = new int[NUM_NEIGHBORS];
+    private final boolean[] isVersioned = new boolean[NUM_NEIGHBORS];
+    private final PayloadCodec[] codecs = new PayloadCodec[NUM_NEIGHBORS];             // null: raw values
+    private final RetransmissionTimer[] timers = new RetransmissionTimer[NUM_NEIGHBORS];   // real neighbors (null: RESEND_TIMEOUT)
+
+    /*
+     * last decoded answer of every neighbor with a payload codec, index [neighbor ordinal][mask of the data types]
+     */
+    private final PayloadCodec.Reference[][] references = new PayloadCodec.Reference[NUM_NEIGHBORS][1 << NUM_TYPES];
+
+    /*
+     * requests of the current exchange (index: position in the list of queried neighbors):
+     * request ID, time of the next resend, and state
+     */
+    private final int[] requestIds = new int[NUM_NEIGHBORS];
+    private final long[] resendTimes = new long[NUM_NEIGHBORS];
+    private final boolean[] isAnswered = new boolean[NUM_NEIGHBORS];
+    private final boolean[] isDataMissing = new boolean[NUM_NEIGHBORS];
+    private final long[] sendTimes = new long[NUM_NEIGHBORS];              // time of the send (-1: resent, the answer isn't sampled)
+    private final long[] timeouts = new long[NUM_NEIGHBORS];
+    private int nextRequestId;
+    private final boolean isPrefetching;
+
+    /*
+     * the values of the last answer, and whether it may have been parked by the server
+     * (answers without a versioned header can't tell)
+     */
+    private final float[] answerValues = new float[NUM_TYPES];
+    private boolean isAnswerParked;
+
+
+    /**
+     * Class constructor.
+     * @param en    the node which this client belongs to
+     */
+    public NodeUDPChannel(Node en) {
+        this(en, false);
+    }
+
+
+    /**
+     * Class constructor.
+     * @param en            the node which this client belongs to
+     * @param isPrefetching true for the channel of the prefetched exchanges of the node
+     */
+    public NodeUDPChannel(Node en, boolean isPrefetching) {
+        this.en = en;
+        this.isPrefetching = isPrefetching;
+        this.nextRequestId = isPrefetching ? PREFETCH_FIRST_REQUEST_ID : 0;
+        try {
+            this.channel = DatagramChannel.open();
+            this.channel.bind(null);
+            if (Main.isVirtualThreads())
+                this.socket = channel.socket();
+            else {
+                this.channel.configureBlocking(false);
+                this.selector = Selector.open();
+                this.channel.register(selector, SelectionKey.OP_READ);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(NodeUDPChannel.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+
+    /**
+     * Sets the address and the grid point of a neighbor.
+     * @param neighbor  the neighbor
+     * @param nd        descriptor of the neighbor
+     * @param x         x coordinate of the grid point of the neighbor
+     * @param y         y coordinate of the grid point of the neighbor
+     */
+    public void setNeighbor(Node.Neighbors neighbor, NodeDescriptor nd, int x, int y) {
+        final InetSocketAddress address = new InetSocketAddress(nd.address, nd.port);
+        /* The references of an earlier server of the neighbor are dropped (its answer IDs are different). */
+        if (!address.equals(addresses[neighbor.ordinal()]))
+            Arrays.fill(references[neighbor.ordinal()], null);
+        addresses[neighbor.ordinal()] = address;
+        descriptors[neighbor.ordinal()] = nd;
+        xs[neighbor.ordinal()] = x;
+        ys[neighbor.ordinal()] = y;
+        isVersioned[neighbor.ordinal()] = Math.min(en.getProtocolVersion(), nd.protocolVersion) > ProtocolHeader.LEGACY_VERSION;
+        codecs[neighbor.ordinal()] = PayloadCodec.forLink(en.getProtocolVersion(), nd);
+        timers[neighbor.ordinal()] = nd.isSimulated ? null : en.getRetransmissionTimer(neighbor);
+    }
+
+
+    /**
+     * Takes the current descriptor of a neighbor, if it has been replaced since it was set
+     * (the grid point of the neighbor has been reassigned).
+     * @param neighbor  the neighbor
+     */
+    private void refreshNeighbor(Node.Neighbors neighbor) {
+        final NodeDescriptor nd = en.getNeighborDescriptor(neighbor);
+        if (nd != null && nd != descriptors[neighbor.ordinal()])
+            setNeighbor(neighbor, nd, xs[neighbor.ordinal()], ys[neighbor.ordinal()]);
+    }
+
+
+    /**
+     * Checks whether a neighbor uses a payload codec (real neighbors with a codec are queried by the channel).
+     * @param neighbor  the neighbor
+     * @return          true if the values from the neighbor are encoded
+     */
+    public boolean hasCodec(Node.Neighbors neighbor) {
+        return codecs[neighbor.ordinal()] != null;
+    }
+
+
+    /**
+     * Queries simulated neighbors (and real neighbors with a payload codec) for data, and waits for all answers.
+     * The received values are stored by Node.setNeighborValue().
+     *
+     * @param dataTypes the types of data to be queried from the neighbors (each at most once)
+     * @param step      the step of the queried data
+     * @param neighbors which neighbors to request the data from (at most one request per neighbor)
+     */
+    public void getData(Node.DataTypes[] dataTypes, int step, Node.Neighbors... neighbors) {
+
+        boolean isDZDT = false;
+        int typeMask = 0;
+        for (Node.DataTypes dataType : dataTypes) {
+            isDZDT |= dataType == Node.DataTypes.DZDT;
+            typeMask |= 1 << dataType.ordinal();
+        }
+        try {
+            long now = System.currentTimeMillis();
+            for (int i=0; i<neighbors.length; i++) {
+                requestIds[i] = nextRequestId++;
+                isAnswered[i] = false;
+                isDataMissing[i] = false;
+                refreshNeighbor(neighbors[i]);
+                send(neighbors[i], requestIds[i], dataTypes, step, typeMask);
+                timeouts[i] = getTimeout(neighbors[i]);
+                resendTimes[i] = now + timeouts[i];
+                sendTimes[i] = now;
+            }
+
+            int remaining = neighbors.length;
+            while (remaining > 0) {
+                /* Wait for an answer until the next resend. */
+                long nextResend = Long.MAX_VALUE;
+                for (int i=0; i<neighbors.length; i++) {
+                    if (!isAnswered[i])
+                        nextResend = Math.min(nextResend, resendTimes[i]);
+                }
+                if (nextResend > now) {
+                    final int length = receive(nextResend - now);
+                    if (length >= 0) {
+                        /* Answers of earlier requests (stale duplicates) don't match any request. */
+                        final int i = readAnswer(length, dataTypes.length, typeMask, neighbors);
+                        if (i >= 0) {
+                            final RetransmissionTimer timer = timers[neighbors[i].ordinal()];
+                            if (timer != null && sendTimes[i] >= 0) {
+                                /* The answer of a parked request measures the neighbor, not the link. */
+                                if (!isAnswerParked && descriptors[neighbors[i].ordinal()].protocolVersion >= ProtocolHeader.PARKED_ANSWER_VERSION)
+                                    timer.addSample(System.currentTimeMillis() - sendTimes[i]);
+                                else
+                                    timer.endBackOff();
+                            }
+                            boolean isComplete = true;
+                            for (int t=0; t<dataTypes.length; t++)
+                                isComplete &= !Float.isNaN(answerValues[t]);
+                            /* NaN: data not available yet, ask again after a short delay */
+                            if (!isComplete) {
+                                isDataMissing[i] = true;
+                                if (isPrefetching)
+                                    resendTimes[i] = System.currentTimeMillis() + PREFETCH_NOT_READY_DELAY;
+                                else
+                                    resendTimes[i] = System.currentTimeMillis() + (timer != null ? timer.getNotReadyDelay(isDZDT) : (isDZDT ? 100 : 1000));
+                            }
+                            else {
+                                for (int t=0; t<dataTypes.length; t++)
+                                    en.setNeighborValue(neighbors[i], dataTypes[t], answerValues[t]);
+                                isAnswered[i] = true;
+                                remaining--;
+                            }
+                        }
+                    }
+                }
+
+                /* Resend the requests whose time has come. */
+                now = System.currentTimeMillis();
+                for (int i=0; i<neighbors.length; i++) {
+                    if (isAnswered[i] || resendTimes[i] > now)
+                        continue;
+                    final RetransmissionTimer timer = timers[neighbors[i].ordinal()];
+                    if (!isDataMissing[i]) {
+                        System.err.println("Resending UDP request." + " " + Arrays.toString(dataTypes) + " " + step + " to " + addresses[neighbors[i].ordinal()] + ", x=" + en.x + " y=" + en.y);
+                        /* The answer of a resent request may belong to any of its sends, it isn't sampled. */
+                        timeouts[i] = (timer != null) ? timer.backOff(timeouts[i]) : RESEND_TIMEOUT;
+                        sendTimes[i] = -1;
+                    }
+                    else {
+                        timeouts[i] = getTimeout(neighbors[i]);
+                        sendTimes[i] = now;
+                    }
+                    isDataMissing[i] = false;
+                    refreshNeighbor(neighbors[i]);
+                    send(neighbors[i], requestIds[i], dataTypes, step, typeMask);
+                    resendTimes[i] = now + timeouts[i];
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(NodeUDPChannel.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+
+    /**
+     * Receives the next answer into receiveData.
+     * @param timeout   the longest wait in milliseconds (positive)
+     * @return          the length of the answer, or -1 if no answer has arrived before the timeout
+     * @throws IOException
+     */
+    private int receive(long timeout) throws IOException {
+        if (selector == null) {
+            socket.setSoTimeout((int)Math.min(Integer.MAX_VALUE, timeout));
+            try {
+                receivePacket.setLength(receiveData.length);
+                socket.receive(receivePacket);
+                return receivePacket.getLength();
+            } catch (SocketTimeoutException ex) {
+                return -1;
+            }
+        }
+
+        /* Answers already queued are read without waiting. */
+        receiveBuffer.clear();
+        if (channel.receive(receiveBuffer) == null) {
+            selector.select(timeout);
+            selector.selectedKeys().clear();
+            if (channel.receive(receiveBuffer) == null)
+                return -1;
+        }
+        return receiveBuffer.position();
+    }
+
+
+    /**
+     * Returns the timeout of a request to a neighbor (and counts the request of a real neighbor).
+     * @param neighbor  the neighbor
+     * @return          the timeout in milliseconds
+     */
+    private long getTimeout(Node.Neighbors neighbor) {
+        final RetransmissionTimer timer = timers[neighbor.ordinal()];
+        return (timer != null) ? timer.startRequest() : RESEND_TIMEOUT;
+    }
+
+
+    /**
+     * Reads an answer: request ID and values, or versioned header, (codec block), count and values.
+     * The values are stored in answerValues, and isAnswerParked is set.
+     * @param length    the length of the answer
+     * @param count     the number of requested data types
+     * @param typeMask  mask of the requested data types
+     * @param neighbors the queried neighbors
+     * @return          the index of the answered request, or -1 if the answer doesn't belong to an open request
+     */
+    private int readAnswer(int length, int count, int typeMask, Node.Neighbors[] neighbors) {
+        receiveBuffer.clear().limit(length);
+        isAnswerParked = true;
+        try {
+            int requestId;
+            PayloadCodec codec = null;
+            int answerId = PayloadCodec.NO_REFERENCE, referenceId = PayloadCodec.NO_REFERENCE;
+            if (length == ((1+count)*Integer.SIZE) / 8)
+                requestId = receiveBuffer.getInt();
+            else {
+                if (receiveBuffer.getInt() != UDPMessageTypes.VERSIONED.getCode())
+                    return -1;
+                final ProtocolHeader header = ProtocolHeader.get(receiveBuffer);
+                if (header == null || header.type != UDPMessageTypes.CELL_DATA)
+                    return -1;
+                isAnswerParked = header.isParkedAnswer();
+                if (header.version >= ProtocolHeader.CODEC_VERSION) {
+                    codec = PayloadCodec.get(receiveBuffer);
+                    answerId = receiveBuffer.getInt();
+                    referenceId = receiveBuffer.getInt();
+                    if (codec == null)
+                        return -1;
+                }
+                if (receiveBuffer.getInt() != count)
+                    return -1;
+                requestId = header.sequence;
+            }
+            for (int i=0; i<neighbors.length; i++) {
+                if (isAnswered[i] || requestIds[i] != requestId)
+                    continue;
+                if (codec == null) {
+                    for (int t=0; t<count; t++)
+                        answerValues[t] = receiveBuffer.getFloat();
+                    return i;
+                }
+                /* The reference named by the server is the last answer decoded on the link, unless a later one has been decoded since. */
+                final int n = neighbors[i].ordinal();
+                final PayloadCodec.Reference reference = references[n][typeMask];
+                if (referenceId != PayloadCodec.NO_REFERENCE && (reference == null || !reference.matches(referenceId, codec, count)))
+                    return -1;
+                if (!codec.decode(receiveBuffer, answerValues, count, (referenceId != PayloadCodec.NO_REFERENCE) ? reference.values : null))
+                    return -1;
+                references[n][typeMask] = new PayloadCodec.Reference(answerId, codec, Arrays.copyOf(answerValues, count));
+                return i;
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+            System.err.println("Error in readAnswer(): truncated answer, x=" + en.x + " y=" + en.y);
+        }
+        return -1;
+    }
+
+
+    /**
+     * Sends a batched request to a neighbor.
+     * @param neighbor      the neighbor
+     * @param requestId     ID of the request
+     * @param dataTypes     types of the requested data
+     * @param step          step of the requested data
+     * @param typeMask      mask of the requested data types (reference of the payload codec)
+     * @throws IOException
+     */
+    private void send(Node.Neighbors neighbor, int requestId, Node.DataTypes[] dataTypes, int step, int typeMask) throws IOException {
+        sendBuffer.clear();
+        final PayloadCodec codec = codecs[neighbor.ordinal()];
+        if (codec != null) {
+            ProtocolHeader.put(sendBuffer, ProtocolHeader.CODEC_VERSION, UDPMessageTypes.GET_CELL_DATA_BATCH, requestId, ProtocolHeader.sourceId(en.x, en.y));
+            final PayloadCodec.Reference reference = references[neighbor.ordinal()][typeMask];
+            codec.putRequest(sendBuffer, (reference != null && reference.codec == codec) ? reference.answerId : PayloadCodec.NO_REFERENCE);
+        }
+        else if (isVersioned[neighbor.ordinal()])
+            ProtocolHeader.put(sendBuffer, UDPMessageTypes.GET_CELL_DATA_BATCH, requestId, ProtocolHeader.sourceId(en.x, en.y));
+        else {
+            sendBuffer.putInt(UDPMessageTypes.GET_CELL_DATA_BATCH.getCode());
+            sendBuffer.putInt(requestId);
+        }
+        sendBuffer.putInt(xs[neighbor.ordinal()]);
+        sendBuffer.putInt(ys[neighbor.ordinal()]);
+        sendBuffer.putInt(dataTypes.length);
+        for (Node.DataTypes dataType : dataTypes) {
+            sendBuffer.putInt(dataType.ordinal());
+            sendBuffer.putInt(step);
+            sendBuffer.putInt(1);
+        }
+        sendBuffer.flip();
+        channel.send(sendBuffer, addresses[neighbor.ordinal()]);
+    }
+
+
+    /**
+     * Closes the channel.
+     */
+    public void close() {
+        try {
+            if (selector != null)
+                selector.close();
+            channel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(NodeUDPChannel.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package network;
 
+import datastructures.NodeDescriptor;
 import eniac.Node;
 import java.io.IOException;
 import java.net.DatagramPacket;
@@ -8,11 +9,19 @@ import java.net.InetAddress;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This class implements a UDP client for an ENIAC node.
+ * The retransmission timeout and the delay of the not-ready retries are taken from the
+ * retransmission timer of the neighbor, which learns the round-trip time of the link.
+ * The answer of the original request doesn't tell whether the server has parked the request
+ * (the delay of a parked answer is the time the neighbor took to publish the data), so only the
+ * answers of legacy neighbors, which don't park requests, are sampled.
+ * Before the request is resent, the descriptor of the neighbor is checked: if the main server has
+ * reassigned its grid point (the neighbor is dead or too slow), the request goes to the new node.
  * @author Vas Ádám (vas.adam@inbox.com)
  */
 public class NodeUDPClient implements Runnable {
@@ -23,8 +32,9 @@ public class NodeUDPClient implements Runnable {
     private final Node.Neighbors neighbor;
     private final Node.DataTypes dataType;
     private final int step;
-    private final InetAddress serverAddress;
-    private final int serverPort;
+    private InetAddress serverAddress;
+    private int serverPort;
+    private final RetransmissionTimer timer;
     
     
     /**
@@ -36,14 +46,16 @@ public class NodeUDPClient implements Runnable {
      * @param step          step of the requested data
      * @param serverAddress IP address of the neighbor
      * @param serverPort    port of the neighbor
+     * @param timer         retransmission timer of the neighbor
      */    
-    public NodeUDPClient(Node en, Node.Neighbors neighbor, Node.DataTypes dataType, int step, InetAddress serverAddress, int serverPort) {
+    public NodeUDPClient(Node en, Node.Neighbors neighbor, Node.DataTypes dataType, int step, InetAddress serverAddress, int serverPort, RetransmissionTimer timer) {
         this.en = en;
         this.neighbor = neighbor;
         this.dataType = dataType;
         this.step = step;        
         this.serverAddress = serverAddress;
         this.serverPort = serverPort;
+        this.timer = timer;
     }
     
     /**
@@ -54,7 +66,8 @@ public class NodeUDPClient implements Runnable {
         
         try (DatagramSocket requesterSocket = new DatagramSocket()) {
             
-            requesterSocket.setSoTimeout(3000);             
+            long timeout = timer.startRequest();
+            requesterSocket.setSoTimeout((int)timeout);             
             
             /* Send request to the server */ 
             ByteBuffer buf = ByteBuffer.allocate(SEND_BUFFER_SIZE);
@@ -63,9 +76,12 @@ public class NodeUDPClient implements Runnable {
             buf.putInt(step);
             DatagramPacket sendPacket = new DatagramPacket(buf.array(), buf.array().length, serverAddress, serverPort);
             requesterSocket.send(sendPacket);
+            long sendTime = System.nanoTime();
+            boolean isResent = false;
             /**********************************************************
              * Awaiting response from the server                      *
              * If no answer in a given timeout period, resend request *
+             * (with a doubled timeout)                               *
              **********************************************************/
             byte[] receiveBuffer = new byte[RECEIVE_BUFFER_SIZE];
             DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);            
@@ -76,34 +92,97 @@ public class NodeUDPClient implements Runnable {
                         requesterSocket.receive(receivePacket);
                     } catch (SocketTimeoutException ex) {
                         System.err.println("Resending UDP request." + " " + dataType + " " + step + " to " + serverAddress + ":" + serverPort + ", x=" + en.x + " y=" + en.y + ", source port:" + requesterSocket.getLocalPort());
+                        timeout = timer.backOff(timeout);
+                        requesterSocket.setSoTimeout((int)timeout);
+                        refreshServer(sendPacket);
                         requesterSocket.send(sendPacket);
+                        isResent = true;
                         continue;
                     }
                     break;
                 }
+                /* The answer of a resent request may belong to any of its sends, it isn't sampled. */
+                if (!isResent) {
+                    if (en.getNeighborDescriptor(neighbor).protocolVersion == ProtocolHeader.LEGACY_VERSION)
+                        timer.addSample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sendTime));
+                    else
+                        timer.endBackOff();
+                }
                 dataReceived = ByteBuffer.wrap(receivePacket.getData()).order(ByteOrder.LITTLE_ENDIAN).getFloat();
                 
                 /***********************************************
                  * If we received NaN, wait and resend request *
+                 * (after a jittered delay)                    *
                  ***********************************************/
                 if (Float.isNaN(dataReceived)) {
                     try {
-                        if (dataType == Node.DataTypes.DZDT)
-                            Thread.sleep(100);
-                        else
-                            Thread.sleep(1000);
+                        Thread.sleep(timer.getNotReadyDelay(dataType == Node.DataTypes.DZDT));
                     } catch (InterruptedException ex) {
                         Logger.getLogger(NodeUDPClient.class.getName()).log(Level.SEVERE, null, ex);
                     }                    
+                    timeout = timer.getTimeout();
+                    requesterSocket.setSoTimeout((int)timeout);
+                    refreshServer(sendPacket);
                     requesterSocket.send(sendPacket);
+                    sendTime = System.nanoTime();
+                    isResent = false;
                     continue;
                 }
                 break;
             }            
             /* Received valid data */
-            en.setNeighborValue(neighbor, dataReceived);            
+            en.setNeighborValue(neighbor, dataType, dataReceived);            
         } catch (IOException e) {
             Logger.getLogger(NodeUDPClient.class.getName()).log(Level.SEVERE, null, e);         
         }            
     }
+    
+    
+    /**
+     * Queries a value of a node with the original request (used by the main server, which isn't a neighbor).
+     * 
+     * @param nd        descriptor of the node
+     * @param dataType  type of the requested data
+     * @param step      step of the requested data
+     * @param timeout   timeout of a try in milliseconds
+     * @param tries     number of tries
+     * @return          the value, or NaN if it isn't available or the node doesn't answer
+     */
+    public static float query(NodeDescriptor nd, Node.DataTypes dataType, int step, int timeout, int tries) {
+        try (DatagramSocket requesterSocket = new DatagramSocket()) {
+            requesterSocket.setSoTimeout(timeout);
+            final ByteBuffer buf = ByteBuffer.allocate(SEND_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(dataType.ordinal());
+            buf.putInt(step);
+            final DatagramPacket sendPacket = new DatagramPacket(buf.array(), buf.array().length, nd.address, nd.port);
+            final DatagramPacket receivePacket = new DatagramPacket(new byte[RECEIVE_BUFFER_SIZE], RECEIVE_BUFFER_SIZE);
+            for (int i=0; i<tries; i++) {
+                requesterSocket.send(sendPacket);
+                try {
+                    requesterSocket.receive(receivePacket);
+                } catch (SocketTimeoutException ex) {
+                    continue;
+                }
+                return ByteBuffer.wrap(receivePacket.getData()).order(ByteOrder.LITTLE_ENDIAN).getFloat();
+            }
+        } catch (IOException e) {
+            Logger.getLogger(NodeUDPClient.class.getName()).log(Level.SEVERE, null, e);
+        }
+        return Float.NaN;
+    }
+    
+    
+    /**
+     * Sends the request to the new node of the neighbor's grid point, if it has been reassigned.
+     * @param sendPacket    the request
+     */
+    private void refreshServer(DatagramPacket sendPacket) {
+        final NodeDescriptor nd = en.getNeighborDescriptor(neighbor);
+        if (nd.address.equals(serverAddress) && nd.port == serverPort)
+            return;
+        serverAddress = nd.address;
+        serverPort = nd.port;
+        sendPacket.setAddress(serverAddress);
+        sendPacket.setPort(serverPort);
+    }
 }
@@ -1,95 +1,1121 @@
 
 package network;
 
+import datastructures.DataListener;
+import datastructures.DataStruct;
+import datastructures.Inbox;
+import datastructures.NodeDescriptor;
+import eniac.Main;
+import eniac.Main.UDPMessageTypes;
 import eniac.Node;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 /**
  * This class implements a UDP server for an ENIAC node.
+ * 
+ * Requests for data which is not available yet are parked, and they are answered
+ * by the thread which publishes the data, so the clients don't have to poll for it.
+ * If the data doesn't appear within PARKING_TIMEOUT, the answer is NaN as before.
+ * 
+ * In push mode the neighbors subscribe to the data types they need, and the node sends
+ * its new values to them (push()). The values pushed by the neighbors are put into the inbox.
+ * 
+ * A batched request (GET_CELL_DATA_BATCH) asks for several data types and step ranges of
+ * a grid point, and it is answered with all values in one datagram when all of them are
+ * available (the values missing at PARKING_TIMEOUT are NaN).
+ * 
+ * Peers which negotiated a protocol version send messages with a versioned header (see ProtocolHeader):
+ * batched requests, and requests for a data type of several grid points (GET_HALO_DATA), which are
+ * answered with a vector of values (CELL_DATA). A resent request which is already parked is dropped,
+ * it is answered once, when its data is published. Versioned requests may name a payload codec, then the
+ * values of the answer are encoded with it (see PayloadCodec), and the last answer of every link is kept
+ * as the reference of the next one.
+ * 
+ * The main server sends the new descriptor of a reassigned neighbor grid point (NODE_DESCRIPTOR), which is
+ * passed to the node or tile (see NeighborObserver) and acknowledged. Descriptors which don't come from
+ * the address of the main server with its source ID are ignored, so other peers can't redirect a neighbor.
+ * 
+ * The server runs on its own thread (run()), or it is served by a shared UDPServerLoop
+ * together with the servers of other simulated nodes. On its own thread the receive timeout
+ * ends at the deadline of the first parked request, so the parked requests expire in time.
+ * 
+ * Answering a request allocates no memory: the messages are received into and answered from
+ * preallocated buffers (the thread serving the server, the threads answering parked requests
+ * and the pushing threads have their own), and the addresses of the recent clients are reused.
+ * The data of a node doesn't change after it is published (except dz/dt, whose steps are reused
+ * in every step of the forecast), so the answers of the original requests for it are encoded
+ * only once, and the cached answer is sent again.
  * @author Vas Ádám (vas.adam@inbox.com)
  */
-public class NodeUDPServer implements Runnable {
+public class NodeUDPServer implements Runnable, DataListener {
     
     private static final int SEND_BUFFER_SIZE = Float.SIZE / 8;
-    private static final int RECEIVE_BUFFER_SIZE = (2*Integer.SIZE) / 8;    
-    private final Node en;
+    private static final int INT_SIZE = Integer.SIZE / 8;                   // fields of the messages are ints (or floats) of this size
+    private static final int NO_REQUEST_ID = -1;                            // requests without ID are answered with the value only
+    public static final int MAX_BATCH_ENTRIES = 16;                         // (data type, first step, number of steps) entries of a batched request
+    public static final int MAX_BATCH_VALUES = 256;                         // values of a batched answer
+    public static final int MAX_HALO_POINTS = 64;                           // grid points of a versioned GET_HALO_DATA request
+    private static final int RECEIVE_BUFFER_SIZE = ProtocolHeader.SIZE + PayloadCodec.REQUEST_SIZE + ((3+2*MAX_HALO_POINTS)*Integer.SIZE) / 8;    // longest message: GET_HALO_DATA
+    private static final int BATCH_SEND_BUFFER_SIZE = ProtocolHeader.SIZE + PayloadCodec.ANSWER_SIZE + Integer.SIZE / 8 + PayloadCodec.getMaxSize(MAX_BATCH_VALUES); // header(16), codec block(10), count(4), values (or request ID(4), values)
+    private static final int PUSH_BUFFER_SIZE = (7*Integer.SIZE) / 8;       // message type(4), x(4), y(4), data type(4), tag(4), step(4), value(4)
+    static final long PARKING_TIMEOUT = 2000;                               // milliseconds (the clients wait longer before resending, see RetransmissionTimer)
+    private static final int RECEIVE_TIMEOUT = 30000;                       // milliseconds without messages before a stopped server finishes
+    private static final int RECENT_CLIENTS = 8;                            // addresses of the recent clients which are reused
+    private static final Node.DataTypes[] DATA_TYPES = Node.DataTypes.values();     // values() would clone the array for every message
+    private static final UDPMessageTypes[] MESSAGE_TYPES = UDPMessageTypes.values();
+    private final DataProvider en;
     private volatile boolean stop;
-    private DatagramSocket providerSocket;
+    private DatagramChannel providerChannel;
+    private DatagramSocket providerSocket;                                  // blocking socket of the channel (server on its own thread)
+    private final InetAddress[] mainServerAddresses;                        // addresses of the main server (empty if it can't be resolved)
+    private volatile long lastReceiveTime;                                  // time of the last message (or of the last receive timeout report)
+    
+    /*
+     * buffers of the thread serving the server (run() or the shared loop): the received message,
+     * the answers, the entries of the current batched request, and the addresses of the recent clients
+     */
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final DatagramPacket receivePacket = new DatagramPacket(receiveBuffer.array(), RECEIVE_BUFFER_SIZE);
+    private final ByteBuffer answerBuffer = ByteBuffer.allocate(BATCH_SEND_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final BatchRequest currentBatch = new BatchRequest(Math.max(MAX_BATCH_ENTRIES, MAX_HALO_POINTS), MAX_BATCH_VALUES);
+    private final InetSocketAddress[] recentClients = new InetSocketAddress[RECENT_CLIENTS];
+    private int nextRecentClient;
+    
+    /**
+     * encoded answers of the original requests for the data of this node (or of the first grid point of this tile)
+     * which doesn't change after it is published, index [data type ordinal][step] (used by the thread serving the server)
+     */
+    private final ByteBuffer[][] cachedAnswers = new ByteBuffer[DATA_TYPES.length][0];
+    
+    /**
+     * the last encoded answer of every link (key: source ID and request, see BatchRequest.getLinkKey()),
+     * and the ID of the next encoded answer
+     */
+    private final Map<Long, PayloadCodec.Reference> codecReferences = new ConcurrentHashMap<>();
+    private final AtomicInteger nextAnswerId = new AtomicInteger(PayloadCodec.NO_REFERENCE);
+    
+    /**
+     * buffer of the answers of the parked requests (guarded by parkingLock)
+     */
+    private final ByteBuffer parkedAnswerBuffer = ByteBuffer.allocate(BATCH_SEND_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    
+    /**
+     * buffer of the pushed values (guarded by pushLock)
+     */
+    private final ByteBuffer pushBuffer = ByteBuffer.allocate(PUSH_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ReentrantLock pushLock = new ReentrantLock();
+    
+    /**
+     * inbox of the values pushed by the neighbors (null if the node doesn't subscribe)
+     */
+    private volatile Inbox inbox;
+    
+    /**
+     * subscribers of the data of this node
+     */
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    
+    /**
+     * parked requests of every data structure (access is guarded by parkingLock: the answers
+     * are sent while it is held, and a monitor would pin the virtual thread of a node)
+     */
+    private final Map<DataStruct, List<ParkedRequest>> parkedRequests = new HashMap<>();
+    private final ReentrantLock parkingLock = new ReentrantLock();
+    
+    /**
+     * source ID and sequence number of the parked versioned requests (guarded by parkingLock)
+     */
+    private final Set<Long> parkedSequences = new HashSet<>();
+    
+    /**
+     * A request whose data is not available yet.
+     */
+    private static class ParkedRequest {
+        final int step;
+        final SocketAddress client;
+        final long requestId;
+        final long deadline;
+        final BatchRequest batch;           // null for requests of a single value
+        
+        ParkedRequest(int step, SocketAddress client, long requestId, long deadline) {
+            this(step, client, requestId, deadline, null);
+        }
+        
+        ParkedRequest(int step, SocketAddress client, long requestId, long deadline, BatchRequest batch) {
+            this.step = step;
+            this.client = client;
+            this.requestId = requestId;
+            this.deadline = deadline;
+            this.batch = batch;
+        }
+    }
+    
+    
+    /**
+     * The entries of a batched request (grid point, data type and step range), and the values collected for it.
+     * The thread serving the server reuses one instance, only the parked requests get their own copy.
+     */
+    private static class BatchRequest {
+        final int[] xs, ys;
+        final Node.DataTypes[] dataTypes;
+        final int[] firstSteps;
+        final int[] numSteps;
+        final float[] values;
+        int count;                          // number of entries
+        int numValues;
+        boolean isVersioned;                // the request has a versioned header
+        int requestId;                      // request ID (sequence number of a versioned request)
+        int sourceId;                       // source ID of a versioned request
+        PayloadCodec codec;                 // codec of the answer (null: raw values without codec block)
+        int referenceId;                    // ID of the last answer decoded by the client on the link
+        
+        BatchRequest(int maxEntries, int maxValues) {
+            this.xs = new int[maxEntries];
+            this.ys = new int[maxEntries];
+            this.dataTypes = new Node.DataTypes[maxEntries];
+            this.firstSteps = new int[maxEntries];
+            this.numSteps = new int[maxEntries];
+            this.values = new float[maxValues];
+        }
+        
+        /**
+         * Returns a copy of the request (for parking it).
+         * @return  the copy
+         */
+        BatchRequest copy() {
+            final BatchRequest batch = new BatchRequest(count, numValues);
+            System.arraycopy(xs, 0, batch.xs, 0, count);
+            System.arraycopy(ys, 0, batch.ys, 0, count);
+            System.arraycopy(dataTypes, 0, batch.dataTypes, 0, count);
+            System.arraycopy(firstSteps, 0, batch.firstSteps, 0, count);
+            System.arraycopy(numSteps, 0, batch.numSteps, 0, count);
+            batch.count = count;
+            batch.numValues = numValues;
+            batch.isVersioned = isVersioned;
+            batch.requestId = requestId;
+            batch.sourceId = sourceId;
+            batch.codec = codec;
+            batch.referenceId = referenceId;
+            return batch;
+        }
+        
+        /**
+         * Returns the link of an encoded answer: the source ID, and the first grid point, the number
+         * of values and the data types of the request (different requests of a source may share a key,
+         * that only makes the reference miss).
+         * @return  the key of the link in codecReferences
+         */
+        long getLinkKey() {
+            int typeMask = 0;
+            for (int e=0; e<count; e++)
+                typeMask |= 1 << dataTypes[e].ordinal();
+            return ((long)sourceId << 32) | ((ProtocolHeader.sourceId(xs[0], ys[0]) * 31 + numValues) * 32 + typeMask & 0xFFFFFFFFL);
+        }
+        
+        /**
+         * Returns the source ID and the sequence number of a versioned request.
+         * @return  the key of the request in parkedSequences
+         */
+        long getSequenceKey() {
+            return ((long)sourceId << 32) | (requestId & 0xFFFFFFFFL);
+        }
+        
+        /**
+         * Collects the available values of the request.
+         * @param en    the node (or tile) which the server belongs to
+         * @return      the data structure of the first missing value (null if all values are available,
+         *              or the missing ones belong to no data structure)
+         */
+        DataStruct collect(DataProvider en) {
+            DataStruct missing = null;
+            int i = 0;
+            for (int e=0; e<count; e++) {
+                final DataStruct data = en.getDataStruct(dataTypes[e], xs[e], ys[e]);
+                for (int step=firstSteps[e]; step<firstSteps[e]+numSteps[e]; step++) {
+                    values[i] = (data != null) ? data.getData(step) : Float.NaN;
+                    if (Float.isNaN(values[i++]) && missing == null)
+                        missing = data;
+                }
+            }
+            return missing;
+        }
+    }
+    
+    
+    /**
+     * A neighbor which gets the new values of some data types of a grid point.
+     */
+    private static class Subscriber {
+        final InetAddress address;
+        final int port;
+        final SocketAddress inbox;          // address of the inbox (address and port)
+        final int x, y;
+        final int typeMask;                 // bit (1 << data type ordinal) is set for the subscribed types
+        
+        Subscriber(InetAddress address, int port, int x, int y, int typeMask) {
+            this.address = address;
+            this.port = port;
+            this.inbox = new InetSocketAddress(address, port);
+            this.x = x;
+            this.y = y;
+            this.typeMask = typeMask;
+        }
+        
+        boolean isSubscribedTo(Node.DataTypes dataType, int x, int y) {
+            return (typeMask & (1 << dataType.ordinal())) != 0 && this.x == x && this.y == y;
+        }
+    }
     
     
     /**
      * Class constructor
      *
-     * @param en    the node which this server belongs to
+     * @param en    the node (or tile) which this server belongs to
      * @throws java.net.SocketException
      */    
-    public NodeUDPServer(Node en) throws SocketException {        
+    public NodeUDPServer(DataProvider en) throws SocketException {        
         this.en = en;
+        InetAddress[] addresses;
+        try {
+            addresses = InetAddress.getAllByName(Main.MAIN_SERVER_ADDRESS);
+        } catch (UnknownHostException ex) {
+            System.err.println("Error in NodeUDPServer(): unknown main server address " + Main.MAIN_SERVER_ADDRESS);
+            addresses = new InetAddress[0];
+        }
+        this.mainServerAddresses = addresses;
         try {
-            this.providerSocket = new DatagramSocket();
-        } catch (SocketException ex) {
+            this.providerChannel = DatagramChannel.open();
+            this.providerChannel.bind(null);
+            this.providerSocket = providerChannel.socket();
+        } catch (IOException ex) {
             Logger.getLogger(NodeUDPServer.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
 
     
     /**
-     * Contains the code of the implementation of the UDP server.
+     * Contains the code of the implementation of the UDP server (on its own thread).
      */
     @Override
     public void run() {
-        byte[] receiveBuffer = new byte[RECEIVE_BUFFER_SIZE];
-        DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length); 
-        byte[] sendBuffer;
-        DatagramPacket sendPacket;
-        int dataTypeOrdinal;
-        int step;
-        float dataToSend;         
-        
         try { 
-            this.providerSocket.setSoTimeout(30000);             
+            lastReceiveTime = System.currentTimeMillis();
+            long nextDeadline = Long.MAX_VALUE;
+            int timeout = RECEIVE_TIMEOUT;
+            this.providerSocket.setSoTimeout(timeout);             
             
             while(true) {     
                 /*********************************************
                  * Wait for client request and send response *
+                 * (until the first parked request expires)  *
                  *********************************************/
+                final int nextTimeout = (int)Math.max(1, Math.min(RECEIVE_TIMEOUT, nextDeadline - System.currentTimeMillis()));
+                if (nextTimeout != timeout) {
+                    timeout = nextTimeout;
+                    providerSocket.setSoTimeout(timeout);
+                }
                 try {
+                    receivePacket.setLength(RECEIVE_BUFFER_SIZE);
                     providerSocket.receive(receivePacket);
+                    lastReceiveTime = System.currentTimeMillis();
                 } catch (SocketTimeoutException ex) {
-                    System.err.println("UDP Server receive timeout, x=" + en.x + " y=" + en.y);
+                    nextDeadline = expireParkedRequests();
+                    if (System.currentTimeMillis() - lastReceiveTime < RECEIVE_TIMEOUT)
+                        continue;
+                    System.err.println("UDP Server receive timeout, x=" + en.getX() + " y=" + en.getY());
                     if (stop)
                         break;
+                    lastReceiveTime = System.currentTimeMillis();
                     continue;
                 }
-                ByteBuffer buf = ByteBuffer.wrap(receivePacket.getData()).order(ByteOrder.LITTLE_ENDIAN);
-                dataTypeOrdinal = buf.getInt();
-                step = buf.getInt();
-                
-                dataToSend = en.getValue(Node.DataTypes.values()[dataTypeOrdinal], step);        
-                sendBuffer = ByteBuffer.allocate(SEND_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN).putFloat(dataToSend).array();                                
-                sendPacket = new DatagramPacket(sendBuffer, sendBuffer.length, receivePacket.getAddress(), receivePacket.getPort());
-                providerSocket.send(sendPacket);                
+                receiveBuffer.clear();
+                receiveBuffer.limit(receivePacket.getLength());
+                handleReceivedMessage(receiveBuffer, getClientAddress(receivePacket.getAddress(), receivePacket.getPort()));
+                /* after the message, which may have parked a request */
+                nextDeadline = expireParkedRequests();
             }  
-            System.err.println("UDP server thread finished, x=" + en.x + " y=" + en.y);
+            System.err.println("UDP server thread finished, x=" + en.getX() + " y=" + en.getY());
         } catch(IOException e) {
-            System.err.println("UDP server thread finished exception, x=" + en.x + " y=" + en.y);
+            System.err.println("UDP server thread finished exception, x=" + en.getX() + " y=" + en.getY());
             Logger.getLogger(NodeUDPServer.class.getName()).log(Level.SEVERE, null, e);
         } finally {
-            System.err.println("UDP server thread finished finally, x=" + en.x + " y=" + en.y);
+            System.err.println("UDP server thread finished finally, x=" + en.getX() + " y=" + en.getY());
             providerSocket.close();                  
         }
     }
     
     
+    /**
+     * Registers the server on the selector of a shared UDP server loop (instead of running it on its own thread).
+     * @param selector  the selector of the loop
+     * @throws IOException
+     */
+    void register(Selector selector) throws IOException {
+        lastReceiveTime = System.currentTimeMillis();
+        providerChannel.configureBlocking(false);
+        providerChannel.register(selector, SelectionKey.OP_READ, this);
+    }
+    
+    
+    /**
+     * Handles all received messages (shared UDP server loop).
+     * @throws IOException
+     */
+    void receiveMessages() throws IOException {
+        SocketAddress client;
+        receiveBuffer.clear();
+        while ((client = providerChannel.receive(receiveBuffer)) != null) {
+            receiveBuffer.flip();
+            handleReceivedMessage(receiveBuffer, client);
+            receiveBuffer.clear();
+        }
+        lastReceiveTime = System.currentTimeMillis();
+    }
+    
+    
+    /**
+     * Returns the socket address of a client, reusing the address of a recent client
+     * (server on its own thread).
+     * @param address   address of the client
+     * @param port      port of the client
+     * @return          the socket address
+     */
+    private SocketAddress getClientAddress(InetAddress address, int port) {
+        for (InetSocketAddress client : recentClients) {
+            if (client != null && client.getPort() == port && client.getAddress().equals(address))
+                return client;
+        }
+        final InetSocketAddress client = new InetSocketAddress(address, port);
+        recentClients[nextRecentClient] = client;
+        nextRecentClient = (nextRecentClient+1) % RECENT_CLIENTS;
+        return client;
+    }
+    
+    
+    /**
+     * Expires the parked requests, and closes the server if it has been stopped
+     * and it hasn't received messages for RECEIVE_TIMEOUT (shared UDP server loop).
+     * @param now   the current time
+     * @return      false if the server has been closed
+     */
+    boolean checkTimeouts(long now) {
+        expireParkedRequests();
+        if (!stop || now - lastReceiveTime < RECEIVE_TIMEOUT)
+            return true;
+        System.err.println("UDP server finished, x=" + en.getX() + " y=" + en.getY());
+        providerSocket.close();
+        return false;
+    }
+    
+    
+    /**
+     * Handles a received message. A malformed message is only reported, it doesn't stop the server
+     * (or the shared loop serving the servers of other nodes).
+     * 
+     * @param buf       the message
+     * @param client    address of the client
+     * @throws IOException
+     */
+    private void handleReceivedMessage(ByteBuffer buf, SocketAddress client) throws IOException {
+        try {
+            handleMessage(buf, client);
+        } catch (RuntimeException ex) {
+            System.err.println("Error in handleMessage(): malformed message from " + client + " (" + ex + "), x=" + en.getX() + " y=" + en.getY());
+        }
+    }
+    
+    
+    /**
+     * Checks that the rest of a message is long enough for the fields which are read next.
+     * @param buf       the message
+     * @param size      the length of the fields in bytes
+     * @param method    the name of the handler (for the error message)
+     * @return          true if the message is long enough
+     */
+    private static boolean hasRemaining(ByteBuffer buf, int size, String method) {
+        if (buf.remaining() >= size)
+            return true;
+        System.err.println("Error in " + method + "(): message too short");
+        return false;
+    }
+    
+    
+    /**
+     * Handles a message of a client: answers a request, or parks it until its data is published,
+     * stores a subscription, or puts a pushed value into the inbox.
+     * 
+     * @param buf       the message
+     * @param client    address of the client
+     * @throws IOException
+     */
+    private void handleMessage(ByteBuffer buf, SocketAddress client) throws IOException {
+        if (!hasRemaining(buf, INT_SIZE, "handleMessage"))
+            return;
+        int dataTypeOrdinal = buf.getInt();
+        final int step;
+        final int x, y;
+        long requestId = NO_REQUEST_ID;
+        
+        /* Subscription: inbox port and data types of the subscriber, answered with 0 */
+        if (dataTypeOrdinal == UDPMessageTypes.SUBSCRIBE.getCode()) {
+            if (!hasRemaining(buf, 4*INT_SIZE, "handleMessage"))
+                return;
+            x = buf.getInt();
+            y = buf.getInt();
+            final int inboxPort = buf.getInt();
+            subscribe(new Subscriber(((InetSocketAddress)client).getAddress(), inboxPort, x, y, buf.getInt()));
+            sendData(0, client, NO_REQUEST_ID, answerBuffer);
+            return;
+        }
+        /* Pushed value of a neighbor */
+        if (dataTypeOrdinal == UDPMessageTypes.PUSH.getCode()) {
+            if (!hasRemaining(buf, 6*INT_SIZE, "handleMessage"))
+                return;
+            x = buf.getInt();
+            y = buf.getInt();
+            final int pushedTypeOrdinal = buf.getInt();
+            final int tag = buf.getInt();
+            step = buf.getInt();
+            if (pushedTypeOrdinal < 0 || pushedTypeOrdinal >= DATA_TYPES.length) {
+                System.err.println("Error in handleMessage(): invalid data type of a pushed value " + pushedTypeOrdinal);
+                return;
+            }
+            if (inbox != null)
+                inbox.put(x, y, DATA_TYPES[pushedTypeOrdinal], tag, step, buf.getFloat());
+            return;
+        }
+        /* Batched request: several data types and step ranges of the grid point (x,y) */
+        if (dataTypeOrdinal == UDPMessageTypes.GET_CELL_DATA_BATCH.getCode()) {
+            handleBatch(buf, client, false, 0, 0, null, PayloadCodec.NO_REFERENCE);
+            return;
+        }
+        /* Message with a versioned header */
+        if (dataTypeOrdinal == UDPMessageTypes.VERSIONED.getCode()) {
+            handleVersioned(buf, client);
+            return;
+        }
+        /* Extended request with request ID: data of the grid point (x,y) */
+        if (dataTypeOrdinal == UDPMessageTypes.GET_TAGGED_CELL_DATA.getCode()) {
+            if (!hasRemaining(buf, 5*INT_SIZE, "handleMessage"))
+                return;
+            requestId = buf.getInt() & 0xFFFFFFFFL;
+            dataTypeOrdinal = buf.getInt();
+            step = buf.getInt();
+            x = buf.getInt();
+            y = buf.getInt();
+        }
+        /* Extended request: data of the grid point (x,y) */
+        else if (dataTypeOrdinal == UDPMessageTypes.GET_CELL_DATA.getCode()) {
+            if (!hasRemaining(buf, 4*INT_SIZE, "handleMessage"))
+                return;
+            dataTypeOrdinal = buf.getInt();
+            step = buf.getInt();
+            x = buf.getInt();
+            y = buf.getInt();
+        }
+        /* Original request: data of this node */
+        else {
+            if (!hasRemaining(buf, INT_SIZE, "handleMessage"))
+                return;
+            step = buf.getInt();
+            x = en.getX();
+            y = en.getY();
+        }
+        if (dataTypeOrdinal < 0 || dataTypeOrdinal >= DATA_TYPES.length || step < 0) {
+            System.err.println("Error in handleMessage(): invalid request " + dataTypeOrdinal + " " + step);
+            return;
+        }
+        final Node.DataTypes dataType = DATA_TYPES[dataTypeOrdinal];
+        final DataStruct data = en.getDataStruct(dataType, x, y);
+        final float dataToSend = (data != null) ? data.getData(step) : Float.NaN;
+        
+        /* Data not available yet: park the request until it is published. */
+        if (Float.isNaN(dataToSend) && data != null)
+            park(data, new ParkedRequest(step, client, requestId, System.currentTimeMillis() + PARKING_TIMEOUT));
+        /* Original request for data which doesn't change any more: the cached answer is sent. */
+        else if (requestId == NO_REQUEST_ID && dataType != Node.DataTypes.DZDT && !Float.isNaN(dataToSend) && x == en.getX() && y == en.getY())
+            providerChannel.send(getCachedAnswer(dataType, step, dataToSend), client);
+        else
+            sendData(dataToSend, client, requestId, answerBuffer);
+    }
+    
+    
+    /**
+     * Returns the encoded answer of an original request (encoded at the first request).
+     * 
+     * @param dataType  the type of the data (not dz/dt)
+     * @param step      the step of the data
+     * @param value     the value (which has been published)
+     * @return          the answer, ready to be sent
+     */
+    private ByteBuffer getCachedAnswer(Node.DataTypes dataType, int step, float value) {
+        ByteBuffer[] answers = cachedAnswers[dataType.ordinal()];
+        if (step >= answers.length) {
+            answers = Arrays.copyOf(answers, Math.max(step+1, 2*answers.length));
+            cachedAnswers[dataType.ordinal()] = answers;
+        }
+        if (answers[step] == null)
+            answers[step] = ByteBuffer.allocate(SEND_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN).putFloat(0, value);
+        answers[step].clear();
+        return answers[step];
+    }
+    
+    
+    /**
+     * Handles a message with a versioned header.
+     * 
+     * @param buf       the message (after the marker)
+     * @param client    address of the client
+     * @throws IOException
+     */
+    private void handleVersioned(ByteBuffer buf, SocketAddress client) throws IOException {
+        if (!hasRemaining(buf, ProtocolHeader.SIZE - INT_SIZE, "handleVersioned"))
+            return;
+        final int version = buf.getShort();
+        final int type = buf.getShort();
+        final int sequence = buf.getInt();
+        final int sourceId = buf.getInt();
+        if (!ProtocolHeader.isSupported(version, type)) {
+            System.err.println("Error in handleVersioned(): unknown protocol version or message type");
+            return;
+        }
+        /* Codec block: codec of the answer, and the last answer decoded by the client */
+        PayloadCodec codec = null;
+        int referenceId = PayloadCodec.NO_REFERENCE;
+        if (version >= ProtocolHeader.CODEC_VERSION) {
+            if (!hasRemaining(buf, PayloadCodec.REQUEST_SIZE, "handleVersioned"))
+                return;
+            codec = PayloadCodec.get(buf);
+            referenceId = buf.getInt();
+            if (codec == null) {
+                System.err.println("Error in handleVersioned(): unknown payload codec");
+                return;
+            }
+        }
+        switch (MESSAGE_TYPES[type]) {
+            case GET_CELL_DATA_BATCH:
+                handleBatch(buf, client, true, sequence, sourceId, codec, referenceId);
+                break;
+            case GET_HALO_DATA:
+                handleHaloRequest(buf, client, sequence, sourceId, codec, referenceId);
+                break;
+            case NODE_DESCRIPTOR:
+                handleNodeDescriptor(buf, client, sequence, sourceId);
+                break;
+            default:
+                System.err.println("Error in handleVersioned(): unexpected message type " + MESSAGE_TYPES[type]);
+                break;
+        }
+    }
+    
+    
+    /**
+     * Handles the new descriptor of a reassigned grid point sent by the main server (NODE_DESCRIPTOR):
+     * x, y, address, port, node type and protocol version. The node (or tile) takes the descriptor, and
+     * the message is acknowledged with a header of the same sequence number (resent messages, too).
+     * Messages of other senders are ignored and not acknowledged.
+     * 
+     * @param buf       the message (after the versioned header)
+     * @param client    address of the main server
+     * @param sequence  sequence number of the message
+     * @param sourceId  source ID of the message (MAIN_SERVER_ID)
+     * @throws IOException
+     */
+    private void handleNodeDescriptor(ByteBuffer buf, SocketAddress client, int sequence, int sourceId) throws IOException {
+        if (sourceId != ProtocolHeader.MAIN_SERVER_ID || !isMainServer(client)) {
+            System.err.println("Error in handleNodeDescriptor(): descriptor not sent by the main server, from " + client);
+            return;
+        }
+        if (buf.remaining() < ProtocolHeader.DESCRIPTOR_SIZE) {
+            System.err.println("Error in handleNodeDescriptor(): message too short");
+            return;
+        }
+        final int x = buf.getInt();
+        final int y = buf.getInt();
+        final byte[] address = new byte[4];
+        buf.get(address);
+        final int port = buf.getInt();
+        final boolean isSimulated = buf.getInt() != 0;
+        final int protocolVersion = buf.getInt();
+        
+        /* A node in the process of the main server registers with the loopback address, *
+         * remote peers reach it at the address of the main server.                      */
+        InetAddress nodeAddress = InetAddress.getByAddress(address);
+        if (nodeAddress.isLoopbackAddress() && client instanceof InetSocketAddress && !((InetSocketAddress)client).getAddress().isLoopbackAddress())
+            nodeAddress = ((InetSocketAddress)client).getAddress();
+        if (en instanceof NeighborObserver)
+            ((NeighborObserver)en).setNodeDescriptor(x, y, new NodeDescriptor(nodeAddress, port, isSimulated, null, protocolVersion));
+        
+        answerBuffer.clear();
+        ProtocolHeader.put(answerBuffer, UDPMessageTypes.NODE_DESCRIPTOR, sequence, ProtocolHeader.sourceId(en.getX(), en.getY()));
+        answerBuffer.flip();
+        providerChannel.send(answerBuffer, client);
+    }
+    
+    
+    /**
+     * Checks whether a message comes from the address of the main server. If the main server runs on this
+     * host (its address is a loopback address), the loopback addresses of both IP versions are accepted.
+     * @param client    address of the sender
+     * @return          true if the sender has the address of the main server
+     */
+    private boolean isMainServer(SocketAddress client) {
+        if (!(client instanceof InetSocketAddress))
+            return false;
+        final InetAddress address = ((InetSocketAddress)client).getAddress();
+        for (InetAddress mainServerAddress : mainServerAddresses) {
+            if (mainServerAddress.equals(address) || (mainServerAddress.isLoopbackAddress() && address.isLoopbackAddress()))
+                return true;
+        }
+        return false;
+    }
+    
+    
+    /**
+     * Handles a batched request: request ID (only without versioned header), x, y, number of entries,
+     * and (data type, first step, number of steps) of every entry.
+     * 
+     * @param buf           the message (after the message type or the versioned header)
+     * @param client        address of the client
+     * @param isVersioned   true if the request has a versioned header
+     * @param sequence      sequence number of the versioned request
+     * @param sourceId      source ID of the versioned request
+     * @param codec         codec of the answer (null: raw values)
+     * @param referenceId   ID of the last answer decoded by the client on the link
+     * @throws IOException
+     */
+    private void handleBatch(ByteBuffer buf, SocketAddress client, boolean isVersioned, int sequence, int sourceId, PayloadCodec codec, int referenceId) throws IOException {
+        if (!hasRemaining(buf, (isVersioned ? 3 : 4)*INT_SIZE, "handleBatch"))
+            return;
+        final BatchRequest batch = currentBatch;
+        batch.isVersioned = isVersioned;
+        batch.requestId = isVersioned ? sequence : buf.getInt();
+        batch.sourceId = sourceId;
+        batch.codec = codec;
+        batch.referenceId = referenceId;
+        final int x = buf.getInt();
+        final int y = buf.getInt();
+        final int count = buf.getInt();
+        if (count < 1 || count > MAX_BATCH_ENTRIES) {
+            System.err.println("Error in handleBatch(): invalid number of entries " + count);
+            return;
+        }
+        if (!hasRemaining(buf, 3*count*INT_SIZE, "handleBatch"))
+            return;
+        int numValues = 0;
+        for (int e=0; e<count; e++) {
+            final int dataTypeOrdinal = buf.getInt();
+            final int firstStep = buf.getInt();
+            final int numSteps = buf.getInt();
+            if (dataTypeOrdinal < 0 || dataTypeOrdinal >= DATA_TYPES.length || firstStep < 0 || numSteps < 1) {
+                System.err.println("Error in handleBatch(): invalid entry " + dataTypeOrdinal + " " + firstStep + " " + numSteps);
+                return;
+            }
+            numValues += numSteps;
+            if (numValues > MAX_BATCH_VALUES) {
+                System.err.println("Error in handleBatch(): more than " + MAX_BATCH_VALUES + " values requested");
+                return;
+            }
+            batch.xs[e] = x;
+            batch.ys[e] = y;
+            batch.dataTypes[e] = DATA_TYPES[dataTypeOrdinal];
+            batch.firstSteps[e] = firstStep;
+            batch.numSteps[e] = numSteps;
+        }
+        batch.count = count;
+        batch.numValues = numValues;
+        answerBatch(batch, client);
+    }
+    
+    
+    /**
+     * Handles a versioned request for a data type of several grid points: data type, step,
+     * number of grid points, and (x, y) of every grid point.
+     * 
+     * @param buf       the message (after the versioned header)
+     * @param client    address of the client
+     * @param sequence      sequence number of the request
+     * @param sourceId      source ID of the request
+     * @param codec         codec of the answer (null: raw values)
+     * @param referenceId   ID of the last answer decoded by the client on the link
+     * @throws IOException
+     */
+    private void handleHaloRequest(ByteBuffer buf, SocketAddress client, int sequence, int sourceId, PayloadCodec codec, int referenceId) throws IOException {
+        if (!hasRemaining(buf, 3*INT_SIZE, "handleHaloRequest"))
+            return;
+        final int dataTypeOrdinal = buf.getInt();
+        final int step = buf.getInt();
+        final int count = buf.getInt();
+        if (dataTypeOrdinal < 0 || dataTypeOrdinal >= DATA_TYPES.length || step < 0 || count < 1 || count > MAX_HALO_POINTS) {
+            System.err.println("Error in handleHaloRequest(): invalid request " + dataTypeOrdinal + " " + step + " " + count);
+            return;
+        }
+        if (!hasRemaining(buf, 2*count*INT_SIZE, "handleHaloRequest"))
+            return;
+        final BatchRequest batch = currentBatch;
+        for (int i=0; i<count; i++) {
+            batch.xs[i] = buf.getInt();
+            batch.ys[i] = buf.getInt();
+            batch.dataTypes[i] = DATA_TYPES[dataTypeOrdinal];
+            batch.firstSteps[i] = step;
+            batch.numSteps[i] = 1;
+        }
+        batch.count = count;
+        batch.numValues = count;
+        batch.isVersioned = true;
+        batch.requestId = sequence;
+        batch.sourceId = sourceId;
+        batch.codec = codec;
+        batch.referenceId = referenceId;
+        answerBatch(batch, client);
+    }
+    
+    
+    /**
+     * Answers a batched request when all values are available, otherwise parks a copy
+     * of it on the data structure of the first missing value. A versioned request which is
+     * already parked (resent by the client) is dropped.
+     * 
+     * @param batch     the request (reused for the next request)
+     * @param client    address of the client
+     * @throws IOException
+     */
+    private void answerBatch(BatchRequest batch, SocketAddress client) throws IOException {
+        final DataStruct missing = batch.collect(en);
+        if (missing == null) {
+            sendBatch(batch, client, answerBuffer, false);
+            return;
+        }
+        if (batch.isVersioned) {
+            parkingLock.lock();
+            try {
+                if (!parkedSequences.add(batch.getSequenceKey()))
+                    return;
+            } finally {
+                parkingLock.unlock();
+            }
+        }
+        park(missing, new ParkedRequest(0, client, batch.requestId, System.currentTimeMillis() + PARKING_TIMEOUT, batch.copy()));
+    }
+    
+    
+    /**
+     * Sends the values of a batched request to a client.
+     * @param batch     the request with the values (in the order of the request)
+     * @param client    address of the client
+     * @param buf       the buffer of the answer (owned by the calling thread)
+     * @param isParked  true if the request has been parked (the versioned answer is marked)
+     * @throws IOException
+     */
+    private void sendBatch(BatchRequest batch, SocketAddress client, ByteBuffer buf, boolean isParked) throws IOException {
+        buf.clear();
+        final int sourceId = ProtocolHeader.sourceId(en.getX(), en.getY()) | (isParked ? ProtocolHeader.PARKED_ANSWER : 0);
+        if (batch.codec != null) {
+            ProtocolHeader.put(buf, ProtocolHeader.CODEC_VERSION, UDPMessageTypes.CELL_DATA, batch.requestId, sourceId);
+            encodeValues(batch, buf);
+        }
+        else {
+            if (batch.isVersioned) {
+                ProtocolHeader.put(buf, UDPMessageTypes.CELL_DATA, batch.requestId, sourceId);
+                buf.putInt(batch.numValues);
+            }
+            else
+                buf.putInt(batch.requestId);
+            for (int i=0; i<batch.numValues; i++)
+                buf.putFloat(batch.values[i]);
+        }
+        buf.flip();
+        providerChannel.send(buf, client);
+    }
+    
+    
+    /**
+     * Writes the codec block, the number of values and the encoded values of an answer, and keeps
+     * the answer as the reference of the link. The values are predicted by the reference named
+     * in the request if it is still the last answer of the link.
+     * @param batch     the request with the values (the values are quantized in place)
+     * @param buf       the buffer of the answer (after the header)
+     */
+    private void encodeValues(BatchRequest batch, ByteBuffer buf) {
+        final long linkKey = batch.getLinkKey();
+        final PayloadCodec.Reference reference = codecReferences.get(linkKey);
+        final boolean isPredicted = batch.referenceId != PayloadCodec.NO_REFERENCE && reference != null
+                && reference.matches(batch.referenceId, batch.codec, batch.numValues);
+        int answerId = nextAnswerId.incrementAndGet();
+        if (answerId == PayloadCodec.NO_REFERENCE)
+            answerId = nextAnswerId.incrementAndGet();
+        batch.codec.putAnswer(buf, answerId, isPredicted ? batch.referenceId : PayloadCodec.NO_REFERENCE);
+        buf.putInt(batch.numValues);
+        batch.codec.encode(buf, batch.values, batch.numValues, isPredicted ? reference.values : null);
+        codecReferences.put(linkKey, new PayloadCodec.Reference(answerId, batch.codec, Arrays.copyOf(batch.values, batch.numValues)));
+    }
+    
+    
+    /**
+     * Sends a data value to a client.
+     * @param dataToSend    the data value
+     * @param client        address of the client
+     * @param requestId     ID of the request (NO_REQUEST_ID: the answer contains the value only)
+     * @param buf           the buffer of the answer (owned by the calling thread)
+     * @throws IOException
+     */
+    private void sendData(float dataToSend, SocketAddress client, long requestId, ByteBuffer buf) throws IOException {
+        buf.clear();
+        if (requestId != NO_REQUEST_ID)
+            buf.putInt((int)requestId);
+        buf.putFloat(dataToSend);
+        buf.flip();
+        providerChannel.send(buf, client);
+    }
+    
+    
+    /**
+     * Adds (or replaces) a subscriber, and sends it the data already available.
+     * Data set in the meantime may be sent twice, but it isn't lost.
+     * The steps of dz/dt are reused in every step of the forecast, so they are sent only when set.
+     * @param subscriber    the subscriber
+     * @throws IOException
+     */
+    private void subscribe(Subscriber subscriber) throws IOException {
+        synchronized (subscribers) {
+            for (Subscriber s : subscribers) {
+                if (s.address.equals(subscriber.address) && s.port == subscriber.port && s.x == subscriber.x && s.y == subscriber.y)
+                    subscribers.remove(s);
+            }
+            subscribers.add(subscriber);
+        }
+        for (Node.DataTypes dataType : DATA_TYPES) {
+            if (dataType == Node.DataTypes.DZDT || !subscriber.isSubscribedTo(dataType, subscriber.x, subscriber.y))
+                continue;
+            final DataStruct data = en.getDataStruct(dataType, subscriber.x, subscriber.y);
+            if (data == null)
+                continue;
+            for (int step=0; step<=data.getStep(); step++)
+                sendPush(subscriber, dataType, 0, step, data.getData(step));
+        }
+    }
+    
+    
+    /**
+     * Sends a new value of a grid point to its subscribers.
+     * It is called by the thread which set the value.
+     * 
+     * @param x         x coordinate of the grid point
+     * @param y         y coordinate of the grid point
+     * @param dataType  the type of data
+     * @param tag       the tag of the value (step of the forecast for dz/dt, 0 for other types)
+     * @param step      the step of the value
+     * @param value     the value
+     */
+    public void push(int x, int y, Node.DataTypes dataType, int tag, int step, float value) {
+        for (Subscriber subscriber : subscribers) {
+            if (!subscriber.isSubscribedTo(dataType, x, y))
+                continue;
+            try {
+                sendPush(subscriber, dataType, tag, step, value);
+            } catch (IOException ex) {
+                Logger.getLogger(NodeUDPServer.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+    
+    
+    /**
+     * Sends the available steps of a data structure to its subscribers
+     * (used after setting the step without setting the values).
+     * 
+     * @param x         x coordinate of the grid point
+     * @param y         y coordinate of the grid point
+     * @param dataType  the type of data
+     */
+    public void pushAvailable(int x, int y, Node.DataTypes dataType) {
+        final DataStruct data = en.getDataStruct(dataType, x, y);
+        if (data == null)
+            return;
+        for (int step=0; step<=data.getStep(); step++)
+            push(x, y, dataType, 0, step, data.getData(step));
+    }
+    
+    
+    /**
+     * Sends a value to a subscriber (pushing threads share the push buffer).
+     * @param subscriber    the subscriber
+     * @param dataType      the type of data
+     * @param tag           the tag of the value
+     * @param step          the step of the value
+     * @param value         the value
+     * @throws IOException
+     */
+    private void sendPush(Subscriber subscriber, Node.DataTypes dataType, int tag, int step, float value) throws IOException {
+        pushLock.lock();
+        try {
+            final ByteBuffer buf = pushBuffer;
+            buf.clear();
+            buf.putInt(UDPMessageTypes.PUSH.getCode());
+            buf.putInt(subscriber.x);
+            buf.putInt(subscriber.y);
+            buf.putInt(dataType.ordinal());
+            buf.putInt(tag);
+            buf.putInt(step);
+            buf.putFloat(value);
+            buf.flip();
+            providerChannel.send(buf, subscriber.inbox);
+        } finally {
+            pushLock.unlock();
+        }
+    }
+    
+    
+    /**
+     * Parks a request until its data is published.
+     * @param data      the data structure of the requested data
+     * @param request   the request
+     */
+    private void park(DataStruct data, ParkedRequest request) {
+        parkingLock.lock();
+        try {
+            List<ParkedRequest> requests = parkedRequests.get(data);
+            if (requests == null) {
+                requests = new ArrayList<>();
+                parkedRequests.put(data, requests);
+                data.addListener(this);
+            }
+            requests.add(request);
+        } finally {
+            parkingLock.unlock();
+        }
+        /* The data may have been published since it was queried. */
+        dataPublished(data);
+    }
+    
+    
+    /**
+     * Answers the parked requests whose data has become available.
+     * Batched requests still missing values of other data structures are parked on them.
+     * It is called by the thread which published the data.
+     * @param data  the data structure
+     */
+    @Override
+    public void dataPublished(DataStruct data) {
+        Map<ParkedRequest, DataStruct> moved = null;
+        parkingLock.lock();
+        try {
+            final List<ParkedRequest> requests = parkedRequests.get(data);
+            if (requests == null)
+                return;
+            for (Iterator<ParkedRequest> it = requests.iterator(); it.hasNext(); ) {
+                final ParkedRequest request = it.next();
+                try {
+                    if (request.batch != null) {
+                        final DataStruct missing = request.batch.collect(en);
+                        if (missing == data)
+                            continue;
+                        it.remove();
+                        if (missing == null) {
+                            unparkSequence(request.batch);
+                            sendBatch(request.batch, request.client, parkedAnswerBuffer, true);
+                        }
+                        else {
+                            if (moved == null)
+                                moved = new HashMap<>();
+                            moved.put(request, missing);
+                        }
+                        continue;
+                    }
+                    final float dataToSend = data.getData(request.step);
+                    if (Float.isNaN(dataToSend))
+                        continue;
+                    it.remove();
+                    sendData(dataToSend, request.client, request.requestId, parkedAnswerBuffer);
+                } catch (IOException ex) {
+                    Logger.getLogger(NodeUDPServer.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        } finally {
+            parkingLock.unlock();
+        }
+        if (moved != null) {
+            for (Map.Entry<ParkedRequest, DataStruct> entry : moved.entrySet())
+                park(entry.getValue(), entry.getKey());
+        }
+    }
+    
+    
+    /**
+     * Forgets the sequence number of a versioned request which is answered (parkingLock is held).
+     * @param batch     the request
+     */
+    private void unparkSequence(BatchRequest batch) {
+        if (batch.isVersioned)
+            parkedSequences.remove(batch.getSequenceKey());
+    }
+    
+    
+    /**
+     * Answers the parked requests with NaN after PARKING_TIMEOUT (the clients will ask again).
+     * @return  the deadline of the first request which is still parked (Long.MAX_VALUE if there is none)
+     */
+    private long expireParkedRequests() {
+        final long now = System.currentTimeMillis();
+        long nextDeadline = Long.MAX_VALUE;
+        parkingLock.lock();
+        try {
+            for (List<ParkedRequest> requests : parkedRequests.values()) {
+                for (Iterator<ParkedRequest> it = requests.iterator(); it.hasNext(); ) {
+                    final ParkedRequest request = it.next();
+                    if (request.deadline > now) {
+                        nextDeadline = Math.min(nextDeadline, request.deadline);
+                        continue;
+                    }
+                    it.remove();
+                    try {
+                        if (request.batch != null) {
+                            request.batch.collect(en);
+                            unparkSequence(request.batch);
+                            sendBatch(request.batch, request.client, parkedAnswerBuffer, true);
+                        }
+                        else
+                            sendData(Float.NaN, request.client, request.requestId, parkedAnswerBuffer);
+                    } catch (IOException ex) {
+                        Logger.getLogger(NodeUDPServer.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+        } finally {
+            parkingLock.unlock();
+        }
+        return nextDeadline;
+    }
+    
+    
     /**
      * Returns the listening port of the node UDP server.
      * @return listening port of the node UDP server
@@ -99,6 +1125,15 @@ public class NodeUDPServer implements Runnable {
     }
     
     
+    /**
+     * Sets the inbox of the values pushed by the neighbors.
+     * @param inbox     the inbox
+     */
+    public void setInbox(Inbox inbox) {
+        this.inbox = inbox;
+    }
+    
+    
     /**
      * Sends a stop signal to the server.
      */
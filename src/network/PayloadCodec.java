@@ -0,0 +1,285 @@
+package network;
+
+import datastructures.NodeDescriptor;
+import eniac.Main;
+import eniac.Main.PayloadCodecs;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class implements the codecs of the values in the answers (CELL_DATA) between nodes and tiles.
+ *
+ * The codec is chosen by the client for every link: the links to real nodes, which may sit on slow
+ * lines, use the codec given by --codec if both peers negotiated CODEC_VERSION, and the other links
+ * keep the raw values (the messages of version 1). The request names the codec and the last answer
+ * decoded by the client on the link (the reference), and the server encodes the values:
+ *
+ *  - DELTA: the difference of the bits of every value and of a prediction (as integers, zigzag encoded,
+ *    so small differences of either sign have leading zero bytes) is sent without its leading zero
+ *    bytes, after a 4-bit length for every value. The prediction is the value of the reference (the
+ *    previous iteration of the same exchange), or the previous value of the answer if the server
+ *    doesn't have the reference. It is lossless.
+ *  - QUANTIZED: as DELTA, but the values are rounded to a given number of mantissa bits first, and the
+ *    dropped bits aren't sent (the relative error is at most 2^-(bits+1)).
+ *
+ * Every encoded answer gets a new answer ID, and the server keeps the values of the last answer of
+ * every link (source and request). A reference is used only if its ID matches, so both sides predict
+ * from the same values, and an answer whose reference has been lost is encoded without reference.
+ */
+public class PayloadCodec {
+
+    public static final int NO_REFERENCE = 0;
+    public static final int REQUEST_SIZE = (2*Byte.SIZE + Integer.SIZE) / 8;      // codec(1), mantissa bits(1), reference answer ID(4)
+    public static final int ANSWER_SIZE = (2*Byte.SIZE + 2*Integer.SIZE) / 8;     // codec(1), mantissa bits(1), answer ID(4), reference answer ID(4)
+    public static final int MANTISSA_BITS = 23;
+    private static final PayloadCodecs[] CODECS = PayloadCodecs.values();
+    private static final PayloadCodec[][] INSTANCES = new PayloadCodec[CODECS.length][MANTISSA_BITS+1];
+    static {
+        for (PayloadCodecs type : CODECS)
+            for (int bits=1; bits<=MANTISSA_BITS; bits++)
+                INSTANCES[type.ordinal()][bits] = new PayloadCodec(type, bits);
+    }
+
+    /*
+     * statistics of the encoded answers: number of values, values predicted by a reference, and bytes of the encoded values
+     */
+    private static final AtomicLong encodedValues = new AtomicLong();
+    private static final AtomicLong predictedValues = new AtomicLong();
+    private static final AtomicLong encodedBytes = new AtomicLong();
+
+    public final PayloadCodecs type;
+    public final int mantissaBits;                                  // mantissa bits kept (MANTISSA_BITS: lossless)
+    private final int droppedBits;
+
+
+    /**
+     * The values of an answer, which predict the values of the next answer on the same link.
+     */
+    public static class Reference {
+        public final int answerId;
+        public final PayloadCodec codec;
+        public final float[] values;
+
+        public Reference(int answerId, PayloadCodec codec, float[] values) {
+            this.answerId = answerId;
+            this.codec = codec;
+            this.values = values;
+        }
+
+        /**
+         * Checks whether the reference is the one named in a message.
+         * @param answerId  the ID of the reference in the message
+         * @param codec     the codec of the message
+         * @param count     the number of values in the message
+         * @return          true if the reference can predict the values of the message
+         */
+        public boolean matches(int answerId, PayloadCodec codec, int count) {
+            return this.answerId == answerId && this.codec == codec && values.length == count;
+        }
+    }
+
+
+    /**
+     * Class constructor.
+     * @param type          the codec
+     * @param mantissaBits  mantissa bits kept by the QUANTIZED codec
+     */
+    private PayloadCodec(PayloadCodecs type, int mantissaBits) {
+        this.type = type;
+        this.mantissaBits = (type == PayloadCodecs.QUANTIZED) ? mantissaBits : MANTISSA_BITS;
+        this.droppedBits = MANTISSA_BITS - this.mantissaBits;
+    }
+
+
+    /**
+     * Returns a codec.
+     * @param type          the codec
+     * @param mantissaBits  mantissa bits kept by the QUANTIZED codec (1-23)
+     * @return              the codec (shared instance), or null if the number of bits is invalid
+     */
+    public static PayloadCodec get(PayloadCodecs type, int mantissaBits) {
+        if (mantissaBits < 1 || mantissaBits > MANTISSA_BITS)
+            return null;
+        return INSTANCES[type.ordinal()][(type == PayloadCodecs.QUANTIZED) ? mantissaBits : MANTISSA_BITS];
+    }
+
+
+    /**
+     * Returns the codec of a link, which is chosen by the client.
+     * @param version   the protocol version of the client
+     * @param nd        the descriptor of the server
+     * @return          the codec, or null if the link keeps the raw values (messages of version 1)
+     */
+    public static PayloadCodec forLink(int version, NodeDescriptor nd) {
+        if (Math.min(version, nd.protocolVersion) < ProtocolHeader.CODEC_VERSION || Main.getPayloadCodec() == PayloadCodecs.RAW)
+            return null;
+        if (nd.isSimulated && !Main.isPayloadCodecOnAllLinks())
+            return null;
+        return get(Main.getPayloadCodec(), Main.getCodecBits());
+    }
+
+
+    /**
+     * Reads the codec of a message (codec and mantissa bits).
+     * @param buf   the message (little-endian)
+     * @return      the codec, or null if it is unknown
+     */
+    public static PayloadCodec get(ByteBuffer buf) {
+        final int type = buf.get();
+        final int mantissaBits = buf.get();
+        if (type < 0 || type >= CODECS.length)
+            return null;
+        return get(CODECS[type], mantissaBits);
+    }
+
+
+    /**
+     * Writes the codec block of a request.
+     * @param buf           the request (little-endian)
+     * @param referenceId   ID of the last answer decoded on the link (NO_REFERENCE if there is none)
+     */
+    public void putRequest(ByteBuffer buf, int referenceId) {
+        buf.put((byte)type.ordinal());
+        buf.put((byte)mantissaBits);
+        buf.putInt(referenceId);
+    }
+
+
+    /**
+     * Writes the codec block of an answer.
+     * @param buf           the answer (little-endian)
+     * @param answerId      ID of the answer
+     * @param referenceId   ID of the reference which predicts the values (NO_REFERENCE if there is none)
+     */
+    public void putAnswer(ByteBuffer buf, int answerId, int referenceId) {
+        buf.put((byte)type.ordinal());
+        buf.put((byte)mantissaBits);
+        buf.putInt(answerId);
+        buf.putInt(referenceId);
+    }
+
+
+    /**
+     * Returns the maximum size of encoded values.
+     * @param count     the number of values
+     * @return          the size in bytes
+     */
+    public static int getMaxSize(int count) {
+        return (count+1)/2 + (count*Float.SIZE) / 8;
+    }
+
+
+    /**
+     * Rounds a value to the mantissa bits of the codec.
+     * @param value     the value
+     * @return          the rounded value
+     */
+    public float quantize(float value) {
+        if (droppedBits == 0)
+            return value;
+        if (Float.isNaN(value))
+            return Float.NaN;
+        final int bits = Float.floatToRawIntBits(value);
+        final int mask = -(1 << droppedBits);
+        final int rounded = (bits + (1 << (droppedBits-1))) & mask;
+        /* Rounding up the largest finite values would give infinity, they are truncated. */
+        if ((rounded & 0x7F800000) == 0x7F800000 && (bits & 0x7F800000) != 0x7F800000)
+            return Float.intBitsToFloat(bits & mask);
+        return Float.intBitsToFloat(rounded);
+    }
+
+
+    /**
+     * Encodes values (QUANTIZED rounds them in place, so they are the values decoded by the client).
+     * @param buf           the answer (little-endian)
+     * @param values        the values
+     * @param count         the number of values
+     * @param reference     the values of the reference (null: the previous value is the prediction)
+     */
+    public void encode(ByteBuffer buf, float[] values, int count, float[] reference) {
+        final int start = buf.position();
+        if (type == PayloadCodecs.RAW) {
+            for (int i=0; i<count; i++)
+                buf.putFloat(values[i]);
+        }
+        else {
+            /* 4-bit lengths of the values (two per byte), then the bytes of the values */
+            final int lengths = start;
+            buf.position(lengths + (count+1)/2);
+            int prediction = 0;
+            for (int i=0; i<count; i++) {
+                values[i] = quantize(values[i]);
+                final int bits = Float.floatToRawIntBits(values[i]);
+                if (reference != null)
+                    prediction = Float.floatToRawIntBits(reference[i]);
+                final int delta = (bits - prediction) >> droppedBits;      // the dropped bits are 0 in both
+                final int residual = (delta << 1) ^ (delta >> 31);            // zigzag: 0, -1, 1, -2, ... -> 0, 1, 2, 3, ...
+                final int length = (Integer.SIZE - Integer.numberOfLeadingZeros(residual) + 7) / 8;
+                for (int b=0; b<length; b++)
+                    buf.put((byte)(residual >>> (8*b)));
+                buf.put(lengths + i/2, (byte)((i%2 == 0) ? length : (buf.get(lengths + i/2) | (length << 4))));
+                prediction = bits;
+            }
+        }
+        encodedValues.addAndGet(count);
+        if (reference != null)
+            predictedValues.addAndGet(count);
+        encodedBytes.addAndGet(buf.position() - start);
+    }
+
+
+    /**
+     * Decodes values.
+     * @param buf           the answer (little-endian, positioned at the encoded values)
+     * @param values        the decoded values
+     * @param count         the number of values
+     * @param reference     the values of the reference named in the answer (null if it names none)
+     * @return              false if the encoded values are invalid
+     */
+    public boolean decode(ByteBuffer buf, float[] values, int count, float[] reference) {
+        if (type == PayloadCodecs.RAW) {
+            for (int i=0; i<count; i++)
+                values[i] = buf.getFloat();
+            return true;
+        }
+        final int lengths = buf.position();
+        buf.position(lengths + (count+1)/2);
+        int prediction = 0;
+        for (int i=0; i<count; i++) {
+            final int length = (buf.get(lengths + i/2) >> (4*(i%2))) & 0xF;
+            if (length > Integer.SIZE/8)
+                return false;
+            int residual = 0;
+            for (int b=0; b<length; b++)
+                residual |= (buf.get() & 0xFF) << (8*b);
+            if (reference != null)
+                prediction = Float.floatToRawIntBits(reference[i]);
+            final int delta = (residual >>> 1) ^ -(residual & 1);
+            final int bits = prediction + (delta << droppedBits);
+            values[i] = Float.intBitsToFloat(bits);
+            prediction = bits;
+        }
+        return true;
+    }
+
+
+    /**
+     * Returns the statistics of the encoded answers.
+     * @return  the number of values (and the predicted ones), and the bytes of the encoded and of the raw values
+     *          (null if no answer has been encoded)
+     */
+    public static String getStatistics() {
+        final long values = encodedValues.get();
+        if (values == 0)
+            return null;
+        final long bytes = encodedBytes.get();
+        return values + " values (" + predictedValues.get() + " predicted by a reference) in " + bytes + " bytes (raw: "
+                + (values*Float.SIZE / 8) + " bytes, " + String.format("%.1f", 100.0*bytes / (values*Float.SIZE / 8)) + "%)";
+    }
+
+
+    @Override
+    public String toString() {
+        return (type == PayloadCodecs.QUANTIZED) ? type + "(" + mantissaBits + " bits)" : type.toString();
+    }
+}
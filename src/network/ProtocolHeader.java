@@ -0,0 +1,153 @@
+package network;
+
+import eniac.Main.UDPMessageTypes;
+import java.nio.ByteBuffer;
+
+/**
+ * This class implements the versioned header of the UDP messages between capable peers.
+ *
+ * The protocol version is negotiated at registration with the main server (REGISTER_NODE,
+ * REGISTER_TILE), and it is delivered to the neighbors in the node descriptors. Peers with
+ * version 1 or later exchange versioned messages, legacy peers (e.g. real nodes with DSN-PC
+ * firmware) keep using the original messages.
+ *
+ * Header (little-endian, as the other messages): marker(4), version(2), message type(2),
+ * sequence number(4), source ID(4). The marker is the negative code of the message type VERSIONED,
+ * so it can't be mistaken for the data type ordinal of an original request. Answers carry the
+ * sequence number of the request, so a client drops stale duplicates (answers of earlier requests)
+ * instead of taking them for fresh ones, and a server drops resent requests which are already parked.
+ *
+ * Version 2 adds the payload codecs (see PayloadCodec). The version in the header is the layout of the
+ * message: messages with a codec block (after the header) have version 2, the others keep version 1,
+ * so the links which don't use a codec send the same messages as before.
+ *
+ * Version 3 adds the message NODE_DESCRIPTOR (layout of version 1): the main server sends the descriptor
+ * of a reassigned grid point (see StragglerMonitor) to the peers which have it as a neighbor: x(4), y(4),
+ * address(4), port(4), node type(4) and protocol version(4) after the header. They
+ * acknowledge it with a header-only NODE_DESCRIPTOR of the same sequence number. It is sent only to
+ * peers which negotiated version 3, the others don't know the message type.
+ *
+ * Version 4 marks the answers of parked requests (CELL_DATA answered when the data was published, or with NaN
+ * at the parking timeout): PARKED_ANSWER is set in their source ID. Such an answer measures how long the server
+ * took to publish the data, not the round trip, so clients don't sample it (see RetransmissionTimer). Earlier
+ * versions ignore the source ID of answers.
+ */
+public class ProtocolHeader {
+
+    public static final int VERSION = 4;                            // version of this implementation
+    public static final int LEGACY_VERSION = 0;                     // peers without the versioned header
+    public static final int FIRST_VERSION = 1;                      // messages without a codec block
+    public static final int CODEC_VERSION = 2;                      // messages with a codec block (payload codecs)
+    public static final int REASSIGNMENT_VERSION = 3;               // NODE_DESCRIPTOR messages of the main server
+    public static final int PARKED_ANSWER_VERSION = 4;              // answers of parked requests are marked
+    public static final int PARKED_ANSWER = 1 << 30;                // flag in the source ID of the answers of parked requests
+    public static final int MAIN_SERVER_ID = -1;                    // source ID of the main server (nodes and tiles have IDs >= 0)
+    public static final int SIZE = (4*Integer.SIZE) / 8;            // marker(4), version(2), message type(2), sequence number(4), source ID(4)
+    public static final int DESCRIPTOR_SIZE = (6*Integer.SIZE) / 8; // NODE_DESCRIPTOR after the header: x(4), y(4), address(4), port(4), node type(4), protocol version(4)
+
+    public final int version;
+    public final UDPMessageTypes type;
+    public final int sequence;
+    public final int sourceId;
+
+
+    /**
+     * Class constructor.
+     * @param version   protocol version of the sender
+     * @param type      the type of the message
+     * @param sequence  sequence number of the request (echoed in the answer)
+     * @param sourceId  ID of the sender
+     */
+    private ProtocolHeader(int version, UDPMessageTypes type, int sequence, int sourceId) {
+        this.version = version;
+        this.type = type;
+        this.sequence = sequence;
+        this.sourceId = sourceId;
+    }
+
+
+    /**
+     * Writes a header of a message without a codec block into a buffer.
+     * @param buf       the buffer (little-endian)
+     * @param type      the type of the message
+     * @param sequence  sequence number of the request (the sequence number of the request for answers)
+     * @param sourceId  ID of the sender
+     */
+    public static void put(ByteBuffer buf, UDPMessageTypes type, int sequence, int sourceId) {
+        put(buf, FIRST_VERSION, type, sequence, sourceId);
+    }
+
+
+    /**
+     * Writes a header into a buffer.
+     * @param buf       the buffer (little-endian)
+     * @param version   the layout of the message (FIRST_VERSION or CODEC_VERSION)
+     * @param type      the type of the message
+     * @param sequence  sequence number of the request (the sequence number of the request for answers)
+     * @param sourceId  ID of the sender
+     */
+    public static void put(ByteBuffer buf, int version, UDPMessageTypes type, int sequence, int sourceId) {
+        buf.putInt(UDPMessageTypes.VERSIONED.getCode());
+        buf.putShort((short)version);
+        buf.putShort((short)type.ordinal());
+        buf.putInt(sequence);
+        buf.putInt(sourceId);
+    }
+
+
+    /**
+     * Reads a header from a buffer (after the marker).
+     * @param buf   the buffer (little-endian)
+     * @return      the header, or null if its version or message type is unknown
+     */
+    public static ProtocolHeader get(ByteBuffer buf) {
+        final int version = buf.getShort();
+        final int type = buf.getShort();
+        final int sequence = buf.getInt();
+        final int sourceId = buf.getInt();
+        if (!isSupported(version, type))
+            return null;
+        return new ProtocolHeader(version, UDPMessageTypes.values()[type], sequence, sourceId);
+    }
+
+
+    /**
+     * Checks whether the header is the header of an answer of a parked request.
+     * @return  true if the answer was parked (only marked by peers of version PARKED_ANSWER_VERSION or later)
+     */
+    public boolean isParkedAnswer() {
+        return sourceId >= 0 && (sourceId & PARKED_ANSWER) != 0;
+    }
+
+
+    /**
+     * Checks the version and the message type of a header.
+     * @param version   the protocol version of the header
+     * @param type      the ordinal of the message type of the header
+     * @return          true if the version and the message type are known
+     */
+    public static boolean isSupported(int version, int type) {
+        return version > LEGACY_VERSION && version <= VERSION && type >= 0 && type < UDPMessageTypes.values().length;
+    }
+
+
+    /**
+     * Returns the version used with a peer.
+     * @param version   the version offered by the peer (LEGACY_VERSION if it doesn't offer any)
+     * @return          the highest version known by both sides
+     */
+    public static int negotiate(int version) {
+        return Math.max(LEGACY_VERSION, Math.min(version, VERSION));
+    }
+
+
+    /**
+     * Returns the ID of a node or tile used in the headers.
+     * @param x     x coordinate of the grid point of the node (or of the first grid point of the tile)
+     * @param y     y coordinate of the grid point of the node (or of the first grid point of the tile)
+     * @return      the ID
+     */
+    public static int sourceId(int x, int y) {
+        return x*65536+y;
+    }
+}
@@ -0,0 +1,143 @@
+package network;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class implements the global reduction of the residuals of the Poisson iteration at the main server.
+ *
+ * Every simulated node (or tile) reports the max|residual| and max|rhs| of its grid points
+ * at the same iterations. When all participants have reported, the maxima of the whole field
+ * are compared, and every participant gets the same decision: the iteration stops when
+ * max|residual| &lt;= tolerance*max|rhs| (the same test as in the solvers of the local mode).
+ * A reduction costs one request and one reply per participant: the main server keeps the requests
+ * of a round open, and answers all of them when the last participant has reported.
+ */
+public class ResidualReduction {
+
+    /**
+     * maximum number of reductions in a step of the forecast (limits the number of extra messages)
+     */
+    public static final int MAX_REDUCTIONS_PER_STEP = 20;
+
+    private final int participants;
+    private final float tolerance;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /*
+     * the current round: its step and iteration, number of reports and the maxima of the reported values
+     */
+    private int step, iteration;
+    private int reports;
+    private float maxResidual, maxRhs;
+
+    /*
+     * number of finished rounds, and the decision of the last one
+     */
+    private long rounds;
+    private boolean converged;
+
+    /**
+     * number of iterations done in every step of the forecast
+     */
+    private final int[] stepIterations;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param participants      number of nodes and tiles reporting their residuals
+     * @param tolerance         relative tolerance of the Poisson solution
+     * @param steps             number of steps of the forecast
+     * @param maxIterations     number of iterations done in a step without convergence
+     */
+    public ResidualReduction(int participants, float tolerance, int steps, int maxIterations) {
+        this.participants = participants;
+        this.tolerance = tolerance;
+        this.stepIterations = new int[steps];
+        Arrays.fill(stepIterations, maxIterations);
+    }
+
+
+    /**
+     * Adds the residual of a participant to the current round without waiting
+     * (used by the main server, which answers the waiting participants when the round finishes).
+     *
+     * @param step          the step of the forecast
+     * @param iteration     number of iterations done in the step
+     * @param residual      max|residual| at the grid points of the participant
+     * @param rhs           max|rhs| at the grid points of the participant
+     * @return              true if this report has finished the round (the decision is returned by isConverged())
+     */
+    public boolean report(int step, int iteration, float residual, float rhs) {
+
+        lock.lock();
+        try {
+            if (reports == 0) {
+                this.step = step;
+                this.iteration = iteration;
+                maxResidual = 0;
+                maxRhs = 0;
+            }
+            else if (step != this.step || iteration != this.iteration)
+                System.err.println("Error in report(): residual of iteration " + step + "/" + iteration
+                        + " reported in round " + this.step + "/" + this.iteration + ".");
+            maxResidual = Math.max(maxResidual, residual);
+            maxRhs = Math.max(maxRhs, rhs);
+
+            if (++reports < participants)
+                return false;
+            converged = maxResidual <= tolerance*maxRhs;
+            if (converged && step < stepIterations.length)
+                stepIterations[step] = iteration;
+            reports = 0;
+            rounds++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Returns the decision of the last finished round.
+     * @return  true if the whole field has converged
+     */
+    public boolean isConverged() {
+        lock.lock();
+        try {
+            return converged;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Returns the number of iterations done in a step of the forecast.
+     * @param step  the step
+     * @return      the iteration of the stop decision, or the maximum number of iterations
+     */
+    public int getIterations(int step) {
+        lock.lock();
+        try {
+            return stepIterations[step];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Returns the number of finished reductions.
+     * @return  the number of rounds
+     */
+    public long getRounds() {
+        lock.lock();
+        try {
+            return rounds;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package network;
+
+/**
+ * This interface is implemented by the nodes and tiles which take part in the
+ * global residual reduction of the Poisson iteration (see ResidualReduction).
+ */
+public interface ResidualReporter {
+    
+    /**
+     * Sets the decision of the main server about the Poisson iteration.
+     * @param converged     true if the whole field has converged, and the iteration stops
+     */
+    void setPoissonConverged(boolean converged);
+}
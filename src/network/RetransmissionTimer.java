@@ -0,0 +1,170 @@
+package network;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class implements the retransmission timer of the UDP requests sent to a neighbor.
+ *
+ * The timeout follows the round-trip time of the link: the smoothed RTT and its variance are
+ * estimated from the answers (as in TCP, RFC 6298), and the timeout is SRTT + 4*RTTVAR.
+ * Answers of resent requests are not sampled (they can't be matched to a send), and every
+ * timeout doubles the timeout (capped at MAX_TIMEOUT) until the next sample, or until a request
+ * is answered without being resent.
+ *
+ * The server of the neighbor parks a request for data which isn't available yet for up to
+ * NodeUDPServer.PARKING_TIMEOUT, so the timeout is at least PARKING_TIMEOUT + SRTT, and the answers
+ * of parked requests are not sampled (they measure how long the neighbor took to publish the data).
+ * Versioned answers tell whether they were parked (see ProtocolHeader), the answers of the original
+ * requests are sampled only from legacy peers, which don't park requests. The requests answered
+ * with NaN (data not available yet) are resent after a jittered delay, so the neighbors of a node
+ * don't ask again in lockstep.
+ *
+ * A timer is shared by the UDP client threads of the neighbor, and it counts the requests,
+ * timeouts and not-ready retries for statistics.
+ */
+public class RetransmissionTimer {
+
+    private static final long INITIAL_TIMEOUT = 3000;          // milliseconds (before the first sample)
+    private static final long MAX_TIMEOUT = 6000;              // milliseconds
+    private static final long DZDT_RETRY_DELAY = 100;          // mean delay before asking again for dz/dt (milliseconds)
+    private static final long RETRY_DELAY = 1000;              // mean delay before asking again for other data (milliseconds)
+
+    private double smoothedRtt = -1;                            // milliseconds (-1: no sample yet)
+    private double rttVariance;
+    private long timeout = INITIAL_TIMEOUT;
+
+    private long requests, timeouts, notReadyRetries;
+
+
+    /**
+     * Returns the current retransmission timeout, and counts a new request.
+     * @return  the timeout in milliseconds
+     */
+    public synchronized long startRequest() {
+        requests++;
+        return timeout;
+    }
+
+
+    /**
+     * Updates the estimation with the round-trip time of an answered request (which wasn't resent,
+     * and whose answer wasn't parked by the server).
+     * @param rtt   the round-trip time in milliseconds
+     */
+    public synchronized void addSample(long rtt) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2.0;
+        }
+        else {
+            rttVariance = 0.75*rttVariance + 0.25*Math.abs(smoothedRtt - rtt);
+            smoothedRtt = 0.875*smoothedRtt + 0.125*rtt;
+        }
+        timeout = getEstimatedTimeout();
+    }
+
+
+    /**
+     * Ends the backoff after an answer which can't be sampled (the request wasn't resent, but the
+     * answer may have been parked): the timeout is estimated from the samples again.
+     */
+    public synchronized void endBackOff() {
+        timeout = getEstimatedTimeout();
+    }
+
+
+    /**
+     * Returns the timeout estimated from the samples: SRTT + 4*RTTVAR (at most MAX_TIMEOUT),
+     * but at least PARKING_TIMEOUT + SRTT.
+     * @return  the timeout in milliseconds (INITIAL_TIMEOUT before the first sample)
+     */
+    private long getEstimatedTimeout() {
+        if (smoothedRtt < 0)
+            return INITIAL_TIMEOUT;
+        final long minTimeout = NodeUDPServer.PARKING_TIMEOUT + (long)Math.ceil(smoothedRtt);
+        return Math.max(minTimeout, Math.min(MAX_TIMEOUT, (long)Math.ceil(smoothedRtt + 4*rttVariance)));
+    }
+
+
+    /**
+     * Backs off after a timeout: the timeout is doubled until the next sample (or the end of the backoff).
+     * @param current   the timeout which has expired (milliseconds)
+     * @return          the timeout of the resent request (milliseconds)
+     */
+    public synchronized long backOff(long current) {
+        timeouts++;
+        timeout = Math.max(timeout, Math.min(MAX_TIMEOUT, 2*current));
+        return timeout;
+    }
+
+
+    /**
+     * Returns the jittered delay before asking again for data which is not available yet
+     * (50-150% of the mean delay), and counts the retry.
+     * @param isDZDT    true if dz/dt is requested (it is ready sooner)
+     * @return          the delay in milliseconds
+     */
+    public long getNotReadyDelay(boolean isDZDT) {
+        synchronized (this) {
+            notReadyRetries++;
+        }
+        final long delay = isDZDT ? DZDT_RETRY_DELAY : RETRY_DELAY;
+        return delay/2 + ThreadLocalRandom.current().nextLong(delay+1);
+    }
+
+
+    /**
+     * Returns the smoothed round-trip time.
+     * @return  the smoothed RTT in milliseconds (-1 if there is no sample yet)
+     */
+    public synchronized double getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+
+    /**
+     * Returns the current retransmission timeout.
+     * @return  the timeout in milliseconds
+     */
+    public synchronized long getTimeout() {
+        return timeout;
+    }
+
+
+    /**
+     * Returns the number of requests.
+     * @return  the number of requests
+     */
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+
+    /**
+     * Returns the number of timeouts (resent requests).
+     * @return  the number of timeouts
+     */
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+
+    /**
+     * Returns the number of requests asked again because the data wasn't available yet.
+     * @return  the number of not-ready retries
+     */
+    public synchronized long getNotReadyRetries() {
+        return notReadyRetries;
+    }
+
+
+    /**
+     * Returns the statistics of the timer.
+     * @return  requests, timeouts, not-ready retries, smoothed RTT and timeout
+     */
+    @Override
+    public synchronized String toString() {
+        return "requests=" + requests + " timeouts=" + timeouts + " notReady=" + notReadyRetries
+                + " srtt=" + (smoothedRtt < 0 ? "-" : String.format("%.1fms", smoothedRtt)) + " rto=" + timeout + "ms";
+    }
+}
@@ -0,0 +1,363 @@
+package network;
+
+import datastructures.GridSize;
+import datastructures.NodeDescriptor;
+import eniac.Main;
+import eniac.Main.UDPMessageTypes;
+import eniac.Node;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements the straggler detection of the main server.
+ *
+ * The real nodes don't send heartbeats, so the main server probes them with the original request:
+ * it asks every real node for z of the step after the last one it has answered (a node answers NaN
+ * until the value is available). A real node is a straggler if it hasn't answered for the timeout,
+ * or if it hasn't published a new step for the timeout while a simulated neighbor has been blocked
+ * waiting for its data (see NeighborObserver). After the registration window, the grid point of a
+ * straggler is reassigned to a simulated node (see NodeReassignment), which continues the forecast
+ * from the last step of the real node. Right after a reassignment, the neighbors of the new node may
+ * wait for it while it starts, so blocked neighbors are taken into account only after the timeout.
+ *
+ * When the new node has registered, its descriptor is pushed to the peers which have the grid point
+ * as a neighbor (NODE_DESCRIPTOR, see ProtocolHeader), resent until it is acknowledged. Legacy peers
+ * don't understand the message, they keep querying the old node.
+ *
+ * All methods are called by the thread of the main server, the channels are served by its selector.
+ */
+class StragglerMonitor {
+
+    private static final long PROBE_INTERVAL = 1000;            // milliseconds between the probes of a step which isn't available yet
+    private static final long PROBE_TIMEOUT = 5000;             // milliseconds without an answer before a probe is resent
+    private static final long PUSH_INTERVAL = 500;              // milliseconds between the sends of an unacknowledged descriptor
+    private static final int MAX_PUSHES = 20;                   // sends of a descriptor before the peer is given up
+    private static final int PROBE_SIZE = (2*Integer.SIZE) / 8;                                 // data type(4), step(4)
+    private static final int PUSH_SIZE = ProtocolHeader.SIZE + ProtocolHeader.DESCRIPTOR_SIZE;  // header(16), descriptor(24)
+
+    private final long timeout;
+    private final NodeReassignment reassignment;
+    private final List<Station> stations = new ArrayList<>();
+    private final List<Push> pushes = new ArrayList<>();
+    private final ByteBuffer probeBuffer = ByteBuffer.allocate(PROBE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(PUSH_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private DatagramChannel pushChannel;                        // sends the descriptors and receives the acknowledgements (null until needed)
+    private int nextSequence;
+    private long lastReassignment;
+
+
+    /**
+     * A watched real node.
+     */
+    private static class Station {
+        final int x, y;
+        final NodeDescriptor nd;
+        int step;                       // last step whose z has been answered
+        long lastAnswer;                // time of the last answer (or of the start of the watch)
+        long lastProgress;              // time of the last new step (or of the start of the watch)
+        DatagramChannel probe;          // channel of the current probe (null: none)
+        long probeTime;                 // time of the current probe
+        long nextProbeTime;             // time of the next probe
+
+        Station(int x, int y, NodeDescriptor nd, long now) {
+            this.x = x;
+            this.y = y;
+            this.nd = nd;
+            this.lastAnswer = now;
+            this.lastProgress = now;
+            this.nextProbeTime = now;
+        }
+    }
+
+
+    /**
+     * A descriptor pushed to a peer, which hasn't been acknowledged yet.
+     */
+    private static class Push {
+        final int x, y;
+        final int sequence;
+        final ByteBuffer message;
+        final SocketAddress target;
+        int sends;
+        long nextSendTime;
+
+        Push(int x, int y, int sequence, ByteBuffer message, SocketAddress target) {
+            this.x = x;
+            this.y = y;
+            this.sequence = sequence;
+            this.message = message;
+            this.target = target;
+        }
+    }
+
+
+    /**
+     * Class constructor.
+     * @param timeout       milliseconds of silence or of blocked neighbors before a real node is reassigned (0: no detection)
+     * @param reassignment  the reassignment of the grid points of the stragglers
+     */
+    StragglerMonitor(long timeout, NodeReassignment reassignment) {
+        this.timeout = timeout;
+        this.reassignment = reassignment;
+    }
+
+
+    /**
+     * Starts watching a registered real node.
+     * @param x     x coordinate of the grid point of the node
+     * @param y     y coordinate of the grid point of the node
+     * @param nd    the descriptor of the node
+     */
+    void watch(int x, int y, NodeDescriptor nd) {
+        if (timeout > 0)
+            stations.add(new Station(x, y, nd, System.currentTimeMillis()));
+    }
+
+
+    /**
+     * Sends the descriptor of the new node of a reassigned grid point to the peers which have the grid
+     * point as a neighbor (nodes and tiles which negotiated REASSIGNMENT_VERSION).
+     * @param x     x coordinate of the grid point
+     * @param y     y coordinate of the grid point
+     * @param nd    the descriptor of the new node
+     */
+    void pushDescriptor(int x, int y, NodeDescriptor nd) {
+        final byte[] address = nd.address.getAddress();
+        if (address.length != 4) {
+            System.err.println("Error in pushDescriptor(): not an IPv4 address " + nd.address);
+            return;
+        }
+
+        /* The peers querying the grid point: its neighbors, and the inner nodes next to the border, *
+         * which are queried by border nodes in place of the missing neighbor (a tile once).         */
+        final GridSize gridSize = Main.getGridSize();
+        final Set<SocketAddress> targets = new LinkedHashSet<>();
+        for (int py=Math.max(0, y-2); py<=Math.min(gridSize.height-1, y+2); py++) {
+            for (int px=Math.max(0, x-2); px<=Math.min(gridSize.width-1, x+2); px++) {
+                final NodeDescriptor peer = Main.getNodeDescriptor(px, py);
+                if (peer == null || peer == nd || peer.protocolVersion < ProtocolHeader.REASSIGNMENT_VERSION)
+                    continue;
+                for (Node.Neighbors n : Node.Neighbors.values()) {
+                    final int[] p = Node.getNeighborPosition(n, px, py, gridSize.width, gridSize.height);
+                    if (p[0] == x && p[1] == y) {
+                        targets.add(new InetSocketAddress(peer.address, peer.port));
+                        break;
+                    }
+                }
+            }
+        }
+
+        for (SocketAddress target : targets) {
+            final int sequence = nextSequence++;
+            final ByteBuffer message = ByteBuffer.allocate(PUSH_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            ProtocolHeader.put(message, UDPMessageTypes.NODE_DESCRIPTOR, sequence, ProtocolHeader.MAIN_SERVER_ID);
+            message.putInt(x);
+            message.putInt(y);
+            message.put(address);
+            message.putInt(nd.port);
+            message.putInt(nd.isSimulated ? 1 : 0);
+            message.putInt(nd.protocolVersion);
+            message.flip();
+            pushes.add(new Push(x, y, sequence, message, target));
+        }
+    }
+
+
+    /**
+     * Reads the messages of a channel of the monitor (answers of a probe, acknowledgements of the pushes).
+     * @param key   the selection key of the channel
+     */
+    void receive(SelectionKey key) {
+        final long now = System.currentTimeMillis();
+        if (key.attachment() instanceof Station) {
+            final Station station = (Station)key.attachment();
+            try {
+                receiveBuffer.clear();
+                if (station.probe.read(receiveBuffer) < Float.SIZE / 8)
+                    return;
+            } catch (IOException ex) {
+                /* e.g. ICMP port unreachable: the node is silent, the probe is resent after PROBE_TIMEOUT */
+                return;
+            }
+            final float value = receiveBuffer.getFloat(0);
+            closeProbe(station);
+            station.lastAnswer = now;
+            if (Float.isNaN(value))
+                station.nextProbeTime = now + PROBE_INTERVAL;
+            else {
+                station.step++;
+                station.lastProgress = now;
+                station.nextProbeTime = now;
+            }
+            return;
+        }
+
+        try {
+            receiveBuffer.clear();
+            while (pushChannel.receive(receiveBuffer) != null) {
+                receiveBuffer.flip();
+                if (receiveBuffer.remaining() >= ProtocolHeader.SIZE && receiveBuffer.getInt() == UDPMessageTypes.VERSIONED.getCode()) {
+                    final ProtocolHeader header = ProtocolHeader.get(receiveBuffer);
+                    if (header != null && header.type == UDPMessageTypes.NODE_DESCRIPTOR) {
+                        for (Iterator<Push> it = pushes.iterator(); it.hasNext(); ) {
+                            if (it.next().sequence == header.sequence) {
+                                it.remove();
+                                break;
+                            }
+                        }
+                    }
+                }
+                receiveBuffer.clear();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(StragglerMonitor.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+
+    /**
+     * Sends the due probes and pushes, and reassigns the grid points of the stragglers.
+     * @param selector  the selector of the main server
+     */
+    void check(Selector selector) {
+        final long now = System.currentTimeMillis();
+        for (Iterator<Station> it = stations.iterator(); it.hasNext(); ) {
+            final Station station = it.next();
+            if (station.step >= Node.HOURS) {
+                closeProbe(station);
+                it.remove();
+                continue;
+            }
+            if (station.probe != null && now - station.probeTime > PROBE_TIMEOUT)
+                closeProbe(station);
+            if (station.probe == null && now >= station.nextProbeTime)
+                sendProbe(station, selector, now);
+            if (isStraggler(station, now)) {
+                if (reassignment.reassign(station.x, station.y, station.step, station.nd)) {
+                    System.err.println("Real node (" + station.x + "," + station.y + ") at " + station.nd.address + ":" + station.nd.port
+                            + " reassigned after step " + station.step + ", silent for " + (now - station.lastAnswer) + " ms, neighbors blocked for "
+                            + reassignment.getWaitingTime(station.x, station.y, now) + " ms");
+                    lastReassignment = now;
+                }
+                closeProbe(station);
+                it.remove();
+            }
+        }
+
+        if (pushes.isEmpty())
+            return;
+        try {
+            if (pushChannel == null) {
+                pushChannel = DatagramChannel.open();
+                pushChannel.bind(null);
+                pushChannel.configureBlocking(false);
+                pushChannel.register(selector, SelectionKey.OP_READ, this);
+            }
+            for (Iterator<Push> it = pushes.iterator(); it.hasNext(); ) {
+                final Push push = it.next();
+                if (now < push.nextSendTime)
+                    continue;
+                if (push.sends == MAX_PUSHES) {
+                    System.err.println("Error in StragglerMonitor check(): descriptor of (" + push.x + "," + push.y + ") not acknowledged by " + push.target);
+                    it.remove();
+                    continue;
+                }
+                push.message.rewind();
+                pushChannel.send(push.message, push.target);
+                push.sends++;
+                push.nextSendTime = now + PUSH_INTERVAL;
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(StragglerMonitor.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+
+    /**
+     * Checks whether a watched real node is a straggler (only after the registration window).
+     * @param station   the node
+     * @param now       the current time
+     * @return          true if the node has been silent, or its neighbors have been blocked by it, for the timeout
+     */
+    private boolean isStraggler(Station station, long now) {
+        if (!Main.countdownFinished)
+            return false;
+        if (now - station.lastAnswer > Math.max(timeout, PROBE_TIMEOUT))
+            return true;
+        final long blocked = Math.min(reassignment.getWaitingTime(station.x, station.y, now), now - station.lastProgress);
+        return Math.min(blocked, now - lastReassignment) > timeout;
+    }
+
+
+    /**
+     * Sends a probe to a watched real node: the original request for z of its next step.
+     * @param station   the node
+     * @param selector  the selector of the main server
+     * @param now       the current time
+     */
+    private void sendProbe(Station station, Selector selector, long now) {
+        try {
+            station.probe = DatagramChannel.open();
+            station.probe.connect(new InetSocketAddress(station.nd.address, station.nd.port));
+            station.probe.configureBlocking(false);
+            station.probe.register(selector, SelectionKey.OP_READ, station);
+            probeBuffer.clear();
+            probeBuffer.putInt(Node.DataTypes.Z.ordinal());
+            probeBuffer.putInt(station.step + 1);
+            probeBuffer.flip();
+            station.probe.write(probeBuffer);
+            station.probeTime = now;
+        } catch (IOException ex) {
+            Logger.getLogger(StragglerMonitor.class.getName()).log(Level.SEVERE, null, ex);
+            closeProbe(station);
+            station.nextProbeTime = now + PROBE_INTERVAL;
+        }
+    }
+
+
+    /**
+     * Closes the channel of the current probe of a watched real node.
+     * @param station   the node
+     */
+    private void closeProbe(Station station) {
+        if (station.probe == null)
+            return;
+        try {
+            station.probe.close();
+        } catch (IOException ex) {
+            Logger.getLogger(StragglerMonitor.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        station.probe = null;
+    }
+
+
+    /**
+     * Closes the channels of the monitor.
+     */
+    void close() {
+        for (Station station : stations)
+            closeProbe(station);
+        stations.clear();
+        pushes.clear();
+        if (pushChannel != null) {
+            try {
+                pushChannel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(StragglerMonitor.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package network;
+
+import eniac.Main.UDPMessageTypes;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements a UDP client which subscribes a node to the new values of a neighbor.
+ * The neighbor answers the subscription with 0, and the request is resent until it arrives.
+ */
+public class SubscriptionUDPClient implements Runnable {
+
+    private static final int SEND_BUFFER_SIZE = (5*Integer.SIZE) / 8;     // message type(4), x(4), y(4), inbox port(4), type mask(4)
+    private static final int RECEIVE_BUFFER_SIZE = Float.SIZE / 8;
+    private final int x, y;
+    private final int inboxPort;
+    private final int typeMask;
+    private final InetAddress serverAddress;
+    private final int serverPort;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param x             x coordinate of the grid point of the neighbor
+     * @param y             y coordinate of the grid point of the neighbor
+     * @param inboxPort     listening port of the UDP server of the subscriber
+     * @param typeMask      subscribed data types (bit 1 &lt;&lt; data type ordinal)
+     * @param serverAddress IP address of the neighbor
+     * @param serverPort    port of the neighbor
+     */
+    public SubscriptionUDPClient(int x, int y, int inboxPort, int typeMask, InetAddress serverAddress, int serverPort) {
+        this.x = x;
+        this.y = y;
+        this.inboxPort = inboxPort;
+        this.typeMask = typeMask;
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+    }
+
+    /**
+     * Contains the code of the implementation of the UDP client.
+     */
+    @Override
+    public void run() {
+
+        try (DatagramSocket requesterSocket = new DatagramSocket()) {
+
+            requesterSocket.setSoTimeout(3000);
+
+            /* Send subscription to the server */
+            ByteBuffer buf = ByteBuffer.allocate(SEND_BUFFER_SIZE);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(UDPMessageTypes.SUBSCRIBE.getCode());
+            buf.putInt(x);
+            buf.putInt(y);
+            buf.putInt(inboxPort);
+            buf.putInt(typeMask);
+            DatagramPacket sendPacket = new DatagramPacket(buf.array(), buf.array().length, serverAddress, serverPort);
+            requesterSocket.send(sendPacket);
+
+            /* Await the answer, resend the subscription after a timeout */
+            byte[] receiveBuffer = new byte[RECEIVE_BUFFER_SIZE];
+            DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+            while (true) {
+                try {
+                    requesterSocket.receive(receivePacket);
+                } catch (SocketTimeoutException ex) {
+                    System.err.println("Resending UDP subscription to " + serverAddress + ":" + serverPort + ", x=" + x + " y=" + y);
+                    requesterSocket.send(sendPacket);
+                    continue;
+                }
+                break;
+            }
+        } catch (IOException e) {
+            Logger.getLogger(SubscriptionUDPClient.class.getName()).log(Level.SEVERE, null, e);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package network;
+
+import datastructures.NodeDescriptor;
+import eniac.Main.UDPMessageTypes;
+import eniac.Node;
+import eniac.TileNode;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements a UDP client for an ENIAC tile, which queries a grid point of the halo.
+ * Simulated nodes and tiles are asked with an extended request containing the (x,y) coordinates,
+ * real nodes are asked with the original request.
+ *
+ * Nodes and tiles which negotiated a protocol version are asked for several grid points at once
+ * (versioned request GET_HALO_DATA), and they answer with a vector of values. Answers whose
+ * sequence number doesn't belong to the last request (stale duplicates) are dropped. On the links
+ * with a payload codec (see PayloadCodec) the vector is encoded, and the last decoded answer of the
+ * same request is kept by the tile as the reference of the next one.
+ *
+ * Before a request is resent, the descriptor of the queried grid points is checked: if the main server
+ * has reassigned them (see StragglerMonitor), the request goes to the new node.
+ */
+public class TileUDPClient implements Runnable {
+    
+    private static final int SEND_BUFFER_SIZE = (5*Integer.SIZE) / 8;   // message type(4), data type(4), step(4), x(4), y(4)
+    private static final int RECEIVE_BUFFER_SIZE = Float.SIZE / 8;
+    private final TileNode tile;
+    private final int[] slots;
+    private final Node.DataTypes dataType;
+    private final int step;
+    private final int[] xs, ys;
+    private NodeDescriptor nd;
+    private final boolean isVersioned;
+    private final PayloadCodec codec;                                   // null: raw values
+    
+    
+    /**
+     * Class constructor.
+     *
+     * @param tile          the tile which this client belongs to
+     * @param slot          index of the queried grid point in the halo of the tile
+     * @param dataType      type of the requested data
+     * @param step          step of the requested data
+     * @param x             x coordinate of the queried grid point
+     * @param y             y coordinate of the queried grid point
+     * @param nd            descriptor of the node or tile of the queried grid point
+     */    
+    public TileUDPClient(TileNode tile, int slot, Node.DataTypes dataType, int step, int x, int y, NodeDescriptor nd) {
+        this(tile, new int[]{slot}, dataType, step, new int[]{x}, new int[]{y}, nd, false);
+    }
+    
+    
+    /**
+     * Class constructor (versioned request for several grid points of the same node or tile).
+     *
+     * @param tile          the tile which this client belongs to
+     * @param slots         indices of the queried grid points in the halo of the tile
+     * @param dataType      type of the requested data
+     * @param step          step of the requested data
+     * @param xs            x coordinates of the queried grid points
+     * @param ys            y coordinates of the queried grid points
+     * @param nd            descriptor of the node or tile of the queried grid points
+     */    
+    public TileUDPClient(TileNode tile, int[] slots, Node.DataTypes dataType, int step, int[] xs, int[] ys, NodeDescriptor nd) {
+        this(tile, slots, dataType, step, xs, ys, nd, true);
+    }
+    
+    
+    private TileUDPClient(TileNode tile, int[] slots, Node.DataTypes dataType, int step, int[] xs, int[] ys, NodeDescriptor nd, boolean isVersioned) {
+        this.tile = tile;
+        this.slots = slots;
+        this.dataType = dataType;
+        this.step = step;
+        this.xs = xs;
+        this.ys = ys;
+        this.nd = nd;
+        this.isVersioned = isVersioned;
+        this.codec = isVersioned ? PayloadCodec.forLink(tile.getProtocolVersion(), nd) : null;
+    }
+    
+    
+    /**
+     * Contains the code of the implementation of the UDP client.
+     */
+    @Override
+    public void run() {
+        if (isVersioned)
+            runVersioned();
+        else
+            runSingle();
+    }
+    
+    
+    /**
+     * Queries a single grid point.
+     */
+    private void runSingle() {
+        final int slot = slots[0], x = xs[0], y = ys[0];
+        
+        try (DatagramSocket requesterSocket = new DatagramSocket()) {
+            
+            requesterSocket.setSoTimeout(3000);             
+            
+            /* Send request to the server */ 
+            ByteBuffer buf = ByteBuffer.allocate(SEND_BUFFER_SIZE);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            if (nd.isSimulated) {
+                buf.putInt(UDPMessageTypes.GET_CELL_DATA.getCode());
+                buf.putInt(dataType.ordinal());
+                buf.putInt(step);
+                buf.putInt(x);
+                buf.putInt(y);
+            }
+            else {
+                buf.putInt(dataType.ordinal());
+                buf.putInt(step);
+            }
+            DatagramPacket sendPacket = new DatagramPacket(buf.array(), buf.position(), nd.address, nd.port);
+            requesterSocket.send(sendPacket);
+            /**********************************************************
+             * Awaiting response from the server                      *
+             * If no answer in a given timeout period, resend request *
+             **********************************************************/
+            byte[] receiveBuffer = new byte[RECEIVE_BUFFER_SIZE];
+            DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);            
+            float dataReceived;
+            while (true) { 
+                while (true) {
+                    try {
+                        requesterSocket.receive(receivePacket);
+                    } catch (SocketTimeoutException ex) {
+                        System.err.println("Resending UDP request." + " " + dataType + " " + step + " (" + x + "," + y + ") to " + nd.address + ":" + nd.port + ", tile x=" + tile.x0 + " y=" + tile.y0);
+                        refreshDescriptor(sendPacket);
+                        requesterSocket.send(sendPacket);
+                        continue;
+                    }
+                    break;
+                }
+                dataReceived = ByteBuffer.wrap(receivePacket.getData()).order(ByteOrder.LITTLE_ENDIAN).getFloat();
+                
+                /***********************************************
+                 * If we received NaN, wait and resend request *
+                 ***********************************************/
+                if (Float.isNaN(dataReceived)) {
+                    try {
+                        if (dataType == Node.DataTypes.DZDT)
+                            Thread.sleep(100);
+                        else
+                            Thread.sleep(1000);
+                    } catch (InterruptedException ex) {
+                        Logger.getLogger(TileUDPClient.class.getName()).log(Level.SEVERE, null, ex);
+                    }                    
+                    refreshDescriptor(sendPacket);
+                    requesterSocket.send(sendPacket);
+                    continue;
+                }
+                break;
+            }            
+            /* Received valid data */
+            tile.setHaloValue(slot, dataReceived);            
+        } catch (IOException e) {
+            Logger.getLogger(TileUDPClient.class.getName()).log(Level.SEVERE, null, e);         
+        }            
+    }
+    
+    
+    /**
+     * Queries several grid points with a versioned request.
+     */
+    private void runVersioned() {
+        
+        try (DatagramSocket requesterSocket = new DatagramSocket()) {
+            
+            requesterSocket.setSoTimeout(3000);             
+            
+            final ByteBuffer buf = ByteBuffer.allocate(ProtocolHeader.SIZE + PayloadCodec.REQUEST_SIZE + ((3+2*slots.length)*Integer.SIZE) / 8).order(ByteOrder.LITTLE_ENDIAN);
+            final byte[] receiveBuffer = new byte[ProtocolHeader.SIZE + PayloadCodec.ANSWER_SIZE + Integer.SIZE / 8 + PayloadCodec.getMaxSize(slots.length)];
+            final ByteBuffer answer = ByteBuffer.wrap(receiveBuffer).order(ByteOrder.LITTLE_ENDIAN);
+            final DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);            
+            final float[] values = new float[slots.length];
+            final long referenceKey = ((long)slots[0] << 32) | ((long)slots.length << 8) | dataType.ordinal();
+            while (true) {
+                /* Send request to the server (a new sequence number for every round) */ 
+                refreshDescriptor(null);
+                final int sequence = tile.nextSequence();
+                buf.clear();
+                if (codec != null) {
+                    ProtocolHeader.put(buf, ProtocolHeader.CODEC_VERSION, UDPMessageTypes.GET_HALO_DATA, sequence, ProtocolHeader.sourceId(tile.x0, tile.y0));
+                    final PayloadCodec.Reference reference = tile.getCodecReference(referenceKey);
+                    codec.putRequest(buf, (reference != null && reference.codec == codec) ? reference.answerId : PayloadCodec.NO_REFERENCE);
+                }
+                else
+                    ProtocolHeader.put(buf, UDPMessageTypes.GET_HALO_DATA, sequence, ProtocolHeader.sourceId(tile.x0, tile.y0));
+                buf.putInt(dataType.ordinal());
+                buf.putInt(step);
+                buf.putInt(slots.length);
+                for (int i=0; i<slots.length; i++) {
+                    buf.putInt(xs[i]);
+                    buf.putInt(ys[i]);
+                }
+                final DatagramPacket sendPacket = new DatagramPacket(buf.array(), buf.position(), nd.address, nd.port);
+                requesterSocket.send(sendPacket);
+                
+                /* Wait for the answer of this request, resend it (with the same sequence number) after a timeout */
+                while (true) {
+                    try {
+                        receivePacket.setLength(receiveBuffer.length);
+                        requesterSocket.receive(receivePacket);
+                    } catch (SocketTimeoutException ex) {
+                        System.err.println("Resending UDP request." + " " + dataType + " " + step + " (" + xs[0] + "," + ys[0] + ")+" + (slots.length-1) + " to " + nd.address + ":" + nd.port + ", tile x=" + tile.x0 + " y=" + tile.y0);
+                        refreshDescriptor(sendPacket);
+                        requesterSocket.send(sendPacket);
+                        continue;
+                    }
+                    if (readAnswer(answer, receivePacket.getLength(), sequence, referenceKey, values))
+                        break;
+                }
+                
+                boolean isComplete = true;
+                for (int i=0; i<slots.length; i++)
+                    isComplete &= !Float.isNaN(values[i]);
+                if (isComplete)
+                    break;
+                
+                /***********************************************
+                 * If we received NaN, wait and resend request *
+                 ***********************************************/
+                try {
+                    Thread.sleep(dataType == Node.DataTypes.DZDT ? 100 : 1000);
+                } catch (InterruptedException ex) {
+                    Logger.getLogger(TileUDPClient.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+            /* Received valid data */
+            for (int i=0; i<slots.length; i++)
+                tile.setHaloValue(slots[i], values[i]);
+        } catch (IOException e) {
+            Logger.getLogger(TileUDPClient.class.getName()).log(Level.SEVERE, null, e);         
+        }            
+    }
+    
+    
+    /**
+     * Takes the current descriptor of the queried grid points, if the main server has reassigned them.
+     * @param sendPacket    the request, which is sent to the new node (or null)
+     */
+    private void refreshDescriptor(DatagramPacket sendPacket) {
+        final NodeDescriptor current = tile.getHaloDescriptor(slots[0]);
+        if (current == nd)
+            return;
+        nd = current;
+        if (sendPacket != null) {
+            sendPacket.setAddress(nd.address);
+            sendPacket.setPort(nd.port);
+        }
+    }
+    
+    
+    /**
+     * Reads the answer of a versioned request: header, (codec block), count and values.
+     * @param answer        the answer
+     * @param length        the length of the answer
+     * @param sequence      the sequence number of the request
+     * @param referenceKey  the key of the request in the references of the tile
+     * @param values        the values of the answer
+     * @return              true if the answer belongs to the request
+     */
+    private boolean readAnswer(ByteBuffer answer, int length, int sequence, long referenceKey, float[] values) {
+        answer.clear().limit(length);
+        try {
+            if (answer.getInt() != UDPMessageTypes.VERSIONED.getCode())
+                return false;
+            final ProtocolHeader header = ProtocolHeader.get(answer);
+            if (header == null || header.type != UDPMessageTypes.CELL_DATA || header.sequence != sequence)
+                return false;
+            if (header.version < ProtocolHeader.CODEC_VERSION) {
+                if (answer.getInt() != slots.length)
+                    return false;
+                for (int i=0; i<slots.length; i++)
+                    values[i] = answer.getFloat();
+                return true;
+            }
+            final PayloadCodec answerCodec = PayloadCodec.get(answer);
+            final int answerId = answer.getInt();
+            final int referenceId = answer.getInt();
+            if (answerCodec == null || answer.getInt() != slots.length)
+                return false;
+            /* The reference named by the server is the last answer decoded for the request. */
+            final PayloadCodec.Reference reference = tile.getCodecReference(referenceKey);
+            if (referenceId != PayloadCodec.NO_REFERENCE && (reference == null || !reference.matches(referenceId, answerCodec, slots.length)))
+                return false;
+            if (!answerCodec.decode(answer, values, slots.length, (referenceId != PayloadCodec.NO_REFERENCE) ? reference.values : null))
+                return false;
+            tile.setCodecReference(referenceKey, new PayloadCodec.Reference(answerId, answerCodec, Arrays.copyOf(values, slots.length)));
+            return true;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+            System.err.println("Error in readAnswer(): truncated answer, tile x=" + tile.x0 + " y=" + tile.y0);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package network;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements an event loop which serves the UDP servers of many simulated nodes
+ * (or tiles) on a single thread, so the number of server threads doesn't depend on the grid size.
+ *
+ * The channels of the servers are registered on one selector. After every wakeup all received
+ * messages of the ready servers are handled, and every EXPIRY_INTERVAL the parked requests
+ * are expired, and the stopped servers without messages for their receive timeout are closed.
+ * An error of one server (e.g. a malformed message) is reported, and the loop goes on serving the others.
+ */
+public class UDPServerLoop implements Runnable {
+
+    private static final long EXPIRY_INTERVAL = 250;                   // milliseconds
+
+    private final Selector selector;
+    private final Queue<NodeUDPServer> newServers = new ConcurrentLinkedQueue<>();
+    private volatile boolean stop;
+
+
+    /**
+     * Class constructor.
+     * @throws IOException
+     */
+    public UDPServerLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+
+    /**
+     * Adds a server to the loop (it is registered by the thread of the loop).
+     * @param server    the server
+     */
+    public void attach(NodeUDPServer server) {
+        newServers.add(server);
+        selector.wakeup();
+    }
+
+
+    /**
+     * Contains the code of the event loop.
+     */
+    @Override
+    public void run() {
+        long lastExpiry = System.currentTimeMillis();
+        try {
+            while (!stop) {
+                selector.select(EXPIRY_INTERVAL);
+
+                NodeUDPServer server;
+                while ((server = newServers.poll()) != null)
+                    server.register(selector);
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid())
+                        continue;
+                    try {
+                        ((NodeUDPServer)key.attachment()).receiveMessages();
+                    } catch (IOException | RuntimeException ex) {
+                        Logger.getLogger(UDPServerLoop.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                final long now = System.currentTimeMillis();
+                if (now - lastExpiry >= EXPIRY_INTERVAL) {
+                    lastExpiry = now;
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.isValid() && !((NodeUDPServer)key.attachment()).checkTimeouts(now))
+                            key.cancel();
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(UDPServerLoop.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                Logger.getLogger(UDPServerLoop.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+
+    /**
+     * Sends a stop signal to the loop.
+     */
+    public void stop() {
+        stop = true;
+        selector.wakeup();
+    }
+}
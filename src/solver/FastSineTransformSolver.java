@@ -0,0 +1,103 @@
+package solver;
+
+/**
+ * This class implements a direct solver of the Poisson equation based on the discrete sine transform.
+ *
+ * With fixed border values the scaled 5-point Laplace operator is diagonalized by the sine
+ * transforms in x and y direction: its eigenvalue for the frequencies (j,k) is
+ * 2*cos(PI*j/(nx+1)) + 2*cos(PI*k/(ny+1)) - 4. The border values are moved to the
+ * right-hand side, the right-hand side is transformed, divided by the eigenvalues
+ * and transformed back. The result is exact up to rounding errors, no iteration is needed.
+ *
+ * The transforms and the table of eigenvalues are calculated for a grid size once,
+ * and they are reused while the size of the grid doesn't change.
+ * The transforms are calculated in double precision.
+ */
+public class FastSineTransformSolver implements PoissonSolver {
+
+    /**
+     * size of the grid of the precomputed tables
+     */
+    private int width, height;
+
+    /*
+     * transforms in x and y direction, and 1/eigenvalue for every frequency,
+     * multiplied by the scale factors of the two inverse transforms
+     */
+    private SineTransform sineX, sineY;
+    private double[] inverseEigenvalues;
+
+    /*
+     * work arrays: transformed values of the inner points (index (y-1)*(width-2)+(x-1)), transform buffer
+     */
+    private double[] values, buffer;
+
+
+    @Override
+    public int solve(float[] u, float[] rhs, int width, int height) {
+
+        if (inverseEigenvalues == null || this.width != width || this.height != height)
+            prepare(width, height);
+        final int nx = width-2, ny = height-2;
+
+        /* Right-hand side with the border values moved to it */
+        for (int y=1; y<height-1; y++) {
+            for (int x=1; x<width-1; x++) {
+                final int i = y*width+x;
+                double f = rhs[i];
+                if (x == 1)         f -= u[i-1];
+                if (x == width-2)   f -= u[i+1];
+                if (y == 1)         f -= u[i-width];
+                if (y == height-2)  f -= u[i+width];
+                values[(y-1)*nx+(x-1)] = f;
+            }
+        }
+
+        transform();
+        for (int k=0; k<values.length; k++)
+            values[k] *= inverseEigenvalues[k];
+        transform();
+
+        for (int y=1; y<height-1; y++)
+            for (int x=1; x<width-1; x++)
+                u[y*width+x] = (float)values[(y-1)*nx+(x-1)];
+        return 1;
+    }
+
+
+    /**
+     * Calculates the transforms and the eigenvalues for a grid size.
+     *
+     * @param width     width of the grid
+     * @param height    height of the grid
+     */
+    private void prepare(int width, int height) {
+        this.width = width;
+        this.height = height;
+        final int nx = width-2, ny = height-2;
+
+        sineX = new SineTransform(nx);
+        sineY = new SineTransform(ny);
+        values = new double[nx*ny];
+        buffer = new double[Math.max(nx, ny)];
+
+        /* Applying a transform twice multiplies by (n+1)/2 */
+        final double scale = (2.0/(nx+1)) * (2.0/(ny+1));
+        inverseEigenvalues = new double[nx*ny];
+        for (int k=1; k<=ny; k++)
+            for (int j=1; j<=nx; j++)
+                inverseEigenvalues[(k-1)*nx+(j-1)] = scale / (2*Math.cos(Math.PI*j/(nx+1)) + 2*Math.cos(Math.PI*k/(ny+1)) - 4);
+    }
+
+
+    /**
+     * Transforms the work array in both directions.
+     */
+    private void transform() {
+        final int nx = width-2, ny = height-2;
+        for (int y=0; y<ny; y++)
+            sineX.transform(values, y*nx, 1, buffer);
+        for (int x=0; x<nx; x++)
+            sineY.transform(values, x, nx, buffer);
+    }
+}
@@ -0,0 +1,72 @@
+package solver;
+
+/**
+ * This class implements the Jacobi iteration used by <code>Node.run()</code>.
+ *
+ * Every inner point gets the average of its neighbors' values of the previous iteration
+ * (corrected by the right-hand side). The iteration stops after a given number of sweeps,
+ * or when the residual drops below the tolerance.
+ */
+public class JacobiSolver implements PoissonSolver {
+
+    private final int maxIterations;
+    private final float tolerance;
+
+    /**
+     * values of the next iteration (reused between calls)
+     */
+    private float[] next;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param maxIterations     maximum number of iterations
+     * @param tolerance         relative tolerance: the iteration stops when max|residual| &lt;= tolerance*max|rhs|
+     *                          (0: always do maxIterations iterations)
+     */
+    public JacobiSolver(int maxIterations, float tolerance) {
+        this.maxIterations = maxIterations;
+        this.tolerance = tolerance;
+    }
+
+
+    @Override
+    public int solve(float[] u, float[] rhs, int width, int height) {
+
+        if (next == null || next.length != u.length)
+            next = new float[u.length];
+        System.arraycopy(u, 0, next, 0, u.length);
+        final float limit = tolerance * Residuals.maxNorm(rhs, width, height);
+
+        float[] current = u;
+        int iterations = 0;
+        while (iterations < maxIterations) {
+            float residual = 0;
+            for (int y=1; y<height-1; y++) {
+                for (int x=1; x<width-1; x++) {
+                    final int i = y*width+x;
+                    final float sum = current[i+width] + current[i+1] + current[i-width] + current[i-1];
+                    residual = Math.max(residual, Math.abs(sum - 4*current[i] - rhs[i]));
+                    /* u(i,j) = (1/4)*(u(i+1,j) + u(i-1,j) + u(i,j+1) + u(i,j-1) - rhs(i,j)) */
+                    next[i] = (sum - rhs[i]) / 4;
+                }
+            }
+            final float[] tmp = current;
+            current = next;
+            next = tmp;
+            iterations++;
+
+            /* The residual belongs to the previous iteration, the new one is at least as good. */
+            if (residual <= limit)
+                break;
+        }
+
+        /* The result is in the scratch array after an odd number of iterations. */
+        if (current != u) {
+            System.arraycopy(current, 0, u, 0, u.length);
+            next = current;
+        }
+        return iterations;
+    }
+}
@@ -0,0 +1,324 @@
+package solver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class implements a geometric multigrid solver with V-cycles.
+ *
+ * Every level halves the number of inner points in both directions: the coarse point (I,J)
+ * lies on the fine point (2I,2J). The error is smoothed by red-black Gauss-Seidel iterations,
+ * the residual is restricted by full weighting, and the coarse correction is prolongated by
+ * bilinear interpolation. The cost of a V-cycle is proportional to the number of grid points,
+ * and the number of V-cycles needed for a given tolerance doesn't depend on the grid size.
+ *
+ * The operators of the coarse levels are Galerkin operators (restriction * fine operator *
+ * prolongation, 9-point stencils), so grids of any size can be coarsened, not only 2^k+1.
+ * They depend only on the size of the grid, and they are calculated at the first solution.
+ *
+ * On large grids the residual can't be reduced below the rounding error of the float values
+ * of u, so the iteration also stops when a V-cycle reduces the residual by less than 10%.
+ */
+public class MultigridSolver implements PoissonSolver {
+
+    private static final int PRE_SMOOTHING = 2, POST_SMOOTHING = 2;    // red-black iterations before and after the coarse correction
+    private static final int COARSEST_SIZE = 2;                         // the coarsest level has at most this many inner points in a direction
+    private static final int COARSEST_ITERATIONS = 20;                  // red-black iterations on the coarsest level
+    private static final float STAGNATION = 0.9f;                       // residual ratio of two V-cycles regarded as stagnation
+
+    /**
+     * stencil of the finest level (the scaled 5-point Laplace operator),
+     * index (dy+1)*3+(dx+1) of the neighbor (x+dx,y+dy)
+     */
+    private static final float[] FIVE_POINT_STENCIL = {0, 1, 0,  1, -4, 1,  0, 1, 0};
+    private static final int CENTER = 4;
+
+    private final int maxCycles;
+    private final float tolerance;
+
+    /**
+     * levels of the grid, from the finest to the coarsest
+     */
+    private Level[] levels;
+
+
+    /**
+     * Data of one level: solution (error on the coarse levels), right-hand side, residual
+     * and the 9-point stencil of every inner point (null on the finest level).
+     */
+    private static class Level {
+        final int width, height;
+        final float[] u, rhs, residual;
+        final float[] stencil;
+
+        Level(int width, int height, boolean isFinest) {
+            this.width = width;
+            this.height = height;
+            this.u = new float[width*height];
+            this.rhs = new float[width*height];
+            this.residual = new float[width*height];
+            this.stencil = isFinest ? null : new float[9*width*height];
+        }
+
+        /**
+         * Returns a coefficient of the operator of the level.
+         * @param i     index of the grid point
+         * @param k     index of the neighbor in the stencil
+         * @return      the coefficient
+         */
+        float coefficient(int i, int k) {
+            return stencil == null ? FIVE_POINT_STENCIL[k] : stencil[9*i+k];
+        }
+
+        /**
+         * Checks whether a point is an inner point of the level.
+         * @param x     x coordinate of the point
+         * @param y     y coordinate of the point
+         * @return      true if the point is not on the border
+         */
+        boolean isInner(int x, int y) {
+            return x>0 && x<width-1 && y>0 && y<height-1;
+        }
+    }
+
+
+    /**
+     * Class constructor.
+     *
+     * @param maxCycles     maximum number of V-cycles
+     * @param tolerance     relative tolerance: the iteration stops when max|residual| &lt;= tolerance*max|rhs|
+     *                      (0: always do maxCycles V-cycles)
+     */
+    public MultigridSolver(int maxCycles, float tolerance) {
+        this.maxCycles = maxCycles;
+        this.tolerance = tolerance;
+    }
+
+
+    @Override
+    public int solve(float[] u, float[] rhs, int width, int height) {
+
+        if (levels == null || levels[0].width != width || levels[0].height != height)
+            levels = createLevels(width, height);
+        final Level finest = levels[0];
+
+        final float limit = tolerance * Residuals.maxNorm(rhs, width, height);
+        float previousResidual = Float.MAX_VALUE;
+        int cycles = 0;
+        while (cycles < maxCycles) {
+            final float residual = Residuals.residual(u, rhs, finest.residual, width, height);
+            if (residual <= limit || residual > STAGNATION*previousResidual)
+                break;
+            previousResidual = residual;
+            vCycle(0, u, rhs);
+            cycles++;
+        }
+        return cycles;
+    }
+
+
+    /**
+     * Creates the levels of the grid with the Galerkin operators of the coarse levels.
+     *
+     * @param width     width of the finest grid
+     * @param height    height of the finest grid
+     * @return          the levels from the finest to the coarsest
+     */
+    private static Level[] createLevels(int width, int height) {
+        final List<Level> list = new ArrayList<>();
+        Level fine = new Level(width, height, true);
+        list.add(fine);
+        while (Math.min(fine.width-2, fine.height-2) > COARSEST_SIZE) {
+            final Level coarse = new Level((fine.width-2)/2 + 2, (fine.height-2)/2 + 2, false);
+            setGalerkinOperator(fine, coarse);
+            list.add(coarse);
+            fine = coarse;
+        }
+        return list.toArray(new Level[list.size()]);
+    }
+
+
+    /**
+     * Calculates the stencils of a coarse level: (P^T * A * P)(J,K), where A is the operator
+     * of the fine level, and the column K of the prolongation P is the bilinear hat function
+     * around the fine point 2K. Error values on the borders are 0, so they are left out.
+     *
+     * @param fine      the fine level
+     * @param coarse    the coarse level
+     */
+    private static void setGalerkinOperator(Level fine, Level coarse) {
+        for (int cy=1; cy<coarse.height-1; cy++) {
+            for (int cx=1; cx<coarse.width-1; cx++) {
+                final int j = cy*coarse.width+cx;
+                /* fine points p in the support of the restriction of J */
+                for (int py=2*cy-1; py<=2*cy+1; py++) {
+                    for (int px=2*cx-1; px<=2*cx+1; px++) {
+                        if (!fine.isInner(px, py))
+                            continue;
+                        final float r = hat(px-2*cx, py-2*cy);
+                        final int p = py*fine.width+px;
+                        /* fine neighbors q of p */
+                        for (int k=0; k<9; k++) {
+                            final float a = fine.coefficient(p, k);
+                            final int qx = px + k%3-1, qy = py + k/3-1;
+                            if (a == 0 || !fine.isInner(qx, qy))
+                                continue;
+                            /* coarse neighbors K of J whose hat function covers q */
+                            for (int ey=-1; ey<=1; ey++) {
+                                for (int ex=-1; ex<=1; ex++) {
+                                    final int dx = qx-2*(cx+ex), dy = qy-2*(cy+ey);
+                                    if (Math.abs(dx) <= 1 && Math.abs(dy) <= 1 && coarse.isInner(cx+ex, cy+ey))
+                                        coarse.stencil[9*j + (ey+1)*3+(ex+1)] += r*a*hat(dx, dy);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Returns the value of the bilinear hat function of a coarse point at a fine point.
+     * @param dx    x distance from the coarse point in fine intervals (-1, 0 or 1)
+     * @param dy    y distance from the coarse point in fine intervals (-1, 0 or 1)
+     * @return      the weight of the coarse point
+     */
+    private static float hat(int dx, int dy) {
+        return (1 - Math.abs(dx)/2f) * (1 - Math.abs(dy)/2f);
+    }
+
+
+    /**
+     * Does a V-cycle starting from a level.
+     *
+     * @param l     index of the level
+     * @param u     solution of the level (u of the finest level is the array of the caller)
+     * @param rhs   right-hand side of the level
+     */
+    private void vCycle(int l, float[] u, float[] rhs) {
+
+        final Level fine = levels[l];
+        if (l == levels.length-1) {
+            for (int n=0; n<COARSEST_ITERATIONS; n++)
+                smooth(fine, u, rhs);
+            return;
+        }
+
+        for (int n=0; n<PRE_SMOOTHING; n++)
+            smooth(fine, u, rhs);
+        residual(fine, u, rhs);
+
+        final Level coarse = levels[l+1];
+        restrict(fine, coarse);
+        Arrays.fill(coarse.u, 0);
+        vCycle(l+1, coarse.u, coarse.rhs);
+        prolongate(coarse, fine, u);
+
+        for (int n=0; n<POST_SMOOTHING; n++)
+            smooth(fine, u, rhs);
+    }
+
+
+    /**
+     * Does a red-black Gauss-Seidel iteration on a level.
+     *
+     * @param level     the level
+     * @param u         solution of the level
+     * @param rhs       right-hand side of the level
+     */
+    private static void smooth(Level level, float[] u, float[] rhs) {
+        if (level.stencil == null) {
+            RedBlackSORSolver.sweep(u, rhs, level.width, level.height, 1);
+            return;
+        }
+        final int w = level.width;
+        final float[] s = level.stencil;
+        for (int color=0; color<2; color++) {
+            for (int y=1; y<level.height-1; y++) {
+                for (int x=1+(y+1+color)%2; x<w-1; x+=2) {
+                    final int i = y*w+x;
+                    final float sum = s[9*i]*u[i-w-1] + s[9*i+1]*u[i-w] + s[9*i+2]*u[i-w+1]
+                                    + s[9*i+3]*u[i-1]                    + s[9*i+5]*u[i+1]
+                                    + s[9*i+6]*u[i+w-1] + s[9*i+7]*u[i+w] + s[9*i+8]*u[i+w+1];
+                    u[i] = (rhs[i] - sum) / s[9*i+CENTER];
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Calculates the residual (rhs - A*u) of a level into its residual array.
+     *
+     * @param level     the level
+     * @param u         solution of the level
+     * @param rhs       right-hand side of the level
+     */
+    private static void residual(Level level, float[] u, float[] rhs) {
+        if (level.stencil == null) {
+            Residuals.residual(u, rhs, level.residual, level.width, level.height);
+            return;
+        }
+        final int w = level.width;
+        final float[] s = level.stencil;
+        for (int y=1; y<level.height-1; y++) {
+            for (int x=1; x<w-1; x++) {
+                final int i = y*w+x;
+                final float au = s[9*i]*u[i-w-1] + s[9*i+1]*u[i-w] + s[9*i+2]*u[i-w+1]
+                               + s[9*i+3]*u[i-1] + s[9*i+4]*u[i]   + s[9*i+5]*u[i+1]
+                               + s[9*i+6]*u[i+w-1] + s[9*i+7]*u[i+w] + s[9*i+8]*u[i+w+1];
+                level.residual[i] = rhs[i] - au;
+            }
+        }
+    }
+
+
+    /**
+     * Restricts the residual of a level to the right-hand side of the next coarser level
+     * with the transpose of the prolongation (4 times full weighting).
+     *
+     * @param fine      the fine level (its residual has 0 on the border)
+     * @param coarse    the coarse level
+     */
+    private static void restrict(Level fine, Level coarse) {
+        final int w = fine.width;
+        final float[] r = fine.residual;
+        for (int cy=1; cy<coarse.height-1; cy++) {
+            for (int cx=1; cx<coarse.width-1; cx++) {
+                final int i = 2*cy*w + 2*cx;
+                final float sum = 4*r[i]
+                                + 2*(r[i+1] + r[i-1] + r[i+w] + r[i-w])
+                                + r[i+w+1] + r[i+w-1] + r[i-w+1] + r[i-w-1];
+                coarse.rhs[cy*coarse.width+cx] = sum/4;
+            }
+        }
+    }
+
+
+    /**
+     * Adds the bilinear interpolation of the coarse correction to the solution of a fine level.
+     *
+     * @param coarse    the coarse level (its solution has 0 on the border)
+     * @param fine      the fine level
+     * @param u         the solution of the fine level
+     */
+    private static void prolongate(Level coarse, Level fine, float[] u) {
+        final int cw = coarse.width;
+        final float[] e = coarse.u;
+        for (int y=1; y<fine.height-1; y++) {
+            final int cy = y/2;
+            for (int x=1; x<fine.width-1; x++) {
+                final int c = cy*cw + x/2;
+                final float correction;
+                if (y%2 == 0)
+                    correction = (x%2 == 0) ? e[c] : (e[c] + e[c+1]) / 2;
+                else
+                    correction = (x%2 == 0) ? (e[c] + e[c+cw]) / 2 : (e[c] + e[c+1] + e[c+cw] + e[c+cw+1]) / 4;
+                u[y*fine.width+x] += correction;
+            }
+        }
+    }
+}
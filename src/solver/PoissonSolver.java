@@ -0,0 +1,24 @@
+package solver;
+
+/**
+ * This interface is implemented by the solution methods of the Poisson equation.
+ *
+ * The equation is solved at the inner points of a rectangular grid, the values
+ * on the border of the grid are fixed. Fields are stored in flat float arrays
+ * (index y*width+x), and the equation is used in the same scaled form as in
+ * <code>Node.run()</code>:
+ * u(i+1,j) + u(i-1,j) + u(i,j+1) + u(i,j-1) - 4*u(i,j) = rhs(i,j), where rhs = dxi/dt*(DS^2).
+ */
+public interface PoissonSolver {
+
+    /**
+     * Solves the Poisson equation at the inner points of the grid.
+     *
+     * @param u         initial guess, overwritten by the solution (border values are not modified)
+     * @param rhs       right-hand side of the scaled equation
+     * @param width     width of the grid
+     * @param height    height of the grid
+     * @return          the number of iterations done
+     */
+    int solve(float[] u, float[] rhs, int width, int height);
+}
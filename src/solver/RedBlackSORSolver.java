@@ -0,0 +1,91 @@
+package solver;
+
+/**
+ * This class implements successive over-relaxation with red-black ordering.
+ *
+ * The inner points are colored like a chessboard: red points ((x+y) even) are updated
+ * first using the values of their black neighbors, then black points are updated using
+ * the new values of their red neighbors. Every update moves the value past the Jacobi
+ * average by the relaxation factor omega:
+ * u(i,j) = u(i,j) + omega/4 * (u(i+1,j) + u(i-1,j) + u(i,j+1) + u(i,j-1) - 4*u(i,j) - rhs(i,j))
+ */
+public class RedBlackSORSolver implements PoissonSolver {
+
+    private final float omega;
+    private final int maxIterations;
+    private final float tolerance;
+
+
+    /**
+     * Class constructor.
+     *
+     * @param omega             relaxation factor (1 &lt;= omega &lt; 2, 1: Gauss-Seidel)
+     * @param maxIterations     maximum number of iterations
+     * @param tolerance         relative tolerance: the iteration stops when max|residual| &lt;= tolerance*max|rhs|
+     *                          (0: always do maxIterations iterations)
+     */
+    public RedBlackSORSolver(float omega, int maxIterations, float tolerance) {
+        this.omega = omega;
+        this.maxIterations = maxIterations;
+        this.tolerance = tolerance;
+    }
+
+
+    @Override
+    public int solve(float[] u, float[] rhs, int width, int height) {
+
+        final float limit = tolerance * Residuals.maxNorm(rhs, width, height);
+        int iterations = 0;
+        while (iterations < maxIterations) {
+            final float residual = sweep(u, rhs, width, height, omega);
+            iterations++;
+
+            /* The residual was measured just before the updates, the new values are at least as good. */
+            if (residual <= limit)
+                break;
+        }
+        return iterations;
+    }
+
+
+    /**
+     * Does one red-black iteration (red points first, then black points).
+     *
+     * @param u         current values, overwritten by the new values
+     * @param rhs       right-hand side of the scaled equation
+     * @param width     width of the grid
+     * @param height    height of the grid
+     * @param omega     relaxation factor
+     * @return          max|residual| measured at every point just before its update
+     */
+    static float sweep(float[] u, float[] rhs, int width, int height, float omega) {
+        float residual = 0;
+        for (int color=0; color<2; color++) {
+            for (int y=1; y<height-1; y++) {
+                /* first inner point of the row with (x+y)%2 == color */
+                for (int x=1+(y+1+color)%2; x<width-1; x+=2) {
+                    final int i = y*width+x;
+                    final float sum = u[i+width] + u[i+1] + u[i-width] + u[i-1];
+                    final float r = sum - 4*u[i] - rhs[i];
+                    residual = Math.max(residual, Math.abs(r));
+                    u[i] += omega*r/4;
+                }
+            }
+        }
+        return residual;
+    }
+
+
+    /**
+     * Returns the optimal relaxation factor for a rectangular grid with fixed border values.
+     * omega = 2/(1+sqrt(1-rho^2)), where rho is the spectral radius of the Jacobi iteration.
+     *
+     * @param width     width of the grid
+     * @param height    height of the grid
+     * @return          the optimal relaxation factor
+     */
+    public static float optimalOmega(int width, int height) {
+        final double rho = (Math.cos(Math.PI/(width-1)) + Math.cos(Math.PI/(height-1))) / 2;
+        return (float)(2 / (1 + Math.sqrt(1 - rho*rho)));
+    }
+}
@@ -0,0 +1,51 @@
+package solver;
+
+/**
+ * This class contains helper methods for measuring the convergence of the solvers.
+ */
+public final class Residuals {
+
+    private Residuals() {
+    }
+
+
+    /**
+     * Returns the maximum absolute value of a field at the inner points of the grid.
+     *
+     * @param field     the field
+     * @param width     width of the grid
+     * @param height    height of the grid
+     * @return          max|field| at the inner points
+     */
+    public static float maxNorm(float[] field, int width, int height) {
+        float max = 0;
+        for (int y=1; y<height-1; y++)
+            for (int x=1; x<width-1; x++)
+                max = Math.max(max, Math.abs(field[y*width+x]));
+        return max;
+    }
+
+
+    /**
+     * Calculates the residual of the scaled Poisson equation at the inner points.
+     *
+     * @param u         the approximate solution
+     * @param rhs       right-hand side of the scaled equation
+     * @param residual  output: rhs - (u(i+1,j) + u(i-1,j) + u(i,j+1) + u(i,j-1) - 4*u(i,j)),
+     *                  border values are not modified
+     * @param width     width of the grid
+     * @param height    height of the grid
+     * @return          max|residual| at the inner points
+     */
+    public static float residual(float[] u, float[] rhs, float[] residual, int width, int height) {
+        float max = 0;
+        for (int y=1; y<height-1; y++) {
+            for (int x=1; x<width-1; x++) {
+                final int i = y*width+x;
+                residual[i] = rhs[i] - (u[i+width] + u[i+1] + u[i-width] + u[i-1] - 4*u[i]);
+                max = Math.max(max, Math.abs(residual[i]));
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,181 @@
+package solver;
+
+/**
+ * This class implements the discrete sine transform (DST-I) of a given length:
+ * X(j) = sum of x(k)*sin(PI*j*k/(n+1)) for k=1..n, j=1..n.
+ * Applying it twice gives the original values multiplied by (n+1)/2.
+ *
+ * Short transforms are calculated with a precomputed table of sines.
+ * Long transforms use the odd extension of the data to length 2(n+1),
+ * whose FFT is calculated by Bluestein's algorithm with power of two FFTs,
+ * so the cost is O(n log n) for any n. Tables are precomputed in the constructor.
+ */
+final class SineTransform {
+
+    private static final int MAX_DIRECT_LENGTH = 64;   // longer transforms use the FFT
+
+    private final int n;
+
+    /**
+     * table of sines for the direct transform (index (j-1)*n+(k-1))
+     */
+    private final double[] sines;
+
+    /*
+     * Bluestein's algorithm: length of the extended data (m), length of the convolution (l),
+     * chirp w(k)=exp(i*PI*k^2/m), FFT of the chirp filter, twiddle factors and bit reversal of the FFT
+     */
+    private final int m, l;
+    private final double[] chirpRe, chirpIm, filterRe, filterIm;
+    private final double[] cos, sin;
+    private final int[] bitReversal;
+
+    /*
+     * work arrays
+     */
+    private final double[] re, im;
+
+
+    /**
+     * Class constructor.
+     * @param n     length of the transform
+     */
+    SineTransform(int n) {
+        this.n = n;
+
+        if (n <= MAX_DIRECT_LENGTH) {
+            sines = new double[n*n];
+            for (int j=1; j<=n; j++)
+                for (int k=1; k<=n; k++)
+                    sines[(j-1)*n+(k-1)] = Math.sin(Math.PI*j*k/(n+1));
+            m = l = 0;
+            chirpRe = chirpIm = filterRe = filterIm = cos = sin = re = im = null;
+            bitReversal = null;
+            return;
+        }
+        sines = null;
+
+        m = 2*(n+1);
+        int length = 1;
+        while (length < 2*m-1)
+            length *= 2;
+        l = length;
+
+        cos = new double[l/2];
+        sin = new double[l/2];
+        for (int k=0; k<l/2; k++) {
+            cos[k] = Math.cos(2*Math.PI*k/l);
+            sin[k] = Math.sin(2*Math.PI*k/l);
+        }
+        bitReversal = new int[l];
+        final int bits = Integer.numberOfTrailingZeros(l);
+        for (int k=0; k<l; k++)
+            bitReversal[k] = Integer.reverse(k) >>> (32-bits);
+
+        chirpRe = new double[m];
+        chirpIm = new double[m];
+        for (int k=0; k<m; k++) {
+            /* k^2 mod 2m keeps the argument small */
+            final double angle = Math.PI * (((long)k*k) % (2*m)) / m;
+            chirpRe[k] = Math.cos(angle);
+            chirpIm[k] = Math.sin(angle);
+        }
+        filterRe = new double[l];
+        filterIm = new double[l];
+        for (int k=0; k<m; k++) {
+            filterRe[k] = chirpRe[k];
+            filterIm[k] = chirpIm[k];
+            if (k > 0) {
+                filterRe[l-k] = chirpRe[k];
+                filterIm[l-k] = chirpIm[k];
+            }
+        }
+        fft(filterRe, filterIm, false);
+
+        re = new double[l];
+        im = new double[l];
+    }
+
+
+    /**
+     * Transforms data in place.
+     *
+     * @param data      the data
+     * @param offset    index of the first element
+     * @param stride    distance of the elements
+     * @param buffer    work array of length n at least
+     */
+    void transform(double[] data, int offset, int stride, double[] buffer) {
+
+        if (sines != null) {
+            for (int j=0; j<n; j++) {
+                double sum = 0;
+                for (int k=0; k<n; k++)
+                    sum += sines[j*n+k] * data[offset+k*stride];
+                buffer[j] = sum;
+            }
+            for (int j=0; j<n; j++)
+                data[offset+j*stride] = buffer[j];
+            return;
+        }
+
+        /* Odd extension y(k)=x(k), y(m-k)=-x(k), multiplied by the conjugate chirp. */
+        java.util.Arrays.fill(re, 0);
+        java.util.Arrays.fill(im, 0);
+        for (int k=1; k<=n; k++) {
+            final double x = data[offset+(k-1)*stride];
+            re[k] = x*chirpRe[k];
+            im[k] = -x*chirpIm[k];
+            re[m-k] = -x*chirpRe[m-k];
+            im[m-k] = x*chirpIm[m-k];
+        }
+
+        /* Convolution with the chirp filter. */
+        fft(re, im, false);
+        for (int k=0; k<l; k++) {
+            final double r = re[k]*filterRe[k] - im[k]*filterIm[k];
+            im[k] = re[k]*filterIm[k] + im[k]*filterRe[k];
+            re[k] = r;
+        }
+        fft(re, im, true);
+
+        /* Y(j) = conj(w(j)) * convolution(j) / l,  X(j) = -Im(Y(j))/2 */
+        for (int j=1; j<=n; j++) {
+            final double imY = (chirpRe[j]*im[j] - chirpIm[j]*re[j]) / l;
+            data[offset+(j-1)*stride] = -imY/2;
+        }
+    }
+
+
+    /**
+     * Iterative radix-2 FFT in place (without scaling).
+     *
+     * @param re        real parts
+     * @param im        imaginary parts
+     * @param inverse   true for the inverse transform (positive exponent)
+     */
+    private void fft(double[] re, double[] im, boolean inverse) {
+        for (int k=0; k<l; k++) {
+            final int r = bitReversal[k];
+            if (r > k) {
+                double t = re[k]; re[k] = re[r]; re[r] = t;
+                t = im[k]; im[k] = im[r]; im[r] = t;
+            }
+        }
+        for (int size=2; size<=l; size*=2) {
+            final int half = size/2, step = l/size;
+            for (int start=0; start<l; start+=size) {
+                for (int k=0; k<half; k++) {
+                    final double wr = cos[k*step], wi = inverse ? sin[k*step] : -sin[k*step];
+                    final int a = start+k, b = a+half;
+                    final double tr = re[b]*wr - im[b]*wi;
+                    final double ti = re[b]*wi + im[b]*wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package datastructures;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class checks the lock-free publishing of DataStruct and DataStructDZDT.
+ *
+ * The deny flag of dz/dt (the lowest bit of the published step) is checked on a single thread:
+ * dzdt[0] and dzdt[1] are denied between two Poisson iterations, the other steps aren't, and the
+ * flag is kept when steps are published. Then a writer publishes values while readers check that
+ * every value up to the published step is visible, a DataWaiter gets every value without missing
+ * a wakeup, and no reader gets dzdt[1] of a finished iteration after its requests have been denied.
+ * Run it with the compiled classes on the class path; the exit status is 1 if a check fails.
+ */
+public class DataStructCheck {
+
+    private static final int ROUNDS = 2000;
+    private static final int ITERATIONS = 10000;
+    private static final int READERS = 3;
+    private static final long JOIN_TIMEOUT = 60000;             // milliseconds
+
+    private static boolean failed = false;
+
+
+    public static void main(String[] args) throws InterruptedException {
+        checkDenyFlag();
+        checkPublishing();
+        checkWaiter();
+        checkDeniedIterations();
+
+        System.out.println(failed ? "DataStructCheck: FAILED" : "DataStructCheck: OK");
+        System.exit(failed ? 1 : 0);
+    }
+
+
+    /**
+     * Checks the deny flag of dz/dt and the notification of the listeners on a single thread.
+     */
+    private static void checkDenyFlag() {
+        int errors = 0;
+        final DataStructDZDT dzdt = new DataStructDZDT();
+        final AtomicInteger notifications = new AtomicInteger();
+        dzdt.addListener(new DataListener() {
+            @Override
+            public void dataPublished(DataStruct data) {
+                notifications.incrementAndGet();
+            }
+        });
+
+        errors += expect("initial step", dzdt.getStep(), -1);
+        errors += expect("dzdt[0] before it is set", dzdt.getData(0), Float.NaN);
+        for (int step=0; step<=3; step++)
+            dzdt.setData(step, 10+step);
+        errors += expect("published step", dzdt.getStep(), 3);
+        errors += expect("dzdt[1] allowed", dzdt.getData(1), 11);
+        errors += expect("dzdt[4] not set yet", dzdt.getData(4), Float.NaN);
+
+        dzdt.denyNextStepRequests();
+        errors += expect("step after deny", dzdt.getStep(), 3);
+        errors += expect("dzdt[0] denied", dzdt.getData(0), Float.NaN);
+        errors += expect("dzdt[1] denied", dzdt.getData(1), Float.NaN);
+        errors += expect("dzdt[2] not denied", dzdt.getData(2), 12);
+
+        /* The next iteration sets dzdt[0] first: the flag is kept until it is allowed. */
+        dzdt.setData(0, 20);
+        errors += expect("step of the next iteration", dzdt.getStep(), 0);
+        errors += expect("dzdt[0] still denied", dzdt.getData(0), Float.NaN);
+        final int before = notifications.get();
+        dzdt.allowNextStepRequests();
+        errors += expect("listener notified when allowed", notifications.get() - before, 1);
+        errors += expect("dzdt[0] allowed", dzdt.getData(0), 20);
+        errors += expect("dzdt[1] of the next iteration not set yet", dzdt.getData(1), Float.NaN);
+        dzdt.setData(1, 21);
+        errors += expect("dzdt[1] of the next iteration", dzdt.getData(1), 21);
+        errors += expect("listener notified for every value", notifications.get(), 7);
+
+        failed |= errors > 0;
+        System.out.println((errors == 0 ? "ok     " : "FAILED ") + "deny flag: " + errors + " errors");
+    }
+
+
+    /**
+     * Publishes the values of z and dz/dt on one thread, while other threads check that every value
+     * up to the published step is visible.
+     * @throws InterruptedException
+     */
+    private static void checkPublishing() throws InterruptedException {
+        final AtomicInteger errors = new AtomicInteger();
+        for (int round=0; round<ROUNDS; round++) {
+            final DataStruct[] data = { new DataStructZ(), new DataStructDZDT() };
+            final int[] numSteps = { DataStructZ.NUM_STEPS, DataStructDZDT.NUM_STEPS };
+            final Thread[] readers = new Thread[READERS];
+            for (int r=0; r<READERS; r++) {
+                readers[r] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int d=0; d<data.length; d++) {
+                            int step;
+                            do {
+                                step = data[d].getStep();
+                                for (int s=0; s<=step; s++) {
+                                    if (data[d].getData(s) != value(0, s) && errors.getAndIncrement() < 5)
+                                        report(data[d].getClass().getSimpleName() + ": step " + s + " of " + step + " read as " + data[d].getData(s));
+                                }
+                            } while (step < numSteps[d]-1);
+                        }
+                    }
+                });
+                readers[r].start();
+            }
+            for (int d=0; d<data.length; d++) {
+                for (int s=0; s<numSteps[d]; s++)
+                    data[d].setData(s, value(0, s));
+            }
+            errors.addAndGet(join(readers, "publishing"));
+        }
+        failed |= errors.get() > 0;
+        System.out.println((errors.get() == 0 ? "ok     " : "FAILED ") + "publishing: " + errors.get() + " errors in " + ROUNDS + " rounds");
+    }
+
+
+    /**
+     * Publishes the values of z on one thread, while a DataWaiter on another thread waits for every step.
+     * @throws InterruptedException
+     */
+    private static void checkWaiter() throws InterruptedException {
+        final AtomicInteger errors = new AtomicInteger();
+        for (int round=0; round<ROUNDS; round++) {
+            final DataStructZ z = new DataStructZ();
+            final DataWaiter waiter = new DataWaiter();
+            waiter.listenTo(z);
+            final Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int s=0; s<DataStructZ.NUM_STEPS; s++) {
+                        final float value = waiter.getData(z, s);
+                        if (value != value(0, s) && errors.getAndIncrement() < 5)
+                            report("DataWaiter: step " + s + " read as " + value);
+                    }
+                }
+            });
+            reader.start();
+            for (int s=0; s<DataStructZ.NUM_STEPS; s++) {
+                z.setData(s, value(0, s));
+                if (s % 8 == 0)
+                    Thread.yield();
+            }
+            errors.addAndGet(join(new Thread[] { reader }, "waiter"));
+        }
+        failed |= errors.get() > 0;
+        System.out.println((errors.get() == 0 ? "ok     " : "FAILED ") + "waiter: " + errors.get() + " errors in " + ROUNDS + " rounds");
+    }
+
+
+    /**
+     * Runs Poisson iterations of dz/dt on one thread (dzdt[0], allow, dzdt[1..], deny), while other threads
+     * ask for dzdt[1]: once an iteration has finished (and denied the requests), dzdt[1] is either NaN
+     * or the value of a later iteration.
+     * @throws InterruptedException
+     */
+    private static void checkDeniedIterations() throws InterruptedException {
+        final AtomicInteger errors = new AtomicInteger();
+        final DataStructDZDT dzdt = new DataStructDZDT();
+        final AtomicInteger finished = new AtomicInteger(-1);      // last iteration which has denied the requests
+        final Thread[] readers = new Thread[READERS];
+        for (int r=0; r<READERS; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int last;
+                    do {
+                        last = finished.get();
+                        final float value = dzdt.getData(1);
+                        if (!Float.isNaN(value) && iteration(value) <= last && errors.getAndIncrement() < 5)
+                            report("DataStructDZDT: dzdt[1] of iteration " + iteration(value) + " read after iteration " + last + " has finished");
+                    } while (last < ITERATIONS-1);
+                }
+            });
+            readers[r].start();
+        }
+        for (int it=0; it<ITERATIONS; it++) {
+            dzdt.setData(0, value(it, 0));
+            dzdt.allowNextStepRequests();
+            for (int s=1; s<=4; s++)
+                dzdt.setData(s, value(it, s));
+            dzdt.denyNextStepRequests();
+            finished.set(it);
+        }
+        errors.addAndGet(join(readers, "denied iterations"));
+        failed |= errors.get() > 0;
+        System.out.println((errors.get() == 0 ? "ok     " : "FAILED ") + "denied iterations: " + errors.get() + " errors in " + ITERATIONS + " iterations");
+    }
+
+
+    /**
+     * Returns the value published in a step of an iteration (never 0, the value of the steps which are not set).
+     * @param iteration the iteration
+     * @param step      the step
+     * @return          the value
+     */
+    private static float value(int iteration, int step) {
+        return iteration*1000 + step + 1;
+    }
+
+
+    /**
+     * Returns the iteration of a value.
+     * @param value     the value (see value())
+     * @return          the iteration
+     */
+    private static int iteration(float value) {
+        return (int)value / 1000;
+    }
+
+
+    /**
+     * Waits for the readers to finish.
+     * @param readers   the threads of the readers
+     * @param name      name of the check
+     * @return          the number of readers which haven't finished
+     * @throws InterruptedException
+     */
+    private static int join(Thread[] readers, String name) throws InterruptedException {
+        int errors = 0;
+        for (Thread reader : readers) {
+            reader.join(JOIN_TIMEOUT);
+            if (reader.isAlive()) {
+                report(name + ": reader hasn't finished");
+                errors++;
+            }
+        }
+        return errors;
+    }
+
+
+    /**
+     * Compares a value with the expected one.
+     * @param name      name of the check
+     * @param value     the value
+     * @param expected  the expected value (NaN: not available)
+     * @return          1 if the value differs, 0 otherwise
+     */
+    private static int expect(String name, float value, float expected) {
+        if (Float.floatToIntBits(value) == Float.floatToIntBits(expected))
+            return 0;
+        report(name + ": " + value + " instead of " + expected);
+        return 1;
+    }
+
+
+    /**
+     * Prints a failed check.
+     * @param message   description of the failure
+     */
+    private static void report(String message) {
+        System.out.println("FAILED " + message);
+    }
+}
@@ -0,0 +1,160 @@
+package datastructures;
+
+import java.util.Random;
+
+/**
+ * This class checks the k-d tree of GridIndex against a brute force search of the nearest grid point.
+ *
+ * The grids are a regular grid over the whole sphere (poles and date line included),
+ * a random grid, and a grid with repeated grid points (ties are resolved to the lowest y, then x).
+ * Run it with the compiled classes on the class path; the exit status is 1 if a lookup differs.
+ */
+public class GridIndexCheck {
+
+    private static final int LOOKUPS = 20000;
+
+    private static boolean failed = false;
+
+
+    public static void main(String[] args) {
+        final Random random = new Random(1949);
+
+        /* Regular grid from pole to pole, longitudes from -PI to PI. */
+        float[][] lat = new float[37][72];
+        float[][] lon = new float[37][72];
+        for (int y=0; y<lat.length; y++) {
+            for (int x=0; x<lat[0].length; x++) {
+                lat[y][x] = (float)(-Math.PI/2 + Math.PI*y/(lat.length-1));
+                lon[y][x] = (float)(-Math.PI + 2*Math.PI*x/(lat[0].length-1));
+            }
+        }
+        check("regular 72x37", lat, lon, random);
+
+        /* Random grid points. */
+        lat = new float[16][19];
+        lon = new float[16][19];
+        for (int y=0; y<lat.length; y++) {
+            for (int x=0; x<lat[0].length; x++) {
+                lat[y][x] = randomLatitude(random);
+                lon[y][x] = randomLongitude(random);
+            }
+        }
+        check("random 19x16", lat, lon, random);
+
+        /* Every grid point four times. */
+        lat = new float[20][20];
+        lon = new float[20][20];
+        for (int y=0; y<lat.length; y++) {
+            for (int x=0; x<lat[0].length; x++) {
+                if (x%2 == 0 && y%2 == 0) {
+                    lat[y][x] = randomLatitude(random);
+                    lon[y][x] = randomLongitude(random);
+                }
+                else {
+                    lat[y][x] = lat[y-y%2][x-x%2];
+                    lon[y][x] = lon[y-y%2][x-x%2];
+                }
+            }
+        }
+        check("repeated 20x20", lat, lon, random);
+
+        System.out.println(failed ? "GridIndexCheck: FAILED" : "GridIndexCheck: OK");
+        System.exit(failed ? 1 : 0);
+    }
+
+
+    /**
+     * Compares random lookups (near the grid points and anywhere on the sphere) with the brute force search.
+     *
+     * @param name      name of the grid
+     * @param lat       geographical latitude of the grid points in radians, index [y][x]
+     * @param lon       geographical longitude of the grid points in radians, index [y][x]
+     * @param random    random number generator
+     */
+    private static void check(String name, float[][] lat, float[][] lon, Random random) {
+        final GridIndex index = new GridIndex(lat, lon);
+        int mismatches = 0;
+        for (int i=0; i<LOOKUPS; i++) {
+            final float latitude, longitude;
+            if (i%2 == 0) {
+                latitude = randomLatitude(random);
+                longitude = randomLongitude(random);
+            }
+            else {
+                final int y = random.nextInt(lat.length), x = random.nextInt(lat[0].length);
+                latitude = lat[y][x] + (float)(random.nextGaussian()*1e-3);
+                longitude = lon[y][x] + (float)(random.nextGaussian()*1e-3);
+            }
+            final int[] nearest = index.getNearest(latitude, longitude);
+            final int[] expected = getNearest(lat, lon, latitude, longitude);
+            if (nearest[0] != expected[0] || nearest[1] != expected[1]) {
+                if (mismatches++ < 5)
+                    System.out.println("mismatch at (" + latitude + ", " + longitude + "): (" + nearest[0] + "," + nearest[1]
+                            + ") instead of (" + expected[0] + "," + expected[1] + ")");
+            }
+        }
+        failed |= mismatches > 0;
+        System.out.println((mismatches == 0 ? "ok     " : "FAILED ") + name + ": " + mismatches + " mismatches in " + LOOKUPS + " lookups");
+    }
+
+
+    /**
+     * Brute force search of the nearest grid point (the same squared chord as in GridIndex,
+     * ties resolved to the lowest y, then x).
+     *
+     * @param lat       geographical latitude of the grid points in radians, index [y][x]
+     * @param lon       geographical longitude of the grid points in radians, index [y][x]
+     * @param latitude  latitude of the position in radians
+     * @param longitude longitude of the position in radians
+     * @return          (x,y) of the nearest grid point
+     */
+    private static int[] getNearest(float[][] lat, float[][] lon, float latitude, float longitude) {
+        final double[] q = toUnitVector(latitude, longitude);
+        double best = Double.MAX_VALUE;
+        int[] nearest = null;
+        for (int y=0; y<lat.length; y++) {
+            for (int x=0; x<lat[0].length; x++) {
+                final double[] p = toUnitVector(lat[y][x], lon[y][x]);
+                final double dx = q[0]-p[0], dy = q[1]-p[1], dz = q[2]-p[2];
+                final double d = dx*dx + dy*dy + dz*dz;
+                if (d < best) {
+                    best = d;
+                    nearest = new int[]{x, y};
+                }
+            }
+        }
+        return nearest;
+    }
+
+
+    /**
+     * Returns the unit vector of a geographical position (as in GridIndex).
+     * @param lat   latitude in radians
+     * @param lon   longitude in radians
+     * @return      the unit vector (x, y, z)
+     */
+    private static double[] toUnitVector(double lat, double lon) {
+        final double cosLat = Math.cos(lat);
+        return new double[]{cosLat*Math.cos(lon), cosLat*Math.sin(lon), Math.sin(lat)};
+    }
+
+
+    /**
+     * Returns a random latitude (uniform on the sphere).
+     * @param random    random number generator
+     * @return          the latitude in radians
+     */
+    private static float randomLatitude(Random random) {
+        return (float)Math.asin(random.nextDouble()*2-1);
+    }
+
+
+    /**
+     * Returns a random longitude.
+     * @param random    random number generator
+     * @return          the longitude in radians
+     */
+    private static float randomLongitude(Random random) {
+        return (float)(random.nextDouble()*2*Math.PI - Math.PI);
+    }
+}
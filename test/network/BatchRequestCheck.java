@@ -0,0 +1,225 @@
+package network;
+
+import datastructures.DataStruct;
+import datastructures.DataStructXI;
+import datastructures.DataStructZ;
+import eniac.Main.UDPMessageTypes;
+import eniac.Node;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * This class checks the batched requests (GET_CELL_DATA_BATCH) of NodeUDPServer: a batch whose values are
+ * published is answered at once, a batch with missing values is parked (on the data structure of every missing
+ * value in turn) and answered when the last one is published, and a batch whose values don't appear is answered
+ * after PARKING_TIMEOUT, with NaN for the missing values.
+ *
+ * The server runs on its own thread, and it is asked for z and xi of its grid point.
+ * Run it with the compiled classes on the class path; the exit status is 1 if a check fails.
+ */
+public class BatchRequestCheck {
+
+    private static final int X = 3;
+    private static final int Y = 4;
+    private static final int QUIET_TIME = 300;                  // milliseconds without an answer for a parked request
+    private static final long EXPIRY_TOLERANCE = 500;           // milliseconds after PARKING_TIMEOUT
+
+    private static boolean failed = false;
+
+
+    public static void main(String[] args) throws IOException {
+        final DataStructZ z = new DataStructZ();
+        final DataStructXI xi = new DataStructXI();
+        final NodeUDPServer server = new NodeUDPServer(new Provider(z, xi));
+        final Thread thread = new Thread(server);
+        thread.setDaemon(true);
+        thread.start();
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            final InetAddress address = InetAddress.getLoopbackAddress();
+            final int port = server.getListeningPort();
+            final int z0 = Node.DataTypes.Z.ordinal(), xi0 = Node.DataTypes.XI.ordinal();
+
+            /* published values */
+            z.setData(0, 5500);
+            z.setData(1, 5501);
+            xi.setData(0, 0.5f);
+            send(socket, address, port, 1, z0, 0, 2, xi0, 0, 1);
+            expect("published values answered at once", receive(socket, 1000, 3), 1, 5500, 5501, 0.5f);
+
+            /* values of two data structures published after the request */
+            send(socket, address, port, 2, z0, 0, 3, xi0, 0, 2);
+            expectNone("batch parked while z[2] and xi[1] are missing", socket);
+            z.setData(2, 5502);
+            expectNone("batch parked while xi[1] is missing", socket);
+            xi.setData(1, 1.5f);
+            expect("parked batch answered when the last value is published", receive(socket, 1000, 5), 2, 5500, 5501, 5502, 0.5f, 1.5f);
+
+            /* value which is not published */
+            final long start = System.currentTimeMillis();
+            send(socket, address, port, 3, xi0, 1, 2, z0, 2, 1);
+            final float[] answer = receive(socket, (int)(NodeUDPServer.PARKING_TIMEOUT + 5000), 3);
+            final long elapsed = System.currentTimeMillis() - start;
+            expect("parked batch expired with NaN for the missing value", answer, 3, 1.5f, Float.NaN, 5502);
+            if (elapsed < NodeUDPServer.PARKING_TIMEOUT || elapsed > NodeUDPServer.PARKING_TIMEOUT + EXPIRY_TOLERANCE) {
+                report("parked batch expired after " + elapsed + " ms");
+                failed = true;
+            }
+            else
+                System.out.println("ok     parked batch expired after " + elapsed + " ms");
+        } finally {
+            server.stop();
+        }
+
+        System.out.println(failed ? "BatchRequestCheck: FAILED" : "BatchRequestCheck: OK");
+        System.exit(failed ? 1 : 0);
+    }
+
+
+    /**
+     * Sends a batched request for the grid point of the server.
+     * @param socket    socket of the client
+     * @param address   address of the server
+     * @param port      port of the server
+     * @param requestId ID of the request
+     * @param entries   (data type ordinal, first step, number of steps) of every entry
+     * @throws IOException
+     */
+    private static void send(DatagramSocket socket, InetAddress address, int port, int requestId, int... entries) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate((5+entries.length)*Integer.SIZE / 8).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(UDPMessageTypes.GET_CELL_DATA_BATCH.getCode());
+        buf.putInt(requestId);
+        buf.putInt(X);
+        buf.putInt(Y);
+        buf.putInt(entries.length / 3);
+        for (int entry : entries)
+            buf.putInt(entry);
+        socket.send(new DatagramPacket(buf.array(), buf.capacity(), address, port));
+    }
+
+
+    /**
+     * Receives an answer of a batched request.
+     * @param socket    socket of the client
+     * @param timeout   milliseconds to wait for the answer
+     * @param numValues the number of values of the answer
+     * @return          the request ID and the values, or null if no answer was received
+     * @throws IOException
+     */
+    private static float[] receive(DatagramSocket socket, int timeout, int numValues) throws IOException {
+        final DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+        socket.setSoTimeout(timeout);
+        try {
+            socket.receive(packet);
+        } catch (SocketTimeoutException ex) {
+            return null;
+        }
+        final ByteBuffer buf = ByteBuffer.wrap(packet.getData(), 0, packet.getLength()).order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.remaining() != (1+numValues)*Float.SIZE / 8)
+            return new float[0];
+        final float[] answer = new float[1+numValues];
+        answer[0] = buf.getInt();
+        for (int i=1; i<answer.length; i++)
+            answer[i] = buf.getFloat();
+        return answer;
+    }
+
+
+    /**
+     * Checks an answer.
+     * @param name      name of the check
+     * @param answer    the request ID and the values (null if no answer was received)
+     * @param requestId the expected request ID
+     * @param values    the expected values
+     */
+    private static void expect(String name, float[] answer, int requestId, float... values) {
+        final float[] expected = new float[1+values.length];
+        expected[0] = requestId;
+        System.arraycopy(values, 0, expected, 1, values.length);
+        if (answer == null)
+            report(name + ": no answer");
+        else if (!Arrays.equals(answer, expected))
+            report(name + ": answer " + Arrays.toString(answer));
+        else {
+            System.out.println("ok     " + name);
+            return;
+        }
+        failed = true;
+    }
+
+
+    /**
+     * Checks that no answer is received for QUIET_TIME.
+     * @param name      name of the check
+     * @param socket    socket of the client
+     * @throws IOException
+     */
+    private static void expectNone(String name, DatagramSocket socket) throws IOException {
+        final float[] answer = receive(socket, QUIET_TIME, 0);
+        if (answer == null) {
+            System.out.println("ok     " + name);
+            return;
+        }
+        report(name + ": answered");
+        failed = true;
+    }
+
+
+    /**
+     * Prints a failed check.
+     * @param message   description of the failure
+     */
+    private static void report(String message) {
+        System.out.println("FAILED " + message);
+    }
+
+
+    /**
+     * The node of the server: a single grid point with z and xi only.
+     */
+    private static class Provider implements DataProvider {
+
+        private final DataStruct z, xi;
+
+        Provider(DataStruct z, DataStruct xi) {
+            this.z = z;
+            this.xi = xi;
+        }
+
+        @Override
+        public float getValue(Node.DataTypes dataType, int step) {
+            return getValue(dataType, X, Y, step);
+        }
+
+        @Override
+        public float getValue(Node.DataTypes dataType, int x, int y, int step) {
+            final DataStruct data = getDataStruct(dataType, x, y);
+            return (data != null) ? data.getData(step) : Float.NaN;
+        }
+
+        @Override
+        public DataStruct getDataStruct(Node.DataTypes dataType, int x, int y) {
+            if (x != X || y != Y)
+                return null;
+            if (dataType == Node.DataTypes.Z)
+                return z;
+            return (dataType == Node.DataTypes.XI) ? xi : null;
+        }
+
+        @Override
+        public int getX() {
+            return X;
+        }
+
+        @Override
+        public int getY() {
+            return Y;
+        }
+    }
+}
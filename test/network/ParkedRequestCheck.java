@@ -0,0 +1,218 @@
+package network;
+
+import datastructures.DataStruct;
+import datastructures.DataStructZ;
+import eniac.Main.UDPMessageTypes;
+import eniac.Node;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * This class checks the parked requests of NodeUDPServer: a request for a published value is answered at once,
+ * a request for a value which is not published yet is answered by dataPublished() when it is set, and a request
+ * for a value which doesn't appear is answered with NaN after PARKING_TIMEOUT.
+ *
+ * The server runs on its own thread and on a shared UDPServerLoop, and it is asked by tagged requests
+ * (GET_TAGGED_CELL_DATA) for z of its grid point.
+ * Run it with the compiled classes on the class path; the exit status is 1 if a check fails.
+ */
+public class ParkedRequestCheck {
+
+    private static final int X = 3;
+    private static final int Y = 4;
+    private static final int QUIET_TIME = 300;                  // milliseconds without an answer for a parked request
+    private static final long EXPIRY_TOLERANCE = 500;           // milliseconds after PARKING_TIMEOUT
+
+    private static boolean failed = false;
+
+
+    public static void main(String[] args) throws IOException {
+        check(false);
+        check(true);
+
+        System.out.println(failed ? "ParkedRequestCheck: FAILED" : "ParkedRequestCheck: OK");
+        System.exit(failed ? 1 : 0);
+    }
+
+
+    /**
+     * Checks the answers of a server.
+     * @param isLoop    true: the server is served by a UDPServerLoop, false: it runs on its own thread
+     * @throws IOException
+     */
+    private static void check(boolean isLoop) throws IOException {
+        final String mode = isLoop ? "server loop" : "own thread";
+        final DataStructZ z = new DataStructZ();
+        final NodeUDPServer server = new NodeUDPServer(new Provider(z));
+        UDPServerLoop loop = null;
+        if (isLoop) {
+            loop = new UDPServerLoop();
+            start(loop);
+            loop.attach(server);
+        }
+        else
+            start(server);
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            final InetAddress address = InetAddress.getLoopbackAddress();
+            final int port = server.getListeningPort();
+
+            /* published value */
+            z.setData(0, 5500);
+            send(socket, address, port, 1, 0);
+            expect(mode + ": published value answered at once", receive(socket, 1000), 1, 5500);
+
+            /* value published after the request */
+            send(socket, address, port, 2, 1);
+            final float[] early = receive(socket, QUIET_TIME);
+            if (early != null) {
+                report(mode + ": unpublished value answered with " + early[1]);
+                failed = true;
+            }
+            z.setData(1, 5501);
+            expect(mode + ": parked request answered when the value is published", receive(socket, 1000), 2, 5501);
+
+            /* value which is not published */
+            final long start = System.currentTimeMillis();
+            send(socket, address, port, 3, 2);
+            final float[] answer = receive(socket, (int)(NodeUDPServer.PARKING_TIMEOUT + 5000));
+            final long elapsed = System.currentTimeMillis() - start;
+            expect(mode + ": parked request expired with NaN", answer, 3, Float.NaN);
+            if (elapsed < NodeUDPServer.PARKING_TIMEOUT || elapsed > NodeUDPServer.PARKING_TIMEOUT + EXPIRY_TOLERANCE) {
+                report(mode + ": parked request expired after " + elapsed + " ms");
+                failed = true;
+            }
+            else
+                System.out.println("ok     " + mode + ": parked request expired after " + elapsed + " ms");
+        } finally {
+            server.stop();
+            if (loop != null)
+                loop.stop();
+        }
+    }
+
+
+    /**
+     * Starts a daemon thread.
+     * @param runnable  the code of the thread
+     */
+    private static void start(Runnable runnable) {
+        final Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Sends a tagged request for z of the grid point of the server.
+     * @param socket    socket of the client
+     * @param address   address of the server
+     * @param port      port of the server
+     * @param requestId ID of the request
+     * @param step      the requested step
+     * @throws IOException
+     */
+    private static void send(DatagramSocket socket, InetAddress address, int port, int requestId, int step) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(6*Integer.SIZE / 8).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(UDPMessageTypes.GET_TAGGED_CELL_DATA.getCode());
+        buf.putInt(requestId);
+        buf.putInt(Node.DataTypes.Z.ordinal());
+        buf.putInt(step);
+        buf.putInt(X);
+        buf.putInt(Y);
+        socket.send(new DatagramPacket(buf.array(), buf.capacity(), address, port));
+    }
+
+
+    /**
+     * Receives an answer of a tagged request.
+     * @param socket    socket of the client
+     * @param timeout   milliseconds to wait for the answer
+     * @return          the request ID and the value, or null if no answer was received
+     * @throws IOException
+     */
+    private static float[] receive(DatagramSocket socket, int timeout) throws IOException {
+        final DatagramPacket packet = new DatagramPacket(new byte[64], 64);
+        socket.setSoTimeout(timeout);
+        try {
+            socket.receive(packet);
+        } catch (SocketTimeoutException ex) {
+            return null;
+        }
+        final ByteBuffer buf = ByteBuffer.wrap(packet.getData(), 0, packet.getLength()).order(ByteOrder.LITTLE_ENDIAN);
+        return new float[] { buf.getInt(), buf.getFloat() };
+    }
+
+
+    /**
+     * Checks an answer.
+     * @param name      name of the check
+     * @param answer    the request ID and the value (null if no answer was received)
+     * @param requestId the expected request ID
+     * @param value     the expected value
+     */
+    private static void expect(String name, float[] answer, int requestId, float value) {
+        if (answer == null)
+            report(name + ": no answer");
+        else if ((int)answer[0] != requestId || Float.floatToIntBits(answer[1]) != Float.floatToIntBits(value))
+            report(name + ": answer " + (int)answer[0] + " " + answer[1]);
+        else {
+            System.out.println("ok     " + name);
+            return;
+        }
+        failed = true;
+    }
+
+
+    /**
+     * Prints a failed check.
+     * @param message   description of the failure
+     */
+    private static void report(String message) {
+        System.out.println("FAILED " + message);
+    }
+
+
+    /**
+     * The node of the server: a single grid point with z only.
+     */
+    private static class Provider implements DataProvider {
+
+        private final DataStruct z;
+
+        Provider(DataStruct z) {
+            this.z = z;
+        }
+
+        @Override
+        public float getValue(Node.DataTypes dataType, int step) {
+            return getValue(dataType, X, Y, step);
+        }
+
+        @Override
+        public float getValue(Node.DataTypes dataType, int x, int y, int step) {
+            final DataStruct data = getDataStruct(dataType, x, y);
+            return (data != null) ? data.getData(step) : Float.NaN;
+        }
+
+        @Override
+        public DataStruct getDataStruct(Node.DataTypes dataType, int x, int y) {
+            return (dataType == Node.DataTypes.Z && x == X && y == Y) ? z : null;
+        }
+
+        @Override
+        public int getX() {
+            return X;
+        }
+
+        @Override
+        public int getY() {
+            return Y;
+        }
+    }
+}
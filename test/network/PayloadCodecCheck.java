@@ -0,0 +1,175 @@
+package network;
+
+import eniac.Main.PayloadCodecs;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * This class checks the round trip of the payload codecs: RAW and DELTA give back the bits of the values,
+ * QUANTIZED gives back the rounded values, whose relative error is at most 2^-(bits+1).
+ *
+ * The values are field-like values, small values, signed zeros and random bit patterns
+ * (subnormal values, infinities and NaN included), encoded with and without a reference.
+ * Run it with the compiled classes on the class path; the exit status is 1 if a check fails.
+ */
+public class PayloadCodecCheck {
+
+    private static final int ROUNDS = 2000;
+    private static final int MAX_COUNT = 40;
+
+    private static boolean failed = false;
+
+
+    public static void main(String[] args) {
+        final Random random = new Random(1949);
+
+        check(PayloadCodec.get(PayloadCodecs.RAW, PayloadCodec.MANTISSA_BITS), random);
+        check(PayloadCodec.get(PayloadCodecs.DELTA, PayloadCodec.MANTISSA_BITS), random);
+        for (int bits=1; bits<=PayloadCodec.MANTISSA_BITS; bits++)
+            check(PayloadCodec.get(PayloadCodecs.QUANTIZED, bits), random);
+        checkCodecBlock(random);
+
+        System.out.println(failed ? "PayloadCodecCheck: FAILED" : "PayloadCodecCheck: OK");
+        System.exit(failed ? 1 : 0);
+    }
+
+
+    /**
+     * Encodes and decodes random answers with a codec.
+     *
+     * @param codec     the codec
+     * @param random    random number generator
+     */
+    private static void check(PayloadCodec codec, Random random) {
+        final ByteBuffer buf = ByteBuffer.allocate(PayloadCodec.getMaxSize(MAX_COUNT)).order(ByteOrder.LITTLE_ENDIAN);
+        final float[] original = new float[MAX_COUNT];
+        final float[] values = new float[MAX_COUNT];
+        final float[] decoded = new float[MAX_COUNT];
+        final float[] reference = new float[MAX_COUNT];
+        int errors = 0;
+        double maxError = 0;
+
+        for (int round=0; round<ROUNDS; round++) {
+            final int count = 1 + random.nextInt(MAX_COUNT);
+            final int kind = random.nextInt(4);
+            for (int i=0; i<count; i++)
+                original[i] = randomValue(kind, random);
+
+            /* The reference is the previous iteration (a decoded answer, as on the client), or none. */
+            final boolean hasReference = random.nextBoolean();
+            if (hasReference) {
+                for (int i=0; i<count; i++)
+                    reference[i] = codec.quantize(random.nextInt(4) == 0 ? randomValue(kind, random) : original[i] * (1 + (float)random.nextGaussian()*1e-4f));
+            }
+
+            System.arraycopy(original, 0, values, 0, count);
+            buf.clear();
+            codec.encode(buf, values, count, hasReference ? reference : null);
+            if (buf.position() > PayloadCodec.getMaxSize(count)) {
+                report(codec + ": " + buf.position() + " bytes for " + count + " values");
+                errors++;
+                continue;
+            }
+            buf.flip();
+            if (!codec.decode(buf, decoded, count, hasReference ? reference : null) || buf.hasRemaining()) {
+                report(codec + ": answer of " + count + " values not decoded");
+                errors++;
+                continue;
+            }
+
+            for (int i=0; i<count; i++) {
+                /* The client decodes the values which the server has encoded (rounded in place). */
+                if (Float.floatToRawIntBits(decoded[i]) != Float.floatToRawIntBits(values[i])
+                        || (codec.type != PayloadCodecs.QUANTIZED && Float.floatToRawIntBits(decoded[i]) != Float.floatToRawIntBits(original[i]))) {
+                    if (errors++ < 5)
+                        report(codec + ": " + original[i] + " decoded as " + decoded[i]);
+                    continue;
+                }
+                final double error = getRelativeError(codec, original[i], decoded[i]);
+                maxError = Math.max(maxError, error);
+                if (error > Math.scalb(1.0, -(codec.mantissaBits+1))) {
+                    if (errors++ < 5)
+                        report(codec + ": " + original[i] + " decoded as " + decoded[i] + ", relative error " + error);
+                }
+            }
+        }
+        failed |= errors > 0;
+        System.out.println((errors == 0 ? "ok     " : "FAILED ") + codec + ": " + errors + " errors in " + ROUNDS + " answers, max relative error " + maxError);
+    }
+
+
+    /**
+     * Returns the relative error of a decoded value (0 for the values which have to be kept exactly:
+     * NaN, infinities and zeros; subnormal values and the values truncated instead of rounded to
+     * infinity are measured against half of the rounding step).
+     *
+     * @param codec     the codec
+     * @param value     the original value
+     * @param decoded   the decoded value
+     * @return          the relative error
+     */
+    private static double getRelativeError(PayloadCodec codec, float value, float decoded) {
+        if (Float.isNaN(value))
+            return Float.isNaN(decoded) ? 0 : Double.MAX_VALUE;
+        if (Float.isInfinite(value) || value == 0)
+            return (decoded == value) ? 0 : Double.MAX_VALUE;
+        final double error = Math.abs((double)decoded - (double)value);
+        final double step = Math.scalb((double)Math.ulp(value), PayloadCodec.MANTISSA_BITS - codec.mantissaBits);
+        if (Math.abs(value) < Float.MIN_NORMAL || Math.abs((double)value) + step/2 > Float.MAX_VALUE)
+            return (error <= step) ? 0 : Double.MAX_VALUE;
+        return error / Math.abs(value);
+    }
+
+
+    /**
+     * Checks that the codec block of an answer is read back.
+     * @param random    random number generator
+     */
+    private static void checkCodecBlock(Random random) {
+        final ByteBuffer buf = ByteBuffer.allocate(PayloadCodec.ANSWER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        int errors = 0;
+        for (PayloadCodecs type : PayloadCodecs.values()) {
+            for (int bits=1; bits<=PayloadCodec.MANTISSA_BITS; bits++) {
+                final PayloadCodec codec = PayloadCodec.get(type, bits);
+                final int answerId = random.nextInt(), referenceId = random.nextInt();
+                buf.clear();
+                codec.putAnswer(buf, answerId, referenceId);
+                buf.flip();
+                if (PayloadCodec.get(buf) != codec || buf.getInt() != answerId || buf.getInt() != referenceId) {
+                    report(codec + ": codec block not read back");
+                    errors++;
+                }
+            }
+        }
+        failed |= errors > 0;
+        System.out.println((errors == 0 ? "ok     " : "FAILED ") + "codec blocks: " + errors + " errors");
+    }
+
+
+    /**
+     * Returns a random value.
+     * @param kind      0: field-like values, 1: small values and signed zeros, 2: random bits, 3: mixed
+     * @param random    random number generator
+     * @return          the value
+     */
+    private static float randomValue(int kind, Random random) {
+        switch (kind == 3 ? random.nextInt(3) : kind) {
+            case 0:
+                return 5500 + (float)random.nextGaussian()*300;
+            case 1:
+                return random.nextInt(8) == 0 ? (random.nextBoolean() ? 0.0f : -0.0f) : (float)random.nextGaussian()*1e-3f;
+            default:
+                return Float.intBitsToFloat(random.nextInt());
+        }
+    }
+
+
+    /**
+     * Prints a failed check.
+     * @param message   description of the failure
+     */
+    private static void report(String message) {
+        System.out.println("FAILED " + message);
+    }
+}
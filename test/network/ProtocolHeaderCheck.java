@@ -0,0 +1,320 @@
+package network;
+
+import datastructures.DataStruct;
+import datastructures.DataStructZ;
+import eniac.Main.UDPMessageTypes;
+import eniac.Node;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * This class checks the versioned header: the negotiation of the protocol version, the known versions and message
+ * types, and the round trip of the header. Then it sends versioned batched requests to a NodeUDPServer: a request
+ * which is resent while it is parked is dropped (it is answered once, when its data is published), the requests
+ * of other sources with the same sequence number are not, and the answers carry the sequence number of the request.
+ * Run it with the compiled classes on the class path; the exit status is 1 if a check fails.
+ */
+public class ProtocolHeaderCheck {
+
+    private static final int ROUNDS = 2000;
+    private static final int X = 3;
+    private static final int Y = 4;
+    private static final int QUIET_TIME = 300;                  // milliseconds without an answer for a parked request
+
+    private static boolean failed = false;
+
+
+    public static void main(String[] args) throws IOException {
+        checkNegotiation();
+        checkRoundTrip(new Random(1949));
+        checkResentRequests();
+
+        System.out.println(failed ? "ProtocolHeaderCheck: FAILED" : "ProtocolHeaderCheck: OK");
+        System.exit(failed ? 1 : 0);
+    }
+
+
+    /**
+     * Checks the negotiated versions, and the versions and message types which are known.
+     */
+    private static void checkNegotiation() {
+        int errors = 0;
+        errors += expect("negotiate(legacy)", ProtocolHeader.negotiate(ProtocolHeader.LEGACY_VERSION), ProtocolHeader.LEGACY_VERSION);
+        errors += expect("negotiate(negative)", ProtocolHeader.negotiate(-3), ProtocolHeader.LEGACY_VERSION);
+        for (int version=ProtocolHeader.FIRST_VERSION; version<=ProtocolHeader.VERSION; version++)
+            errors += expect("negotiate(" + version + ")", ProtocolHeader.negotiate(version), version);
+        errors += expect("negotiate(later version)", ProtocolHeader.negotiate(ProtocolHeader.VERSION+1), ProtocolHeader.VERSION);
+
+        final int numTypes = UDPMessageTypes.values().length;
+        errors += expect("legacy version supported", ProtocolHeader.isSupported(ProtocolHeader.LEGACY_VERSION, 0), false);
+        errors += expect("later version supported", ProtocolHeader.isSupported(ProtocolHeader.VERSION+1, 0), false);
+        errors += expect("negative message type supported", ProtocolHeader.isSupported(ProtocolHeader.VERSION, -1), false);
+        errors += expect("unknown message type supported", ProtocolHeader.isSupported(ProtocolHeader.VERSION, numTypes), false);
+        for (int version=ProtocolHeader.FIRST_VERSION; version<=ProtocolHeader.VERSION; version++) {
+            for (int type=0; type<numTypes; type++)
+                errors += expect("version " + version + " type " + type + " supported", ProtocolHeader.isSupported(version, type), true);
+        }
+
+        failed |= errors > 0;
+        System.out.println((errors == 0 ? "ok     " : "FAILED ") + "negotiation: " + errors + " errors");
+    }
+
+
+    /**
+     * Writes random headers and reads them back.
+     * @param random    random number generator
+     */
+    private static void checkRoundTrip(Random random) {
+        final ByteBuffer buf = ByteBuffer.allocate(ProtocolHeader.SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        final UDPMessageTypes[] types = UDPMessageTypes.values();
+        int errors = 0;
+        for (int round=0; round<ROUNDS; round++) {
+            final int version = ProtocolHeader.FIRST_VERSION + random.nextInt(ProtocolHeader.VERSION);
+            final UDPMessageTypes type = types[random.nextInt(types.length)];
+            final int sequence = random.nextInt();
+            final int sourceId = random.nextBoolean() ? ProtocolHeader.sourceId(random.nextInt(1000), random.nextInt(1000)) : ProtocolHeader.MAIN_SERVER_ID;
+            final boolean isParked = sourceId >= 0 && random.nextBoolean();
+            buf.clear();
+            ProtocolHeader.put(buf, version, type, sequence, sourceId | (isParked ? ProtocolHeader.PARKED_ANSWER : 0));
+            if (buf.position() != ProtocolHeader.SIZE) {
+                report("header of " + buf.position() + " bytes");
+                errors++;
+                continue;
+            }
+            buf.flip();
+            final int marker = buf.getInt();
+            final ProtocolHeader header = ProtocolHeader.get(buf);
+            if (marker != UDPMessageTypes.VERSIONED.getCode() || header == null || header.version != version || header.type != type
+                    || header.sequence != sequence || (header.sourceId & ~ProtocolHeader.PARKED_ANSWER) != (sourceId & ~ProtocolHeader.PARKED_ANSWER)
+                    || header.isParkedAnswer() != isParked) {
+                if (errors++ < 5)
+                    report("header " + version + " " + type + " " + sequence + " " + sourceId + " " + isParked + " not read back");
+            }
+        }
+
+        /* A header of an unknown version is not read. */
+        buf.clear();
+        ProtocolHeader.put(buf, ProtocolHeader.VERSION+1, UDPMessageTypes.CELL_DATA, 1, 0);
+        buf.flip();
+        buf.getInt();
+        if (ProtocolHeader.get(buf) != null) {
+            report("header of an unknown version read");
+            errors++;
+        }
+
+        failed |= errors > 0;
+        System.out.println((errors == 0 ? "ok     " : "FAILED ") + "round trip: " + errors + " errors in " + ROUNDS + " headers");
+    }
+
+
+    /**
+     * Sends versioned batched requests for z of the grid point of a server (on its own thread),
+     * and resends them while they are parked.
+     * @throws IOException
+     */
+    private static void checkResentRequests() throws IOException {
+        final DataStructZ z = new DataStructZ();
+        final NodeUDPServer server = new NodeUDPServer(new Provider(z));
+        final Thread thread = new Thread(server);
+        thread.setDaemon(true);
+        thread.start();
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            final InetAddress address = InetAddress.getLoopbackAddress();
+            final int port = server.getListeningPort();
+            final int sourceId = ProtocolHeader.sourceId(1, 2), otherSourceId = ProtocolHeader.sourceId(2, 1);
+
+            /* published value: answered at once, not marked as parked */
+            z.setData(0, 5500);
+            send(socket, address, port, 10, sourceId, 0);
+            expect("published value answered at once", receive(socket, 1000), 10, false, 5500);
+
+            /* resent request while it is parked, and a request of another source with the same sequence number */
+            send(socket, address, port, 11, sourceId, 1);
+            send(socket, address, port, 11, sourceId, 1);
+            send(socket, address, port, 11, otherSourceId, 1);
+            send(socket, address, port, 11, sourceId, 1);
+            expectNone("requests parked", socket);
+            z.setData(1, 5501);
+            expect("parked request answered", receive(socket, 1000), 11, true, 5501);
+            expect("request of the other source answered", receive(socket, 1000), 11, true, 5501);
+            expectNone("resent request dropped", socket);
+
+            /* the answered request is forgotten: sent again, it is answered again */
+            send(socket, address, port, 11, sourceId, 1);
+            expect("request answered again after its answer", receive(socket, 1000), 11, false, 5501);
+        } finally {
+            server.stop();
+        }
+    }
+
+
+    /**
+     * Sends a versioned batched request (without codec block) for z of the grid point of the server.
+     * @param socket    socket of the client
+     * @param address   address of the server
+     * @param port      port of the server
+     * @param sequence  sequence number of the request
+     * @param sourceId  source ID of the client
+     * @param step      the requested step
+     * @throws IOException
+     */
+    private static void send(DatagramSocket socket, InetAddress address, int port, int sequence, int sourceId, int step) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(ProtocolHeader.SIZE + 6*Integer.SIZE / 8).order(ByteOrder.LITTLE_ENDIAN);
+        ProtocolHeader.put(buf, UDPMessageTypes.GET_CELL_DATA_BATCH, sequence, sourceId);
+        buf.putInt(X);
+        buf.putInt(Y);
+        buf.putInt(1);
+        buf.putInt(Node.DataTypes.Z.ordinal());
+        buf.putInt(step);
+        buf.putInt(1);
+        socket.send(new DatagramPacket(buf.array(), buf.capacity(), address, port));
+    }
+
+
+    /**
+     * Receives an answer (CELL_DATA) of a versioned request.
+     * @param socket    socket of the client
+     * @param timeout   milliseconds to wait for the answer
+     * @return          the header and the value, or null if no answer was received
+     * @throws IOException
+     */
+    private static Answer receive(DatagramSocket socket, int timeout) throws IOException {
+        final DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+        socket.setSoTimeout(timeout);
+        try {
+            socket.receive(packet);
+        } catch (SocketTimeoutException ex) {
+            return null;
+        }
+        final ByteBuffer buf = ByteBuffer.wrap(packet.getData(), 0, packet.getLength()).order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.remaining() != ProtocolHeader.SIZE + 2*Integer.SIZE / 8 || buf.getInt() != UDPMessageTypes.VERSIONED.getCode())
+            return new Answer(null, Float.NaN);
+        final ProtocolHeader header = ProtocolHeader.get(buf);
+        if (header == null || header.type != UDPMessageTypes.CELL_DATA || buf.getInt() != 1)
+            return new Answer(null, Float.NaN);
+        return new Answer(header, buf.getFloat());
+    }
+
+
+    /**
+     * Checks an answer.
+     * @param name      name of the check
+     * @param answer    the answer (null if no answer was received)
+     * @param sequence  the expected sequence number
+     * @param isParked  true if the answer is expected to be marked as the answer of a parked request
+     * @param value     the expected value
+     */
+    private static void expect(String name, Answer answer, int sequence, boolean isParked, float value) {
+        if (answer == null)
+            report(name + ": no answer");
+        else if (answer.header == null)
+            report(name + ": unexpected answer");
+        else if (answer.header.sequence != sequence || answer.header.isParkedAnswer() != isParked || answer.value != value)
+            report(name + ": answer " + answer.header.sequence + " " + answer.header.isParkedAnswer() + " " + answer.value);
+        else {
+            System.out.println("ok     " + name);
+            return;
+        }
+        failed = true;
+    }
+
+
+    /**
+     * Checks that no answer is received for QUIET_TIME.
+     * @param name      name of the check
+     * @param socket    socket of the client
+     * @throws IOException
+     */
+    private static void expectNone(String name, DatagramSocket socket) throws IOException {
+        if (receive(socket, QUIET_TIME) == null) {
+            System.out.println("ok     " + name);
+            return;
+        }
+        report(name + ": answered");
+        failed = true;
+    }
+
+
+    /**
+     * Compares a result with the expected one.
+     * @param name      name of the check
+     * @param value     the result
+     * @param expected  the expected result
+     * @return          1 if the result differs, 0 otherwise
+     */
+    private static int expect(String name, Object value, Object expected) {
+        if (value.equals(expected))
+            return 0;
+        report(name + ": " + value + " instead of " + expected);
+        return 1;
+    }
+
+
+    /**
+     * Prints a failed check.
+     * @param message   description of the failure
+     */
+    private static void report(String message) {
+        System.out.println("FAILED " + message);
+    }
+
+
+    /**
+     * A received answer.
+     */
+    private static class Answer {
+        final ProtocolHeader header;        // null if the answer isn't a CELL_DATA answer of one value
+        final float value;
+
+        Answer(ProtocolHeader header, float value) {
+            this.header = header;
+            this.value = value;
+        }
+    }
+
+
+    /**
+     * The node of the server: a single grid point with z only.
+     */
+    private static class Provider implements DataProvider {
+
+        private final DataStruct z;
+
+        Provider(DataStruct z) {
+            this.z = z;
+        }
+
+        @Override
+        public float getValue(Node.DataTypes dataType, int step) {
+            return getValue(dataType, X, Y, step);
+        }
+
+        @Override
+        public float getValue(Node.DataTypes dataType, int x, int y, int step) {
+            final DataStruct data = getDataStruct(dataType, x, y);
+            return (data != null) ? data.getData(step) : Float.NaN;
+        }
+
+        @Override
+        public DataStruct getDataStruct(Node.DataTypes dataType, int x, int y) {
+            return (dataType == Node.DataTypes.Z && x == X && y == Y) ? z : null;
+        }
+
+        @Override
+        public int getX() {
+            return X;
+        }
+
+        @Override
+        public int getY() {
+            return Y;
+        }
+    }
+}
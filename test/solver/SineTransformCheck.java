@@ -0,0 +1,100 @@
+package solver;
+
+import java.util.Random;
+
+/**
+ * This class checks the discrete sine transform and the sine transform solver
+ * of the Poisson equation against direct calculations.
+ *
+ * The transform is compared with the definition of the DST-I (both the table and the FFT variant),
+ * the solver with the residual of the 5-point equation, for grid sizes from 3x3 to 1025x700.
+ * Run it with the compiled classes on the class path; the exit status is 1 if a check fails.
+ */
+public class SineTransformCheck {
+
+    private static final int[] LENGTHS = {1, 2, 3, 7, 63, 64, 65, 100, 127, 128, 129, 500, 1023};
+    private static final int[][] GRID_SIZES = {{3,3}, {4,7}, {19,16}, {66,67}, {130,70}, {1025,700}};
+
+    private static boolean failed = false;
+
+
+    public static void main(String[] args) {
+        final Random random = new Random(1949);
+
+        for (int n : LENGTHS)
+            checkTransform(n, random);
+        for (int[] size : GRID_SIZES)
+            checkSolver(size[0], size[1], random);
+
+        System.out.println(failed ? "SineTransformCheck: FAILED" : "SineTransformCheck: OK");
+        System.exit(failed ? 1 : 0);
+    }
+
+
+    /**
+     * Compares the transform of random data (stored with an offset and a stride) with the definition.
+     *
+     * @param n         length of the transform
+     * @param random    random number generator
+     */
+    private static void checkTransform(int n, Random random) {
+        final int offset = 3, stride = 2;
+        final double[] x = new double[n];
+        final double[] data = new double[offset+n*stride];
+        for (int k=0; k<n; k++) {
+            x[k] = random.nextDouble()*2-1;
+            data[offset+k*stride] = x[k];
+        }
+
+        final SineTransform sine = new SineTransform(n);
+        sine.transform(data, offset, stride, new double[n]);
+
+        double maxError = 0, maxValue = 0;
+        for (int j=1; j<=n; j++) {
+            double sum = 0;
+            for (int k=1; k<=n; k++)
+                sum += x[k-1]*Math.sin(Math.PI*j*k/(n+1));
+            maxError = Math.max(maxError, Math.abs(data[offset+(j-1)*stride] - sum));
+            maxValue = Math.max(maxValue, Math.abs(sum));
+        }
+        report("transform n=" + n, maxError, 1e-10*Math.max(1, maxValue));
+    }
+
+
+    /**
+     * Solves the Poisson equation with random border values and right-hand side,
+     * and checks that the residual is at the level of the float round-off.
+     *
+     * @param width     width of the grid
+     * @param height    height of the grid
+     * @param random    random number generator
+     */
+    private static void checkSolver(int width, int height, Random random) {
+        final float[] u = new float[width*height];
+        final float[] rhs = new float[width*height];
+        for (int i=0; i<u.length; i++) {
+            u[i] = random.nextFloat()*2-1;
+            rhs[i] = random.nextFloat()*2-1;
+        }
+
+        new FastSineTransformSolver().solve(u, rhs, width, height);
+
+        final float residual = Residuals.residual(u, rhs, new float[width*height], width, height);
+        final float scale = Math.max(Residuals.maxNorm(rhs, width, height), Residuals.maxNorm(u, width, height));
+        report("solver " + width + "x" + height, residual, 1e-5*scale);
+    }
+
+
+    /**
+     * Prints the result of a check.
+     *
+     * @param name      name of the check
+     * @param error     the error
+     * @param limit     the largest error accepted
+     */
+    private static void report(String name, double error, double limit) {
+        final boolean ok = error <= limit;
+        failed |= !ok;
+        System.out.println((ok ? "ok     " : "FAILED ") + name + ": error " + error + " (limit " + limit + ")");
+    }
+}